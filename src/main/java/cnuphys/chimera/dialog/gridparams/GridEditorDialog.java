@@ -5,6 +5,7 @@ import java.awt.Insets;
 
 import javax.swing.JComponent;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.event.EventListenerList;
@@ -15,6 +16,7 @@ import cnuphys.chimera.frame.Chimera;
 import cnuphys.chimera.grid.CartesianGrid;
 import cnuphys.chimera.grid.ChimeraGrid;
 import cnuphys.chimera.grid.IGridChangeListener;
+import cnuphys.chimera.grid.PatchKey;
 import cnuphys.chimera.grid.SphericalGrid;
 import cnuphys.bCNU.dialog.SimpleDialog;
 
@@ -131,12 +133,19 @@ public class GridEditorDialog extends SimpleDialog {
 		return gridCopy;
 	}
 
-	//user hit OK
-    private void handleOK() {
+	//user hit OK; false if the edited grid is refused
+    private boolean handleOK() {
 		System.err.println("Hit OK");
-		// Update the grid
 
+		// the patch histograms pack the indices into fixed width fields
+		try {
+			PatchKey.checkLimits(gridCopy);
+		} catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Grid Too Large", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
 
+		// Update the grid
 		cartesianGridCopy.setXOffset(_xotf.getDoubleValue());
 		cartesianGridCopy.setYOffset(_yotf.getDoubleValue());
 		cartesianGridCopy.setZOffset(_zotf.getDoubleValue());
@@ -146,13 +155,16 @@ public class GridEditorDialog extends SimpleDialog {
 		grid.setCartesianGrid(cartesianGridCopy);
 		grid.setSphericalGrid(sphericalGridCopy);
 		notifyListeners();
+		return true;
 	}
 
 	@Override
 	public void handleCommand(String command) {
 		reason = command;
 		if (command.equals("OK")) {
-			handleOK();
+			if (!handleOK()) {
+				return; // stay open to fix the grid
+			}
 		}
 		else {
 			System.err.println("Hit Cancel");
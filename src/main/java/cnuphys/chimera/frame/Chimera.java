@@ -3,10 +3,8 @@ package cnuphys.chimera.frame;
 import java.awt.EventQueue;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JInternalFrame;
 import javax.swing.JMenu;
@@ -20,13 +18,16 @@ import cnuphys.bCNU.util.Environment;
 import cnuphys.bCNU.util.FileUtilities;
 import cnuphys.bCNU.util.PropertySupport;
 import cnuphys.chimera.dialog.gridparams.GridEditorDialog;
-import cnuphys.chimera.grid.CartesianGrid;
 import cnuphys.chimera.grid.ChimeraGrid;
-import cnuphys.chimera.grid.Fiveplet;
 import cnuphys.chimera.grid.IGridChangeListener;
-import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.monteCarlo.IDirectionSampler;
+import cnuphys.chimera.monteCarlo.JobScheduler;
 import cnuphys.chimera.monteCarlo.MonteCarloDialog;
 import cnuphys.chimera.monteCarlo.MonteCarloPoint;
+import cnuphys.chimera.monteCarlo.PointStore;
+import cnuphys.chimera.monteCarlo.UniformDirectionSampler;
+import cnuphys.chimera.util.AppendOnlyList;
+import cnuphys.chimera.util.StripedLongCountMap;
 
 @SuppressWarnings("serial")
 public class Chimera extends BaseMDIApplication implements IGridChangeListener {
@@ -47,11 +48,24 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
 	// the grid
 	private ChimeraGrid _chimeraGrid;
 
-	//current Montecarlo points
-	private List<MonteCarloPoint> _points = new ArrayList<>();
+	//current Montecarlo points; views read them while a run appends
+	private final List<MonteCarloPoint> _points = new AppendOnlyList<>();
 
-	 // HashSet to store unique 5-plets
-    private final HashSet<Fiveplet> _seenTuples = new HashSet<>();
+	// all the current Monte Carlo points, off heap
+	private final PointStore _pointStore = PointStore.inMemory();
+
+	// the patch histogram of the current Monte Carlo points, keyed by packed patch key
+	private final StripedLongCountMap _patchCounts = new StripedLongCountMap();
+
+	// the distribution of the directions of the interactive Monte Carlo runs
+	private IDirectionSampler _directionSampler = UniformDirectionSampler.INSTANCE;
+
+	// runs the Monte Carlo jobs that fill the points and the histogram
+	private final JobScheduler _jobScheduler = new JobScheduler(_points, _pointStore, _patchCounts,
+			SwingUtilities::invokeLater);
+
+	// set while a refresh is queued on the event dispatch thread
+	private static final AtomicBoolean _refreshPending = new AtomicBoolean();
 
 	//2D MC view
 	private MonteCarloView2D _mc2DView;
@@ -81,9 +95,7 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
 
 	//create the initial (default) grid
 	private void createInitialGrid() {
-		CartesianGrid cartGrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
-		SphericalGrid sphereGrid = new SphericalGrid(49, 33, 1, 0, 0);
-		_chimeraGrid = new ChimeraGrid(cartGrid, sphereGrid);
+		_chimeraGrid = ChimeraGrid.createDefault();
 	}
 
 	/**
@@ -128,7 +140,8 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
 	}
 
 	/**
-	 * Get the current monte carlo points
+	 * Get the current monte carlo points. The list may grow while it is read;
+	 * iterate it (rather than index it) to see a consistent prefix.
 	 * @return the current monte carlo points
 	 */
 	public List<MonteCarloPoint> getMonteCarloPoints() {
@@ -136,11 +149,45 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
     }
 
 	/**
-	 * Get the current monte carlo patch counts
+	 * Get the off-heap store of all the current monte carlo points. The list from
+	 * getMonteCarloPoints holds at most MonteCarlo.MAX_VIEW_POINTS of them.
+	 * @return the point store
+	 */
+	public PointStore getPointStore() {
+		return _pointStore;
+	}
+
+	/**
+	 * Get the current monte carlo patch counts. Safe to update from many threads;
+	 * readers should use its snapshot or size.
 	 * @return the current monte carlo patch counts
 	 */
-	public HashSet<Fiveplet> getMonteCarloSeenSet() {
-		return _seenTuples;
+	public StripedLongCountMap getPatchHistogram() {
+		return _patchCounts;
+	}
+
+	/**
+	 * Get the distribution of the directions of the interactive Monte Carlo runs
+	 * @return the sampler
+	 */
+	public IDirectionSampler getDirectionSampler() {
+		return _directionSampler;
+	}
+
+	/**
+	 * Set the distribution of the directions of the interactive Monte Carlo runs
+	 * @param sampler the sampler, <code>null</code> for uniform
+	 */
+	public void setDirectionSampler(IDirectionSampler sampler) {
+		_directionSampler = (sampler == null) ? UniformDirectionSampler.INSTANCE : sampler;
+	}
+
+	/**
+	 * Get the scheduler of the background Monte Carlo jobs
+	 * @return the job scheduler
+	 */
+	public JobScheduler getJobScheduler() {
+		return _jobScheduler;
 	}
 
 	/**
@@ -188,23 +235,19 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
 
 
 	/**
-	 * Refresh all views (with containers)
+	 * Refresh all views (with containers). From another thread the refresh is
+	 * queued on the event dispatch thread without waiting, and requests made
+	 * while one is queued are merged into it.
 	 */
 	public static void refresh() {
 
 		if (SwingUtilities.isEventDispatchThread()) {
 			refreshAllViews();
-		} else {
-			try {
-				SwingUtilities.invokeAndWait(new Runnable() {
-					@Override
-					public void run() {
-						refreshAllViews();
-					}
-				});
-			} catch (InvocationTargetException | InterruptedException e) {
-				e.printStackTrace();
-			}
+		} else if (_refreshPending.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(() -> {
+				_refreshPending.set(false);
+				refreshAllViews();
+			});
 		}
 	}
 
@@ -219,8 +262,8 @@ public class Chimera extends BaseMDIApplication implements IGridChangeListener {
 	@Override
 	public void gridChanged() {
 		System.err.println("Grid changed");
-		_points.clear();
-		_seenTuples.clear();
+		// stops any run on the old grid before its points are removed
+		_jobScheduler.clear();
 		refresh();
 	}
 
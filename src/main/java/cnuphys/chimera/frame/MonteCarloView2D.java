@@ -21,6 +21,7 @@ import cnuphys.bCNU.graphics.container.IContainer;
 import cnuphys.bCNU.util.PropertySupport;
 import cnuphys.chimera.grid.CartesianGrid;
 import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
 import cnuphys.chimera.grid.SphericalGrid;
 import cnuphys.chimera.grid.mapping.EProjection;
 import cnuphys.chimera.grid.mapping.MapProjectionMenu;
@@ -34,6 +35,15 @@ public class MonteCarloView2D extends MapView2D implements IFeedbackProvider {
 
 	private static final int WIDTH = 1200;
 
+	private static Color[] mapColors = {
+            new Color(70, 130, 180),  // Ocean Blue
+            new Color(34, 139, 34),   // Earth Green
+            new Color(240, 230, 140), // Desert Yellow
+            new Color(169, 169, 169), // Mountain Gray
+            new Color(95, 158, 160),  // Dark Cyan
+            new Color(220, 20, 60)    // Urban Red
+        };
+
 	//for selecting the map projection
 	private MapProjectionMenu _projectionMenu;
 
@@ -120,14 +130,15 @@ public class MonteCarloView2D extends MapView2D implements IFeedbackProvider {
 			@Override
 			public void draw(Graphics g, IContainer container) {
 				drawMonteCarloPoints(g, container);
-				_projection.drawMapOutline(g, container);
+				_projection.drawMapOutline(g, container, Chimera.getInstance().getChimeraGrid().getSphericalGrid());
 			}
 		};
 
 		getContainer().setAfterDraw(afterDraw);
 	}
 
-	//draw the Monte Carlo points
+	//draw the Monte Carlo points; a run may be appending, the iterator sees
+	//the points that were there when drawing started
 	private void drawMonteCarloPoints(Graphics g, IContainer container) {
 		List<MonteCarloPoint> points = Chimera.getInstance().getMonteCarloPoints();
 
@@ -136,6 +147,11 @@ public class MonteCarloView2D extends MapView2D implements IFeedbackProvider {
 		Point pp = new Point();
 
 		for (MonteCarloPoint mcp : points) {
+			//the map is of the primary spherical component
+			if (mcp.body != 0) {
+				continue;
+			}
+
 			ThetaPhi thetaPhi = mcp.thetaPhi;
 			latLon.x = thetaPhi.getPhi();
 			latLon.y = thetaPhi.getLatitude();
@@ -145,17 +161,30 @@ public class MonteCarloView2D extends MapView2D implements IFeedbackProvider {
 
 			_projection.latLonToXY(latLon, xy);
 			container.worldToLocal(pp, xy);
-			g.setColor(mcp.getColor());
+			g.setColor(getColor(mcp));
 			g.fillRect(pp.x - 1, pp.y - 1, 2, 2);
 		}
 	}
 
+	// the color of a point, by its patch
+	private static Color getColor(MonteCarloPoint mcp) {
+		Fiveplet fiveplet = mcp.fiveplet;
+		if (fiveplet == null) {
+			return Color.BLACK;
+		}
+		if (fiveplet.nx < 0 || fiveplet.ny < 0 || fiveplet.nz < 0 || fiveplet.ntheta < 0 || fiveplet.nphi < 0) {
+			return Color.BLACK;
+		}
+		int sum = fiveplet.nx + fiveplet.ny + fiveplet.nz + 2*fiveplet.ntheta + 2*fiveplet.nphi;
+		return mapColors[sum % mapColors.length];
+	}
+
 	@Override
 	public void getFeedbackStrings(IContainer container, Point pp, Point2D.Double xy,
 			List<String> feedbackStrings) {
 
 		boolean onMap = _projection.isPointOnMap(xy);
-		int patchCount= Chimera.getInstance().getMonteCarloSeenSet().size();
+		int patchCount = Chimera.getInstance().getPatchHistogram().size();
 
 
 		String projStr = String.format("projection: %s", _projection.name());
@@ -180,11 +209,12 @@ public class MonteCarloView2D extends MapView2D implements IFeedbackProvider {
 		double theta = 90 - lat;
 		double phi = lon;
 		ThetaPhi tp = new ThetaPhi(Math.PI/2 - latLon.y, latLon.x);
-		Point3D.Double cartesian = tp.toCartesian();
 
 		ChimeraGrid grid = Chimera.getInstance().getChimeraGrid();
 		CartesianGrid cgrid = grid.getCartesianGrid();
 		SphericalGrid sgrid = grid.getSphericalGrid();
+		Point3D.Double cartesian = new Point3D.Double();
+		sgrid.toGlobal(tp, cartesian);
 		int cindices[] = new int[3];
 		cgrid.getIndices(cartesian, cindices);
 		int sindices[] = new int[2];
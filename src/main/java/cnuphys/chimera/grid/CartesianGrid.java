@@ -2,7 +2,7 @@ package cnuphys.chimera.grid;
 
 import cnuphys.chimera.util.Point3D;
 
-public class CartesianGrid {
+public class CartesianGrid implements IStructuredGrid {
     private Grid1D xGrid;
     private Grid1D yGrid;
     private Grid1D zGrid;
@@ -64,6 +64,7 @@ public class CartesianGrid {
 		xGrid.setMin(xmin);
 	}
 
+    @Override
     public int getNumX() {
         return xGrid.getNum();
     }
@@ -100,6 +101,7 @@ public class CartesianGrid {
 	public void setYMin(double ymin) {
 		yGrid.setMin(ymin);
 	}
+    @Override
     public int getNumY() {
         return yGrid.getNum();
     }
@@ -136,6 +138,7 @@ public class CartesianGrid {
 	public void setZMin(double zmin) {
 		zGrid.setMax(zmin);
 	}
+    @Override
     public int getNumZ() {
         return zGrid.getNum();
     }
@@ -181,6 +184,24 @@ public class CartesianGrid {
         }
     }
 
+    /**
+     * Get indices for explicit coordinates without throwing for points outside
+     * the grid.
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @param indices will hold the x, y and z indices
+     * @return <code>true</code> if the point is inside the grid
+     */
+    @Override
+    public boolean locate(double x, double y, double z, int[] indices) {
+        indices[0] = xGrid.getIndex(x - xo);
+        indices[1] = yGrid.getIndex(y - yo);
+        indices[2] = zGrid.getIndex(z - zo);
+        return indices[0] >= 0 && indices[1] >= 0 && indices[2] >= 0;
+    }
+
     // Get global coordinates from grid indices
     public Point3D.Double getCoordinates(int ix, int iy, int iz) {
         if (ix < 0 || ix >= xGrid.getNum() ||
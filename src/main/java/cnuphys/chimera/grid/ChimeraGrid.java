@@ -1,28 +1,360 @@
 package cnuphys.chimera.grid;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cnuphys.chimera.util.Point3D;
+import cnuphys.chimera.util.ThetaPhi;
+
 public class ChimeraGrid {
 
+	/** The size of the work array of the getPatchKey methods (indices and the BVH stack) */
+	public static final int PATCH_KEY_WORK = Math.max(3, SphereBVH.STACK_SIZE);
+
 	private CartesianGrid cartGrid;
-	private SphericalGrid sphGrid;
+
+	//the spherical components, the first is the primary one
+	private final List<SphericalGrid> sphGrids = new ArrayList<>();
+
+	//curvilinear (e.g. Plot3D) component grids
+	private final List<CurvilinearGrid> curvGrids = new ArrayList<>();
+
+	//lazily built lookup structures for the spherical components
+	private SphereBVH bvh;
+	private double[] cumulativeArea;
 
 	public ChimeraGrid(CartesianGrid cartGrid, SphericalGrid sphGrid) {
 		this.cartGrid =cartGrid;
-		this.sphGrid = sphGrid;
+		sphGrids.add(sphGrid);
+	}
+
+	/**
+	 * Create the default grid the application starts with
+	 * @return a new default grid
+	 */
+	public static ChimeraGrid createDefault() {
+		CartesianGrid cartGrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sphereGrid = new SphericalGrid(49, 33, 1, 0, 0);
+		return new ChimeraGrid(cartGrid, sphereGrid);
+	}
+
+	/**
+	 * Get a copy of the grid that later edits to this one do not affect, for a
+	 * background job to classify against. The Cartesian and spherical components
+	 * are deep copies; the curvilinear grids, which are never edited, are shared.
+	 * @return the snapshot
+	 */
+	public ChimeraGrid snapshot() {
+		ChimeraGrid copy = new ChimeraGrid(new CartesianGrid(cartGrid), new SphericalGrid(sphGrids.get(0)));
+		for (int body = 1; body < sphGrids.size(); body++) {
+			copy.addSphericalGrid(new SphericalGrid(sphGrids.get(body)));
+		}
+		copy.curvGrids.addAll(curvGrids);
+		return copy;
 	}
 
 	public void setCartesianGrid(CartesianGrid cartGrid) {
 		this.cartGrid = cartGrid;
 	}
 
+	/**
+	 * Set the primary spherical component
+	 * @param sphGrid the new primary spherical component
+	 */
 	public void setSphericalGrid(SphericalGrid sphGrid) {
-		this.sphGrid = sphGrid;
+		sphGrids.set(0, sphGrid);
+		bodiesChanged();
+	}
+
+	/**
+	 * Add another spherical component
+	 * @param sphGrid the spherical component to add
+	 * @return the index of the new component
+	 */
+	public int addSphericalGrid(SphericalGrid sphGrid) {
+		sphGrids.add(sphGrid);
+		bodiesChanged();
+		return sphGrids.size() - 1;
 	}
 
 	public CartesianGrid getCartesianGrid() {
 		return cartGrid;
 	}
 
+	/**
+	 * Get the primary spherical component
+	 * @return the primary spherical component
+	 */
 	public SphericalGrid getSphericalGrid() {
-		return sphGrid;
+		return sphGrids.get(0);
+	}
+
+	/**
+	 * Get a spherical component
+	 * @param body the index of the component
+	 * @return the spherical component
+	 */
+	public SphericalGrid getSphericalGrid(int body) {
+		return sphGrids.get(body);
+	}
+
+	/**
+	 * Get the number of spherical components
+	 * @return the number of spherical components
+	 */
+	public int getNumSphericalGrids() {
+		return sphGrids.size();
+	}
+
+	/**
+	 * Add a curvilinear component grid. Curvilinear grids are not part of the
+	 * Monte Carlo classification: patch keys and the engine only cut the
+	 * spherical surfaces by the background Cartesian grid. A patch against a
+	 * curvilinear grid comes from
+	 * {@link #getFiveplet(int, ThetaPhi, IStructuredGrid)}. A grid with
+	 * curvilinear components cannot be saved by {@link GridIO}, so runs on it
+	 * cannot be checkpointed.
+	 * @param curvGrid the curvilinear grid to add
+	 * @return the index of the new curvilinear grid
+	 */
+	public int addCurvilinearGrid(CurvilinearGrid curvGrid) {
+		curvGrids.add(curvGrid);
+		return curvGrids.size() - 1;
+	}
+
+	/**
+	 * Get a curvilinear component grid
+	 * @param index the index of the curvilinear grid
+	 * @return the curvilinear grid
+	 */
+	public CurvilinearGrid getCurvilinearGrid(int index) {
+		return curvGrids.get(index);
+	}
+
+	/**
+	 * Get the number of curvilinear component grids
+	 * @return the number of curvilinear grids
+	 */
+	public int getNumCurvilinearGrids() {
+		return curvGrids.size();
+	}
+
+	/**
+	 * Find the first curvilinear component grid that contains a point
+	 *
+	 * @param x       the x coordinate
+	 * @param y       the y coordinate
+	 * @param z       the z coordinate
+	 * @param indices will hold the i, j and k cell indices
+	 * @return the index of the curvilinear grid, or -1 if none contains the point
+	 */
+	public int locateCurvilinear(double x, double y, double z, int[] indices) {
+		for (int i = 0; i < curvGrids.size(); i++) {
+			if (curvGrids.get(i).locate(x, y, z, indices)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Must be called after the center or radius of a spherical component is
+	 * changed, so that the lookup structures are rebuilt.
+	 */
+	public void bodiesChanged() {
+		bvh = null;
+		cumulativeArea = null;
+	}
+
+	/**
+	 * Get the bounding volume hierarchy over the spherical components
+	 * @return the bounding volume hierarchy
+	 */
+	public SphereBVH getBVH() {
+		SphereBVH result = bvh;
+		if (result == null) {
+			result = new SphereBVH(sphGrids);
+			bvh = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Classify a point in global coordinates
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the index of a spherical component that contains the point, or -1 if
+	 *         the point is only in the background Cartesian grid
+	 */
+	public int classify(double x, double y, double z) {
+		return getBVH().findContaining(x, y, z, -1);
+	}
+
+	/**
+	 * Pick a spherical component with probability proportional to its surface
+	 * area, e.g. for sampling all the surfaces uniformly.
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @return the index of the spherical component
+	 */
+	public int pickBody(double u) {
+		if (sphGrids.size() == 1) {
+			return 0;
+		}
+		double[] cumulative = cumulativeArea;
+		if (cumulative == null) {
+			cumulative = new double[sphGrids.size()];
+			double sum = 0;
+			for (int i = 0; i < cumulative.length; i++) {
+				sum += sphGrids.get(i).getArea();
+				cumulative[i] = sum;
+			}
+			cumulativeArea = cumulative;
+		}
+
+		double target = u * cumulative[cumulative.length - 1];
+		int index = Arrays.binarySearch(cumulative, target);
+		index = (index < 0) ? -(index + 1) : index + 1;
+		return Math.min(index, cumulative.length - 1);
+	}
+
+	/**
+	 * Get the patch containing the point on the surface of a spherical component
+	 * in the given direction from its center.
+	 *
+	 * @param body     the index of the spherical component
+	 * @param thetaPhi the (global) direction from the center
+	 * @return the patch, or <code>null</code> if the surface point is hidden
+	 *         inside another spherical component or is outside the Cartesian
+	 *         grid
+	 */
+	public Fiveplet getFiveplet(int body, ThetaPhi thetaPhi) {
+		return getFiveplet(body, thetaPhi, cartGrid);
+	}
+
+	/**
+	 * Get the packed key of the patch containing the point on the surface of a
+	 * spherical component in the given direction from its center. This is the
+	 * lookup of {@link #getFiveplet(int, ThetaPhi)} without the objects, for
+	 * classifying many points; with a work array per thread it allocates
+	 * nothing. Like that method it uses only the Cartesian grid, never the
+	 * curvilinear components.
+	 *
+	 * @param body  the index of the spherical component
+	 * @param theta the global polar angle of the direction
+	 * @param phi   the global azimuthal angle of the direction
+	 * @param work  work space of at least {@link #PATCH_KEY_WORK} elements
+	 * @return the {@link PatchKey}, or {@link PatchKey#hidden(int)} if the
+	 *         surface point is hidden inside another spherical component or is
+	 *         outside the Cartesian grid (or theta is not in [0, &pi;], or the
+	 *         direction is outside the angular grid)
+	 */
+	public long getPatchKey(int body, double theta, double phi, int[] work) {
+		if (!((theta >= 0) && (theta <= Math.PI))) {
+			return PatchKey.hidden(body);
+		}
+		SphericalGrid sgrid = sphGrids.get(body);
+		double sinTheta = Math.sin(theta);
+		double r = sgrid.getRadius();
+		double x = sgrid.getXCenter() + r * sinTheta * Math.cos(phi);
+		double y = sgrid.getYCenter() + r * sinTheta * Math.sin(phi);
+		double z = sgrid.getZCenter() + r * Math.cos(theta);
+
+		if ((sphGrids.size() > 1) && (getBVH().findContaining(x, y, z, body, work) >= 0)) {
+			return PatchKey.hidden(body);
+		}
+		if (!cartGrid.locate(x, y, z, work)) {
+			return PatchKey.hidden(body);
+		}
+		int nx = work[0];
+		int ny = work[1];
+		int nz = work[2];
+		sgrid.getIndices(theta, phi, work);
+		if ((work[0] < 0) || (work[1] < 0)) {
+			return PatchKey.hidden(body);
+		}
+		return PatchKey.pack(nx, ny, nz, 0, work[0], work[1], body);
+	}
+
+	/**
+	 * Get the packed key of the patch containing the point on the surface of a
+	 * spherical component in the direction of a vector from its center. The
+	 * surface point comes from the vector itself, with no trig.
+	 *
+	 * @param body the index of the spherical component
+	 * @param ux   the x component of the (global) direction, not necessarily unit
+	 * @param uy   the y component of the direction
+	 * @param uz   the z component of the direction
+	 * @param work work space of at least {@link #PATCH_KEY_WORK} elements
+	 * @return the {@link PatchKey}, or {@link PatchKey#hidden(int)} as for
+	 *         {@link #getPatchKey(int, double, double, int[])} or for a zero
+	 *         vector
+	 */
+	public long getPatchKey(int body, double ux, double uy, double uz, int[] work) {
+		double r = Math.sqrt(ux * ux + uy * uy + uz * uz);
+		if (!(r > 0)) {
+			return PatchKey.hidden(body);
+		}
+		ux /= r;
+		uy /= r;
+		uz /= r;
+		SphericalGrid sgrid = sphGrids.get(body);
+		double radius = sgrid.getRadius();
+		double x = sgrid.getXCenter() + radius * ux;
+		double y = sgrid.getYCenter() + radius * uy;
+		double z = sgrid.getZCenter() + radius * uz;
+
+		if ((sphGrids.size() > 1) && (getBVH().findContaining(x, y, z, body, work) >= 0)) {
+			return PatchKey.hidden(body);
+		}
+		if (!cartGrid.locate(x, y, z, work)) {
+			return PatchKey.hidden(body);
+		}
+		int nx = work[0];
+		int ny = work[1];
+		int nz = work[2];
+		sgrid.getDirectionIndices(ux, uy, uz, work);
+		if ((work[0] < 0) || (work[1] < 0)) {
+			return PatchKey.hidden(body);
+		}
+		return PatchKey.pack(nx, ny, nz, 0, work[0], work[1], body);
+	}
+
+	/**
+	 * Get the patch cut out of the surface of a spherical component by a cell of
+	 * a structured grid, such as the background Cartesian grid or one of the
+	 * curvilinear component grids. For a curvilinear grid the nx, ny and nz of
+	 * the patch are its i, j and k cell indices.
+	 *
+	 * @param body     the index of the spherical component
+	 * @param thetaPhi the (global) direction from the center
+	 * @param structuredGrid the structured grid
+	 * @return the patch, or <code>null</code> if the surface point is hidden
+	 *         inside another spherical component or is outside the structured
+	 *         grid
+	 */
+	public Fiveplet getFiveplet(int body, ThetaPhi thetaPhi, IStructuredGrid structuredGrid) {
+		SphericalGrid sgrid = sphGrids.get(body);
+		Point3D.Double point = new Point3D.Double();
+		sgrid.toGlobal(thetaPhi, point);
+
+		if ((sphGrids.size() > 1) && (getBVH().findContaining(point.x, point.y, point.z, body) >= 0)) {
+			return null;
+		}
+
+		int sIndices[] = new int[2];
+		int cIndices[] = new int[3];
+		if (!structuredGrid.locate(point.x, point.y, point.z, cIndices)) {
+			return null;
+		}
+		sgrid.getIndices(thetaPhi, sIndices);
+		if ((sIndices[0] < 0) || (sIndices[1] < 0)) {
+			return null;
+		}
+
+		return new Fiveplet(cIndices[0], cIndices[1], cIndices[2], sIndices[0], sIndices[1], body);
 	}
 }
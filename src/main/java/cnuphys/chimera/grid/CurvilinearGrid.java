@@ -0,0 +1,474 @@
+package cnuphys.chimera.grid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import cnuphys.chimera.util.Point3D;
+
+/**
+ * A curvilinear structured grid, i.e. a block of ni x nj x nk points with
+ * arbitrary coordinates, as read from a Plot3D file. The coordinates are not
+ * copied: they are read straight from the buffer, which for a file is a memory
+ * mapped view. The buffer holds all the x values, then all the y values, then
+ * all the z values, each with i varying fastest.
+ * <p>
+ * Points are located by a stencil walk: starting from the last cell found (per
+ * thread), the trilinear map of the cell is inverted and the walk steps toward
+ * the point until it lands in a cell. When the walk from the last cell fails, it
+ * is restarted from a seed cell taken from a coarse bucket index.
+ */
+public class CurvilinearGrid implements IStructuredGrid {
+
+	// tolerance on the local cell coordinates
+	private static final double EPS = 1.0e-9;
+
+	// max Newton iterations for inverting the trilinear map
+	private static final int MAX_NEWTON = 12;
+
+	private final int ni, nj, nk;
+	private final int numPoints;
+
+	// coordinates, 4 or 8 bytes each
+	private final ByteBuffer coords;
+	private final int precision;
+
+	// bounding box
+	private double xmin, ymin, zmin;
+	private double xmax, ymax, zmax;
+
+	// coarse bucket index, built lazily: a seed cell per bucket or -1
+	private volatile int[] buckets;
+	private int nbx, nby, nbz;
+
+	// the last cell found and the work space of the Newton inversion, per thread
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	// per thread state of the point location, so a query allocates nothing
+	private static class Scratch {
+		// the last cell found, or -1 in the first element
+		final int[] lastCell = { -1, 0, 0 };
+
+		// the local coordinates when the caller does not want them
+		final double[] local = new double[3];
+
+		// the corners of the cell being inverted
+		final double[] cx = new double[8];
+		final double[] cy = new double[8];
+		final double[] cz = new double[8];
+
+		// the trilinear map and its Jacobian columns
+		final double[] f = new double[3];
+		final double[] ju = new double[3];
+		final double[] jv = new double[3];
+		final double[] jw = new double[3];
+	}
+
+	/**
+	 * Create a curvilinear grid on a buffer of coordinates
+	 *
+	 * @param ni        number of points in the i direction
+	 * @param nj        number of points in the j direction
+	 * @param nk        number of points in the k direction
+	 * @param coords    the x, then y, then z coordinates, with the byte order set
+	 * @param precision 8 for doubles, 4 for floats
+	 */
+	public CurvilinearGrid(int ni, int nj, int nk, ByteBuffer coords, int precision) {
+		if (ni < 2 || nj < 2 || nk < 2) {
+			throw new IllegalArgumentException("A curvilinear grid needs at least 2 points in each direction.");
+		}
+		if (precision != 4 && precision != 8) {
+			throw new IllegalArgumentException("precision must be 4 or 8 bytes.");
+		}
+		this.ni = ni;
+		this.nj = nj;
+		this.nk = nk;
+		this.numPoints = ni * nj * nk;
+		this.coords = coords;
+		this.precision = precision;
+
+		if (coords.capacity() < 3L * numPoints * precision) {
+			throw new IllegalArgumentException("Coordinate buffer is too small for the grid dimensions.");
+		}
+		computeBounds();
+	}
+
+	/**
+	 * Create a curvilinear grid from coordinate arrays (copied onto the heap)
+	 *
+	 * @param ni number of points in the i direction
+	 * @param nj number of points in the j direction
+	 * @param nk number of points in the k direction
+	 * @param x  the x coordinates, i varying fastest
+	 * @param y  the y coordinates
+	 * @param z  the z coordinates
+	 * @return the grid
+	 */
+	public static CurvilinearGrid fromArrays(int ni, int nj, int nk, double[] x, double[] y, double[] z) {
+		int n = ni * nj * nk;
+		ByteBuffer buffer = ByteBuffer.allocate(24 * n).order(ByteOrder.nativeOrder());
+		for (int p = 0; p < n; p++) {
+			buffer.putDouble(8 * p, x[p]);
+			buffer.putDouble(8 * (n + p), y[p]);
+			buffer.putDouble(8 * (2 * n + p), z[p]);
+		}
+		return new CurvilinearGrid(ni, nj, nk, buffer, 8);
+	}
+
+	// read one coordinate value
+	private double value(int index) {
+		return (precision == 8) ? coords.getDouble(8 * index) : coords.getFloat(4 * index);
+	}
+
+	// linear point index
+	private int index(int i, int j, int k) {
+		return i + ni * (j + nj * k);
+	}
+
+	public double getX(int i, int j, int k) {
+		return value(index(i, j, k));
+	}
+
+	public double getY(int i, int j, int k) {
+		return value(numPoints + index(i, j, k));
+	}
+
+	public double getZ(int i, int j, int k) {
+		return value(2 * numPoints + index(i, j, k));
+	}
+
+	/**
+	 * Get a grid point
+	 *
+	 * @param i     the i index
+	 * @param j     the j index
+	 * @param k     the k index
+	 * @param point will hold the coordinates
+	 */
+	public void getPoint(int i, int j, int k, Point3D.Double point) {
+		int p = index(i, j, k);
+		point.x = value(p);
+		point.y = value(numPoints + p);
+		point.z = value(2 * numPoints + p);
+	}
+
+	@Override
+	public int getNumX() {
+		return ni;
+	}
+
+	@Override
+	public int getNumY() {
+		return nj;
+	}
+
+	@Override
+	public int getNumZ() {
+		return nk;
+	}
+
+	public double getXMin() {
+		return xmin;
+	}
+
+	public double getXMax() {
+		return xmax;
+	}
+
+	public double getYMin() {
+		return ymin;
+	}
+
+	public double getYMax() {
+		return ymax;
+	}
+
+	public double getZMin() {
+		return zmin;
+	}
+
+	public double getZMax() {
+		return zmax;
+	}
+
+	// the bounding box of all the points
+	private void computeBounds() {
+		xmin = ymin = zmin = Double.POSITIVE_INFINITY;
+		xmax = ymax = zmax = Double.NEGATIVE_INFINITY;
+		for (int p = 0; p < numPoints; p++) {
+			double x = value(p);
+			double y = value(numPoints + p);
+			double z = value(2 * numPoints + p);
+			xmin = Math.min(xmin, x);
+			xmax = Math.max(xmax, x);
+			ymin = Math.min(ymin, y);
+			ymax = Math.max(ymax, y);
+			zmin = Math.min(zmin, z);
+			zmax = Math.max(zmax, z);
+		}
+	}
+
+	/**
+	 * Check whether a point is inside the bounding box
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return <code>true</code> if the point is inside the bounding box
+	 */
+	public boolean inBounds(double x, double y, double z) {
+		return x >= xmin && x <= xmax && y >= ymin && y <= ymax && z >= zmin && z <= zmax;
+	}
+
+	@Override
+	public boolean locate(double x, double y, double z, int[] indices) {
+		Scratch work = scratch.get();
+		return locate(x, y, z, indices, work.local, work);
+	}
+
+	/**
+	 * Locate the cell containing a point
+	 *
+	 * @param x       the x coordinate
+	 * @param y       the y coordinate
+	 * @param z       the z coordinate
+	 * @param indices will hold the i, j and k cell indices
+	 * @param local   will hold the local (0 to 1) coordinates in the cell
+	 * @return <code>true</code> if the point is inside the grid
+	 */
+	public boolean locate(double x, double y, double z, int[] indices, double[] local) {
+		return locate(x, y, z, indices, local, scratch.get());
+	}
+
+	// locate with the state of the calling thread
+	private boolean locate(double x, double y, double z, int[] indices, double[] local, Scratch work) {
+		if (!inBounds(x, y, z)) {
+			return false;
+		}
+
+		// coherent queries: start where the last one ended
+		int[] last = work.lastCell;
+		if (last[0] >= 0) {
+			indices[0] = last[0];
+			indices[1] = last[1];
+			indices[2] = last[2];
+			if (walk(x, y, z, indices, local, work)) {
+				System.arraycopy(indices, 0, last, 0, 3);
+				return true;
+			}
+		}
+
+		// fall back on the bucket index
+		int seed = getSeed(x, y, z);
+		if (seed < 0) {
+			return false;
+		}
+		indices[0] = seed % (ni - 1);
+		indices[1] = (seed / (ni - 1)) % (nj - 1);
+		indices[2] = seed / ((ni - 1) * (nj - 1));
+		if (walk(x, y, z, indices, local, work)) {
+			System.arraycopy(indices, 0, last, 0, 3);
+			return true;
+		}
+		return false;
+	}
+
+	// walk from the cell in indices toward the point
+	private boolean walk(double x, double y, double z, int[] indices, double[] local, Scratch work) {
+		int maxSteps = ni + nj + nk;
+		for (int step = 0; step < maxSteps; step++) {
+			int i = indices[0];
+			int j = indices[1];
+			int k = indices[2];
+
+			boolean converged = invert(i, j, k, x, y, z, local, work);
+			if (converged && inside(local[0]) && inside(local[1]) && inside(local[2])) {
+				for (int d = 0; d < 3; d++) {
+					local[d] = Math.max(0, Math.min(1, local[d]));
+				}
+				return true;
+			}
+
+			// step toward the point, by at most a few cells at a time
+			int ni1 = clamp(i + stepSize(local[0], converged), ni - 2);
+			int nj1 = clamp(j + stepSize(local[1], converged), nj - 2);
+			int nk1 = clamp(k + stepSize(local[2], converged), nk - 2);
+
+			if (ni1 == i && nj1 == j && nk1 == k) {
+				return false; // against the boundary: the point is outside
+			}
+			indices[0] = ni1;
+			indices[1] = nj1;
+			indices[2] = nk1;
+		}
+		return false;
+	}
+
+	private static boolean inside(double s) {
+		return s >= -EPS && s <= 1 + EPS;
+	}
+
+	private static int stepSize(double s, boolean converged) {
+		if (!converged || Double.isNaN(s)) {
+			return (s < 0) ? -1 : ((s > 1) ? 1 : 0);
+		}
+		if (s < -EPS) {
+			return (int) Math.max(-4, Math.floor(s));
+		}
+		if (s > 1 + EPS) {
+			return (int) Math.min(4, Math.floor(s));
+		}
+		return 0;
+	}
+
+	private static int clamp(int index, int max) {
+		return Math.max(0, Math.min(max, index));
+	}
+
+	/**
+	 * Invert the trilinear map of a cell by Newton's method.
+	 *
+	 * @return <code>true</code> if the iteration converged
+	 */
+	private boolean invert(int i, int j, int k, double x, double y, double z, double[] local, Scratch work) {
+		// the eight corners, in the order (0,0,0) (1,0,0) (0,1,0) (1,1,0) (0,0,1) ...
+		double[] cx = work.cx;
+		double[] cy = work.cy;
+		double[] cz = work.cz;
+		for (int c = 0; c < 8; c++) {
+			int p = index(i + (c & 1), j + ((c >> 1) & 1), k + ((c >> 2) & 1));
+			cx[c] = value(p);
+			cy[c] = value(numPoints + p);
+			cz[c] = value(2 * numPoints + p);
+		}
+
+		double[] f = work.f;
+		double[] ju = work.ju;
+		double[] jv = work.jv;
+		double[] jw = work.jw;
+
+		double u = 0.5, v = 0.5, w = 0.5;
+		for (int iter = 0; iter < MAX_NEWTON; iter++) {
+			trilinear(cx, u, v, w, 0, f, ju, jv, jw);
+			trilinear(cy, u, v, w, 1, f, ju, jv, jw);
+			trilinear(cz, u, v, w, 2, f, ju, jv, jw);
+
+			double rx = f[0] - x;
+			double ry = f[1] - y;
+			double rz = f[2] - z;
+
+			// solve J d = r by Cramer's rule
+			double det = ju[0] * (jv[1] * jw[2] - jv[2] * jw[1]) - jv[0] * (ju[1] * jw[2] - ju[2] * jw[1])
+					+ jw[0] * (ju[1] * jv[2] - ju[2] * jv[1]);
+			if (det == 0 || Double.isNaN(det)) {
+				break;
+			}
+			double du = (rx * (jv[1] * jw[2] - jv[2] * jw[1]) - jv[0] * (ry * jw[2] - rz * jw[1])
+					+ jw[0] * (ry * jv[2] - rz * jv[1])) / det;
+			double dv = (ju[0] * (ry * jw[2] - rz * jw[1]) - rx * (ju[1] * jw[2] - ju[2] * jw[1])
+					+ jw[0] * (ju[1] * rz - ju[2] * ry)) / det;
+			double dw = (ju[0] * (jv[1] * rz - jv[2] * ry) - jv[0] * (ju[1] * rz - ju[2] * ry)
+					+ rx * (ju[1] * jv[2] - ju[2] * jv[1])) / det;
+
+			u -= du;
+			v -= dv;
+			w -= dw;
+
+			if (Math.abs(du) + Math.abs(dv) + Math.abs(dw) < 1.0e-12) {
+				local[0] = u;
+				local[1] = v;
+				local[2] = w;
+				return true;
+			}
+		}
+		local[0] = u;
+		local[1] = v;
+		local[2] = w;
+		return false;
+	}
+
+	// value and derivatives of a trilinear interpolant of the corner values
+	private static void trilinear(double[] c, double u, double v, double w, int d, double[] f, double[] ju,
+			double[] jv, double[] jw) {
+		double u0 = 1 - u, v0 = 1 - v, w0 = 1 - w;
+		f[d] = w0 * (v0 * (u0 * c[0] + u * c[1]) + v * (u0 * c[2] + u * c[3]))
+				+ w * (v0 * (u0 * c[4] + u * c[5]) + v * (u0 * c[6] + u * c[7]));
+		ju[d] = w0 * (v0 * (c[1] - c[0]) + v * (c[3] - c[2])) + w * (v0 * (c[5] - c[4]) + v * (c[7] - c[6]));
+		jv[d] = w0 * (u0 * (c[2] - c[0]) + u * (c[3] - c[1])) + w * (u0 * (c[6] - c[4]) + u * (c[7] - c[5]));
+		jw[d] = v0 * (u0 * (c[4] - c[0]) + u * (c[5] - c[1])) + v * (u0 * (c[6] - c[2]) + u * (c[7] - c[3]));
+	}
+
+	// get a seed cell (linear cell index) near a point from the bucket index
+	private int getSeed(double x, double y, double z) {
+		int[] index = buckets;
+		if (index == null) {
+			index = buildBuckets();
+		}
+
+		int bx = bucket(x, xmin, xmax, nbx);
+		int by = bucket(y, ymin, ymax, nby);
+		int bz = bucket(z, zmin, zmax, nbz);
+
+		// the point's own bucket, else the nearest non-empty one in growing shells
+		int maxRing = Math.max(nbx, Math.max(nby, nbz));
+		for (int ring = 0; ring < maxRing; ring++) {
+			for (int kz = Math.max(0, bz - ring); kz <= Math.min(nbz - 1, bz + ring); kz++) {
+				for (int ky = Math.max(0, by - ring); ky <= Math.min(nby - 1, by + ring); ky++) {
+					for (int kx = Math.max(0, bx - ring); kx <= Math.min(nbx - 1, bx + ring); kx++) {
+						int seed = index[kx + nbx * (ky + nby * kz)];
+						if (seed >= 0) {
+							return seed;
+						}
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int bucket(double v, double vmin, double vmax, int nb) {
+		if (vmax <= vmin) {
+			return 0;
+		}
+		int b = (int) ((v - vmin) / (vmax - vmin) * nb);
+		return Math.max(0, Math.min(nb - 1, b));
+	}
+
+	// build the coarse bucket index, one seed cell per bucket
+	private synchronized int[] buildBuckets() {
+		if (buckets != null) {
+			return buckets;
+		}
+
+		int numCells = (ni - 1) * (nj - 1) * (nk - 1);
+		int nb = Math.max(1, Math.min(64, (int) Math.cbrt(numCells / 8.0)));
+		nbx = nby = nbz = nb;
+		int[] index = new int[nbx * nby * nbz];
+		Arrays.fill(index, -1);
+
+		for (int k = 0; k < nk - 1; k++) {
+			for (int j = 0; j < nj - 1; j++) {
+				for (int i = 0; i < ni - 1; i++) {
+					// cell center from two opposite corners
+					int p0 = index(i, j, k);
+					int p1 = index(i + 1, j + 1, k + 1);
+					double x = 0.5 * (value(p0) + value(p1));
+					double y = 0.5 * (value(numPoints + p0) + value(numPoints + p1));
+					double z = 0.5 * (value(2 * numPoints + p0) + value(2 * numPoints + p1));
+					int b = bucket(x, xmin, xmax, nbx) + nbx * (bucket(y, ymin, ymax, nby) + nby * bucket(z, zmin, zmax, nbz));
+					if (index[b] < 0) {
+						index[b] = i + (ni - 1) * (j + (nj - 1) * k);
+					}
+				}
+			}
+		}
+		buckets = index;
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CurvilinearGrid[%d x %d x %d, x=[%.4f, %.4f], y=[%.4f, %.4f], z=[%.4f, %.4f]]", ni, nj,
+				nk, xmin, xmax, ymin, ymax, zmin, zmax);
+	}
+}
@@ -13,6 +13,7 @@ public class Fiveplet {
 	public int nz;
 	public int ntheta;
 	public int nphi;
+	public int nbody;
 
 	/**
 	 * Constructor for the Fiveplet class.
@@ -24,11 +25,26 @@ public class Fiveplet {
 	 * @param nphi   index on the phi grid.
 	 */
 	public Fiveplet(int nx, int ny, int nz, int ntheta, int nphi) {
+		this(nx, ny, nz, ntheta, nphi, 0);
+	}
+
+	/**
+	 * Constructor for a patch on one of several spherical components.
+	 *
+	 * @param nx     index on the x grid.
+	 * @param ny     index on the y grid.
+	 * @param nz     index on the z grid.
+	 * @param ntheta index on the theta grid.
+	 * @param nphi   index on the phi grid.
+	 * @param nbody  index of the spherical component.
+	 */
+	public Fiveplet(int nx, int ny, int nz, int ntheta, int nphi, int nbody) {
 		this.nx = nx;
 		this.ny = ny;
 		this.nz = nz;
 		this.ntheta = ntheta;
 		this.nphi = nphi;
+		this.nbody = nbody;
 	}
 
     // Override equals to compare the contents of the tuple
@@ -42,17 +58,21 @@ public class Fiveplet {
 		}
         Fiveplet that = (Fiveplet) obj;
         return nx == that.nx && ny == that.ny && nz == that.nz &&
-               ntheta == that.ntheta && nphi == that.nphi;
+               ntheta == that.ntheta && nphi == that.nphi && nbody == that.nbody;
     }
 
-	 // Override hashCode to generate a hash based on all five values
+	 // Override hashCode to generate a hash based on all the indices
     @Override
     public int hashCode() {
-        return Objects.hash(nx, ny, nz, ntheta, nphi);
+        return Objects.hash(nx, ny, nz, ntheta, nphi, nbody);
     }
 
 	@Override
 	public String toString() {
+		if (nbody != 0) {
+			return String.format("[nx = %d, ny = %d, nz = %d, %s = %d, %s = %d, body = %d]", nx, ny, nz, NTHETA, ntheta,
+					NPHI, nphi, nbody);
+		}
 		return String.format("[nx = %d, ny = %d, nz = %d, %s = %d, %s = %d]", nx, ny, nz, NTHETA, ntheta, NPHI, nphi);
 	}
 
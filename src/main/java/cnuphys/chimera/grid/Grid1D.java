@@ -1,9 +1,14 @@
 package cnuphys.chimera.grid;
+
+import java.util.Arrays;
+
 public class Grid1D {
     private double vmin;  // Minimum value of the grid
     private double vmax;  // Maximum value of the grid
     private int num;      // Number of points in the grid
-    private double del;   // Spacing between grid points
+    private double del;   // Spacing between grid points (average if stretched)
+    private double ratio = 1; // Ratio of successive spacings, 1 for uniform
+    private double[] nodes;   // The grid points if stretched, else null
 
     /**
      * Constructor to initialize the Grid1D with specified parameters.
@@ -17,6 +22,25 @@ public class Grid1D {
     	setGrid(vmin, vmax, num);
     }
 
+    /**
+     * Constructor for a geometrically stretched grid, where each spacing is
+     * the previous one times the ratio. Use a ratio greater than 1 to cluster
+     * points near vmin, as for a boundary layer.
+     *
+     * @param vmin Minimum value of the grid.
+     * @param vmax Maximum value of the grid.
+     * @param num Number of points in the grid (including endpoints).
+     * @param ratio Ratio of successive spacings, must be positive.
+     * @throws IllegalArgumentException if num is less than 2, if vmin >= vmax, or if ratio <= 0.
+     */
+    public Grid1D(double vmin, double vmax, int num, double ratio) {
+		if (ratio <= 0) {
+			throw new IllegalArgumentException("ratio must be positive.");
+		}
+		this.ratio = ratio;
+    	setGrid(vmin, vmax, num);
+    }
+
     public void setGrid(double vmin, double vmax, int num) {
 		if (num < 2) {
 			throw new IllegalArgumentException("num must be at least 2.");
@@ -35,7 +59,7 @@ public class Grid1D {
      * @param source The Grid1D ro copy
      */
 	public Grid1D(Grid1D source) {
-		this(source.vmin, source.vmax, source.num);
+		this(source.vmin, source.vmax, source.num, source.ratio);
 	}
 
 	/**
@@ -63,6 +87,53 @@ public class Grid1D {
 	 */
     private void computeDel() {
     	this.del = (vmax - vmin) / (num - 1);
+
+		if (ratio == 1) {
+			nodes = null;
+			return;
+		}
+
+		// first spacing from the geometric series sum
+		int ncell = num - 1;
+		double h = (vmax - vmin) * (ratio - 1) / (Math.pow(ratio, ncell) - 1);
+		nodes = new double[num];
+		nodes[0] = vmin;
+		for (int i = 1; i < ncell; i++) {
+			nodes[i] = nodes[i - 1] + h;
+			h *= ratio;
+		}
+		nodes[ncell] = vmax;
+    }
+
+    /**
+     * Check whether the grid is stretched (non-uniform).
+     *
+     * @return <code>true</code> if the spacing is not uniform.
+     */
+    public boolean isStretched() {
+    	return nodes != null;
+    }
+
+    /**
+     * Get the ratio of successive spacings.
+     *
+     * @return The ratio, 1 for a uniform grid.
+     */
+    public double getRatio() {
+    	return ratio;
+    }
+
+    /**
+     * Get the value of a grid point.
+     *
+     * @param index The index of the grid point (0 to num-1).
+     * @return The value at that grid point.
+     */
+    public double getValue(int index) {
+    	if (nodes != null) {
+    		return nodes[index];
+    	}
+    	return (index == num - 1) ? vmax : vmin + index * del;
     }
 
     /**
@@ -75,6 +146,11 @@ public class Grid1D {
         if (val < vmin || val > vmax) {
             return -1;  // Value is outside the grid
         }
+        if (nodes != null) {
+        	int index = Arrays.binarySearch(nodes, val);
+        	index = (index < 0) ? -(index + 2) : index;
+        	return Math.min(index, num - 2);
+        }
         int index = (int) ((val - vmin) / del);
         if (index >= num - 1) {
             return num - 2;  // Handle edge case for max value
@@ -85,7 +161,7 @@ public class Grid1D {
     /**
      * Get the spacing (delta) of the grid.
      *
-     * @return The spacing between grid points.
+     * @return The spacing between grid points (the average spacing if stretched).
      */
     public double getSpacing() {
         return del;
@@ -0,0 +1,207 @@
+package cnuphys.chimera.grid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Writes and reads the definition of a {@link ChimeraGrid}, the Cartesian grid
+ * and every spherical component, in a compact binary form, e.g. to record the
+ * grid a Monte Carlo checkpoint or shard histogram belongs to. Curvilinear component grids live
+ * in their own Plot3D files and are not written; a grid that has any is
+ * rejected.
+ */
+public class GridIO {
+
+	// the version of the grid record
+	private static final int VERSION = 1;
+
+	// Private constructor to prevent instantiation
+	private GridIO() {
+	}
+
+	/**
+	 * Write a grid
+	 *
+	 * @param out  where to write
+	 * @param grid the grid
+	 * @throws IOException if the grid cannot be written or has curvilinear
+	 *                     components
+	 */
+	public static void write(DataOutput out, ChimeraGrid grid) throws IOException {
+		if (grid.getNumCurvilinearGrids() > 0) {
+			throw new IOException("Grids with curvilinear components cannot be saved.");
+		}
+		out.writeInt(VERSION);
+
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		writeAxis(out, cgrid.getXMin(), cgrid.getXMax(), cgrid.getNumX());
+		writeAxis(out, cgrid.getYMin(), cgrid.getYMax(), cgrid.getNumY());
+		writeAxis(out, cgrid.getZMin(), cgrid.getZMax(), cgrid.getNumZ());
+		out.writeDouble(cgrid.getXOffset());
+		out.writeDouble(cgrid.getYOffset());
+		out.writeDouble(cgrid.getZOffset());
+
+		out.writeInt(grid.getNumSphericalGrids());
+		for (int body = 0; body < grid.getNumSphericalGrids(); body++) {
+			SphericalGrid sgrid = grid.getSphericalGrid(body);
+			out.writeInt(sgrid.getNumTheta());
+			out.writeInt(sgrid.getNumPhi());
+			out.writeDouble(sgrid.getRadius());
+			out.writeDouble(sgrid.getXCenter());
+			out.writeDouble(sgrid.getYCenter());
+			out.writeDouble(sgrid.getZCenter());
+			out.writeDouble(sgrid.getAlpha());
+			out.writeDouble(sgrid.getBeta());
+
+			Grid1D rgrid = sgrid.getRadialGrid();
+			out.writeBoolean(rgrid != null);
+			if (rgrid != null) {
+				writeAxis(out, rgrid.getVmin(), rgrid.getVmax(), rgrid.getNum());
+				out.writeDouble(rgrid.getRatio());
+			}
+		}
+	}
+
+	/**
+	 * Read a grid written by {@link #write(DataOutput, ChimeraGrid)}
+	 *
+	 * @param in where to read
+	 * @return the grid
+	 * @throws IOException if the grid cannot be read
+	 */
+	public static ChimeraGrid read(DataInput in) throws IOException {
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported grid record version " + version);
+		}
+
+		double[] x = readAxis(in);
+		double[] y = readAxis(in);
+		double[] z = readAxis(in);
+		CartesianGrid cgrid = new CartesianGrid(x[0], x[1], (int) x[2], y[0], y[1], (int) y[2], z[0], z[1],
+				(int) z[2], in.readDouble(), in.readDouble(), in.readDouble());
+
+		int numBodies = in.readInt();
+		if (numBodies < 1) {
+			throw new IOException("Bad number of spherical components: " + numBodies);
+		}
+		ChimeraGrid grid = null;
+		for (int body = 0; body < numBodies; body++) {
+			int numTheta = in.readInt();
+			int numPhi = in.readInt();
+			double radius = in.readDouble();
+			double xc = in.readDouble();
+			double yc = in.readDouble();
+			double zc = in.readDouble();
+			double alpha = in.readDouble();
+			double beta = in.readDouble();
+			SphericalGrid sgrid = new SphericalGrid(numTheta, numPhi, radius, xc, yc, zc, alpha, beta);
+			if (in.readBoolean()) {
+				double[] r = readAxis(in);
+				sgrid.setRadialGrid(new Grid1D(r[0], r[1], (int) r[2], in.readDouble()));
+			}
+
+			if (grid == null) {
+				grid = new ChimeraGrid(cgrid, sgrid);
+			} else {
+				grid.addSphericalGrid(sgrid);
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Check whether two grids have the same definition
+	 *
+	 * @param a one grid
+	 * @param b the other grid
+	 * @return <code>true</code> if they would be written identically
+	 */
+	public static boolean sameDefinition(ChimeraGrid a, ChimeraGrid b) {
+		try {
+			return Arrays.equals(toBytes(a), toBytes(b));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a fingerprint of a grid definition: the first 64 bits of the SHA-256
+	 * digest of its written form. Grids with the same definition have the same
+	 * fingerprint in any process on any machine.
+	 *
+	 * @param grid the grid
+	 * @return the fingerprint
+	 * @throws IOException if the grid cannot be written
+	 */
+	public static long fingerprint(ChimeraGrid grid) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(toBytes(grid));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Write a grid to a file
+	 *
+	 * @param path the file
+	 * @param grid the grid
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path path, ChimeraGrid grid) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			write(out, grid);
+		}
+	}
+
+	/**
+	 * Read a grid from a file written by {@link #write(Path, ChimeraGrid)}
+	 *
+	 * @param path the file
+	 * @return the grid
+	 * @throws IOException if the file cannot be read
+	 */
+	public static ChimeraGrid read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			return read(in);
+		}
+	}
+
+	// the written form of a grid
+	private static byte[] toBytes(ChimeraGrid grid) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(new DataOutputStream(bytes), grid);
+		return bytes.toByteArray();
+	}
+
+	// an axis: min, max and number of points
+	private static void writeAxis(DataOutput out, double min, double max, int num) throws IOException {
+		out.writeDouble(min);
+		out.writeDouble(max);
+		out.writeInt(num);
+	}
+
+	private static double[] readAxis(DataInput in) throws IOException {
+		double min = in.readDouble();
+		double max = in.readDouble();
+		int num = in.readInt();
+		if (num < 2 || !(min < max)) {
+			throw new IOException("Bad grid axis: " + min + " to " + max + " with " + num + " points");
+		}
+		return new double[] { min, max, num };
+	}
+}
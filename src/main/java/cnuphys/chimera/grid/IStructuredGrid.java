@@ -0,0 +1,39 @@
+package cnuphys.chimera.grid;
+
+/**
+ * A structured 3D grid that points can be located in. For a
+ * {@link CartesianGrid} the three directions are x, y and z; for a
+ * {@link CurvilinearGrid} they are the i, j and k index directions.
+ */
+public interface IStructuredGrid {
+
+	/**
+	 * Get the number of points in the first (x or i) direction
+	 * @return the number of points
+	 */
+	public int getNumX();
+
+	/**
+	 * Get the number of points in the second (y or j) direction
+	 * @return the number of points
+	 */
+	public int getNumY();
+
+	/**
+	 * Get the number of points in the third (z or k) direction
+	 * @return the number of points
+	 */
+	public int getNumZ();
+
+	/**
+	 * Locate the cell containing a point, without throwing for points outside
+	 * the grid.
+	 *
+	 * @param x       the x coordinate
+	 * @param y       the y coordinate
+	 * @param z       the z coordinate
+	 * @param indices will hold the three cell indices
+	 * @return <code>true</code> if the point is inside the grid
+	 */
+	public boolean locate(double x, double y, double z, int[] indices);
+}
@@ -0,0 +1,185 @@
+package cnuphys.chimera.grid;
+
+/**
+ * Packs the indices of a patch (or, for a spherical shell, of a volume overlap)
+ * into a single long, so that patch tables can be kept in primitive arrays.
+ * The six grid indices are nx, ny, nz, nr, ntheta and nphi, plus the index of
+ * the spherical component. Surface patches have nr = 0.
+ * <p>
+ * Bit layout, from the low bits up: nphi (10), ntheta (9), nr (7), nz (11),
+ * ny (11), nx (11), body (5). All indices must be non-negative and below the
+ * field maximum. An all ones nx field marks a point in no patch: either
+ * {@link #NONE}, or a {@link #hidden(int)} key that still records the body.
+ */
+public class PatchKey {
+
+	/** The key used for points that are in no patch */
+	public static final long NONE = -1L;
+
+	public static final int NPHI_BITS = 10;
+	public static final int NTHETA_BITS = 9;
+	public static final int NR_BITS = 7;
+	public static final int NZ_BITS = 11;
+	public static final int NY_BITS = 11;
+	public static final int NX_BITS = 11;
+	public static final int NBODY_BITS = 5;
+
+	private static final int NTHETA_SHIFT = NPHI_BITS;
+	private static final int NR_SHIFT = NTHETA_SHIFT + NTHETA_BITS;
+	private static final int NZ_SHIFT = NR_SHIFT + NR_BITS;
+	private static final int NY_SHIFT = NZ_SHIFT + NZ_BITS;
+	private static final int NX_SHIFT = NY_SHIFT + NY_BITS;
+	private static final int NBODY_SHIFT = NX_SHIFT + NX_BITS;
+
+	// Private constructor to prevent instantiation
+	private PatchKey() {
+	}
+
+	/**
+	 * Pack the indices of a patch
+	 *
+	 * @param nx     index on the x grid
+	 * @param ny     index on the y grid
+	 * @param nz     index on the z grid
+	 * @param nr     index on the radial grid (0 for a surface)
+	 * @param ntheta index on the theta grid
+	 * @param nphi   index on the phi grid
+	 * @param nbody  index of the spherical component
+	 * @return the packed key
+	 * @throws IllegalArgumentException if an index is negative or too large for
+	 *                                  its field; {@link #checkLimits(ChimeraGrid)}
+	 *                                  tells beforehand whether a grid fits
+	 */
+	public static long pack(int nx, int ny, int nz, int nr, int ntheta, int nphi, int nbody) {
+		// one test for all the fields: the unsigned shift also catches negatives
+		if (((nphi >>> NPHI_BITS) | (ntheta >>> NTHETA_BITS) | (nr >>> NR_BITS) | (nz >>> NZ_BITS)
+				| (ny >>> NY_BITS) | (nx >>> NX_BITS) | (nbody >>> NBODY_BITS)) != 0) {
+			throw new IllegalArgumentException("Indices out of range for a patch key: nx = " + nx + ", ny = " + ny
+					+ ", nz = " + nz + ", nr = " + nr + ", ntheta = " + ntheta + ", nphi = " + nphi + ", body = "
+					+ nbody);
+		}
+		return ((long) nbody << NBODY_SHIFT) | ((long) nx << NX_SHIFT) | ((long) ny << NY_SHIFT)
+				| ((long) nz << NZ_SHIFT) | ((long) nr << NR_SHIFT) | ((long) ntheta << NTHETA_SHIFT) | nphi;
+	}
+
+	/**
+	 * Pack the indices of a surface patch
+	 *
+	 * @param patch the patch
+	 * @return the packed key
+	 */
+	public static long pack(Fiveplet patch) {
+		return pack(patch.nx, patch.ny, patch.nz, 0, patch.ntheta, patch.nphi, patch.nbody);
+	}
+
+	/**
+	 * Unpack a surface patch (the radial index is dropped)
+	 *
+	 * @param key the packed key
+	 * @return the patch
+	 */
+	public static Fiveplet toFiveplet(long key) {
+		return new Fiveplet(nx(key), ny(key), nz(key), ntheta(key), nphi(key), nbody(key));
+	}
+
+	/**
+	 * The key for a point of a spherical component that is in no patch (hidden
+	 * inside another component or outside the Cartesian grid), keeping the body
+	 * index for storage formats that have no separate body field
+	 *
+	 * @param nbody index of the spherical component
+	 * @return the key
+	 */
+	public static long hidden(int nbody) {
+		return pack((1 << NX_BITS) - 1, 0, 0, 0, 0, 0, nbody);
+	}
+
+	/**
+	 * Check whether a key marks a point that is in no patch
+	 *
+	 * @param key the packed key
+	 * @return <code>true</code> for {@link #NONE} and {@link #hidden(int)} keys
+	 */
+	public static boolean isHidden(long key) {
+		return nx(key) == (1 << NX_BITS) - 1;
+	}
+
+	public static int nx(long key) {
+		return field(key, NX_SHIFT, NX_BITS);
+	}
+
+	public static int ny(long key) {
+		return field(key, NY_SHIFT, NY_BITS);
+	}
+
+	public static int nz(long key) {
+		return field(key, NZ_SHIFT, NZ_BITS);
+	}
+
+	public static int nr(long key) {
+		return field(key, NR_SHIFT, NR_BITS);
+	}
+
+	public static int ntheta(long key) {
+		return field(key, NTHETA_SHIFT, NTHETA_BITS);
+	}
+
+	public static int nphi(long key) {
+		return field(key, 0, NPHI_BITS);
+	}
+
+	public static int nbody(long key) {
+		return field(key, NBODY_SHIFT, NBODY_BITS);
+	}
+
+	// extract one field
+	private static int field(long key, int shift, int bits) {
+		return (int) ((key >>> shift) & ((1L << bits) - 1));
+	}
+
+	/**
+	 * Check that every index of a grid fits in its key field
+	 *
+	 * @param grid the grid
+	 * @throws IllegalArgumentException if the grid is too large to pack
+	 */
+	public static void checkLimits(ChimeraGrid grid) {
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		check("x", cgrid.getNumX() - 1, NX_BITS);
+		check("y", cgrid.getNumY() - 1, NY_BITS);
+		check("z", cgrid.getNumZ() - 1, NZ_BITS);
+		check("body", grid.getNumSphericalGrids(), NBODY_BITS);
+
+		for (int i = 0; i < grid.getNumSphericalGrids(); i++) {
+			SphericalGrid sgrid = grid.getSphericalGrid(i);
+			check("r", sgrid.getNumR() - 1, NR_BITS);
+			check("theta", sgrid.getNumTheta() - 1, NTHETA_BITS);
+			check("phi", sgrid.getNumPhi() - 1, NPHI_BITS);
+		}
+	}
+
+	// the number of cells must be less than the field can hold
+	private static void check(String name, int numCells, int bits) {
+		if (numCells >= (1 << bits)) {
+			throw new IllegalArgumentException(
+					"Too many " + name + " cells (" + numCells + ") for a patch key, max is " + ((1 << bits) - 1));
+		}
+	}
+
+	/**
+	 * Get a readable form of a key
+	 *
+	 * @param key the packed key
+	 * @return a string with the unpacked indices
+	 */
+	public static String toString(long key) {
+		if (key == NONE) {
+			return "[none]";
+		}
+		if (isHidden(key)) {
+			return "[none, body = " + nbody(key) + "]";
+		}
+		return String.format("[nx = %d, ny = %d, nz = %d, nr = %d, ntheta = %d, nphi = %d, body = %d]", nx(key),
+				ny(key), nz(key), nr(key), ntheta(key), nphi(key), nbody(key));
+	}
+}
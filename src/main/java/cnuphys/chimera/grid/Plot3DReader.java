@@ -0,0 +1,243 @@
+package cnuphys.chimera.grid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads binary Plot3D grid files (the "xyz" grid file, not the solution file)
+ * by memory mapping each block, so the coordinates are never copied onto the
+ * heap. The layout is detected from the file size: single or multiple blocks,
+ * Fortran unformatted (with record markers) or plain C binary, single or double
+ * precision, with or without iblank, and either byte order. Only 3D whole
+ * grids are supported.
+ */
+public class Plot3DReader {
+
+	// the largest plausible block dimension, used to detect the byte order
+	private static final int MAX_DIM = 1 << 24;
+
+	// Private constructor to prevent instantiation
+	private Plot3DReader() {
+	}
+
+	/**
+	 * Read all the blocks of a Plot3D grid file
+	 *
+	 * @param path the file
+	 * @return one curvilinear grid per block
+	 * @throws IOException if the file cannot be read or its layout is not
+	 *                     recognized
+	 */
+	public static List<CurvilinearGrid> read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 12) {
+				throw new IOException("Not a Plot3D grid file (too short): " + path);
+			}
+
+			ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, 1 << 16));
+			channel.read(head, 0);
+			head.flip();
+
+			ByteOrder order = detectOrder(head);
+			head.order(order);
+
+			Layout layout = detectLayout(head, size);
+			if (layout == null) {
+				throw new IOException("Unrecognized Plot3D layout in " + path);
+			}
+
+			List<CurvilinearGrid> grids = new ArrayList<>();
+			long offset = layout.dataStart;
+			for (int b = 0; b < layout.numBlocks; b++) {
+				int ni = layout.dims[3 * b];
+				int nj = layout.dims[3 * b + 1];
+				int nk = layout.dims[3 * b + 2];
+				long numPoints = (long) ni * nj * nk;
+				long coordBytes = 3 * numPoints * layout.precision;
+
+				if (layout.fortran) {
+					offset += 4; // leading record marker
+				}
+				if (coordBytes > Integer.MAX_VALUE) {
+					throw new IOException("Block " + b + " is too large to map (" + coordBytes + " bytes).");
+				}
+
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, coordBytes);
+				mapped.order(order);
+				grids.add(new CurvilinearGrid(ni, nj, nk, mapped, layout.precision));
+
+				offset += coordBytes;
+				if (layout.iblank) {
+					offset += 4 * numPoints;
+				}
+				if (layout.fortran) {
+					offset += 4; // trailing record marker
+				}
+			}
+			return grids;
+		}
+	}
+
+	// the byte order for which the first int is a small positive number
+	private static ByteOrder detectOrder(ByteBuffer head) {
+		int little = head.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+		if (little > 0 && little < MAX_DIM) {
+			return ByteOrder.LITTLE_ENDIAN;
+		}
+		return ByteOrder.BIG_ENDIAN;
+	}
+
+	// try each header layout and keep the one whose data size matches the file
+	private static Layout detectLayout(ByteBuffer head, long size) {
+		for (boolean fortran : new boolean[] { true, false }) {
+			for (boolean multi : new boolean[] { true, false }) {
+				Layout layout = readHeader(head, fortran, multi);
+				if (layout == null) {
+					continue;
+				}
+				for (int precision : new int[] { 8, 4 }) {
+					for (boolean iblank : new boolean[] { false, true }) {
+						if (layout.expectedSize(precision, iblank) == size) {
+							layout.precision = precision;
+							layout.iblank = iblank;
+							return layout;
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	// parse the block count and dimensions for a layout, or null if implausible
+	private static Layout readHeader(ByteBuffer head, boolean fortran, boolean multi) {
+		int pos = 0;
+		int limit = head.limit();
+		int numBlocks = 1;
+
+		if (multi) {
+			if (fortran) {
+				if (limit < 12 || head.getInt(0) != 4 || head.getInt(8) != 4) {
+					return null;
+				}
+				numBlocks = head.getInt(4);
+				pos = 12;
+			} else {
+				numBlocks = head.getInt(0);
+				pos = 4;
+			}
+			if (numBlocks < 1 || numBlocks > MAX_DIM) {
+				return null;
+			}
+		}
+
+		int dimBytes = 12 * numBlocks;
+		if (fortran) {
+			if (pos + 8 + dimBytes > limit || head.getInt(pos) != dimBytes || head.getInt(pos + 4 + dimBytes) != dimBytes) {
+				return null;
+			}
+			pos += 4;
+		} else if (pos + dimBytes > limit) {
+			return null;
+		}
+
+		int[] dims = new int[3 * numBlocks];
+		for (int i = 0; i < dims.length; i++) {
+			dims[i] = head.getInt(pos + 4 * i);
+			if (dims[i] < 2 || dims[i] > MAX_DIM) {
+				return null;
+			}
+		}
+		pos += dimBytes;
+		if (fortran) {
+			pos += 4;
+		}
+
+		Layout layout = new Layout();
+		layout.fortran = fortran;
+		layout.numBlocks = numBlocks;
+		layout.dims = dims;
+		layout.dataStart = pos;
+		return layout;
+	}
+
+	/**
+	 * The detected layout of a file
+	 */
+	private static class Layout {
+		boolean fortran;
+		int numBlocks;
+		int[] dims;
+		long dataStart;
+		int precision;
+		boolean iblank;
+
+		long expectedSize(int precision, boolean iblank) {
+			long size = dataStart;
+			for (int b = 0; b < numBlocks; b++) {
+				long numPoints = (long) dims[3 * b] * dims[3 * b + 1] * dims[3 * b + 2];
+				size += numPoints * (3 * precision + (iblank ? 4 : 0));
+				if (fortran) {
+					size += 8;
+				}
+			}
+			return size;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		// write a small warped single block grid as a Fortran multi-block file
+		int ni = 41, nj = 31, nk = 21;
+		int n = ni * nj * nk;
+		ByteBuffer buffer = ByteBuffer.allocate(12 + 20 + 8 + 24 * n).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(4).putInt(1).putInt(4);
+		buffer.putInt(12).putInt(ni).putInt(nj).putInt(nk).putInt(12);
+		buffer.putInt(24 * n);
+		for (int c = 0; c < 3; c++) {
+			for (int k = 0; k < nk; k++) {
+				for (int j = 0; j < nj; j++) {
+					for (int i = 0; i < ni; i++) {
+						double u = i / (ni - 1.0), v = j / (nj - 1.0), w = k / (nk - 1.0);
+						double[] xyz = { 4 * u + 0.3 * Math.sin(3 * v), 3 * v + 0.2 * Math.sin(2 * u + w), 2 * w + 0.1 * u * v };
+						buffer.putDouble(xyz[c]);
+					}
+				}
+			}
+		}
+		buffer.putInt(24 * n);
+
+		Path path = Files.createTempFile("chimera", ".xyz");
+		Files.write(path, buffer.array());
+
+		CurvilinearGrid grid = read(path).get(0);
+		System.out.println(grid);
+
+		// coherent queries along a line through the grid
+		int[] indices = new int[3];
+		int found = 0;
+		int numQueries = 200000;
+		long start = System.nanoTime();
+		for (int q = 0; q < numQueries; q++) {
+			double t = q / (double) numQueries;
+			if (grid.locate(0.5 + 3 * t, 0.5 + 2 * t, 0.2 + 1.6 * t, indices)) {
+				found++;
+			}
+		}
+		double time = (System.nanoTime() - start) / 1.0e9;
+		System.out.printf("located %d of %d coherent points, %.0f ns per point%n", found, numQueries, 1.0e9 * time / numQueries);
+
+		// a grid point must be found in a cell touching it
+		grid.locate(grid.getX(17, 9, 5) + 1.0e-6, grid.getY(17, 9, 5) + 1.0e-6, grid.getZ(17, 9, 5) + 1.0e-6, indices);
+		System.out.printf("near point (17, 9, 5): cell (%d, %d, %d)%n", indices[0], indices[1], indices[2]);
+		Files.delete(path);
+	}
+}
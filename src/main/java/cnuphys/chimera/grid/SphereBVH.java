@@ -0,0 +1,248 @@
+package cnuphys.chimera.grid;
+
+import java.util.List;
+
+/**
+ * A bounding volume hierarchy over the spherical components of a
+ * {@link ChimeraGrid}. Nodes are axis aligned boxes stored in flat arrays; the
+ * tree is built top down by splitting at the median center along the longest
+ * axis, so a point query visits O(log n) nodes for well separated bodies.
+ */
+public class SphereBVH {
+
+	// max number of bodies in a leaf
+	private static final int LEAF_SIZE = 4;
+
+	/** The size of the traversal stack of {@link #findContaining(double, double, double, int, int[])} */
+	public static final int STACK_SIZE = 64;
+
+	// copies of the body geometry, indexed by body
+	private final double[] _cx;
+	private final double[] _cy;
+	private final double[] _cz;
+	private final double[] _r2;
+
+	// body indices, permuted so each leaf holds a contiguous range
+	private final int[] _order;
+
+	// node boxes, 3 values per node
+	private final double[] _min;
+	private final double[] _max;
+
+	// for inner nodes the child indices, for leaves left = -1
+	private final int[] _left;
+	private final int[] _right;
+
+	// for leaves the range into _order
+	private final int[] _first;
+	private final int[] _count;
+
+	private int _numNodes;
+
+	/**
+	 * Build the hierarchy
+	 *
+	 * @param bodies the spherical components
+	 */
+	public SphereBVH(List<SphericalGrid> bodies) {
+		int n = bodies.size();
+		_cx = new double[n];
+		_cy = new double[n];
+		_cz = new double[n];
+		_r2 = new double[n];
+		_order = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			SphericalGrid body = bodies.get(i);
+			_cx[i] = body.getXCenter();
+			_cy[i] = body.getYCenter();
+			_cz[i] = body.getZCenter();
+			double r = body.getRadius();
+			_r2[i] = r * r;
+			_order[i] = i;
+		}
+
+		int maxNodes = Math.max(1, 2 * n);
+		_min = new double[3 * maxNodes];
+		_max = new double[3 * maxNodes];
+		_left = new int[maxNodes];
+		_right = new int[maxNodes];
+		_first = new int[maxNodes];
+		_count = new int[maxNodes];
+
+		_numNodes = 0;
+		build(0, n);
+	}
+
+	// recursively build the node for _order[first, first+count)
+	private int build(int first, int count) {
+		int node = _numNodes++;
+		int b3 = 3 * node;
+
+		for (int k = 0; k < 3; k++) {
+			_min[b3 + k] = Double.POSITIVE_INFINITY;
+			_max[b3 + k] = Double.NEGATIVE_INFINITY;
+		}
+
+		for (int i = first; i < first + count; i++) {
+			int body = _order[i];
+			double r = Math.sqrt(_r2[body]);
+			grow(b3, _cx[body] - r, _cy[body] - r, _cz[body] - r, _cx[body] + r, _cy[body] + r, _cz[body] + r);
+		}
+
+		if (count <= LEAF_SIZE) {
+			_left[node] = -1;
+			_first[node] = first;
+			_count[node] = count;
+			return node;
+		}
+
+		// split along the longest axis of the box
+		int axis = 0;
+		double ext = _max[b3] - _min[b3];
+		for (int k = 1; k < 3; k++) {
+			if (_max[b3 + k] - _min[b3 + k] > ext) {
+				ext = _max[b3 + k] - _min[b3 + k];
+				axis = k;
+			}
+		}
+
+		int half = count / 2;
+		select(first, first + count - 1, first + half, axis);
+
+		_left[node] = build(first, half);
+		_right[node] = build(first + half, count - half);
+		return node;
+	}
+
+	// grow a node box
+	private void grow(int b3, double x0, double y0, double z0, double x1, double y1, double z1) {
+		_min[b3] = Math.min(_min[b3], x0);
+		_min[b3 + 1] = Math.min(_min[b3 + 1], y0);
+		_min[b3 + 2] = Math.min(_min[b3 + 2], z0);
+		_max[b3] = Math.max(_max[b3], x1);
+		_max[b3 + 1] = Math.max(_max[b3 + 1], y1);
+		_max[b3 + 2] = Math.max(_max[b3 + 2], z1);
+	}
+
+	// center coordinate of a body along an axis
+	private double center(int body, int axis) {
+		switch (axis) {
+		case 0:
+			return _cx[body];
+		case 1:
+			return _cy[body];
+		default:
+			return _cz[body];
+		}
+	}
+
+	// quickselect so that _order[k] has the k-th smallest center on the axis
+	private void select(int lo, int hi, int k, int axis) {
+		while (lo < hi) {
+			double pivot = center(_order[(lo + hi) >>> 1], axis);
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (center(_order[i], axis) < pivot) {
+					i++;
+				}
+				while (center(_order[j], axis) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int temp = _order[i];
+					_order[i] = _order[j];
+					_order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Find a body that strictly contains a point
+	 *
+	 * @param x       the x coordinate
+	 * @param y       the y coordinate
+	 * @param z       the z coordinate
+	 * @param exclude a body to ignore, or -1
+	 * @return the index of a containing body, or -1 if there is none
+	 */
+	public int findContaining(double x, double y, double z, int exclude) {
+		return findContaining(x, y, z, exclude, new int[STACK_SIZE]);
+	}
+
+	/**
+	 * Find a body that strictly contains a point, with a caller-owned traversal
+	 * stack, so repeated queries allocate nothing
+	 *
+	 * @param x       the x coordinate
+	 * @param y       the y coordinate
+	 * @param z       the z coordinate
+	 * @param exclude a body to ignore, or -1
+	 * @param stack   work space of at least {@link #STACK_SIZE} elements
+	 * @return the index of a containing body, or -1 if there is none
+	 */
+	public int findContaining(double x, double y, double z, int exclude, int[] stack) {
+		if (_order.length == 0) {
+			return -1;
+		}
+
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			int b3 = 3 * node;
+			if (x < _min[b3] || x > _max[b3] || y < _min[b3 + 1] || y > _max[b3 + 1] || z < _min[b3 + 2]
+					|| z > _max[b3 + 2]) {
+				continue;
+			}
+
+			if (_left[node] < 0) {
+				for (int i = _first[node]; i < _first[node] + _count[node]; i++) {
+					int body = _order[i];
+					if (body != exclude) {
+						double dx = x - _cx[body];
+						double dy = y - _cy[body];
+						double dz = z - _cz[body];
+						if (dx * dx + dy * dy + dz * dz < _r2[body]) {
+							return body;
+						}
+					}
+				}
+			} else {
+				stack[top++] = _left[node];
+				stack[top++] = _right[node];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the number of bodies in the hierarchy
+	 *
+	 * @return the number of bodies
+	 */
+	public int size() {
+		return _order.length;
+	}
+
+	/**
+	 * Get the number of nodes in the hierarchy
+	 *
+	 * @return the number of nodes
+	 */
+	public int getNumNodes() {
+		return _numNodes;
+	}
+}
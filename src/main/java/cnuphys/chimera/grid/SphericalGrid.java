@@ -1,11 +1,12 @@
 package cnuphys.chimera.grid;
 
 import cnuphys.chimera.util.MathUtil;
+import cnuphys.chimera.util.Point3D;
 import cnuphys.chimera.util.ThetaPhi;
 
 public class SphericalGrid {
 
-	//will assume normalized sphere
+	//the default (normalized) radius
 	public static final double R = 1;
 
 
@@ -17,6 +18,11 @@ public class SphericalGrid {
     private double sina, cosa;      // Sine and cosine of alpha
     private double sinb, cosb;      // Sine and cosine of beta
 
+    private double radius;          // Radius of the sphere
+    private double xc, yc, zc;      // Center of the sphere in global coordinates
+
+    private Grid1D radialGrid;      // Optional grid in r for a shell, null for a surface
+
     /**
      * Constructor for the SphericalGrid class.
      *
@@ -27,8 +33,32 @@ public class SphericalGrid {
      * @param beta     Rotation angle about the new z-axis in radians.
      */
     public SphericalGrid(int numTheta, int numPhi, double radius, double alpha, double beta) {
+        this(numTheta, numPhi, radius, 0, 0, 0, alpha, beta);
+    }
+
+    /**
+     * Constructor for a SphericalGrid that is not centered on the origin.
+     *
+     * @param numTheta Number of points in the theta grid.
+     * @param numPhi   Number of points in the phi grid.
+     * @param radius   Radius of the sphere.
+     * @param xc       x coordinate of the center.
+     * @param yc       y coordinate of the center.
+     * @param zc       z coordinate of the center.
+     * @param alpha    Rotation angle about the x-axis in radians.
+     * @param beta     Rotation angle about the new z-axis in radians.
+     */
+    public SphericalGrid(int numTheta, int numPhi, double radius, double xc, double yc, double zc,
+    		double alpha, double beta) {
+		if (radius <= 0) {
+			throw new IllegalArgumentException("radius must be positive.");
+		}
         this.thetaGrid = new Grid1D(0.0, Math.PI, numTheta);
         this.phiGrid = new Grid1D(-Math.PI, Math.PI, numPhi);
+        this.radius = radius;
+        this.xc = xc;
+        this.yc = yc;
+        this.zc = zc;
         this.alpha = alpha;
         this.beta = beta;
 
@@ -51,6 +81,160 @@ public class SphericalGrid {
 		cosb = Math.cos(beta);
 	}
 
+	/**
+	 * Set the center of the sphere. The owning ChimeraGrid must be told via
+	 * ChimeraGrid.bodiesChanged().
+	 *
+	 * @param xc x coordinate of the center
+	 * @param yc y coordinate of the center
+	 * @param zc z coordinate of the center
+	 */
+	public void setCenter(double xc, double yc, double zc) {
+		this.xc = xc;
+		this.yc = yc;
+		this.zc = zc;
+	}
+
+	public double getXCenter() {
+		return xc;
+	}
+
+	public double getYCenter() {
+		return yc;
+	}
+
+	public double getZCenter() {
+		return zc;
+	}
+
+	/**
+	 * Set the radius of the sphere. The owning ChimeraGrid must be told via
+	 * ChimeraGrid.bodiesChanged().
+	 *
+	 * @param radius the radius
+	 */
+	public void setRadius(double radius) {
+		if (radius <= 0) {
+			throw new IllegalArgumentException("radius must be positive.");
+		}
+		this.radius = radius;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Set the optional radial grid, which makes this a 3D shell grid. The radial
+	 * grid is usually from the radius of the sphere outward and may be stretched.
+	 *
+	 * @param radialGrid the radial grid, or <code>null</code> for a surface grid
+	 */
+	public void setRadialGrid(Grid1D radialGrid) {
+		if ((radialGrid != null) && (radialGrid.getVmin() < 0)) {
+			throw new IllegalArgumentException("radial grid must not have negative radii.");
+		}
+		this.radialGrid = radialGrid;
+	}
+
+	/**
+	 * Get the optional radial grid
+	 * @return the radial grid, or <code>null</code> for a surface grid
+	 */
+	public Grid1D getRadialGrid() {
+		return radialGrid;
+	}
+
+	/**
+	 * Check whether this is a 3D shell grid
+	 * @return <code>true</code> if there is a radial grid
+	 */
+	public boolean isShell() {
+		return radialGrid != null;
+	}
+
+	/**
+	 * Get the number of points in the radial grid
+	 * @return the number of radial points, 1 for a surface grid
+	 */
+	public int getNumR() {
+		return (radialGrid == null) ? 1 : radialGrid.getNum();
+	}
+
+	/**
+	 * Get the volume of the shell covered by the radial grid
+	 * @return the shell volume, 0 for a surface grid
+	 */
+	public double getShellVolume() {
+		if (radialGrid == null) {
+			return 0;
+		}
+		double r0 = radialGrid.getVmin();
+		double r1 = radialGrid.getVmax();
+		return 4 * Math.PI * (r1 * r1 * r1 - r0 * r0 * r0) / 3;
+	}
+
+	/**
+	 * Get the surface area of the sphere
+	 * @return the surface area
+	 */
+	public double getArea() {
+		return 4 * Math.PI * radius * radius;
+	}
+
+	/**
+	 * Get the exact surface area of one cell of the (theta, phi) grid
+	 *
+	 * @param ntheta the theta index
+	 * @param nphi   the phi index
+	 * @return the area of the cell
+	 */
+	public double getCellArea(int ntheta, int nphi) {
+		double dcos = Math.cos(thetaGrid.getValue(ntheta)) - Math.cos(thetaGrid.getValue(ntheta + 1));
+		return radius * radius * dcos * (phiGrid.getValue(nphi + 1) - phiGrid.getValue(nphi));
+	}
+
+	/**
+	 * Check whether a point in global coordinates is strictly inside the sphere
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return <code>true</code> if the point is inside
+	 */
+	public boolean contains(double x, double y, double z) {
+		double dx = x - xc;
+		double dy = y - yc;
+		double dz = z - zc;
+		return dx * dx + dy * dy + dz * dz < radius * radius;
+	}
+
+	/**
+	 * Get the global coordinates of the point on the sphere in the direction
+	 * given by (global) theta and phi as seen from the center.
+	 *
+	 * @param thetaPhi the direction
+	 * @param point    will hold the point on the surface
+	 */
+	public void toGlobal(ThetaPhi thetaPhi, Point3D.Double point) {
+		toGlobal(radius, thetaPhi, point);
+	}
+
+	/**
+	 * Get the global coordinates of the point at distance r from the center in
+	 * the direction given by (global) theta and phi.
+	 *
+	 * @param r        the distance from the center
+	 * @param thetaPhi the direction
+	 * @param point    will hold the point
+	 */
+	public void toGlobal(double r, ThetaPhi thetaPhi, Point3D.Double point) {
+		thetaPhi.toCartesian(point);
+		point.x = xc + r * point.x;
+		point.y = yc + r * point.y;
+		point.z = zc + r * point.z;
+	}
+
 	public double getAlpha() {
 		return alpha;
 	}
@@ -97,6 +281,11 @@ public class SphericalGrid {
 		this.cosa = source.cosa;
 		this.sinb = source.sinb;
 		this.cosb = source.cosb;
+		this.radius = source.radius;
+		this.xc = source.xc;
+		this.yc = source.yc;
+		this.zc = source.zc;
+		this.radialGrid = (source.radialGrid == null) ? null : new Grid1D(source.radialGrid);
 	}
 
     /**
@@ -119,9 +308,8 @@ public class SphericalGrid {
     public void getIndices(double theta, double phi, int[] indices) {
         // Rotate the global coordinates if alpha or beta are non-zero
         if (alpha != 0 || beta != 0) {
-            double[] rotated = rotateGlobalToLocal(theta, phi);
-            theta = rotated[0];
-            phi = rotated[1];
+            rotateGlobalToLocal(theta, phi, indices);
+            return;
         }
 
         // Get the indices from the grids
@@ -130,13 +318,136 @@ public class SphericalGrid {
     }
 
     /**
-     * Rotates global spherical coordinates (theta, phi) to the local sphere coordinate system.
+     * Gets the shell grid indices for a point in global coordinates.
      *
-     * @param theta The polar angle in global coordinates.
-     * @param phi   The azimuthal angle in global coordinates.
-     * @return A double array with rotated theta and phi values.
+     * @param x       The x coordinate.
+     * @param y       The y coordinate.
+     * @param z       The z coordinate.
+     * @param indices An int array where the r, theta and phi indices will be stored.
+     *                The r index is -1 if the point is outside the shell, and 0
+     *                for a surface grid.
+     */
+    public void getIndices(double x, double y, double z, int[] indices) {
+        double dx = x - xc;
+        double dy = y - yc;
+        double dz = z - zc;
+        double r = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        indices[0] = (radialGrid == null) ? 0 : radialGrid.getIndex(r);
+
+        if (r == 0) {
+            indices[1] = thetaGrid.getIndex(0);
+            indices[2] = phiGrid.getIndex(0);
+            return;
+        }
+
+        directionIndices(dx / r, dy / r, dz / r, indices, 1);
+    }
+
+    /**
+     * Gets the grid indices for the direction of a global unit vector, without
+     * going through the global angles.
+     *
+     * @param ux      The x component of the unit vector.
+     * @param uy      The y component of the unit vector.
+     * @param uz      The z component of the unit vector.
+     * @param indices An int array where the theta and phi indices will be stored.
+     */
+    public void getDirectionIndices(double ux, double uy, double uz, int[] indices) {
+        directionIndices(ux, uy, uz, indices, 0);
+    }
+
+    // the theta and phi indices of a global unit vector, stored from offset on
+    private void directionIndices(double ux, double uy, double uz, int[] indices, int offset) {
+        if (alpha != 0 || beta != 0) {
+            double zRot1 = uz * cosa - uy * sina;
+            double yRot1 = uz * sina + uy * cosa;
+            double xRot2 = ux * cosb - yRot1 * sinb;
+            double yRot2 = ux * sinb + yRot1 * cosb;
+            ux = xRot2;
+            uy = yRot2;
+            uz = zRot1;
+        }
+        indices[offset] = thetaGrid.getIndex(Math.acos(Math.max(-1, Math.min(1, uz))));
+        indices[offset + 1] = phiGrid.getIndex(Math.atan2(uy, ux));
+    }
+
+    /**
+     * Get the local (rotated) polar and azimuthal angles of a global unit
+     * vector. The vector itself is rotated, avoiding the trig of going through
+     * global angles.
+     *
+     * @param ux     The x component of the unit vector.
+     * @param uy     The y component of the unit vector.
+     * @param uz     The z component of the unit vector.
+     * @param angles Will hold the local theta and phi.
+     */
+    public void toLocalAngles(double ux, double uy, double uz, double[] angles) {
+        if (alpha != 0 || beta != 0) {
+            double zRot1 = uz * cosa - uy * sina;
+            double yRot1 = uz * sina + uy * cosa;
+            double xRot2 = ux * cosb - yRot1 * sinb;
+            double yRot2 = ux * sinb + yRot1 * cosb;
+            ux = xRot2;
+            uy = yRot2;
+            uz = zRot1;
+        }
+        angles[0] = Math.acos(Math.max(-1, Math.min(1, uz)));
+        angles[1] = Math.atan2(uy, ux);
+    }
+
+    /**
+     * Get the unit vector in global coordinates for a direction given in the
+     * local (rotated) coordinates of the sphere. This is the inverse of the
+     * rotation used by the getIndices methods.
+     *
+     * @param theta The polar angle in local coordinates.
+     * @param phi   The azimuthal angle in local coordinates.
+     * @param dir   Will hold the global unit vector.
+     */
+    public void localToGlobal(double theta, double phi, Point3D.Double dir) {
+        double sinTheta = Math.sin(theta);
+        double x2 = sinTheta * Math.cos(phi);
+        double y2 = sinTheta * Math.sin(phi);
+        double z2 = Math.cos(theta);
+
+        // Undo the rotation about the new z-axis by beta
+        double x1 = x2 * cosb + y2 * sinb;
+        double y1 = -x2 * sinb + y2 * cosb;
+        double z1 = z2;
+
+        // Undo the rotation about the x-axis by alpha
+        dir.x = x1;
+        dir.y = -z1 * sina + y1 * cosa;
+        dir.z = z1 * cosa + y1 * sina;
+    }
+
+    /**
+     * Get the theta grid
+     * @return the theta grid
+     */
+    public Grid1D getThetaGrid() {
+    	return thetaGrid;
+    }
+
+    /**
+     * Get the phi grid
+     * @return the phi grid
+     */
+    public Grid1D getPhiGrid() {
+    	return phiGrid;
+    }
+
+    /**
+     * Rotates global spherical coordinates (theta, phi) to the local sphere
+     * coordinate system and gets the grid indices of the local direction. The
+     * rotated angles stay in locals, so nothing is allocated per lookup.
+     *
+     * @param theta   The polar angle in global coordinates.
+     * @param phi     The azimuthal angle in global coordinates.
+     * @param indices An int array where the theta and phi indices will be stored.
      */
-    private double[] rotateGlobalToLocal(double theta, double phi) {
+    private void rotateGlobalToLocal(double theta, double phi, int[] indices) {
         // Convert spherical to Cartesian coordinates
         double x = R * Math.sin(theta) * Math.cos(phi);
         double y = R * Math.sin(theta) * Math.sin(phi);
@@ -155,7 +466,8 @@ public class SphericalGrid {
         // Convert back to spherical coordinates
         double thetaRot = Math.acos(zRot2 / R);  // New theta
         double phiRot = Math.atan2(yRot2, xRot2);     // New phi
-        return new double[]{thetaRot, MathUtil.normalizeAngle(phiRot)};
+        indices[0] = thetaGrid.getIndex(thetaRot);
+        indices[1] = phiGrid.getIndex(MathUtil.normalizeAngle(phiRot));
     }
 
     public static void main(String[] args) {
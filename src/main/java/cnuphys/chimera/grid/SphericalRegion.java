@@ -0,0 +1,268 @@
+package cnuphys.chimera.grid;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A region of the surface of one spherical component, made of whole cells of
+ * its (theta, phi) grid. Because the region is a union of spherical cells,
+ * every patch is either entirely inside or entirely outside it, which is what
+ * lets samples drawn only in the region be merged with samples of the whole
+ * sphere.
+ */
+public class SphericalRegion {
+
+	// the spherical component
+	private final int body;
+
+	// the number of cells in each direction
+	private final int numThetaCells;
+	private final int numPhiCells;
+
+	// membership, indexed by ntheta * numPhiCells + nphi
+	private final boolean[] member;
+
+	// the member cells and the cumulative solid angle through each
+	private final int[] cells;
+	private final double[] cumulative;
+
+	// the radius of the sphere, for areas
+	private final double radius;
+
+	// the grids of the sphere
+	private final Grid1D thetaGrid;
+	private final Grid1D phiGrid;
+
+	/**
+	 * Create a region from a membership mask
+	 *
+	 * @param grid   the grid
+	 * @param body   the index of the spherical component
+	 * @param member the membership of each cell, indexed by ntheta * numPhiCells
+	 *               + nphi
+	 */
+	public SphericalRegion(ChimeraGrid grid, int body, boolean[] member) {
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		this.body = body;
+		this.radius = sgrid.getRadius();
+		thetaGrid = new Grid1D(sgrid.getThetaGrid());
+		phiGrid = new Grid1D(sgrid.getPhiGrid());
+		numThetaCells = thetaGrid.getNum() - 1;
+		numPhiCells = phiGrid.getNum() - 1;
+
+		if (member.length != numThetaCells * numPhiCells) {
+			throw new IllegalArgumentException("Membership mask has " + member.length + " cells, expected "
+					+ (numThetaCells * numPhiCells));
+		}
+		this.member = member.clone();
+
+		int count = 0;
+		for (boolean b : member) {
+			if (b) {
+				count++;
+			}
+		}
+		cells = new int[count];
+		cumulative = new double[count];
+
+		double sum = 0;
+		int n = 0;
+		for (int cell = 0; cell < member.length; cell++) {
+			if (member[cell]) {
+				sum += getCellSolidAngle(cell / numPhiCells, cell % numPhiCells);
+				cells[n] = cell;
+				cumulative[n] = sum;
+				n++;
+			}
+		}
+	}
+
+	/**
+	 * Create the region covering a window in the local angles of a spherical
+	 * component (the same as the global angles when alpha and beta are zero).
+	 * The window is enlarged to whole cells. If phiMin is greater than phiMax the
+	 * window wraps around phi = &plusmn;&pi;.
+	 *
+	 * @param grid     the grid
+	 * @param body     the index of the spherical component
+	 * @param thetaMin the minimum polar angle in radians
+	 * @param thetaMax the maximum polar angle in radians
+	 * @param phiMin   the minimum azimuthal angle in radians
+	 * @param phiMax   the maximum azimuthal angle in radians
+	 * @return the region
+	 */
+	public static SphericalRegion fromWindow(ChimeraGrid grid, int body, double thetaMin, double thetaMax,
+			double phiMin, double phiMax) {
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		Grid1D tGrid = sgrid.getThetaGrid();
+		Grid1D pGrid = sgrid.getPhiGrid();
+		int nTheta = tGrid.getNum() - 1;
+		int nPhi = pGrid.getNum() - 1;
+
+		if (thetaMin > thetaMax) {
+			throw new IllegalArgumentException("thetaMin must not exceed thetaMax.");
+		}
+
+		boolean[] member = new boolean[nTheta * nPhi];
+		boolean wraps = phiMin > phiMax;
+		for (int nt = 0; nt < nTheta; nt++) {
+			if ((tGrid.getValue(nt + 1) <= thetaMin) || (tGrid.getValue(nt) >= thetaMax)) {
+				continue;
+			}
+			for (int np = 0; np < nPhi; np++) {
+				double p1 = pGrid.getValue(np);
+				double p2 = pGrid.getValue(np + 1);
+				boolean overlaps = wraps ? ((p2 > phiMin) || (p1 < phiMax)) : ((p2 > phiMin) && (p1 < phiMax));
+				member[nt * nPhi + np] = overlaps;
+			}
+		}
+		return new SphericalRegion(grid, body, member);
+	}
+
+	/**
+	 * Create the region made of the spherical cells that contain some patches
+	 *
+	 * @param grid    the grid
+	 * @param patches the patches, which must all be on the same spherical
+	 *                component
+	 * @return the region
+	 */
+	public static SphericalRegion fromPatches(ChimeraGrid grid, Collection<Fiveplet> patches) {
+		if (patches.isEmpty()) {
+			throw new IllegalArgumentException("No patches given.");
+		}
+		int body = patches.iterator().next().nbody;
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		int nTheta = sgrid.getNumTheta() - 1;
+		int nPhi = sgrid.getNumPhi() - 1;
+
+		boolean[] member = new boolean[nTheta * nPhi];
+		for (Fiveplet patch : patches) {
+			if (patch.nbody != body) {
+				throw new IllegalArgumentException("Patches are on more than one spherical component.");
+			}
+			member[patch.ntheta * nPhi + patch.nphi] = true;
+		}
+		return new SphericalRegion(grid, body, member);
+	}
+
+	/**
+	 * Get the index of the spherical component
+	 *
+	 * @return the body index
+	 */
+	public int getBody() {
+		return body;
+	}
+
+	/**
+	 * Check whether a spherical cell is in the region
+	 *
+	 * @param ntheta the theta index
+	 * @param nphi   the phi index
+	 * @return <code>true</code> if the cell is in the region
+	 */
+	public boolean contains(int ntheta, int nphi) {
+		if ((ntheta < 0) || (nphi < 0) || (ntheta >= numThetaCells) || (nphi >= numPhiCells)) {
+			return false;
+		}
+		return member[ntheta * numPhiCells + nphi];
+	}
+
+	/**
+	 * Check whether a patch is in the region
+	 *
+	 * @param patch the patch
+	 * @return <code>true</code> if the patch is in the region
+	 */
+	public boolean contains(Fiveplet patch) {
+		return (patch.nbody == body) && contains(patch.ntheta, patch.nphi);
+	}
+
+	/**
+	 * Get the number of spherical cells in the region
+	 *
+	 * @return the number of cells
+	 */
+	public int size() {
+		return cells.length;
+	}
+
+	/**
+	 * Get the solid angle of the region
+	 *
+	 * @return the solid angle in steradians
+	 */
+	public double getSolidAngle() {
+		return (cells.length == 0) ? 0 : cumulative[cells.length - 1];
+	}
+
+	/**
+	 * Get the area of the region
+	 *
+	 * @return the area
+	 */
+	public double getArea() {
+		return radius * radius * getSolidAngle();
+	}
+
+	/**
+	 * Get the solid angle of a spherical cell
+	 *
+	 * @param ntheta the theta index
+	 * @param nphi   the phi index
+	 * @return the solid angle in steradians
+	 */
+	public double getCellSolidAngle(int ntheta, int nphi) {
+		double dcos = Math.cos(thetaGrid.getValue(ntheta)) - Math.cos(thetaGrid.getValue(ntheta + 1));
+		return dcos * (phiGrid.getValue(nphi + 1) - phiGrid.getValue(nphi));
+	}
+
+	/**
+	 * Pick a cell of the region with probability proportional to its solid
+	 * angle
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @return the cell, as ntheta * numPhiCells + nphi
+	 */
+	public int pickCell(double u) {
+		double target = u * getSolidAngle();
+		int index = Arrays.binarySearch(cumulative, target);
+		index = (index < 0) ? -(index + 1) : index + 1;
+		return cells[Math.min(index, cells.length - 1)];
+	}
+
+	/**
+	 * Get the number of phi cells, for decoding the cells from
+	 * {@link #pickCell(double)}
+	 *
+	 * @return the number of phi cells
+	 */
+	public int getNumPhiCells() {
+		return numPhiCells;
+	}
+
+	/**
+	 * Get the theta grid of the sphere
+	 *
+	 * @return the theta grid
+	 */
+	public Grid1D getThetaGrid() {
+		return thetaGrid;
+	}
+
+	/**
+	 * Get the phi grid of the sphere
+	 *
+	 * @return the phi grid
+	 */
+	public Grid1D getPhiGrid() {
+		return phiGrid;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SphericalRegion[body = %d, %d cells, solid angle = %.6f sr]", body, cells.length,
+				getSolidAngle());
+	}
+}
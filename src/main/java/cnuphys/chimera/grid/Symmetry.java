@@ -0,0 +1,238 @@
+package cnuphys.chimera.grid;
+
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * The reflection symmetries of a {@link ChimeraGrid} with a single, unrotated
+ * spherical component. A reflection through the plane x = xc (the x of the
+ * sphere center) maps patches onto patches when the Cartesian x cells are
+ * symmetric about xc and the phi grid has an even number of cells, and
+ * likewise for y and z (for z it is the theta bands that are mirrored). The
+ * group has 1, 2, 4 or 8 elements. An element is a bit mask of the
+ * reflections it applies: {@link #MIRROR_X}, {@link #MIRROR_Y} and
+ * {@link #MIRROR_Z}.
+ * <p>
+ * Only the fundamental domain (the part of the sphere with local x, y and z
+ * nonnegative for each mirrored axis) needs to be sampled; the results are
+ * unfolded onto the full patch table with {@link #unfold(LongCountMap)}.
+ */
+public class Symmetry {
+
+	/** Reflection through the plane x = xc */
+	public static final int MIRROR_X = 1;
+
+	/** Reflection through the plane y = yc */
+	public static final int MIRROR_Y = 2;
+
+	/** Reflection through the plane z = zc */
+	public static final int MIRROR_Z = 4;
+
+	// relative tolerance for the grid extents to count as symmetric
+	private static final double TOLERANCE = 1.0e-12;
+
+	// the mirrored axes
+	private final int generators;
+
+	// the number of cells in each direction
+	private final int numXCells, numYCells, numZCells;
+	private final int numThetaCells, numPhiCells;
+
+	/**
+	 * Detect the symmetries of a grid
+	 *
+	 * @param grid the grid
+	 * @return the symmetry group, which is trivial (order 1) if there are several
+	 *         spherical components or the spherical component is rotated
+	 */
+	public static Symmetry detect(ChimeraGrid grid) {
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphericalGrid sgrid = grid.getSphericalGrid();
+
+		int generators = 0;
+		if ((grid.getNumSphericalGrids() == 1) && (sgrid.getAlpha() == 0) && (sgrid.getBeta() == 0)) {
+			boolean evenPhi = ((sgrid.getNumPhi() - 1) % 2) == 0;
+			if (evenPhi && symmetric(cgrid.getXMin(), cgrid.getXMax(), cgrid.getXOffset(), sgrid.getXCenter())) {
+				generators |= MIRROR_X;
+			}
+			if (symmetric(cgrid.getYMin(), cgrid.getYMax(), cgrid.getYOffset(), sgrid.getYCenter())) {
+				generators |= MIRROR_Y;
+			}
+			if (symmetric(cgrid.getZMin(), cgrid.getZMax(), cgrid.getZOffset(), sgrid.getZCenter())) {
+				generators |= MIRROR_Z;
+			}
+		}
+		return new Symmetry(grid, generators);
+	}
+
+	/**
+	 * Create a symmetry group from given generators without checking that the
+	 * grid actually has them. Use {@link #detect(ChimeraGrid)} unless the
+	 * reflections are known to hold.
+	 *
+	 * @param grid       the grid
+	 * @param generators the bit mask of mirrored axes
+	 */
+	public Symmetry(ChimeraGrid grid, int generators) {
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		this.generators = generators & (MIRROR_X | MIRROR_Y | MIRROR_Z);
+		numXCells = cgrid.getNumX() - 1;
+		numYCells = cgrid.getNumY() - 1;
+		numZCells = cgrid.getNumZ() - 1;
+		numThetaCells = sgrid.getNumTheta() - 1;
+		numPhiCells = sgrid.getNumPhi() - 1;
+
+		if (((this.generators & MIRROR_X) != 0) && ((numPhiCells % 2) != 0)) {
+			throw new IllegalArgumentException("Mirroring x needs an even number of phi cells, not " + numPhiCells);
+		}
+	}
+
+	// uniform nodes from min + offset to max + offset are symmetric about center
+	private static boolean symmetric(double min, double max, double offset, double center) {
+		double lo = min + offset - center;
+		double hi = max + offset - center;
+		return Math.abs(lo + hi) <= TOLERANCE * (hi - lo);
+	}
+
+	/**
+	 * Get the bit mask of mirrored axes
+	 *
+	 * @return the generators
+	 */
+	public int getGenerators() {
+		return generators;
+	}
+
+	/**
+	 * Check whether an axis is mirrored
+	 *
+	 * @param mirror one of {@link #MIRROR_X}, {@link #MIRROR_Y} or
+	 *               {@link #MIRROR_Z}
+	 * @return <code>true</code> if the axis is mirrored
+	 */
+	public boolean mirrors(int mirror) {
+		return (generators & mirror) != 0;
+	}
+
+	/**
+	 * Get the number of elements of the group, which is also the factor by which
+	 * sampling only the fundamental domain reduces the work
+	 *
+	 * @return the order, 1, 2, 4 or 8
+	 */
+	public int getOrder() {
+		return 1 << Integer.bitCount(generators);
+	}
+
+	/**
+	 * Check whether the group is trivial
+	 *
+	 * @return <code>true</code> if there are no symmetries
+	 */
+	public boolean isTrivial() {
+		return generators == 0;
+	}
+
+	/**
+	 * Fold a direction (relative to the sphere center) into the fundamental
+	 * domain by flipping the sign of each mirrored component that is negative.
+	 *
+	 * @param dir the x, y and z components, modified in place
+	 */
+	public void fold(double[] dir) {
+		if (mirrors(MIRROR_X)) {
+			dir[0] = Math.abs(dir[0]);
+		}
+		if (mirrors(MIRROR_Y)) {
+			dir[1] = Math.abs(dir[1]);
+		}
+		if (mirrors(MIRROR_Z)) {
+			dir[2] = Math.abs(dir[2]);
+		}
+	}
+
+	/**
+	 * Apply a group element to a packed patch key
+	 *
+	 * @param key     the key
+	 * @param element the group element, a subset of the generators
+	 * @return the key of the mirror image patch
+	 */
+	public long apply(long key, int element) {
+		int nx = PatchKey.nx(key);
+		int ny = PatchKey.ny(key);
+		int nz = PatchKey.nz(key);
+		int ntheta = PatchKey.ntheta(key);
+		int nphi = PatchKey.nphi(key);
+
+		// x -> -x takes phi to pi - phi
+		if ((element & MIRROR_X) != 0) {
+			nx = numXCells - 1 - nx;
+			nphi = numPhiCells / 2 - 1 - nphi;
+			if (nphi < 0) {
+				nphi += numPhiCells;
+			}
+		}
+		// y -> -y takes phi to -phi
+		if ((element & MIRROR_Y) != 0) {
+			ny = numYCells - 1 - ny;
+			nphi = numPhiCells - 1 - nphi;
+		}
+		// z -> -z takes theta to pi - theta
+		if ((element & MIRROR_Z) != 0) {
+			nz = numZCells - 1 - nz;
+			ntheta = numThetaCells - 1 - ntheta;
+		}
+		return PatchKey.pack(nx, ny, nz, PatchKey.nr(key), ntheta, nphi, PatchKey.nbody(key));
+	}
+
+	/**
+	 * Apply a group element to a patch
+	 *
+	 * @param patch   the patch
+	 * @param element the group element, a subset of the generators
+	 * @return the mirror image patch
+	 */
+	public Fiveplet apply(Fiveplet patch, int element) {
+		return PatchKey.toFiveplet(apply(PatchKey.pack(patch), element));
+	}
+
+	/**
+	 * Unfold counts from samples of the fundamental domain onto the whole
+	 * sphere. Every count is added to the patch and to each of its mirror
+	 * images, so the total is the order times the input total and the result can
+	 * be treated as if that many samples had been drawn over the whole sphere.
+	 *
+	 * @param counts the counts of the fundamental domain samples
+	 * @return the counts for the whole sphere
+	 */
+	public LongCountMap unfold(LongCountMap counts) {
+		if (isTrivial()) {
+			return counts;
+		}
+		LongCountMap result = new LongCountMap(counts.size() * getOrder());
+		counts.forEach((key, count) -> {
+			for (int element = 0; element < 8; element++) {
+				if ((element & ~generators) == 0) {
+					result.add(apply(key, element), count);
+				}
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Symmetry[order = " + getOrder());
+		if (mirrors(MIRROR_X)) {
+			sb.append(", x");
+		}
+		if (mirrors(MIRROR_Y)) {
+			sb.append(", y");
+		}
+		if (mirrors(MIRROR_Z)) {
+			sb.append(", z");
+		}
+		return sb.append("]").toString();
+	}
+}
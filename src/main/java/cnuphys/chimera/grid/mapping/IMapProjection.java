@@ -5,6 +5,7 @@ import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
 
 import cnuphys.bCNU.graphics.container.IContainer;
+import cnuphys.chimera.grid.SphericalGrid;
 
 public interface IMapProjection {
 
@@ -30,8 +31,10 @@ public interface IMapProjection {
 	 * @param g         the graphics context
 	 * @param container the {@link cnuphys.bCNU.graphics.container.IContainer
 	 *                  IContainer}
+	 * @param sgrid     the spherical grid whose latitude and longitude lines
+	 *                  are drawn
 	 */
-	public void drawMapOutline(Graphics g, IContainer container);
+	public void drawMapOutline(Graphics g, IContainer container, SphericalGrid sgrid);
 
 
 	/**
@@ -5,6 +5,7 @@ import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
 
 import cnuphys.bCNU.graphics.container.IContainer;
+import cnuphys.chimera.grid.SphericalGrid;
 
 public class MercatorProjection implements IMapProjection {
 
@@ -35,7 +36,7 @@ public class MercatorProjection implements IMapProjection {
     }
 
     @Override
-    public void drawMapOutline(Graphics g, IContainer container) {
+    public void drawMapOutline(Graphics g, IContainer container, SphericalGrid sgrid) {
         Graphics2D g2 = (Graphics2D) g;
 //        int width = container.getWidth();
 //        int height = container.getHeight();
@@ -8,8 +8,6 @@ import java.awt.geom.GeneralPath;
 import java.awt.geom.Point2D;
 
 import cnuphys.bCNU.graphics.container.IContainer;
-import cnuphys.chimera.frame.Chimera;
-import cnuphys.chimera.grid.ChimeraGrid;
 import cnuphys.chimera.grid.SphericalGrid;
 
 public class MollweideProjection implements IMapProjection {
@@ -76,10 +74,8 @@ public class MollweideProjection implements IMapProjection {
 
 
 	@Override
-	public void drawMapOutline(Graphics g, IContainer container) {
+	public void drawMapOutline(Graphics g, IContainer container, SphericalGrid sgrid) {
 		Graphics2D g2 = (Graphics2D) g;
-		ChimeraGrid grid = Chimera.getInstance().getChimeraGrid();
-		SphericalGrid sgrid = grid.getSphericalGrid();
 
 		// Define ranges and step sizes for sampling
 		double latStep = sgrid.getThetaDel(); // Step size for latitude (radians)
@@ -0,0 +1,163 @@
+package cnuphys.chimera.ingest;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The layout of a file of fixed size binary records: an optional header to
+ * skip, then records of the same size, each with the direction values (float
+ * or double) and optionally an int body index at fixed offsets. Fields of the
+ * record that are not named are ignored.
+ */
+public class BinaryLayout {
+
+	private final EDirectionKind kind;
+	private final int headerBytes;
+	private final int recordBytes;
+	private final ByteOrder order;
+	private final boolean doublePrecision;
+	private final int bodyOffset;
+	private final int[] valueOffsets;
+
+	/**
+	 * Create a layout
+	 *
+	 * @param kind            what the values are
+	 * @param headerBytes     the bytes to skip at the start of the file
+	 * @param recordBytes     the size of one record
+	 * @param order           the byte order of the file
+	 * @param doublePrecision <code>true</code> for double values,
+	 *                        <code>false</code> for float values
+	 * @param bodyOffset      the offset of the int body index in the record, or
+	 *                        -1 if all records are on body 0
+	 * @param valueOffsets    the offsets of the values in the record, as many as
+	 *                        the kind has
+	 */
+	public BinaryLayout(EDirectionKind kind, int headerBytes, int recordBytes, ByteOrder order,
+			boolean doublePrecision, int bodyOffset, int... valueOffsets) {
+		if (valueOffsets.length != kind.getNumValues()) {
+			throw new IllegalArgumentException(kind.getName() + " needs " + kind.getNumValues() + " value offsets, got "
+					+ valueOffsets.length);
+		}
+		int valueBytes = doublePrecision ? 8 : 4;
+		for (int offset : valueOffsets) {
+			checkField(offset, valueBytes, recordBytes);
+		}
+		if (bodyOffset >= 0) {
+			checkField(bodyOffset, 4, recordBytes);
+		}
+		if (headerBytes < 0) {
+			throw new IllegalArgumentException("Bad header size " + headerBytes);
+		}
+		this.kind = kind;
+		this.headerBytes = headerBytes;
+		this.recordBytes = recordBytes;
+		this.order = order;
+		this.doublePrecision = doublePrecision;
+		this.bodyOffset = bodyOffset;
+		this.valueOffsets = valueOffsets.clone();
+	}
+
+	/**
+	 * A layout of records with no padding and no header: the int body if there
+	 * is one, then the values
+	 *
+	 * @param kind            what the values are
+	 * @param order           the byte order of the file
+	 * @param doublePrecision <code>true</code> for double values,
+	 *                        <code>false</code> for float values
+	 * @param withBody        whether the records start with a body index
+	 * @return the layout
+	 */
+	public static BinaryLayout packed(EDirectionKind kind, ByteOrder order, boolean doublePrecision,
+			boolean withBody) {
+		int valueBytes = doublePrecision ? 8 : 4;
+		int start = withBody ? 4 : 0;
+		int[] offsets = new int[kind.getNumValues()];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = start + i * valueBytes;
+		}
+		return new BinaryLayout(kind, 0, start + offsets.length * valueBytes, order, doublePrecision,
+				withBody ? 0 : -1, offsets);
+	}
+
+	// a field must lie inside the record
+	private static void checkField(int offset, int bytes, int recordBytes) {
+		if ((offset < 0) || (offset + bytes > recordBytes)) {
+			throw new IllegalArgumentException(
+					"A field at offset " + offset + " does not fit in a record of " + recordBytes + " bytes");
+		}
+	}
+
+	/**
+	 * Get what the values are
+	 *
+	 * @return the kind of the values
+	 */
+	public EDirectionKind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Get the size of the file header
+	 *
+	 * @return the bytes before the first record
+	 */
+	public int getHeaderBytes() {
+		return headerBytes;
+	}
+
+	/**
+	 * Get the size of a record
+	 *
+	 * @return the record size in bytes
+	 */
+	public int getRecordBytes() {
+		return recordBytes;
+	}
+
+	/**
+	 * Get the byte order
+	 *
+	 * @return the byte order of the file
+	 */
+	public ByteOrder getOrder() {
+		return order;
+	}
+
+	/**
+	 * Check whether the values are doubles
+	 *
+	 * @return <code>true</code> for doubles, <code>false</code> for floats
+	 */
+	public boolean isDoublePrecision() {
+		return doublePrecision;
+	}
+
+	/**
+	 * Get the offset of the body index
+	 *
+	 * @return the offset in the record, or -1 if there is none
+	 */
+	public int getBodyOffset() {
+		return bodyOffset;
+	}
+
+	/**
+	 * Get the offset of a value
+	 *
+	 * @param index the value, from 0 to the number of values of the kind - 1
+	 * @return the offset in the record
+	 */
+	public int getValueOffset(int index) {
+		return valueOffsets[index];
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, %d byte %s %s records%s, values at %s, %d byte header", kind.getName(),
+				recordBytes, order, doublePrecision ? "double" : "float",
+				(bodyOffset < 0) ? "" : " with the body at " + bodyOffset, Arrays.toString(valueOffsets),
+				headerBytes);
+	}
+}
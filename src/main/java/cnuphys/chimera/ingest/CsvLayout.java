@@ -0,0 +1,119 @@
+package cnuphys.chimera.ingest;
+
+import java.util.Arrays;
+
+/**
+ * The layout of a delimited text file with one record per line: the lines to
+ * skip at the start (e.g. a header), the delimiter, and which columns hold the
+ * direction values and the body index. Other columns are ignored; blank lines
+ * and lines starting with '#' are skipped.
+ */
+public class CsvLayout {
+
+	private final EDirectionKind kind;
+	private final char delimiter;
+	private final int skipLines;
+	private final int bodyColumn;
+	private final int[] valueColumns;
+
+	/**
+	 * Create a layout
+	 *
+	 * @param kind         what the values are
+	 * @param delimiter    the column delimiter, e.g. ',' or '\t'
+	 * @param skipLines    the number of lines to skip at the start of the file
+	 * @param bodyColumn   the column of the integer body index, or -1 if all
+	 *                     records are on body 0
+	 * @param valueColumns the columns of the values, as many as the kind has,
+	 *                     counting from 0
+	 */
+	public CsvLayout(EDirectionKind kind, char delimiter, int skipLines, int bodyColumn, int... valueColumns) {
+		if (valueColumns.length != kind.getNumValues()) {
+			throw new IllegalArgumentException(kind.getName() + " needs " + kind.getNumValues() + " value columns, got "
+					+ valueColumns.length);
+		}
+		for (int column : valueColumns) {
+			if ((column < 0) || (column == bodyColumn)) {
+				throw new IllegalArgumentException("Bad value column " + column);
+			}
+		}
+		if ((delimiter == '\n') || (delimiter == '\r') || (delimiter == '#')) {
+			throw new IllegalArgumentException("Bad delimiter");
+		}
+		this.kind = kind;
+		this.delimiter = delimiter;
+		this.skipLines = Math.max(0, skipLines);
+		this.bodyColumn = bodyColumn;
+		this.valueColumns = valueColumns.clone();
+	}
+
+	/**
+	 * A comma separated layout with a header line and the columns in order: the
+	 * body if there is one, then the values
+	 *
+	 * @param kind     what the values are
+	 * @param withBody whether the first column is the body index
+	 * @return the layout
+	 */
+	public static CsvLayout simple(EDirectionKind kind, boolean withBody) {
+		int first = withBody ? 1 : 0;
+		int[] columns = new int[kind.getNumValues()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = first + i;
+		}
+		return new CsvLayout(kind, ',', 1, withBody ? 0 : -1, columns);
+	}
+
+	/**
+	 * Get what the values are
+	 *
+	 * @return the kind of the values
+	 */
+	public EDirectionKind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Get the delimiter
+	 *
+	 * @return the column delimiter
+	 */
+	public char getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * Get the number of lines skipped at the start of the file
+	 *
+	 * @return the number of header lines
+	 */
+	public int getSkipLines() {
+		return skipLines;
+	}
+
+	/**
+	 * Get the column of the body index
+	 *
+	 * @return the column, or -1 if there is none
+	 */
+	public int getBodyColumn() {
+		return bodyColumn;
+	}
+
+	/**
+	 * Get the column of a value
+	 *
+	 * @param index the value, from 0 to the number of values of the kind - 1
+	 * @return the column
+	 */
+	public int getValueColumn(int index) {
+		return valueColumns[index];
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, '%s' delimited, values in columns %s%s, %d header lines", kind.getName(),
+				(delimiter == '\t') ? "\\t" : String.valueOf(delimiter), Arrays.toString(valueColumns),
+				(bodyColumn < 0) ? "" : ", body in column " + bodyColumn, skipLines);
+	}
+}
@@ -0,0 +1,115 @@
+package cnuphys.chimera.ingest;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * A batch of ingested records in primitive arrays, filled by a reader and
+ * then classified, and reused for the next batch. The values are theta and
+ * phi, or x, y and z, depending on the {@link EDirectionKind}.
+ */
+public class DirectionBatch {
+
+	private final EDirectionKind kind;
+	private final int[] bodies;
+	private final double[] a;
+	private final double[] b;
+	private final double[] c;
+	private int size;
+
+	/**
+	 * Create an empty batch
+	 *
+	 * @param kind     what the values are
+	 * @param capacity the most records in the batch
+	 */
+	public DirectionBatch(EDirectionKind kind, int capacity) {
+		this.kind = kind;
+		bodies = new int[capacity];
+		a = new double[capacity];
+		b = new double[capacity];
+		c = new double[capacity];
+	}
+
+	/**
+	 * Add a record
+	 *
+	 * @param body   the body of the record
+	 * @param value0 theta or x
+	 * @param value1 phi or y
+	 * @param value2 z, ignored for angles
+	 */
+	public void add(int body, double value0, double value1, double value2) {
+		bodies[size] = body;
+		a[size] = value0;
+		b[size] = value1;
+		c[size] = value2;
+		size++;
+	}
+
+	/**
+	 * Check whether the batch is full
+	 *
+	 * @return <code>true</code> if no more records fit
+	 */
+	public boolean isFull() {
+		return size == bodies.length;
+	}
+
+	/**
+	 * Get the number of records in the batch
+	 *
+	 * @return the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empty the batch
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Classify the records of the batch and count their patches
+	 *
+	 * @param grid   the grid
+	 * @param work   work space of at least {@link ChimeraGrid#PATCH_KEY_WORK}
+	 *               elements
+	 * @param counts the patch counts to add to, without the hidden records
+	 * @return the number of records that are not hidden
+	 * @throws IllegalArgumentException for a bad body index
+	 */
+	public int classify(ChimeraGrid grid, int[] work, LongCountMap counts) {
+		int numBodies = grid.getNumSphericalGrids();
+		int visible = 0;
+		for (int i = 0; i < size; i++) {
+			int body = bodies[i];
+			if ((body < 0) || (body >= numBodies)) {
+				throw new IllegalArgumentException("Bad body " + body + "; the grid has " + numBodies);
+			}
+			long key;
+			switch (kind) {
+			case ANGLES:
+				key = grid.getPatchKey(body, a[i], b[i], work);
+				break;
+			case VECTOR:
+				key = grid.getPatchKey(body, a[i], b[i], c[i], work);
+				break;
+			default:
+				SphericalGrid sgrid = grid.getSphericalGrid(body);
+				key = grid.getPatchKey(body, a[i] - sgrid.getXCenter(), b[i] - sgrid.getYCenter(),
+						c[i] - sgrid.getZCenter(), work);
+			}
+			if (!PatchKey.isHidden(key)) {
+				counts.increment(key);
+				visible++;
+			}
+		}
+		return visible;
+	}
+}
@@ -0,0 +1,438 @@
+package cnuphys.chimera.ingest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.monteCarlo.BulkClassifier;
+import cnuphys.chimera.util.DecimalParser;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Streams large files of directions or hits into a patch histogram. The file
+ * is memory-mapped in slices; each thread takes the next slice, parses its
+ * records into a reused {@link DirectionBatch} and classifies the batch into
+ * its own histogram, and the histograms are added at the end. There are no
+ * objects per record, so with the file in the page cache the throughput is
+ * that of the classification, and otherwise that of the disk.
+ * <p>
+ * Binary files have fixed size records ({@link BinaryLayout}). Text files
+ * ({@link CsvLayout}) are parsed from the mapped bytes without strings; a
+ * slice owns the lines that start in it.
+ */
+public class DirectionIngester {
+
+	/** The number of records per batch */
+	public static final int BATCH_SIZE = 1 << 14;
+
+	// the bytes per slice; small enough to balance threads, large enough to map cheaply
+	private static final long SLICE_BYTES = 1L << 26;
+
+	// the longest text line; a slice maps this much past its end for its last line
+	private static final int MAX_LINE = 1 << 16;
+
+	// Private constructor to prevent instantiation
+	private DirectionIngester() {
+	}
+
+	/**
+	 * Ingest a binary file of fixed size records
+	 *
+	 * @param path       the file
+	 * @param layout     the record layout
+	 * @param grid       the grid
+	 * @param counts     the histogram to add the patch counts to, without the
+	 *                   hidden records
+	 * @param numThreads the number of threads
+	 * @return the number of records read
+	 * @throws IOException              if the file cannot be read or its size
+	 *                                  does not fit the layout
+	 * @throws IllegalArgumentException for a record with a bad body index, or a
+	 *                                  grid too large for patch keys
+	 * @throws InterruptedException     if interrupted while waiting for the
+	 *                                  threads
+	 */
+	public static long ingest(Path path, BinaryLayout layout, ChimeraGrid grid, LongCountMap counts,
+			int numThreads) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			int recordBytes = layout.getRecordBytes();
+			long dataBytes = channel.size() - layout.getHeaderBytes();
+			if ((dataBytes < 0) || (dataBytes % recordBytes != 0)) {
+				throw new IOException("The size of " + path + " (" + channel.size() + " bytes) does not fit "
+						+ layout);
+			}
+			long numRecords = dataBytes / recordBytes;
+			long recordsPerSlice = Math.max(1, SLICE_BYTES / recordBytes);
+			long numSlices = (numRecords + recordsPerSlice - 1) / recordsPerSlice;
+
+			return run(grid, layout.getKind(), counts, numSlices, numThreads, (slice, worker) -> {
+				long first = slice * recordsPerSlice;
+				int n = (int) Math.min(recordsPerSlice, numRecords - first);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						layout.getHeaderBytes() + first * recordBytes, (long) n * recordBytes);
+				buffer.order(layout.getOrder());
+				readRecords(buffer, n, layout, worker);
+			});
+		}
+	}
+
+	/**
+	 * Ingest a delimited text file
+	 *
+	 * @param path       the file
+	 * @param layout     the column layout
+	 * @param grid       the grid
+	 * @param counts     the histogram to add the patch counts to, without the
+	 *                   hidden records
+	 * @param numThreads the number of threads
+	 * @return the number of records read
+	 * @throws IOException              if the file cannot be read or has a bad
+	 *                                  line
+	 * @throws IllegalArgumentException for a record with a bad body index, or a
+	 *                                  grid too large for patch keys
+	 * @throws InterruptedException     if interrupted while waiting for the
+	 *                                  threads
+	 */
+	public static long ingest(Path path, CsvLayout layout, ChimeraGrid grid, LongCountMap counts, int numThreads)
+			throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long numSlices = (size + SLICE_BYTES - 1) / SLICE_BYTES;
+
+			// what each column is: -1 the body, k value k, else ignored
+			int numColumns = layout.getBodyColumn() + 1;
+			for (int v = 0; v < layout.getKind().getNumValues(); v++) {
+				numColumns = Math.max(numColumns, layout.getValueColumn(v) + 1);
+			}
+			int[] roles = new int[numColumns];
+			Arrays.fill(roles, Integer.MIN_VALUE);
+			if (layout.getBodyColumn() >= 0) {
+				roles[layout.getBodyColumn()] = -1;
+			}
+			for (int v = 0; v < layout.getKind().getNumValues(); v++) {
+				roles[layout.getValueColumn(v)] = v;
+			}
+
+			return run(grid, layout.getKind(), counts, numSlices, numThreads, (slice, worker) -> {
+				long start = slice * SLICE_BYTES;
+				long end = Math.min(size, start + SLICE_BYTES);
+				long mapStart = Math.max(0, start - 1); // to see whether a line starts at start
+				long mapEnd = Math.min(size, end + MAX_LINE);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+				readLines(buffer, mapStart, (int) (start - mapStart), (int) (end - mapStart), mapEnd == size,
+						layout, roles, worker);
+			});
+		}
+	}
+
+	// reads one slice into a worker
+	private interface SliceReader {
+		void read(long slice, Worker worker) throws IOException;
+	}
+
+	// the batch, work space and histogram of one thread
+	private static class Worker {
+		private final ChimeraGrid grid;
+		private final DirectionBatch batch;
+		private final int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+		private final LongCountMap counts = new LongCountMap();
+		private long records;
+
+		Worker(ChimeraGrid grid, EDirectionKind kind) {
+			this.grid = grid;
+			batch = new DirectionBatch(kind, BATCH_SIZE);
+		}
+
+		// add a record, classifying the batch when it is full
+		void add(int body, double value0, double value1, double value2) {
+			batch.add(body, value0, value1, value2);
+			if (batch.isFull()) {
+				flush();
+			}
+		}
+
+		// classify what is in the batch
+		void flush() {
+			records += batch.size();
+			batch.classify(grid, work, counts);
+			batch.clear();
+		}
+	}
+
+	// read the slices with several threads and add up their histograms
+	private static long run(ChimeraGrid grid, EDirectionKind kind, LongCountMap counts, long numSlices,
+			int numThreads, SliceReader reader) throws IOException, InterruptedException {
+		PatchKey.checkLimits(grid);
+		if (grid.getNumSphericalGrids() > 1) {
+			grid.getBVH(); // build it before the threads share it
+		}
+		int threads = (int) Math.max(1, Math.min(numThreads, numSlices));
+		AtomicLong nextSlice = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Worker>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(() -> {
+				Worker worker = new Worker(grid, kind);
+				long slice;
+				while ((slice = nextSlice.getAndIncrement()) < numSlices) {
+					reader.read(slice, worker);
+				}
+				worker.flush();
+				return worker;
+			}));
+		}
+		executor.shutdown();
+
+		long records = 0;
+		try {
+			for (Future<Worker> future : futures) {
+				Worker worker = future.get();
+				counts.addAll(worker.counts);
+				records += worker.records;
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof IllegalArgumentException) {
+				throw (IllegalArgumentException) e.getCause();
+			}
+			throw new IllegalStateException("Ingestion worker failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return records;
+	}
+
+	// read the fixed size records of a slice
+	private static void readRecords(ByteBuffer buffer, int n, BinaryLayout layout, Worker worker) {
+		int recordBytes = layout.getRecordBytes();
+		int bodyOffset = layout.getBodyOffset();
+		int offset0 = layout.getValueOffset(0);
+		int offset1 = layout.getValueOffset(1);
+		int offset2 = (layout.getKind().getNumValues() > 2) ? layout.getValueOffset(2) : -1;
+		boolean doubles = layout.isDoublePrecision();
+
+		for (int i = 0, base = 0; i < n; i++, base += recordBytes) {
+			int body = (bodyOffset < 0) ? 0 : buffer.getInt(base + bodyOffset);
+			if (doubles) {
+				worker.add(body, buffer.getDouble(base + offset0), buffer.getDouble(base + offset1),
+						(offset2 < 0) ? 0 : buffer.getDouble(base + offset2));
+			} else {
+				worker.add(body, buffer.getFloat(base + offset0), buffer.getFloat(base + offset1),
+						(offset2 < 0) ? 0 : buffer.getFloat(base + offset2));
+			}
+		}
+	}
+
+	// read the lines that start in [start, end) of a mapped part of a text file
+	private static void readLines(ByteBuffer buffer, long mapStart, int start, int end, boolean atEndOfFile,
+			CsvLayout layout, int[] roles, Worker worker) throws IOException {
+		int limit = buffer.limit();
+		int position = start;
+		int skip = 0;
+		if (mapStart + start == 0) {
+			skip = layout.getSkipLines();
+		} else if (buffer.get(start - 1) != '\n') {
+			position = nextLine(buffer, start, limit); // the previous slice owns this line
+		}
+
+		char delimiter = layout.getDelimiter();
+		double[] values = new double[3];
+		while (position < end) {
+			int lineEnd = position;
+			while ((lineEnd < limit) && (buffer.get(lineEnd) != '\n')) {
+				lineEnd++;
+			}
+			if ((lineEnd == limit) && !atEndOfFile) {
+				throw new IOException("A line at byte " + (mapStart + position) + " is longer than " + MAX_LINE
+						+ " bytes");
+			}
+			int next = lineEnd + 1;
+			if ((lineEnd > position) && (buffer.get(lineEnd - 1) == '\r')) {
+				lineEnd--;
+			}
+
+			if (skip > 0) {
+				skip--;
+			} else if ((lineEnd > position) && (buffer.get(position) != '#')) {
+				int body = 0;
+				int column = 0;
+				int fieldStart = position;
+				try {
+					for (int i = position; (i <= lineEnd) && (column < roles.length); i++) {
+						if ((i == lineEnd) || (buffer.get(i) == delimiter)) {
+							int role = roles[column];
+							if (role == -1) {
+								body = DecimalParser.parseInt(buffer, fieldStart, i);
+							} else if (role >= 0) {
+								values[role] = DecimalParser.parseDouble(buffer, fieldStart, i);
+							}
+							column++;
+							fieldStart = i + 1;
+						}
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad number in the line at byte " + (mapStart + position) + ": "
+							+ e.getMessage());
+				}
+				if (column < roles.length) {
+					throw new IOException("The line at byte " + (mapStart + position) + " has " + column
+							+ " columns, " + roles.length + " needed");
+				}
+				worker.add(body, values[0], values[1], values[2]);
+			}
+			position = next;
+		}
+	}
+
+	// the start of the line after the one containing position
+	private static int nextLine(ByteBuffer buffer, int position, int limit) {
+		while ((position < limit) && (buffer.get(position) != '\n')) {
+			position++;
+		}
+		return position + 1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChimeraGrid grid = ChimeraGrid.createDefault();
+		grid.addSphericalGrid(new SphericalGrid(25, 17, 1.5, 3, 0, 0, 0, 0));
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+		int numLines = n / 5;
+		Path dir = Files.createTempDirectory("chimera-ingest");
+
+		// hits on both bodies, written as double angles with the body, as float
+		// positions, and as text with 9 decimals
+		int[] bodies = new int[n];
+		double[] theta = new double[n];
+		double[] phi = new double[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		SplittableRandom random = new SplittableRandom(11);
+		for (int i = 0; i < n; i++) {
+			bodies[i] = random.nextInt(2);
+			theta[i] = Math.acos(1 - 2 * random.nextDouble());
+			phi[i] = Math.PI * (2 * random.nextDouble() - 1);
+			SphericalGrid sgrid = grid.getSphericalGrid(bodies[i]);
+			double r = sgrid.getRadius() * (1 + random.nextDouble());
+			x[i] = (float) (sgrid.getXCenter() + r * Math.sin(theta[i]) * Math.cos(phi[i]));
+			y[i] = (float) (sgrid.getYCenter() + r * Math.sin(theta[i]) * Math.sin(phi[i]));
+			z[i] = (float) (sgrid.getZCenter() + r * Math.cos(theta[i]));
+		}
+
+		Path angleFile = dir.resolve("angles.bin");
+		BinaryLayout angleLayout = BinaryLayout.packed(EDirectionKind.ANGLES, ByteOrder.LITTLE_ENDIAN, true, true);
+		Path positionFile = dir.resolve("hits.bin");
+		BinaryLayout positionLayout = new BinaryLayout(EDirectionKind.POSITION, 16, 24, ByteOrder.BIG_ENDIAN, false,
+				20, 4, 8, 12);
+		try (FileChannel angles = FileChannel.open(angleFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+				FileChannel positions = FileChannel.open(positionFile, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer a = ByteBuffer.allocate(20 * BATCH_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer p = ByteBuffer.allocate(24 * BATCH_SIZE);
+			positions.write(ByteBuffer.wrap("16 byte header..".getBytes()));
+			for (int i = 0; i < n; i++) {
+				a.putInt(bodies[i]).putDouble(theta[i]).putDouble(phi[i]);
+				p.putInt(i).putFloat((float) x[i]).putFloat((float) y[i]).putFloat((float) z[i]).putInt(-1)
+						.putInt(bodies[i]);
+				if (!a.hasRemaining() || (i == n - 1)) {
+					a.flip();
+					p.flip();
+					while (a.hasRemaining()) {
+						angles.write(a);
+					}
+					while (p.hasRemaining()) {
+						positions.write(p);
+					}
+					a.clear();
+					p.clear();
+				}
+			}
+		}
+
+		Path csvFile = dir.resolve("hits.csv");
+		double[] textTheta = new double[numLines];
+		double[] textPhi = new double[numLines];
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(Files.newBufferedWriter(csvFile)))) {
+			out.println("event,body,theta,phi,energy");
+			for (int i = 0; i < numLines; i++) {
+				String t = String.format("%.9f", theta[i]);
+				String f = String.format("%.9f", phi[i]);
+				textTheta[i] = Double.parseDouble(t);
+				textPhi[i] = Double.parseDouble(f);
+				out.print(i + "," + bodies[i] + "," + t + "," + f + ",1.5\r\n");
+			}
+		}
+
+		// the reference histograms, from the arrays
+		LongCountMap angleReference = new LongCountMap();
+		BulkClassifier.classify(grid, n, bodies, theta, phi, null, angleReference);
+		double[] ux = new double[n];
+		double[] uy = new double[n];
+		double[] uz = new double[n];
+		for (int i = 0; i < n; i++) {
+			SphericalGrid sgrid = grid.getSphericalGrid(bodies[i]);
+			ux[i] = x[i] - sgrid.getXCenter();
+			uy[i] = y[i] - sgrid.getYCenter();
+			uz[i] = z[i] - sgrid.getZCenter();
+		}
+		LongCountMap positionReference = new LongCountMap();
+		BulkClassifier.classify(grid, n, bodies, ux, uy, uz, null, positionReference);
+		LongCountMap textReference = new LongCountMap();
+		BulkClassifier.classify(grid, numLines, bodies, textTheta, textPhi, null, textReference);
+
+		for (int pass = 0; pass < 2; pass++) {
+			System.out.println("pass " + (pass + 1));
+			ingestAndCompare(angleFile, angleLayout, null, grid, numThreads, angleReference);
+			ingestAndCompare(positionFile, positionLayout, null, grid, numThreads, positionReference);
+			ingestAndCompare(csvFile, null, new CsvLayout(EDirectionKind.ANGLES, ',', 1, 1, 2, 3), grid, numThreads,
+					textReference);
+		}
+		System.out.println(numThreads + " threads");
+
+		Files.delete(angleFile);
+		Files.delete(positionFile);
+		Files.delete(csvFile);
+		Files.delete(dir);
+	}
+
+	// time the ingestion of a file and check its histogram
+	private static void ingestAndCompare(Path path, BinaryLayout binary, CsvLayout csv, ChimeraGrid grid,
+			int numThreads, LongCountMap reference) throws IOException, InterruptedException {
+		LongCountMap counts = new LongCountMap();
+		long start = System.nanoTime();
+		long records = (binary != null) ? ingest(path, binary, grid, counts, numThreads)
+				: ingest(path, csv, grid, counts, numThreads);
+		double seconds = (System.nanoTime() - start) / 1.0e9;
+
+		boolean same = counts.size() == reference.size();
+		for (long key : reference.sortedKeys()) {
+			same &= counts.get(key) == reference.get(key);
+		}
+		double megabytes = Files.size(path) / 1.0e6;
+		System.out.printf("  %-10s %9d records, %6.0f MB in %.2f s: %5.1f M records/s, %6.1f MB/s, same histogram: %b%n",
+				path.getFileName(), records, megabytes, seconds, records / seconds / 1.0e6, megabytes / seconds, same);
+	}
+}
@@ -0,0 +1,49 @@
+package cnuphys.chimera.ingest;
+
+import java.util.EnumMap;
+
+/**
+ * What the values of an ingested record are. Angles and vectors are global
+ * directions from the center of the record's body; positions are points in
+ * space, such as detector hits, classified by their direction from that
+ * center.
+ */
+public enum EDirectionKind {
+	ANGLES(2), VECTOR(3), POSITION(3);
+
+	// the number of values per record
+	private final int numValues;
+
+	EDirectionKind(int numValues) {
+		this.numValues = numValues;
+	}
+
+	/**
+	 * A map for the names of the kinds
+	 */
+	public static EnumMap<EDirectionKind, String> names = new EnumMap<>(EDirectionKind.class);
+
+	static {
+		names.put(ANGLES, "Theta, phi (radians)");
+		names.put(VECTOR, "Direction vector");
+		names.put(POSITION, "Hit position");
+	}
+
+	/**
+	 * Get the nice name of the enum.
+	 *
+	 * @return the nice name, for combo boxes, menus, etc.
+	 */
+	public String getName() {
+		return names.get(this);
+	}
+
+	/**
+	 * Get the number of values of a record of this kind
+	 *
+	 * @return 2 for angles, 3 for vectors and positions
+	 */
+	public int getNumValues() {
+		return numValues;
+	}
+}
@@ -0,0 +1,290 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.grid.Symmetry;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Runs a Monte Carlo patch count from the command line, without the
+ * application frame or a display. The grid comes from the command line (or
+ * from a grid file), the run is a reproducible {@link RandomStreams} run of
+ * the given number of points, and the results are written as a
+ * {@link PatchHistogram} and/or a CSV table of patch counts and areas:
+ *
+ * <pre>
+ * BatchRunner --points N [--seed S] [--mode MODE] [--threads T] [--symmetry detect|none]
+ *             [--grid FILE | --cartesian XMIN,XMAX,NX,YMIN,YMAX,NY,ZMIN,ZMAX,NZ --sphere SPHERE...]
+ *             [--out FILE] [--csv FILE] [--save-grid FILE]
+ * </pre>
+ *
+ * SPHERE is NTHETA,NPHI,RADIUS with optionally the center X,Y,Z and/or the
+ * rotation angles ALPHA,BETA in radians, i.e. 3, 5, 6 or 8 numbers;
+ * --sphere may be given once per body. Missing grid parts are those of the
+ * default grid. Directions are uniform. With a control variate mode the CSV
+ * areas are the exact spherical cell areas split by the fraction of each
+ * cell's points in each patch.
+ * <p>
+ * With --symmetry detect the points are drawn only in the fundamental domain
+ * of the grid's {@link Symmetry}, if it has one, and the counts are unfolded,
+ * so each point stands for as many points as the order of the group (8 for
+ * the default grid). The histogram then totals that many times the points,
+ * and its sampler name records the symmetry. Antithetic pairs are not folded.
+ */
+public class BatchRunner {
+
+	// Private constructor to prevent instantiation
+	private BatchRunner() {
+	}
+
+	/**
+	 * Parse a Cartesian grid
+	 *
+	 * @param spec XMIN,XMAX,NX,YMIN,YMAX,NY,ZMIN,ZMAX,NZ
+	 * @return the grid, with no offsets
+	 */
+	public static CartesianGrid parseCartesian(String spec) {
+		double[] v = parseNumbers(spec, "--cartesian");
+		if (v.length != 9) {
+			throw new IllegalArgumentException("--cartesian needs 9 numbers, got " + v.length);
+		}
+		return new CartesianGrid(v[0], v[1], (int) v[2], v[3], v[4], (int) v[5], v[6], v[7], (int) v[8], 0, 0, 0);
+	}
+
+	/**
+	 * Parse a spherical grid
+	 *
+	 * @param spec NTHETA,NPHI,RADIUS[,X,Y,Z][,ALPHA,BETA]
+	 * @return the grid
+	 */
+	public static SphericalGrid parseSphere(String spec) {
+		double[] v = parseNumbers(spec, "--sphere");
+		switch (v.length) {
+		case 3:
+			return new SphericalGrid((int) v[0], (int) v[1], v[2], 0, 0);
+		case 5:
+			return new SphericalGrid((int) v[0], (int) v[1], v[2], v[3], v[4]);
+		case 6:
+			return new SphericalGrid((int) v[0], (int) v[1], v[2], v[3], v[4], v[5], 0, 0);
+		case 8:
+			return new SphericalGrid((int) v[0], (int) v[1], v[2], v[3], v[4], v[5], v[6], v[7]);
+		default:
+			throw new IllegalArgumentException("--sphere needs 3, 5, 6 or 8 numbers, got " + v.length);
+		}
+	}
+
+	/**
+	 * Write a CSV table of the patch counts and the estimated patch areas, one
+	 * row per patch in key order
+	 *
+	 * @param path      the file
+	 * @param grid      the grid of the run
+	 * @param counts    the patch counts
+	 * @param numPoints the number of points of the run
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeCsv(Path path, ChimeraGrid grid, LongCountMap counts, long numPoints)
+			throws IOException {
+		writeCsv(path, grid, counts, numPoints, null);
+	}
+
+	/**
+	 * Write a CSV table of the patch counts and the estimated patch areas, one
+	 * row per patch in key order, with the areas from the cell area control
+	 * variate if the cell counts are given
+	 *
+	 * @param path       the file
+	 * @param grid       the grid of the run
+	 * @param counts     the patch counts
+	 * @param numPoints  the number of points of the run
+	 * @param cellCounts the number of points in each spherical cell, hidden ones
+	 *                   included (see
+	 *                   {@link MonteCarlo#controlVariateArea(ChimeraGrid, long, long, LongCountMap)}),
+	 *                   or <code>null</code> for the plain estimate
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeCsv(Path path, ChimeraGrid grid, LongCountMap counts, long numPoints,
+			LongCountMap cellCounts) throws IOException {
+		double sampledArea = 0;
+		for (int body = 0; body < grid.getNumSphericalGrids(); body++) {
+			sampledArea += grid.getSphericalGrid(body).getArea();
+		}
+		double areaPerPoint = (numPoints > 0) ? sampledArea / numPoints : 0;
+
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(Files.newBufferedWriter(path)))) {
+			out.println("body,nx,ny,nz,nr,ntheta,nphi,count,area");
+			for (long key : counts.sortedKeys()) {
+				long count = counts.get(key);
+				double area = (cellCounts == null) ? count * areaPerPoint
+						: MonteCarlo.controlVariateArea(grid, key, count, cellCounts);
+				out.printf("%d,%d,%d,%d,%d,%d,%d,%d,%.9g%n", PatchKey.nbody(key), PatchKey.nx(key), PatchKey.ny(key),
+						PatchKey.nz(key), PatchKey.nr(key), PatchKey.ntheta(key), PatchKey.nphi(key), count, area);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		String points = null;
+		String seed = null;
+		String mode = "NONE";
+		String threads = Integer.toString(Runtime.getRuntime().availableProcessors());
+		String gridFile = null;
+		String cartesian = null;
+		List<String> spheres = new ArrayList<>();
+		String out = null;
+		String csv = null;
+		String saveGrid = null;
+		String symmetryOption = "none";
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (i + 1 >= args.length) {
+					usage("Missing value for " + option);
+				}
+				String value = args[++i];
+				switch (option) {
+				case "--points":
+					points = value;
+					break;
+				case "--seed":
+					seed = value;
+					break;
+				case "--mode":
+					mode = value;
+					break;
+				case "--threads":
+					threads = value;
+					break;
+				case "--grid":
+					gridFile = value;
+					break;
+				case "--cartesian":
+					cartesian = value;
+					break;
+				case "--sphere":
+					spheres.add(value);
+					break;
+				case "--out":
+					out = value;
+					break;
+				case "--csv":
+					csv = value;
+					break;
+				case "--save-grid":
+					saveGrid = value;
+					break;
+				case "--symmetry":
+					symmetryOption = value;
+					break;
+				default:
+					usage("Unknown option " + option);
+				}
+			}
+			if (points == null) {
+				usage("Missing --points");
+			}
+			if (!symmetryOption.equals("detect") && !symmetryOption.equals("none")) {
+				usage("--symmetry must be detect or none");
+			}
+
+			// the grid
+			ChimeraGrid grid;
+			if (gridFile != null) {
+				grid = GridIO.read(Path.of(gridFile));
+			} else {
+				ChimeraGrid defaults = ChimeraGrid.createDefault();
+				CartesianGrid cgrid = (cartesian == null) ? defaults.getCartesianGrid() : parseCartesian(cartesian);
+				grid = new ChimeraGrid(cgrid,
+						spheres.isEmpty() ? defaults.getSphericalGrid() : parseSphere(spheres.get(0)));
+				for (int s = 1; s < spheres.size(); s++) {
+					grid.addSphericalGrid(parseSphere(spheres.get(s)));
+				}
+			}
+			PatchKey.checkLimits(grid);
+			if (saveGrid != null) {
+				GridIO.write(Path.of(saveGrid), grid);
+			}
+
+			long numPoints = Long.parseLong(points);
+			long masterSeed = (seed == null) ? RandomStreams.newSeed() : Long.parseLong(seed);
+			EVarianceReduction reduction = EVarianceReduction.valueOf(mode);
+			IDirectionSampler sampler = UniformDirectionSampler.INSTANCE;
+			long startup = ManagementFactory.getRuntimeMXBean().getUptime();
+
+			// a trivial group is an ordinary run
+			Symmetry symmetry = symmetryOption.equals("detect") ? Symmetry.detect(grid) : null;
+			if ((symmetry != null) && symmetry.isTrivial()) {
+				symmetry = null;
+			}
+			if ((symmetry != null) && reduction.isAntithetic()) {
+				throw new IllegalArgumentException("Antithetic pairs cannot be folded by symmetry; use --mode "
+						+ EVarianceReduction.CONTROL_VARIATE.name() + " or --symmetry none");
+			}
+			int order = (symmetry == null) ? 1 : symmetry.getOrder();
+
+			// the control variate needs the points per cell, hidden ones included
+			LongCountMap cellCounts = reduction.usesControlVariate() ? new LongCountMap() : null;
+			long start = System.nanoTime();
+			LongCountMap counts = (symmetry == null)
+					? MonteCarlo.countPatches(grid, numPoints, reduction, sampler, new RandomStreams(masterSeed), 0,
+							RandomStreams.numChunks(numPoints), Integer.parseInt(threads), cellCounts)
+					: MonteCarlo.countPatches(grid, numPoints, symmetry, sampler, new RandomStreams(masterSeed), 0,
+							RandomStreams.numChunks(numPoints), Integer.parseInt(threads), cellCounts);
+			double runTime = (System.nanoTime() - start) / 1.0e9;
+
+			if (out != null) {
+				String samplerName = (symmetry == null) ? sampler.getName() : sampler.getName() + " " + symmetry;
+				new PatchHistogram(grid, masterSeed, reduction, samplerName, numPoints, 0,
+						RandomStreams.numChunks(numPoints), counts).write(Path.of(out));
+			}
+			if (csv != null) {
+				writeCsv(Path.of(csv), grid, counts, numPoints * order, cellCounts);
+			}
+
+			System.out.printf("%d points (x%d by symmetry), seed %d, %d bodies: %d patches, %d visible points in %.2f s (ready %d ms after JVM start)%n",
+					numPoints, order, masterSeed, grid.getNumSphericalGrids(), counts.size(), counts.getTotal(),
+					runTime, startup);
+		} catch (IOException | IllegalArgumentException | IllegalStateException | InterruptedException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// parse comma separated numbers
+	private static double[] parseNumbers(String spec, String option) {
+		String[] tokens = spec.split(",");
+		double[] values = new double[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			try {
+				values[i] = Double.parseDouble(tokens[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad number \"" + tokens[i] + "\" in " + option);
+			}
+		}
+		return values;
+	}
+
+	private static void usage(String problem) {
+		String name = BatchRunner.class.getName();
+		System.err.println(problem);
+		System.err.println("Usage: " + name + " --points N [--seed S] [--mode MODE] [--threads T] [--symmetry detect|none]");
+		System.err.println("         [--grid FILE | --cartesian XMIN,XMAX,NX,YMIN,YMAX,NY,ZMIN,ZMAX,NZ --sphere SPHERE...]");
+		System.err.println("         [--out FILE] [--csv FILE] [--save-grid FILE]");
+		System.err.println("SPHERE is NTHETA,NPHI,RADIUS[,X,Y,Z][,ALPHA,BETA], angles in radians");
+		System.err.println("MODE is one of NONE, CONTROL_VARIATE, BOTH");
+		System.exit(2);
+	}
+}
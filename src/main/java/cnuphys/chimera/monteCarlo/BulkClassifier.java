@@ -0,0 +1,184 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * Classifies directions supplied from outside, e.g. simulated particle
+ * tracks, into the patches of a grid. The directions come in primitive arrays,
+ * as global angles or as vectors, and are classified in parallel with no
+ * objects per point. The patch keys, the histogram or both are filled in; the
+ * histogram is the same as counting the keys one by one.
+ */
+public class BulkClassifier {
+
+	// the fewest points worth a segment of their own
+	private static final int MIN_PER_SEGMENT = 1 << 14;
+
+	// segments per thread of the common pool, to even out the work
+	private static final int SEGMENTS_PER_THREAD = 4;
+
+	// Private constructor to prevent instantiation
+	private BulkClassifier() {
+	}
+
+	/**
+	 * Classify global directions
+	 *
+	 * @param grid   the grid
+	 * @param n      the number of points
+	 * @param bodies the spherical component of each point, or <code>null</code>
+	 *               if all are on component 0
+	 * @param theta  the global polar angle of each point
+	 * @param phi    the global azimuthal angle of each point
+	 * @param keys   if not <code>null</code>, will hold the {@link PatchKey} of
+	 *               each point, {@link PatchKey#hidden(int)} for hidden points
+	 * @param counts if not <code>null</code>, the number of points in each patch
+	 *               is added to it, without the hidden points
+	 * @return the number of points that are not hidden
+	 * @throws IllegalArgumentException for a bad body index, or a grid too large
+	 *                                  for patch keys
+	 */
+	public static long classify(ChimeraGrid grid, int n, int[] bodies, double[] theta, double[] phi, long[] keys,
+			LongCountMap counts) {
+		return classify(grid, n, bodies, keys, counts,
+				(body, i, work) -> grid.getPatchKey(body, theta[i], phi[i], work));
+	}
+
+	/**
+	 * Classify directions given as vectors
+	 *
+	 * @param grid   the grid
+	 * @param n      the number of points
+	 * @param bodies the spherical component of each point, or <code>null</code>
+	 *               if all are on component 0
+	 * @param ux     the x component of the global direction of each point; the
+	 *               vectors need not be unit vectors
+	 * @param uy     the y component of each direction
+	 * @param uz     the z component of each direction
+	 * @param keys   if not <code>null</code>, will hold the {@link PatchKey} of
+	 *               each point, {@link PatchKey#hidden(int)} for hidden points
+	 *               and zero vectors
+	 * @param counts if not <code>null</code>, the number of points in each patch
+	 *               is added to it, without the hidden points
+	 * @return the number of points that are not hidden
+	 * @throws IllegalArgumentException for a bad body index, or a grid too large
+	 *                                  for patch keys
+	 */
+	public static long classify(ChimeraGrid grid, int n, int[] bodies, double[] ux, double[] uy, double[] uz,
+			long[] keys, LongCountMap counts) {
+		return classify(grid, n, bodies, keys, counts,
+				(body, i, work) -> grid.getPatchKey(body, ux[i], uy[i], uz[i], work));
+	}
+
+	// the lookup of one point
+	private interface KeyFunction {
+		long key(int body, int i, int[] work);
+	}
+
+	// classify in segments, each with its own work space and histogram
+	private static long classify(ChimeraGrid grid, int n, int[] bodies, long[] keys, LongCountMap counts,
+			KeyFunction function) {
+		PatchKey.checkLimits(grid);
+		int numBodies = grid.getNumSphericalGrids();
+		if (numBodies > 1) {
+			grid.getBVH(); // build it before the threads share it
+		}
+
+		int numSegments = Math.max(1,
+				Math.min(n / MIN_PER_SEGMENT, SEGMENTS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism()));
+		LongCountMap[] segmentCounts = new LongCountMap[numSegments];
+		long visible = IntStream.range(0, numSegments).parallel().mapToLong(s -> {
+			int from = (int) ((long) n * s / numSegments);
+			int to = (int) ((long) n * (s + 1) / numSegments);
+			int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+			LongCountMap segment = (counts == null) ? null : new LongCountMap();
+			long count = 0;
+			for (int i = from; i < to; i++) {
+				int body = (bodies == null) ? 0 : bodies[i];
+				if ((body < 0) || (body >= numBodies)) {
+					throw new IllegalArgumentException(
+							"Bad body " + body + " for point " + i + "; the grid has " + numBodies);
+				}
+				long key = function.key(body, i, work);
+				if (keys != null) {
+					keys[i] = key;
+				}
+				if (!PatchKey.isHidden(key)) {
+					count++;
+					if (segment != null) {
+						segment.increment(key);
+					}
+				}
+			}
+			segmentCounts[s] = segment;
+			return count;
+		}).sum();
+
+		if (counts != null) {
+			for (LongCountMap segment : segmentCounts) {
+				counts.addAll(segment);
+			}
+		}
+		return visible;
+	}
+
+	public static void main(String[] args) {
+		ChimeraGrid grid = ChimeraGrid.createDefault();
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 20000000;
+
+		// uniform directions, as angles and as vectors of random length
+		double[] theta = new double[n];
+		double[] phi = new double[n];
+		double[] ux = new double[n];
+		double[] uy = new double[n];
+		double[] uz = new double[n];
+		SplittableRandom random = new SplittableRandom(7);
+		for (int i = 0; i < n; i++) {
+			theta[i] = Math.acos(1 - 2 * random.nextDouble());
+			phi[i] = Math.PI * (2 * random.nextDouble() - 1);
+			double r = 0.1 + random.nextDouble();
+			ux[i] = r * Math.sin(theta[i]) * Math.cos(phi[i]);
+			uy[i] = r * Math.sin(theta[i]) * Math.sin(phi[i]);
+			uz[i] = r * Math.cos(theta[i]);
+		}
+
+		for (int pass = 0; pass < 2; pass++) {
+			long[] keys = new long[n];
+			LongCountMap counts = new LongCountMap();
+			long start = System.nanoTime();
+			long visible = classify(grid, n, null, theta, phi, keys, counts);
+			double seconds = (System.nanoTime() - start) / 1.0e9;
+			System.out.printf("angles:  %d points, %d visible, %d patches in %.2f s (%.1f M points/s)%n", n,
+					visible, counts.size(), seconds, n / seconds / 1.0e6);
+
+			LongCountMap vectorCounts = new LongCountMap();
+			start = System.nanoTime();
+			classify(grid, n, null, ux, uy, uz, null, vectorCounts);
+			seconds = (System.nanoTime() - start) / 1.0e9;
+			boolean same = vectorCounts.size() == counts.size();
+			for (long key : counts.sortedKeys()) {
+				same &= counts.get(key) == vectorCounts.get(key);
+			}
+			System.out.printf("vectors: histogram only in %.2f s (%.1f M points/s), same histogram: %b%n", seconds,
+					n / seconds / 1.0e6, same);
+
+			// the keys agree with the point by point classification
+			int mismatches = 0;
+			for (int i = 0; i < n; i += 997) {
+				Fiveplet fiveplet = new MonteCarloPoint(grid, 0, new ThetaPhi(theta[i], phi[i])).fiveplet;
+				long expected = (fiveplet == null) ? PatchKey.hidden(0) : PatchKey.pack(fiveplet);
+				mismatches += (keys[i] == expected) ? 0 : 1;
+			}
+			System.out.println("mismatches with MonteCarloPoint in a sample: " + mismatches);
+		}
+		System.out.println(ForkJoinPool.getCommonPoolParallelism() + " threads in the common pool");
+	}
+}
@@ -0,0 +1,338 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.StripedLongCountMap;
+
+/**
+ * The state of a Monte Carlo run at a chunk boundary, enough to resume it: the
+ * grid snapshot, the master seed and settings, the number of
+ * {@link RandomStreams} chunks done and the patch histogram so far. Every
+ * chunk has its own random stream, so the chunk index is the whole random
+ * state, and a resumed run draws exactly the points the interrupted one would
+ * have drawn next.
+ * <p>
+ * A checkpoint is a small gzipped file. It is written to a temporary file
+ * first and then moved over the old one, so a crash while writing leaves the
+ * previous checkpoint intact.
+ */
+public class Checkpoint {
+
+	/** The default time between checkpoints of a run, in milliseconds */
+	public static final long DEFAULT_INTERVAL = 60000;
+
+	// file header
+	private static final long MAGIC = 0x4348494d434b5031L; // "CHIMCKP1"
+	private static final int VERSION = 2;
+
+	// the run
+	private final ChimeraGrid grid;
+	private final long seed;
+	private final EVarianceReduction mode;
+	private final String samplerName;
+	private final long samplerFingerprint;
+	private final long firstChunk;
+	private final long numPoints;
+
+	// the progress
+	private final long chunksDone;
+	private final LongCountMap counts;
+
+	/**
+	 * Create a checkpoint
+	 *
+	 * @param grid        the grid snapshot of the run
+	 * @param seed        the master seed
+	 * @param mode        the variance reduction mode
+	 * @param sampler     the direction sampler, of which the name and
+	 *                    fingerprint are recorded
+	 * @param firstChunk  the stream index of the first chunk of the run
+	 * @param numPoints   the number of points of the whole run
+	 * @param chunksDone  the number of chunks of the run that are done
+	 * @param counts      the patch histogram so far; not copied
+	 */
+	public Checkpoint(ChimeraGrid grid, long seed, EVarianceReduction mode, IDirectionSampler sampler,
+			long firstChunk, long numPoints, long chunksDone, LongCountMap counts) {
+		this(grid, seed, mode, sampler.getName(), sampler.getFingerprint(), firstChunk, numPoints, chunksDone,
+				counts);
+	}
+
+	// the checkpoint as read
+	private Checkpoint(ChimeraGrid grid, long seed, EVarianceReduction mode, String samplerName,
+			long samplerFingerprint, long firstChunk, long numPoints, long chunksDone, LongCountMap counts) {
+		this.grid = grid;
+		this.seed = seed;
+		this.mode = mode;
+		this.samplerName = samplerName;
+		this.samplerFingerprint = samplerFingerprint;
+		this.firstChunk = firstChunk;
+		this.numPoints = numPoints;
+		this.chunksDone = chunksDone;
+		this.counts = counts;
+	}
+
+	/**
+	 * Get the usual checkpoint file, in the .chimera folder of the user's home
+	 *
+	 * @return the file
+	 */
+	public static Path getDefaultPath() {
+		return Path.of(System.getProperty("user.home"), ".chimera", "montecarlo.ckpt");
+	}
+
+	/**
+	 * Write the checkpoint, replacing the file atomically
+	 *
+	 * @param path the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(Path path) throws IOException {
+		Path dir = path.toAbsolutePath().getParent();
+		if (dir != null) {
+			Files.createDirectories(dir);
+		}
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(seed);
+			out.writeUTF(mode.name());
+			out.writeUTF(samplerName);
+			out.writeLong(samplerFingerprint);
+			out.writeLong(firstChunk);
+			out.writeLong(numPoints);
+			out.writeLong(chunksDone);
+			GridIO.write(out, grid);
+			counts.write(out);
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Read a checkpoint
+	 *
+	 * @param path the file
+	 * @return the checkpoint
+	 * @throws IOException if the file cannot be read or is not a checkpoint
+	 */
+	public static Checkpoint read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path))))) {
+			if (in.readLong() != MAGIC) {
+				throw new IOException("Not a Monte Carlo checkpoint: " + path);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version + " in " + path);
+			}
+			long seed = in.readLong();
+			EVarianceReduction mode;
+			try {
+				mode = EVarianceReduction.valueOf(in.readUTF());
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Unknown variance reduction mode in " + path, e);
+			}
+			String samplerName = in.readUTF();
+			long samplerFingerprint = in.readLong();
+			long firstChunk = in.readLong();
+			long numPoints = in.readLong();
+			long chunksDone = in.readLong();
+			ChimeraGrid grid = GridIO.read(in);
+			LongCountMap counts = LongCountMap.read(in);
+			return new Checkpoint(grid, seed, mode, samplerName, samplerFingerprint, firstChunk, numPoints, chunksDone,
+					counts);
+		}
+	}
+
+	/**
+	 * Get the grid snapshot of the run
+	 *
+	 * @return the grid
+	 */
+	public ChimeraGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Get the master seed of the run
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Get the variance reduction mode of the run
+	 *
+	 * @return the mode
+	 */
+	public EVarianceReduction getMode() {
+		return mode;
+	}
+
+	/**
+	 * Get the name of the direction sampler of the run. A resumed run must use
+	 * the same sampler.
+	 *
+	 * @return the sampler name
+	 */
+	public String getSamplerName() {
+		return samplerName;
+	}
+
+	/**
+	 * Check whether a sampler is the one of the run: the name and the
+	 * fingerprint of its parameters, e.g. the bins of a tabulated distribution,
+	 * must both match
+	 *
+	 * @param sampler the sampler
+	 * @return <code>true</code> if the sampler draws the directions of the run
+	 * @see IDirectionSampler#getFingerprint()
+	 */
+	public boolean matches(IDirectionSampler sampler) {
+		return sampler.getName().equals(samplerName) && (sampler.getFingerprint() == samplerFingerprint);
+	}
+
+	/**
+	 * Get the stream index of the first chunk of the run
+	 *
+	 * @return the chunk index
+	 */
+	public long getFirstChunk() {
+		return firstChunk;
+	}
+
+	/**
+	 * Get the number of points of the whole run
+	 *
+	 * @return the number of points
+	 */
+	public long getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Get the number of chunks that are done
+	 *
+	 * @return the number of chunks
+	 */
+	public long getChunksDone() {
+		return chunksDone;
+	}
+
+	/**
+	 * Get the number of points that are done
+	 *
+	 * @return the number of points
+	 */
+	public long getPointsDone() {
+		return Math.min(numPoints, chunksDone * RandomStreams.CHUNK_SIZE);
+	}
+
+	/**
+	 * Check whether the run was finished
+	 *
+	 * @return <code>true</code> if every chunk is done
+	 */
+	public boolean isComplete() {
+		return chunksDone >= RandomStreams.numChunks(numPoints);
+	}
+
+	/**
+	 * Get the patch histogram so far, including the points the run was added
+	 * to, if any. Do not modify.
+	 *
+	 * @return the number of points in each patch
+	 */
+	public LongCountMap getCounts() {
+		return counts;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Checkpoint [%d of %d points, seed %d, %s, %s, %d patches]", getPointsDone(), numPoints,
+				seed, mode.getName(), samplerName, counts.size());
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChimeraGrid grid = new ChimeraGrid(new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0),
+				new SphericalGrid(49, 33, 1, 0.3, 0.2));
+		long numPoints = 2000000;
+		long seed = 12345;
+		Path file = Files.createTempFile("chimera", ".ckpt");
+
+		// the reference: one uninterrupted run
+		StripedLongCountMap reference = new StripedLongCountMap();
+		JobScheduler scheduler = new JobScheduler(new ArrayList<>(), PointStore.inMemory(), reference);
+		awaitJob(scheduler.submit(grid, numPoints, true, EVarianceReduction.NONE, UniformDirectionSampler.INSTANCE,
+				seed, null));
+
+		// a checkpointed run, cancelled part way
+		StripedLongCountMap counts = new StripedLongCountMap();
+		scheduler = new JobScheduler(new ArrayList<>(), PointStore.inMemory(), counts);
+		scheduler.setCheckpointInterval(50);
+		MonteCarloJob job = scheduler.submit(grid, numPoints, true, EVarianceReduction.NONE,
+				UniformDirectionSampler.INSTANCE, seed, file, null);
+		while (job.getPointsDone() < numPoints / 3) {
+			Thread.sleep(1);
+		}
+		job.cancel();
+		awaitJob(job);
+		Checkpoint checkpoint = Checkpoint.read(file);
+		System.out.println("cancelled: " + job);
+		System.out.println("read:      " + checkpoint + ", " + Files.size(file) + " bytes");
+
+		// resume it, as after a restart, into a fresh scheduler
+		counts = new StripedLongCountMap();
+		scheduler = new JobScheduler(new ArrayList<>(), PointStore.inMemory(), counts);
+		awaitJob(scheduler.resume(checkpoint, UniformDirectionSampler.INSTANCE, file, null));
+		System.out.println("resumed:   " + Checkpoint.read(file));
+
+		LongCountMap expected = reference.snapshot();
+		LongCountMap actual = counts.snapshot();
+		boolean same = expected.size() == actual.size();
+		for (long key : expected.sortedKeys()) {
+			same &= expected.get(key) == actual.get(key);
+		}
+		System.out.println("totals " + expected.getTotal() + " and " + actual.getTotal()
+				+ ", histogram identical to the uninterrupted run: " + same);
+
+		// samplers of the same name with different tables do not match
+		TabulatedDirectionSampler coarse = TabulatedDirectionSampler.cosTheta(45, 90);
+		TabulatedDirectionSampler fine = TabulatedDirectionSampler.cosTheta(90, 180);
+		Checkpoint tabulated = new Checkpoint(grid, seed, EVarianceReduction.NONE, coarse, 0, numPoints, 0,
+				new LongCountMap());
+		System.out.println("\"" + coarse.getName() + "\" checkpoint matches the same table: " + tabulated.matches(coarse)
+				+ ", a finer table: " + tabulated.matches(fine) + ", the uniform sampler: "
+				+ tabulated.matches(UniformDirectionSampler.INSTANCE));
+		Files.delete(file);
+	}
+
+	// wait for a job to stop
+	private static void awaitJob(MonteCarloJob job) throws InterruptedException {
+		while (!job.isDone()) {
+			Thread.sleep(5);
+		}
+	}
+}
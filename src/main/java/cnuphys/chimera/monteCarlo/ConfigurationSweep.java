@@ -0,0 +1,236 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Grid1D;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphereBVH;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.grid.Symmetry;
+import cnuphys.chimera.remap.PatchAreas;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Evaluates many grid configurations, e.g. candidate values of numTheta,
+ * numPhi and the Cartesian resolution, in a single Monte Carlo pass. Each
+ * sample direction is drawn once and classified against every configuration,
+ * with one histogram per configuration. The local angles are computed once per
+ * distinct sphere rotation, so configurations that differ only in their grid
+ * resolutions pay for the random numbers and the trig only once.
+ * <p>
+ * Each configuration is sampled on the surface of its primary spherical
+ * component.
+ */
+public class ConfigurationSweep {
+
+	// copies of the configurations
+	private final List<ChimeraGrid> configs = new ArrayList<>();
+
+	// for each configuration the index of its rotation group
+	private final int[] rotationGroup;
+
+	// a representative sphere for each distinct (alpha, beta)
+	private final List<SphericalGrid> rotations = new ArrayList<>();
+
+	// the histograms, one per configuration
+	private final List<LongCountMap> counts = new ArrayList<>();
+
+	// the number of samples drawn so far
+	private long numPoints;
+
+	/**
+	 * Create a sweep. The configurations are copied, so later edits to them do
+	 * not affect the sweep.
+	 *
+	 * @param grids the grid configurations
+	 */
+	public ConfigurationSweep(List<ChimeraGrid> grids) {
+		rotationGroup = new int[grids.size()];
+		for (int i = 0; i < grids.size(); i++) {
+			ChimeraGrid grid = grids.get(i);
+			PatchKey.checkLimits(grid);
+			ChimeraGrid copy = grid.snapshot();
+			configs.add(copy);
+			counts.add(new LongCountMap());
+
+			SphericalGrid sgrid = copy.getSphericalGrid();
+			int group = -1;
+			for (int j = 0; j < rotations.size(); j++) {
+				SphericalGrid other = rotations.get(j);
+				if ((other.getAlpha() == sgrid.getAlpha()) && (other.getBeta() == sgrid.getBeta())) {
+					group = j;
+					break;
+				}
+			}
+			if (group < 0) {
+				group = rotations.size();
+				rotations.add(sgrid);
+			}
+			rotationGroup[i] = group;
+		}
+	}
+
+	/**
+	 * Draw more samples and classify each against every configuration
+	 *
+	 * @param numSamples the number of sample directions to draw
+	 * @param random     the random number generator
+	 */
+	public void run(long numSamples, Random random) {
+		int numConfigs = configs.size();
+		int numRotations = rotations.size();
+
+		SphericalGrid[] sgrids = new SphericalGrid[numConfigs];
+		CartesianGrid[] cgrids = new CartesianGrid[numConfigs];
+		SphereBVH[] bvhs = new SphereBVH[numConfigs];
+		Grid1D[] thetaGrids = new Grid1D[numConfigs];
+		Grid1D[] phiGrids = new Grid1D[numConfigs];
+		LongCountMap[] histograms = counts.toArray(new LongCountMap[0]);
+		for (int i = 0; i < numConfigs; i++) {
+			ChimeraGrid config = configs.get(i);
+			sgrids[i] = config.getSphericalGrid();
+			cgrids[i] = config.getCartesianGrid();
+			bvhs[i] = (config.getNumSphericalGrids() > 1) ? config.getBVH() : null;
+			thetaGrids[i] = sgrids[i].getThetaGrid();
+			phiGrids[i] = sgrids[i].getPhiGrid();
+		}
+
+		double[][] angles = new double[numRotations][2];
+		int[] cIndices = new int[3];
+		int[] stack = new int[SphereBVH.STACK_SIZE];
+
+		for (long n = 0; n < numSamples; n++) {
+			double cosTheta = 2 * random.nextDouble() - 1;
+			double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+			double phi = 2 * Math.PI * random.nextDouble();
+			double ux = sinTheta * Math.cos(phi);
+			double uy = sinTheta * Math.sin(phi);
+			double uz = cosTheta;
+
+			for (int g = 0; g < numRotations; g++) {
+				rotations.get(g).toLocalAngles(ux, uy, uz, angles[g]);
+			}
+
+			for (int i = 0; i < numConfigs; i++) {
+				SphericalGrid sgrid = sgrids[i];
+				double r = sgrid.getRadius();
+				double x = sgrid.getXCenter() + r * ux;
+				double y = sgrid.getYCenter() + r * uy;
+				double z = sgrid.getZCenter() + r * uz;
+
+				if (!cgrids[i].locate(x, y, z, cIndices)) {
+					continue;
+				}
+				if ((bvhs[i] != null) && (bvhs[i].findContaining(x, y, z, 0, stack) >= 0)) {
+					continue;
+				}
+
+				double[] local = angles[rotationGroup[i]];
+				int nt = thetaGrids[i].getIndex(local[0]);
+				int np = phiGrids[i].getIndex(local[1]);
+				histograms[i].increment(PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], 0, nt, np, 0));
+			}
+		}
+		numPoints += numSamples;
+	}
+
+	/**
+	 * Get the number of configurations
+	 *
+	 * @return the number of configurations
+	 */
+	public int size() {
+		return configs.size();
+	}
+
+	/**
+	 * Get the (copied) configuration
+	 *
+	 * @param index the index of the configuration
+	 * @return the configuration
+	 */
+	public ChimeraGrid getConfiguration(int index) {
+		return configs.get(index);
+	}
+
+	/**
+	 * Get the histogram of a configuration
+	 *
+	 * @param index the index of the configuration
+	 * @return the number of samples in each patch
+	 */
+	public LongCountMap getCounts(int index) {
+		return counts.get(index);
+	}
+
+	/**
+	 * Get the number of samples drawn so far
+	 *
+	 * @return the number of samples
+	 */
+	public long getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Get the patch areas of a configuration
+	 *
+	 * @param index the index of the configuration
+	 * @return the patch areas
+	 */
+	public PatchAreas getPatchAreas(int index) {
+		return PatchAreas.fromKeyCounts(counts.get(index), numPoints,
+				configs.get(index).getSphericalGrid().getArea());
+	}
+
+	public static void main(String[] args) {
+		// a parameter study over the sphere and Cartesian resolutions
+		List<ChimeraGrid> grids = new ArrayList<>();
+		int[] thetas = { 25, 49, 97 };
+		int[] phis = { 17, 33, 65 };
+		int[] cells = { 53, 103, 203 };
+		for (int t = 0; t < thetas.length; t++) {
+			for (int c = 0; c < cells.length; c++) {
+				CartesianGrid cgrid = new CartesianGrid(-10, 10, cells[c], -10, 10, 163, -10, 10, cells[c], 0, 0, 0);
+				grids.add(new ChimeraGrid(cgrid, new SphericalGrid(thetas[t], phis[t], 1, 0.3, 0.2)));
+			}
+		}
+
+		long numSamples = 1000000;
+		ConfigurationSweep sweep = new ConfigurationSweep(grids);
+		long start = System.nanoTime();
+		sweep.run(numSamples, new Random(1));
+		double sweepTime = (System.nanoTime() - start) / 1.0e9;
+
+		start = System.nanoTime();
+		int mismatches = 0;
+		for (int i = 0; i < grids.size(); i++) {
+			ChimeraGrid grid = grids.get(i);
+			LongCountMap separate = SymmetricSampler.sample(grid, new Symmetry(grid, 0), numSamples, new Random(1));
+			long[] keys = separate.sortedKeys();
+			for (long key : keys) {
+				if (separate.get(key) != sweep.getCounts(i).get(key)) {
+					mismatches++;
+				}
+			}
+			if (keys.length != sweep.getCounts(i).size()) {
+				mismatches++;
+			}
+		}
+		double separateTime = (System.nanoTime() - start) / 1.0e9;
+
+		for (int i = 0; i < sweep.size(); i++) {
+			SphericalGrid sgrid = sweep.getConfiguration(i).getSphericalGrid();
+			PatchAreas areas = sweep.getPatchAreas(i);
+			System.out.printf("%3d x %2d sphere, %3d x cells: %6d patches, total area %.6f%n", sgrid.getNumTheta(),
+					sgrid.getNumPhi(), sweep.getConfiguration(i).getCartesianGrid().getNumX(), areas.size(),
+					areas.getTotalArea());
+		}
+		System.out.printf("one pass: %.2f s, separate passes: %.2f s, histogram mismatches: %d%n", sweepTime,
+				separateTime, mismatches);
+	}
+}
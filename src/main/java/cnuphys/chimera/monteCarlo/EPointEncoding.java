@@ -0,0 +1,82 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.EnumMap;
+import cnuphys.chimera.util.DirectionCodec;
+
+/**
+ * How a {@link PointStore} encodes the direction of each point. Every encoding
+ * keeps the packed patch key exactly, so patch counts do not depend on it.
+ */
+public enum EPointEncoding {
+	DOUBLE(32, 0), FIXED32(16, DirectionCodec.FIXED_MAX_ERROR), OCTAHEDRAL(12, DirectionCodec.OCTAHEDRAL_MAX_ERROR);
+
+	// the size of one record in bytes
+	private final int recordBytes;
+
+	// the worst case angular error of a stored direction
+	private final double maxError;
+
+	EPointEncoding(int recordBytes, double maxError) {
+		this.recordBytes = recordBytes;
+		this.maxError = maxError;
+	}
+
+	/**
+	 * A map for the names of the encodings
+	 */
+	public static EnumMap<EPointEncoding, String> names = new EnumMap<>(EPointEncoding.class);
+
+	static {
+		names.put(DOUBLE, "Double angles (32 bytes)");
+		names.put(FIXED32, "Fixed point angles (16 bytes)");
+		names.put(OCTAHEDRAL, "Octahedral vector (12 bytes)");
+	}
+
+	/**
+	 * Get the nice name of the enum.
+	 *
+	 * @return the nice name, for combo boxes, menus, etc.
+	 */
+	public String getName() {
+		return names.get(this);
+	}
+
+	/**
+	 * Get the size of one point record
+	 *
+	 * @return the record size in bytes
+	 */
+	public int getRecordBytes() {
+		return recordBytes;
+	}
+
+	/**
+	 * Get a bound on the angular error of a stored direction
+	 *
+	 * @return the error bound in radians, 0 for the lossless encoding
+	 */
+	public double getMaxAngularError() {
+		return maxError;
+	}
+
+	/**
+	 * Returns the enum value from the name.
+	 *
+	 * @param name the name to match.
+	 * @return the <code>EPointEncoding</code> that corresponds to the name.
+	 *         Returns <code>null</code> if no match is found. Note it will check
+	 *         (case insensitive) both the map and the <code>name()</code>.
+	 */
+	public static EPointEncoding getValue(String name) {
+		if (name == null) {
+			return null;
+		}
+
+		for (EPointEncoding val : values()) {
+			if (name.equalsIgnoreCase(val.getName()) || name.equalsIgnoreCase(val.name())) {
+				return val;
+			}
+		}
+		return null;
+	}
+}
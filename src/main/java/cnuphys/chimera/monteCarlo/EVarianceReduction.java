@@ -0,0 +1,74 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.EnumMap;
+
+/**
+ * How a Monte Carlo run reduces the variance of its patch area estimates.
+ * Antithetic pairs (see {@link MonteCarloPoint#antithetic}) put both points of
+ * a pair in the same spherical cell, which makes the plain count estimate
+ * worse, so they are only offered together with the cell area control
+ * variate, which removes the noise of the number of points per cell.
+ */
+public enum EVarianceReduction {
+	NONE, CONTROL_VARIATE, BOTH;
+
+	/**
+	 * A map for the names of the modes
+	 */
+	public static EnumMap<EVarianceReduction, String> names = new EnumMap<>(EVarianceReduction.class);
+
+	static {
+		names.put(NONE, "None");
+		names.put(CONTROL_VARIATE, "Cell area control variate");
+		names.put(BOTH, "Antithetic + control variate");
+	}
+
+	/**
+	 * Get the nice name of the enum.
+	 *
+	 * @return the nice name, for combo boxes, menus, etc.
+	 */
+	public String getName() {
+		return names.get(this);
+	}
+
+	/**
+	 * Check whether points are generated in antithetic pairs
+	 *
+	 * @return <code>true</code> for antithetic sampling
+	 */
+	public boolean isAntithetic() {
+		return this == BOTH;
+	}
+
+	/**
+	 * Check whether the patch areas are corrected with the exact spherical cell
+	 * areas
+	 *
+	 * @return <code>true</code> for the control variate estimator
+	 */
+	public boolean usesControlVariate() {
+		return (this == CONTROL_VARIATE) || (this == BOTH);
+	}
+
+	/**
+	 * Returns the enum value from the name.
+	 *
+	 * @param name the name to match.
+	 * @return the <code>EVarianceReduction</code> that corresponds to the name.
+	 *         Returns <code>null</code> if no match is found. Note it will check
+	 *         (case insensitive) both the map and the <code>name()</code>.
+	 */
+	public static EVarianceReduction getValue(String name) {
+		if (name == null) {
+			return null;
+		}
+
+		for (EVarianceReduction val : values()) {
+			if (name.equalsIgnoreCase(val.getName()) || name.equalsIgnoreCase(val.name())) {
+				return val;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,34 @@
+package cnuphys.chimera.monteCarlo;
+
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Counts the published samples in each patch.
+ */
+public class HistogramSubscriber extends SampleSubscriber {
+
+	// the counts, guarded by this
+	private final LongCountMap counts = new LongCountMap();
+
+	@Override
+	protected synchronized void accept(SampleBatch batch) {
+		long[] keys = batch.getKeys();
+		for (int i = 0; i < batch.size(); i++) {
+			if (keys[i] != PatchKey.NONE) {
+				counts.increment(keys[i]);
+			}
+		}
+	}
+
+	/**
+	 * Get a copy of the counts so far
+	 *
+	 * @return the number of samples in each patch
+	 */
+	public synchronized LongCountMap getCounts() {
+		LongCountMap copy = new LongCountMap(counts.size());
+		copy.addAll(counts);
+		return copy;
+	}
+}
@@ -0,0 +1,51 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Random;
+
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * A distribution of sample directions for the Monte Carlo engine, e.g. uniform
+ * on the sphere or a tabulated acceptance. Implementations must be thread safe
+ * for concurrent draws with separate random number generators.
+ */
+public interface IDirectionSampler {
+
+	/**
+	 * Draw a (global) direction
+	 *
+	 * @param random   the random number generator
+	 * @param thetaPhi will hold the direction
+	 */
+	public void sample(Random random, ThetaPhi thetaPhi);
+
+	/**
+	 * Check whether the distribution is uniform in solid angle. Only then do
+	 * the sample fractions estimate areas; otherwise they estimate the
+	 * occupancy (probability) of each patch.
+	 *
+	 * @return <code>true</code> if the distribution is uniform
+	 */
+	public default boolean isUniform() {
+		return false;
+	}
+
+	/**
+	 * Get a name for the distribution
+	 *
+	 * @return the name
+	 */
+	public String getName();
+
+	/**
+	 * Get a hash of whatever besides the name determines the draws, e.g. the
+	 * table of a tabulated distribution. Two samplers with the same name and
+	 * fingerprint draw the same directions from the same random numbers. A
+	 * sampler with no parameters returns 0.
+	 *
+	 * @return the fingerprint
+	 */
+	public default long getFingerprint() {
+		return 0;
+	}
+}
@@ -0,0 +1,27 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.EventListener;
+
+/**
+ * Receives the progress of a {@link MonteCarloJob}. The methods are called
+ * through the listener executor of the {@link JobScheduler}; in the
+ * application that is the event dispatch thread, never the worker, so they
+ * may touch Swing components and the worker does not wait for them.
+ */
+public interface IJobListener extends EventListener {
+
+	/**
+	 * Progress was made. Calls are rate limited by time and coalesced, so
+	 * read the current state from the job.
+	 *
+	 * @param job the job
+	 */
+	public void progress(MonteCarloJob job);
+
+	/**
+	 * The job is over: complete, cancelled or failed
+	 *
+	 * @param job the job
+	 */
+	public void finished(MonteCarloJob job);
+}
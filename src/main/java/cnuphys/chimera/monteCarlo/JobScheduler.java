@@ -0,0 +1,381 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.StripedLongCountMap;
+
+/**
+ * Runs Monte Carlo jobs in the background and owns what they write to: the
+ * point store, the (capped) list of points for the view and the patch
+ * histogram. At most one job runs per grid snapshot; a grid change cancels it
+ * with {@link #clear()}. All writes to the shared data go through the
+ * scheduler's lock, so after {@link MonteCarloJob#cancel()} or {@link #clear()}
+ * returns, no job adds anything more.
+ * <p>
+ * Each job has its own daemon thread, so a cancelled job that is still
+ * winding down never delays the next one, and nothing waits on the event
+ * dispatch thread. The {@link IJobListener} calls go through the scheduler's
+ * listener executor, which the application sets to the event dispatch thread.
+ * <p>
+ * The samples of every run are also published, batch by batch, through
+ * {@link #getSamplePublisher()}, for consumers that should work alongside the
+ * run (exporters, a {@link StatisticsSubscriber}) instead of reading the
+ * points afterwards.
+ */
+public class JobScheduler {
+
+	// what the jobs write to
+	private final List<MonteCarloPoint> points;
+	private final PointStore store;
+	private final StripedLongCountMap patchCounts;
+
+	// the active job, if any
+	private MonteCarloJob active;
+
+	// the worker threads
+	private final ExecutorService executor;
+
+	// runs the listener calls
+	private final Executor listenerExecutor;
+
+	// publishes the samples of all the runs
+	private final SamplePublisher publisher = new SamplePublisher();
+
+	// the first random stream chunk no job has drawn from since the data was
+	// cleared; a resumed run leaves only its later points in the store, so the
+	// store size alone would hand out streams the histogram already counts
+	private long nextChunk;
+
+	// the time between checkpoints of new jobs, in milliseconds
+	private volatile long checkpointInterval = Checkpoint.DEFAULT_INTERVAL;
+
+	/**
+	 * Create a scheduler
+	 *
+	 * @param points      the points for the view, at most
+	 *                    {@link MonteCarlo#MAX_VIEW_POINTS} of them
+	 * @param store       the store for all the points
+	 * @param patchCounts the patch histogram
+	 */
+	public JobScheduler(List<MonteCarloPoint> points, PointStore store, StripedLongCountMap patchCounts) {
+		this(points, store, patchCounts, Runnable::run);
+	}
+
+	/**
+	 * Create a scheduler whose listener calls go through an executor, e.g.
+	 * <code>SwingUtilities::invokeLater</code> for listeners that touch Swing
+	 * components
+	 *
+	 * @param points           the points for the view, at most
+	 *                         {@link MonteCarlo#MAX_VIEW_POINTS} of them
+	 * @param store            the store for all the points
+	 * @param patchCounts      the patch histogram
+	 * @param listenerExecutor runs the {@link IJobListener} calls; it must not
+	 *                         block for long, since the worker calls it
+	 */
+	public JobScheduler(List<MonteCarloPoint> points, PointStore store, StripedLongCountMap patchCounts,
+			Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+		this.points = points;
+		this.store = store;
+		this.patchCounts = patchCounts;
+
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "monte-carlo-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Start a job
+	 *
+	 * @param grid      the grid; the job classifies against a snapshot of it
+	 * @param numPoints the number of points
+	 * @param clear     if true, clear the existing points first
+	 * @param mode      the variance reduction mode; only the antithetic part
+	 *                  affects the generated points
+	 * @param sampler   the distribution of directions
+	 * @param seed      the master seed, recorded in the point store if the run
+	 *                  starts it; a run added to earlier points must use the
+	 *                  seed of the store
+	 * @param listener  notified of progress on the event dispatch thread; may be
+	 *                  <code>null</code>
+	 * @return the job, or <code>null</code> if a job is already running
+	 * @throws IllegalArgumentException if the run is added to points that were
+	 *                                  drawn with another seed, or the grid is
+	 *                                  too large for patch keys
+	 */
+	public MonteCarloJob submit(ChimeraGrid grid, long numPoints, boolean clear, EVarianceReduction mode,
+			IDirectionSampler sampler, long seed, IJobListener listener) {
+		return submit(grid, numPoints, clear, mode, sampler, seed, null, listener);
+	}
+
+	/**
+	 * Start a job that writes checkpoints
+	 *
+	 * @param grid       the grid; the job classifies against a snapshot of it
+	 * @param numPoints  the number of points
+	 * @param clear      if true, clear the existing points first
+	 * @param mode       the variance reduction mode; only the antithetic part
+	 *                   affects the generated points
+	 * @param sampler    the distribution of directions
+	 * @param seed       the master seed, recorded in the point store if the run
+	 *                   starts it; a run added to earlier points must use the
+	 *                   seed of the store, since it continues the streams of
+	 *                   that seed where they stopped
+	 * @param checkpoint the checkpoint file, or <code>null</code> for none
+	 * @param listener   notified of progress on the event dispatch thread; may be
+	 *                   <code>null</code>
+	 * @return the job, or <code>null</code> if a job is already running
+	 * @throws IllegalArgumentException if the run is added to points that were
+	 *                                  drawn with another seed, the grid is too
+	 *                                  large for patch keys, or a checkpoint is
+	 *                                  asked for on a grid with curvilinear
+	 *                                  components, which cannot be saved
+	 * @see #resume(Checkpoint, IDirectionSampler, Path, IJobListener)
+	 */
+	public synchronized MonteCarloJob submit(ChimeraGrid grid, long numPoints, boolean clear,
+			EVarianceReduction mode, IDirectionSampler sampler, long seed, Path checkpoint, IJobListener listener) {
+		if (isBusy()) {
+			return null;
+		}
+		PatchKey.checkLimits(grid);
+		// GridIO does not write curvilinear components, so no checkpoint could be written
+		if ((checkpoint != null) && (grid.getNumCurvilinearGrids() > 0)) {
+			throw new IllegalArgumentException("Grids with curvilinear components cannot be checkpointed.");
+		}
+		// the stored points record one seed; the streams of another seed from
+		// the next unused chunk on would be neither run
+		Long storeSeed = store.getSeed();
+		if (!clear && (store.size() > 0) && (storeSeed != null) && (storeSeed != seed)) {
+			throw new IllegalArgumentException("The existing points were drawn with seed " + storeSeed
+					+ "; add to them with that seed or clear them first.");
+		}
+		if (clear) {
+			clearData();
+		}
+		if (store.size() == 0) {
+			store.setSeed(seed);
+		}
+
+		// a run added to earlier points continues with the next unused streams
+		long firstChunk = Math.max(nextChunk, RandomStreams.numChunks(store.size()));
+		nextChunk = firstChunk + RandomStreams.numChunks(Math.max(0, numPoints));
+		LongCountMap base = (checkpoint == null) ? null : patchCounts.snapshot();
+		active = new MonteCarloJob(this, grid.snapshot(), Math.max(0, numPoints), mode, sampler,
+				new RandomStreams(seed), firstChunk, 0, base, checkpoint, checkpointInterval, listener);
+		executor.execute(active);
+		return active;
+	}
+
+	/**
+	 * Resume an interrupted run from its checkpoint. The existing points are
+	 * cleared and the histogram is restored from the checkpoint; the point
+	 * store and the view get only the points drawn from now on. When the job
+	 * is done the histogram is identical to that of the uninterrupted run, and
+	 * a run added afterwards starts after all the streams of the resumed run.
+	 *
+	 * @param checkpoint     the checkpoint
+	 * @param sampler        the distribution of directions, which must be the
+	 *                       one the run was started with
+	 * @param checkpointPath where the resumed job writes its checkpoints, or
+	 *                       <code>null</code> for none
+	 * @param listener       notified of progress on the event dispatch thread;
+	 *                       may be <code>null</code>
+	 * @return the job, or <code>null</code> if a job is already running
+	 * @throws IllegalArgumentException if the sampler is not the one of the run,
+	 *                                  or the grid is too large for patch keys
+	 */
+	public synchronized MonteCarloJob resume(Checkpoint checkpoint, IDirectionSampler sampler, Path checkpointPath,
+			IJobListener listener) {
+		if (!checkpoint.matches(sampler)) {
+			throw new IllegalArgumentException("The run used the sampler \"" + checkpoint.getSamplerName()
+					+ "\", not \"" + sampler.getName() + "\" or one with other parameters.");
+		}
+		if (isBusy()) {
+			return null;
+		}
+		PatchKey.checkLimits(checkpoint.getGrid());
+		clearData();
+		patchCounts.addAll(checkpoint.getCounts());
+		store.setSeed(checkpoint.getSeed());
+		nextChunk = checkpoint.getFirstChunk() + RandomStreams.numChunks(checkpoint.getNumPoints());
+
+		LongCountMap base = null;
+		if (checkpointPath != null) {
+			base = new LongCountMap(checkpoint.getCounts().size());
+			base.addAll(checkpoint.getCounts());
+		}
+		active = new MonteCarloJob(this, checkpoint.getGrid(), checkpoint.getNumPoints(), checkpoint.getMode(),
+				sampler, new RandomStreams(checkpoint.getSeed()), checkpoint.getFirstChunk(),
+				checkpoint.getChunksDone(), base, checkpointPath, checkpointInterval, listener);
+		executor.execute(active);
+		return active;
+	}
+
+	// is a job running (and not cancelled)
+	private boolean isBusy() {
+		return (active != null) && !active.isDone() && !active.isCancelled();
+	}
+
+	/**
+	 * Get the running job
+	 *
+	 * @return the job, or <code>null</code> if none is running
+	 */
+	public synchronized MonteCarloJob getActiveJob() {
+		return isBusy() ? active : null;
+	}
+
+	/**
+	 * Cancel the running job, if any, and remove all the points, e.g. because
+	 * the grid changed
+	 */
+	public synchronized void clear() {
+		if (active != null) {
+			active.setCancelled();
+		}
+		clearData();
+	}
+
+	// remove the points and the counts
+	private void clearData() {
+		points.clear();
+		store.clear();
+		patchCounts.clear();
+		nextChunk = 0;
+	}
+
+	// cancel a job
+	synchronized void cancel(MonteCarloJob job) {
+		job.setCancelled();
+	}
+
+	/**
+	 * Set the time between the checkpoints of jobs started from now on. A job
+	 * also writes a checkpoint when it stops.
+	 *
+	 * @param interval the interval in milliseconds
+	 */
+	public void setCheckpointInterval(long interval) {
+		checkpointInterval = Math.max(0, interval);
+	}
+
+	// runs the listener calls of the jobs
+	Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Get the publisher of the samples. Subscribers get the batches of every run
+	 * that starts after they subscribe; the last batch of a run is marked
+	 * {@link SampleBatch#isLast()}.
+	 *
+	 * @return the sample publisher
+	 */
+	public SamplePublisher getSamplePublisher() {
+		return publisher;
+	}
+
+	// add a finished chunk of a job, unless it was cancelled; returns the store
+	// index of its first point, or -1 if the job was cancelled
+	synchronized long publish(MonteCarloJob job, List<MonteCarloPoint> chunk, LongCountMap counts) {
+		if (job.isCancelled()) {
+			return -1;
+		}
+		long firstIndex = store.size();
+		for (MonteCarloPoint point : chunk) {
+			store.append(point);
+		}
+		int room = MonteCarlo.MAX_VIEW_POINTS - points.size();
+		if (room > 0) {
+			points.addAll((chunk.size() <= room) ? chunk : new ArrayList<>(chunk.subList(0, room)));
+		}
+		patchCounts.addAll(counts);
+		return firstIndex;
+	}
+
+	// the worker of a job stopped
+	synchronized void finished(MonteCarloJob job) {
+		if (active == job) {
+			active = null;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		ChimeraGrid grid = new ChimeraGrid(new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0),
+				new SphericalGrid(49, 33, 1, 0.3, 0.2));
+		List<MonteCarloPoint> points = new ArrayList<>();
+		PointStore store = PointStore.inMemory();
+		StripedLongCountMap counts = new StripedLongCountMap();
+		JobScheduler scheduler = new JobScheduler(points, store, counts);
+
+		AtomicInteger progressCalls = new AtomicInteger();
+		IJobListener listener = new IJobListener() {
+			@Override
+			public void progress(MonteCarloJob job) {
+				progressCalls.incrementAndGet();
+			}
+
+			@Override
+			public void finished(MonteCarloJob job) {
+				System.out.println("finished: " + job);
+			}
+		};
+
+		// a tiny run (fewer points than progress steps)
+		MonteCarloJob job = scheduler.submit(grid, 37, true, EVarianceReduction.NONE,
+				UniformDirectionSampler.INSTANCE, 1, listener);
+		while (!job.isDone()) {
+			Thread.sleep(1);
+		}
+		System.out.printf("tiny run: %d points, error %s%n", store.size(), job.getError());
+
+		// adding to the tiny run with another seed is refused
+		try {
+			scheduler.submit(grid, 10, false, EVarianceReduction.NONE, UniformDirectionSampler.INSTANCE, 9, listener);
+			System.out.println("append with another seed accepted");
+		} catch (IllegalArgumentException e) {
+			System.out.println("append with another seed refused: " + e.getMessage());
+		}
+
+		// a long run, refused a second time, then cancelled
+		job = scheduler.submit(grid, 50000000, true, EVarianceReduction.NONE, UniformDirectionSampler.INSTANCE, 2,
+				listener);
+		System.out.println("second submit while running refused: "
+				+ (scheduler.submit(grid, 10, false, EVarianceReduction.NONE, UniformDirectionSampler.INSTANCE, 3,
+						listener) == null));
+		Thread.sleep(1500);
+		long start = System.nanoTime();
+		job.cancel();
+		long atCancel = store.size();
+		while (!job.isDone()) {
+			Thread.sleep(1);
+		}
+		System.out.printf("cancelled at %d points, worker stopped after %.1f ms, %d points after stop, %d progress calls%n",
+				atCancel, (System.nanoTime() - start) / 1.0e6, store.size(), progressCalls.get());
+
+		// the grid changes during a run
+		job = scheduler.submit(grid, 50000000, true, EVarianceReduction.NONE, UniformDirectionSampler.INSTANCE, 4,
+				listener);
+		Thread.sleep(500);
+		scheduler.clear();
+		Thread.sleep(200);
+		System.out.printf("after clear: %d points, %d patches, job cancelled %b%n", store.size(), counts.size(),
+				job.isCancelled());
+		Thread.sleep(100);
+	}
+}
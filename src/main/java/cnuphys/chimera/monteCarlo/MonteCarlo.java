@@ -1,79 +1,432 @@
 package cnuphys.chimera.monteCarlo;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.swing.JOptionPane;
-import javax.swing.JProgressBar;
-import javax.swing.SwingWorker;
-
-import cnuphys.chimera.frame.Chimera;
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
 import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.grid.Symmetry;
+import cnuphys.chimera.motion.MovingBody;
+import cnuphys.chimera.motion.Pose;
+import cnuphys.chimera.remap.PatchAreas;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.Point3D;
+import cnuphys.chimera.util.ThetaPhi;
 
+/**
+ * The Monte Carlo engine. Everything here takes an explicit grid (a snapshot
+ * for background work) and needs neither the application frame nor a display,
+ * so batch jobs such as the {@link BatchRunner} can use it headless. The
+ * interactive runs are started by the {@link MonteCarloDialog} through the
+ * application's {@link JobScheduler}.
+ */
 public class MonteCarlo {
 
+	/** The most points kept on the heap for the view; the point store has them all */
+	public static final int MAX_VIEW_POINTS = 20000000;
+
+	/**
+	 * Generate Monte Carlo points on a grid
+	 *
+	 * @param grid      the grid
+	 * @param numPoints the number of points
+	 * @param mode      the variance reduction mode; only the antithetic part
+	 *                  affects the generated points
+	 * @param random    the random number generator
+	 * @return the points
+	 */
+	public static List<MonteCarloPoint> generate(ChimeraGrid grid, int numPoints, EVarianceReduction mode,
+			Random random) {
+		return generate(grid, numPoints, mode, UniformDirectionSampler.INSTANCE, random);
+	}
+
+	/**
+	 * Generate Monte Carlo points on a grid with directions from a sampling
+	 * distribution
+	 *
+	 * @param grid      the grid
+	 * @param numPoints the number of points
+	 * @param mode      the variance reduction mode; only the antithetic part
+	 *                  affects the generated points
+	 * @param sampler   the distribution of directions
+	 * @param random    the random number generator
+	 * @return the points
+	 * @throws IllegalArgumentException for antithetic pairs with a non-uniform
+	 *                                  sampler
+	 */
+	public static List<MonteCarloPoint> generate(ChimeraGrid grid, int numPoints, EVarianceReduction mode,
+			IDirectionSampler sampler, Random random) {
+		if (mode.isAntithetic() && !sampler.isUniform()) {
+			throw new IllegalArgumentException("Antithetic pairs need a uniform direction sampler.");
+		}
+		List<MonteCarloPoint> points = new ArrayList<>(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (mode.isAntithetic() && (i % 2 == 1)) {
+				points.add(points.get(i - 1).antithetic(grid));
+			} else {
+				points.add(new MonteCarloPoint(grid, random, sampler));
+			}
+		}
+		return points;
+	}
+
 	/**
-	 * Run a Monte Carlo simulation with the given number of points
+	 * Get the occupancy of each patch, the fraction of the points that landed in
+	 * it. For uniform directions this is the patch area over the sampled area;
+	 * for other distributions it is the probability of the patch.
 	 *
-	 * @param numPoints the number of points to generate
-	 * @param clear     if true, clear the existing points
-	 * @param progressBar the progress bar to update
+	 * @param points the points
+	 * @return the occupancy of each patch
 	 */
+	public static HashMap<Fiveplet, Double> occupancy(List<MonteCarloPoint> points) {
+		HashMap<Fiveplet, Double> result = new HashMap<>();
+		if (points.isEmpty()) {
+			return result;
+		}
+		double weight = 1.0 / points.size();
+		for (MonteCarloPoint point : points) {
+			if (point.fiveplet != null) {
+				result.merge(point.fiveplet, weight, Double::sum);
+			}
+		}
+		return result;
+	}
 
-	public static void runMonteCarlo(int numPoints, boolean clear, JProgressBar progressBar) {
-		// Disable the button while running
-		progressBar.setValue(0);
-		List<MonteCarloPoint> points = Chimera.getInstance().getMonteCarloPoints();
-		HashSet<Fiveplet> seenTuples = Chimera.getInstance().getMonteCarloSeenSet();
-		if (clear) {
-			points.clear();
+	/**
+	 * Estimate the patch areas from Monte Carlo points
+	 *
+	 * @param grid   the grid the points were generated on
+	 * @param points the points
+	 * @param mode   the variance reduction mode; only the control variate part
+	 *               affects the estimate
+	 * @return the patch areas
+	 */
+	public static PatchAreas estimate(ChimeraGrid grid, List<MonteCarloPoint> points, EVarianceReduction mode) {
+		if (mode.usesControlVariate()) {
+			return PatchAreas.fromControlVariate(grid, points);
 		}
+		HashMap<Fiveplet, Integer> counts = new HashMap<>();
+		for (MonteCarloPoint point : points) {
+			if (point.fiveplet != null) {
+				counts.merge(point.fiveplet, 1, Integer::sum);
+			}
+		}
+		double sampledArea = 0;
+		for (int i = 0; i < grid.getNumSphericalGrids(); i++) {
+			sampledArea += grid.getSphericalGrid(i).getArea();
+		}
+		return PatchAreas.fromSampledArea(counts, points.size(), sampledArea);
+	}
 
-		// SwingWorker to handle background processing
-		SwingWorker<List<MonteCarloPoint>, Integer> worker = new SwingWorker<>() {
-			@Override
-			protected List<MonteCarloPoint> doInBackground() {
+	/**
+	 * Count the patches of reproducible Monte Carlo points with several threads.
+	 * The points of each {@link RandomStreams} chunk are drawn and counted by
+	 * one thread, and counts add the same way in any order, so the histogram is
+	 * bit-identical for any number of threads.
+	 *
+	 * @param grid       the grid
+	 * @param numPoints  the number of points
+	 * @param mode       the variance reduction mode; only the antithetic part
+	 *                   affects the generated points
+	 * @param sampler    the distribution of directions
+	 * @param streams    the random streams
+	 * @param numThreads the number of threads
+	 * @return the number of points in each patch, without the hidden points
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static LongCountMap countPatches(ChimeraGrid grid, long numPoints, EVarianceReduction mode,
+			IDirectionSampler sampler, RandomStreams streams, int numThreads) throws InterruptedException {
+		return countPatches(grid, numPoints, mode, sampler, streams, 0, RandomStreams.numChunks(numPoints),
+				numThreads);
+	}
 
-				for (int i = 0; i < numPoints; i++) {
-					MonteCarloPoint point = new MonteCarloPoint();
-					points.add(point);
+	/**
+	 * Count the patches of some {@link RandomStreams} chunks of a reproducible
+	 * Monte Carlo run, e.g. the share of one process of a sharded run. The
+	 * histograms of disjoint chunk ranges add up to that of the whole run.
+	 *
+	 * @param grid       the grid
+	 * @param numPoints  the number of points of the whole run
+	 * @param mode       the variance reduction mode; only the antithetic part
+	 *                   affects the generated points
+	 * @param sampler    the distribution of directions
+	 * @param streams    the random streams
+	 * @param fromChunk  the first chunk to count
+	 * @param toChunk    one past the last chunk to count
+	 * @param numThreads the number of threads
+	 * @return the number of points in each patch, without the hidden points
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static LongCountMap countPatches(ChimeraGrid grid, long numPoints, EVarianceReduction mode,
+			IDirectionSampler sampler, RandomStreams streams, long fromChunk, long toChunk, int numThreads)
+			throws InterruptedException {
+		return countPatches(grid, numPoints, mode, sampler, streams, fromChunk, toChunk, numThreads, null);
+	}
 
-                    // Add the tuple to the seen set
-					seenTuples.add(point.fiveplet);
+	/**
+	 * Count the patches of some {@link RandomStreams} chunks of a reproducible
+	 * Monte Carlo run, and also the points in each spherical cell, hidden ones
+	 * included, for the cell area control variate (see
+	 * {@link #controlVariateArea(ChimeraGrid, long, long, LongCountMap)}).
+	 *
+	 * @param grid       the grid
+	 * @param numPoints  the number of points of the whole run
+	 * @param mode       the variance reduction mode; only the antithetic part
+	 *                   affects the generated points
+	 * @param sampler    the distribution of directions
+	 * @param streams    the random streams
+	 * @param fromChunk  the first chunk to count
+	 * @param toChunk    one past the last chunk to count
+	 * @param numThreads the number of threads
+	 * @param cellCounts if not <code>null</code>, the number of points in each
+	 *                   spherical cell is added to it, keyed by
+	 *                   {@link #cellKey(long)}
+	 * @return the number of points in each patch, without the hidden points
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static LongCountMap countPatches(ChimeraGrid grid, long numPoints, EVarianceReduction mode,
+			IDirectionSampler sampler, RandomStreams streams, long fromChunk, long toChunk, int numThreads,
+			LongCountMap cellCounts) throws InterruptedException {
+		if (mode.isAntithetic() && !sampler.isUniform()) {
+			throw new IllegalArgumentException("Antithetic pairs need a uniform direction sampler.");
+		}
+		PatchKey.checkLimits(grid);
+		if (grid.getNumSphericalGrids() > 1) {
+			grid.getBVH(); // build it before the threads share it
+		}
 
-					// Publish progress
-					if (i % (numPoints / 100) == 0) { // Update progress every 1%
-						publish((i * 100) / numPoints);
+		long numChunks = Math.min(toChunk, RandomStreams.numChunks(numPoints));
+		AtomicLong nextChunk = new AtomicLong(Math.max(0, fromChunk));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<LongCountMap[]>> futures = new ArrayList<>();
+		for (int t = 0; t < Math.max(1, numThreads); t++) {
+			futures.add(executor.submit(() -> {
+				LongCountMap counts = new LongCountMap();
+				LongCountMap cells = (cellCounts == null) ? null : new LongCountMap();
+				// the draws of MonteCarloPoint without the objects
+				ThetaPhi thetaPhi = new ThetaPhi();
+				Point3D.Double dir = new Point3D.Double();
+				double[] local = new double[2];
+				int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+				int body = 0;
+				long chunk;
+				while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+					Random random = streams.stream(chunk);
+					long start = chunk * RandomStreams.CHUNK_SIZE;
+					long end = Math.min(numPoints, start + RandomStreams.CHUNK_SIZE);
+					for (long i = start; i < end; i++) {
+						// the partner of a pair is on the body of the previous point
+						if (mode.isAntithetic() && (i % 2 == 1)) {
+							MonteCarloPoint.antithetic(grid.getSphericalGrid(body), thetaPhi, dir, local);
+						} else {
+							body = (grid.getNumSphericalGrids() > 1) ? grid.pickBody(random.nextDouble()) : 0;
+							sampler.sample(random, thetaPhi);
+						}
+						long key = grid.getPatchKey(body, thetaPhi.getTheta(), thetaPhi.getPhi(), work);
+						if (!PatchKey.isHidden(key)) {
+							counts.increment(key);
+							if (cells != null) {
+								cells.increment(cellKey(key));
+							}
+						} else if (cells != null) {
+							grid.getSphericalGrid(body).getIndices(thetaPhi, work);
+							if ((work[0] >= 0) && (work[1] >= 0)) {
+								cells.increment(PatchKey.pack(0, 0, 0, 0, work[0], work[1], body));
+							}
+						}
 					}
 				}
-				return points;
-			}
+				return new LongCountMap[] { counts, cells };
+			}));
+		}
+		executor.shutdown();
 
-			@Override
-			protected void process(List<Integer> chunks) {
-				// Update progress bar on EDT
-				for (int progress : chunks) {
-					progressBar.setValue(progress);
+		LongCountMap total = new LongCountMap();
+		try {
+			for (Future<LongCountMap[]> future : futures) {
+				LongCountMap[] result = future.get();
+				total.addAll(result[0]);
+				if (cellCounts != null) {
+					cellCounts.addAll(result[1]);
 				}
 			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Monte Carlo worker failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return total;
+	}
+
+	/**
+	 * Count the patches of a reproducible Monte Carlo run that samples only the
+	 * fundamental domain of a {@link Symmetry} of the grid, and unfold the counts
+	 * onto the whole sphere. Each point stands for as many points as the order
+	 * of the group, so for the default grid (order 8) the run does an eighth of
+	 * the work of an unfolded run with the same resolution. The directions of
+	 * the sampler are folded into the domain, which is only valid for a
+	 * distribution with the symmetries of the grid, so the sampler must be
+	 * uniform.
+	 *
+	 * @param grid       the grid, with a single spherical component
+	 * @param numPoints  the number of points of the whole run, all drawn in the
+	 *                   fundamental domain
+	 * @param symmetry   the symmetry group, e.g. from
+	 *                   {@link Symmetry#detect(ChimeraGrid)}
+	 * @param sampler    the distribution of directions
+	 * @param streams    the random streams
+	 * @param fromChunk  the first chunk to count
+	 * @param toChunk    one past the last chunk to count
+	 * @param numThreads the number of threads
+	 * @param cellCounts if not <code>null</code>, the unfolded number of points
+	 *                   in each spherical cell is added to it, keyed by
+	 *                   {@link #cellKey(long)}
+	 * @return the unfolded number of points in each patch, without the hidden
+	 *         points, totaling up to the order of the group times the number of
+	 *         points counted
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static LongCountMap countPatches(ChimeraGrid grid, long numPoints, Symmetry symmetry,
+			IDirectionSampler sampler, RandomStreams streams, long fromChunk, long toChunk, int numThreads,
+			LongCountMap cellCounts) throws InterruptedException {
+		if (!sampler.isUniform()) {
+			throw new IllegalArgumentException("Sampling a fundamental domain needs a uniform direction sampler.");
+		}
+		if (grid.getNumSphericalGrids() > 1) {
+			throw new IllegalArgumentException("Sampling a fundamental domain needs a single spherical component.");
+		}
+		PatchKey.checkLimits(grid);
+		SphericalGrid sgrid = grid.getSphericalGrid();
+
+		long numChunks = Math.min(toChunk, RandomStreams.numChunks(numPoints));
+		AtomicLong nextChunk = new AtomicLong(Math.max(0, fromChunk));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<LongCountMap[]>> futures = new ArrayList<>();
+		for (int t = 0; t < Math.max(1, numThreads); t++) {
+			futures.add(executor.submit(() -> {
+				LongCountMap counts = new LongCountMap();
+				LongCountMap cells = (cellCounts == null) ? null : new LongCountMap();
+				ThetaPhi thetaPhi = new ThetaPhi();
+				double[] dir = new double[3];
+				int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+				long chunk;
+				while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+					Random random = streams.stream(chunk);
+					long start = chunk * RandomStreams.CHUNK_SIZE;
+					long end = Math.min(numPoints, start + RandomStreams.CHUNK_SIZE);
+					for (long i = start; i < end; i++) {
+						sampler.sample(random, thetaPhi);
+						double sinTheta = Math.sin(thetaPhi.getTheta());
+						dir[0] = sinTheta * Math.cos(thetaPhi.getPhi());
+						dir[1] = sinTheta * Math.sin(thetaPhi.getPhi());
+						dir[2] = Math.cos(thetaPhi.getTheta());
+						symmetry.fold(dir);
+
+						long key = grid.getPatchKey(0, dir[0], dir[1], dir[2], work);
+						if (!PatchKey.isHidden(key)) {
+							counts.increment(key);
+							if (cells != null) {
+								cells.increment(cellKey(key));
+							}
+						} else if (cells != null) {
+							sgrid.getDirectionIndices(dir[0], dir[1], dir[2], work);
+							if ((work[0] >= 0) && (work[1] >= 0)) {
+								cells.increment(PatchKey.pack(0, 0, 0, 0, work[0], work[1], 0));
+							}
+						}
+					}
+				}
+				return new LongCountMap[] { counts, cells };
+			}));
+		}
+		executor.shutdown();
 
-			@Override
-			protected void done() {
-					try {
-					List<MonteCarloPoint> points = get(); // Get the result
-					JOptionPane.showMessageDialog(Chimera.getInstance(), "Simulation complete with " + points.size() + " points.",
-							"Done", JOptionPane.INFORMATION_MESSAGE);
-					Chimera.refresh();
-				} catch (InterruptedException | ExecutionException e) {
-					JOptionPane.showMessageDialog(Chimera.getInstance(), "Error: " + e.getMessage(), "Error",
-							JOptionPane.ERROR_MESSAGE);
+		LongCountMap total = new LongCountMap();
+		try {
+			for (Future<LongCountMap[]> future : futures) {
+				LongCountMap[] result = future.get();
+				total.addAll(result[0]);
+				if (cellCounts != null) {
+					// the mirror image of a cell key keeps zero nr but mirrors the
+					// Cartesian indices, which cellKey zeroes again
+					symmetry.unfold(result[1]).forEach((key, count) -> cellCounts.add(cellKey(key), count));
 				}
 			}
-		};
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Monte Carlo worker failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return symmetry.unfold(total);
+	}
+
+	/**
+	 * Get the key of the spherical cell of a patch: the patch key with the
+	 * Cartesian and radial indices zeroed
+	 *
+	 * @param patchKey the {@link PatchKey} of a patch
+	 * @return the key of its cell on its body
+	 */
+	public static long cellKey(long patchKey) {
+		return PatchKey.pack(0, 0, 0, 0, PatchKey.ntheta(patchKey), PatchKey.nphi(patchKey),
+				PatchKey.nbody(patchKey));
+	}
+
+	/**
+	 * Estimate the area of a patch with the cell area control variate: the exact
+	 * area of its spherical cell times the fraction of the cell's points that
+	 * landed in the patch
+	 *
+	 * @param grid       the grid of the run
+	 * @param patchKey   the {@link PatchKey} of the patch
+	 * @param count      the number of points in the patch
+	 * @param cellCounts the number of points in each cell, hidden ones included,
+	 *                   keyed by {@link #cellKey(long)}
+	 * @return the estimated area
+	 */
+	public static double controlVariateArea(ChimeraGrid grid, long patchKey, long count, LongCountMap cellCounts) {
+		long inCell = cellCounts.get(cellKey(patchKey));
+		if (inCell == 0) {
+			return 0;
+		}
+		SphericalGrid sgrid = grid.getSphericalGrid(PatchKey.nbody(patchKey));
+		return sgrid.getCellArea(PatchKey.ntheta(patchKey), PatchKey.nphi(patchKey)) * count / inCell;
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, new SphericalGrid(49, 33, 1, 0.3, 0.2));
 
-		// Start the SwingWorker
-		worker.execute();
+		// reference from the deterministic cell sampling of a moving body at rest
+		MovingBody exact = new MovingBody(grid, 64);
+		exact.step(Pose.of(grid));
+		PatchAreas reference = exact.getPatchAreas();
+
+		int numPoints = 400000;
+		int numRuns = 10;
+		for (EVarianceReduction mode : EVarianceReduction.values()) {
+			double sum = 0;
+			for (int run = 0; run < numRuns; run++) {
+				PatchAreas areas = estimate(grid, generate(grid, numPoints, mode, new Random(run)), mode);
+				for (Map.Entry<Fiveplet, Double> entry : reference.getAreas().entrySet()) {
+					double diff = areas.getArea(entry.getKey()) - entry.getValue();
+					sum += diff * diff;
+				}
+			}
+			double mse = sum / (numRuns * reference.size());
+			System.out.printf("%-30s rms patch area error %.3e%n", mode.getName(), Math.sqrt(mse));
+		}
 	}
 
 }
@@ -1,20 +1,27 @@
 package cnuphys.chimera.monteCarlo;
 
 import java.awt.Frame;
+import java.io.IOException;
+import java.nio.file.Path;
 
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
 
+import cnuphys.bCNU.component.EnumComboBox;
 import cnuphys.bCNU.dialog.SimpleDialog;
 import cnuphys.chimera.dialog.LabeledTextField;
 import cnuphys.chimera.dialog.VerticalPanel;
+import cnuphys.chimera.frame.Chimera;
 import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
 
 public class MonteCarloDialog extends SimpleDialog {
 
 	private static final String RUN = "Run";
+	private static final String RESUME = "Resume";
 
     //the overall grid
     private ChimeraGrid grid;
@@ -25,12 +32,24 @@ public class MonteCarloDialog extends SimpleDialog {
     //the number of points to generate
     private LabeledTextField _nPointsField;
 
+    //the variance reduction mode
+    private EnumComboBox _varianceReductionCombo;
+
+    //the master random seed
+    private LabeledTextField _seedField;
+
+    //write checkpoints so the run can be resumed
+    private JCheckBox _checkpointCheckBox;
+
     //the progress bar
     private JProgressBar _progressBar;
 
+    //the last run started from this dialog
+    private MonteCarloJob _job;
+
 
     public MonteCarloDialog(Frame owner, ChimeraGrid grid) {
-        super("Monte Carlo", false, RUN, "Cancel"); // Modeless dialog
+        super("Monte Carlo", false, RUN, RESUME, "Cancel"); // Modeless dialog
         this.grid = grid;
 
         pack();
@@ -52,6 +71,20 @@ public class MonteCarloDialog extends SimpleDialog {
     	_nPointsField = new LabeledTextField("Number of points", 2000000, null, true, 6, 0, 0);
     	vp.addItem(_nPointsField);
 
+    	//the variance reduction mode
+    	vp.addItem(new JLabel("Variance reduction"));
+    	_varianceReductionCombo = new EnumComboBox(EVarianceReduction.names, EVarianceReduction.NONE);
+    	vp.addItem(_varianceReductionCombo);
+
+    	//the master seed, so a run can be repeated
+    	_seedField = new LabeledTextField("Random seed", RandomStreams.newSeed(), null, true, 12, 0, 0);
+    	vp.addItem(_seedField);
+
+    	//checkpoints, for resuming a long run
+    	_checkpointCheckBox = new JCheckBox("Write checkpoints");
+    	_checkpointCheckBox.setToolTipText("Checkpoint to " + Checkpoint.getDefaultPath());
+    	vp.addItem(_checkpointCheckBox);
+
 		_progressBar = new JProgressBar(0, 100);
 		_progressBar.setStringPainted(true);
 		vp.addItem(_progressBar);
@@ -63,15 +96,146 @@ public class MonteCarloDialog extends SimpleDialog {
 	public void handleCommand(String command) {
 		reason = command;
 		if (command.equals(RUN)) {
-	    	MonteCarlo.runMonteCarlo(getNPoints(), clearExistingData(), _progressBar);
+			MonteCarloJob job = runMonteCarlo(getNPoints(), clearExistingData(), getVarianceReduction(), getSeed(),
+					writeCheckpoints() ? Checkpoint.getDefaultPath() : null);
+			if (job != null) {
+				_job = job;
+			}
+		}
+		else if (command.equals(RESUME)) {
+			MonteCarloJob job = resumeMonteCarlo(Checkpoint.getDefaultPath());
+			if (job != null) {
+				_job = job;
+			}
 		}
 		else {
 			System.err.println("Hit Cancel");
+			// stop the run, not just the dialog
+			if (_job != null) {
+				_job.cancel();
+				_job = null;
+			}
 			setVisible(false);
 		}
 	}
 
 
+	/**
+	 * Start a Monte Carlo run in the background on the application's grid. Only
+	 * one run can be active; it is cancelled by {@link MonteCarloJob#cancel()}
+	 * or by a grid change.
+	 *
+	 * @param numPoints  the number of points to generate
+	 * @param clear      if true, clear the existing points
+	 * @param mode       the variance reduction mode; only the antithetic part
+	 *                   affects the generated points
+	 * @param seed       the master seed. A run into an empty store with the same
+	 *                   seed, grid and settings gives the same points. The seed
+	 *                   is recorded in the point store, and a run that adds
+	 *                   to its points must use it.
+	 * @param checkpoint the checkpoint file, or <code>null</code> for none
+	 * @return the job, or <code>null</code> if a run is already active, would
+	 *         add to points drawn with another seed or the grid is too large
+	 *         for patch keys
+	 */
+	public MonteCarloJob runMonteCarlo(long numPoints, boolean clear, EVarianceReduction mode, long seed,
+			Path checkpoint) {
+		_progressBar.setValue(0);
+		Chimera chimera = Chimera.getInstance();
+		MonteCarloJob job;
+		try {
+			job = chimera.getJobScheduler().submit(chimera.getChimeraGrid(), numPoints, clear, mode,
+					chimera.getDirectionSampler(), seed, checkpoint, createListener(seed));
+		} catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(chimera, e.getMessage(), "Cannot Run", JOptionPane.WARNING_MESSAGE);
+			return null;
+		}
+		if (job == null) {
+			JOptionPane.showMessageDialog(chimera, "A Monte Carlo run is already active.", "Busy",
+					JOptionPane.WARNING_MESSAGE);
+		}
+		return job;
+	}
+
+	/**
+	 * Resume an interrupted Monte Carlo run from its checkpoint. The current
+	 * grid must be the grid of the run and the direction sampler the one it
+	 * used. The existing points are cleared and the histogram is restored; the
+	 * resumed job keeps writing to the same checkpoint.
+	 *
+	 * @param checkpoint the checkpoint file
+	 * @return the job, or <code>null</code> if the run cannot be resumed
+	 */
+	public MonteCarloJob resumeMonteCarlo(Path checkpoint) {
+		Chimera chimera = Chimera.getInstance();
+		Checkpoint cp;
+		try {
+			cp = Checkpoint.read(checkpoint);
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(chimera, "Could not read the checkpoint: " + e.getMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+			return null;
+		}
+
+		IDirectionSampler sampler = chimera.getDirectionSampler();
+		String problem = null;
+		if (!GridIO.sameDefinition(cp.getGrid(), chimera.getChimeraGrid())) {
+			problem = "The checkpoint was written for a different grid.";
+		} else if (!cp.matches(sampler)) {
+			problem = "The checkpoint was written with the direction sampler \"" + cp.getSamplerName()
+					+ "\" and its parameters.";
+		} else if (cp.isComplete()) {
+			problem = "The checkpointed run of " + cp.getNumPoints() + " points is already complete.";
+		}
+		if (problem != null) {
+			JOptionPane.showMessageDialog(chimera, problem, "Cannot Resume", JOptionPane.WARNING_MESSAGE);
+			return null;
+		}
+
+		_progressBar.setValue(0);
+		MonteCarloJob job;
+		try {
+			job = chimera.getJobScheduler().resume(cp, sampler, checkpoint, createListener(cp.getSeed()));
+		} catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(chimera, e.getMessage(), "Cannot Resume", JOptionPane.WARNING_MESSAGE);
+			return null;
+		}
+		if (job == null) {
+			JOptionPane.showMessageDialog(chimera, "A Monte Carlo run is already active.", "Busy",
+					JOptionPane.WARNING_MESSAGE);
+		}
+		return job;
+	}
+
+	// updates the progress bar and reports the end of a run
+	private IJobListener createListener(long seed) {
+		Chimera chimera = Chimera.getInstance();
+		return new IJobListener() {
+			@Override
+			public void progress(MonteCarloJob job) {
+				_progressBar.setValue((int) (100 * job.getFraction()));
+				Chimera.refresh();
+			}
+
+			@Override
+			public void finished(MonteCarloJob job) {
+				Chimera.refresh();
+				if (job.getError() != null) {
+					job.getError().printStackTrace();
+					JOptionPane.showMessageDialog(chimera, "Error: " + job.getError().getMessage(), "Error",
+							JOptionPane.ERROR_MESSAGE);
+				} else if (job.isCancelled()) {
+					_progressBar.setValue(0);
+				} else {
+					_progressBar.setValue(100);
+					JOptionPane.showMessageDialog(chimera, "Simulation complete with "
+							+ chimera.getPointStore().size() + " points (seed " + seed + ").", "Done",
+							JOptionPane.INFORMATION_MESSAGE);
+				}
+			}
+		};
+	}
+
     /**
      * Get the clear existing data flag
      * @return <code>true</code> if existing data should be cleared.
@@ -80,19 +244,55 @@ public class MonteCarloDialog extends SimpleDialog {
 		return _clearCheckBox.isSelected();
 	}
 
+	/**
+	 * Get the write checkpoints flag
+	 *
+	 * @return <code>true</code> if the run should write checkpoints
+	 */
+	public boolean writeCheckpoints() {
+		return _checkpointCheckBox.isSelected();
+	}
+
+	/**
+	 * Get the selected variance reduction mode
+	 *
+	 * @return the variance reduction mode
+	 */
+	public EVarianceReduction getVarianceReduction() {
+		Object selected = _varianceReductionCombo.getSelectedEnum();
+		return (selected instanceof EVarianceReduction) ? (EVarianceReduction) selected : EVarianceReduction.NONE;
+	}
+
+	/**
+	 * Get the master random seed. A field that is not a number gets a fresh
+	 * seed, which is shown in the field.
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		String text = _seedField.getText();
+		try {
+			return Long.parseLong(text.trim());
+		} catch (NullPointerException | NumberFormatException e) {
+			long seed = RandomStreams.newSeed();
+			_seedField.setText(Long.toString(seed));
+			return seed;
+		}
+	}
+
 	/**
 	 * Get the number of points to generate
 	 *
 	 * @return the number of points to generate
 	 */
-	public int getNPoints() {
+	public long getNPoints() {
 		String text = _nPointsField.getText();
 		if (text == null) {
 			return 0;
 		}
 		text = text.trim();
 		try {
-			return Integer.parseInt(text);
+			return Long.parseLong(text);
 		} catch (NumberFormatException e) {
 			System.err.println("Monte Carlo dialog: bad number format: " + text);
 			return 0;
@@ -0,0 +1,293 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * One background Monte Carlo run, scheduled by a {@link JobScheduler}. The job
+ * classifies against a snapshot of the grid and draws its points a
+ * {@link RandomStreams} chunk at a time. Each finished chunk is handed to the
+ * scheduler, which adds it to the shared points and histogram unless the job
+ * was cancelled, so a cancelled job never adds anything after
+ * {@link #cancel()} returns. Each added chunk is then offered to the
+ * subscribers of the scheduler's {@link SamplePublisher}, if any, which may
+ * make the job wait for a slow subscriber.
+ * <p>
+ * A job with a checkpoint file writes a {@link Checkpoint} every
+ * {@link Checkpoint#DEFAULT_INTERVAL} and when it stops, so a run that is
+ * cancelled or crashes can be resumed from its last finished chunk.
+ */
+public class MonteCarloJob implements Runnable {
+
+	/** The least time between progress notifications, in milliseconds */
+	public static final long PROGRESS_INTERVAL = 100;
+
+	// how often the worker looks at the clock and the cancel flag
+	private static final int CHECK_EVERY = 1024;
+
+	// the owner, which publishes the chunks
+	private final JobScheduler scheduler;
+
+	// what to run
+	private final ChimeraGrid grid;
+	private final long numPoints;
+	private final EVarianceReduction mode;
+	private final IDirectionSampler sampler;
+	private final RandomStreams streams;
+	private final long firstChunk;
+	private final IJobListener listener;
+
+	// the chunks already done by an earlier, interrupted job
+	private final long startChunk;
+
+	// the checkpoint file, or null, and the histogram it records
+	private final Path checkpointPath;
+	private final long checkpointInterval;
+	private final LongCountMap runCounts;
+	private long lastCheckpoint;
+	private long chunksCheckpointed = -1;
+
+	// the state, written by the worker
+	private volatile boolean cancelled;
+	private volatile boolean done;
+	private volatile long pointsDone;
+	private volatile Throwable error;
+
+	// set while a progress notification is queued on the event thread
+	private final AtomicBoolean progressPending = new AtomicBoolean();
+	private long lastProgress;
+
+	// create a job; only the scheduler does. The base counts are the histogram
+	// before the job's first chunk, including any chunks done earlier.
+	MonteCarloJob(JobScheduler scheduler, ChimeraGrid grid, long numPoints, EVarianceReduction mode,
+			IDirectionSampler sampler, RandomStreams streams, long firstChunk, long startChunk,
+			LongCountMap baseCounts, Path checkpointPath, long checkpointInterval, IJobListener listener) {
+		this.scheduler = scheduler;
+		this.grid = grid;
+		this.numPoints = numPoints;
+		this.mode = mode;
+		this.sampler = sampler;
+		this.streams = streams;
+		this.firstChunk = firstChunk;
+		this.startChunk = startChunk;
+		this.checkpointPath = checkpointPath;
+		this.checkpointInterval = checkpointInterval;
+		this.runCounts = (checkpointPath == null) ? null : baseCounts;
+		this.listener = listener;
+		pointsDone = Math.min(numPoints, startChunk * RandomStreams.CHUNK_SIZE);
+	}
+
+	@Override
+	public void run() {
+		try {
+			// the cell reflection is only measure preserving for uniform directions
+			boolean antithetic = mode.isAntithetic() && sampler.isUniform();
+			if (grid.getNumSphericalGrids() > 1) {
+				grid.getBVH();
+			}
+
+			long numChunks = RandomStreams.numChunks(numPoints);
+			SamplePublisher publisher = scheduler.getSamplePublisher();
+			long nextIndex = -1;
+			boolean ended = false;
+			long chunksDone = startChunk;
+			lastProgress = System.nanoTime();
+			lastCheckpoint = lastProgress;
+			for (long c = startChunk; (c < numChunks) && !cancelled; c++) {
+				Random random = streams.stream(firstChunk + c);
+				int n = (int) Math.min(RandomStreams.CHUNK_SIZE, numPoints - c * RandomStreams.CHUNK_SIZE);
+				List<MonteCarloPoint> points = new ArrayList<>(n);
+				LongCountMap batch = new LongCountMap();
+
+				for (int i = 0; i < n; i++) {
+					if ((i % CHECK_EVERY == 0) && cancelled) {
+						break;
+					}
+					MonteCarloPoint point = (antithetic && (i % 2 == 1)) ? points.get(i - 1).antithetic(grid)
+							: new MonteCarloPoint(grid, random, sampler);
+					points.add(point);
+					if (point.fiveplet != null) {
+						batch.increment(PatchKey.pack(point.fiveplet));
+					}
+				}
+
+				long firstIndex = scheduler.publish(this, points, batch);
+				if (firstIndex < 0) {
+					break;
+				}
+				pointsDone += n;
+				nextIndex = firstIndex + n;
+				chunksDone = c + 1;
+				if (runCounts != null) {
+					runCounts.addAll(batch);
+					if (System.nanoTime() - lastCheckpoint >= checkpointInterval * 1000000L) {
+						writeCheckpoint(chunksDone);
+					}
+				}
+
+				// waits here if a subscriber's buffer is full
+				if (publisher.hasSubscribers()) {
+					ended = (c == numChunks - 1);
+					publisher.submit(SampleBatch.of(points, firstIndex, getSeed(), ended));
+				}
+				maybeNotifyProgress();
+			}
+
+			// a cancelled run still ends its stream
+			if (!ended && (nextIndex >= 0) && publisher.hasSubscribers()) {
+				publisher.submit(SampleBatch.end(nextIndex, getSeed()));
+			}
+
+			// the state at the last finished chunk, complete or not
+			if (runCounts != null) {
+				writeCheckpoint(chunksDone);
+			}
+		} catch (Throwable t) {
+			error = t;
+		} finally {
+			done = true;
+			scheduler.finished(this);
+			if (listener != null) {
+				scheduler.getListenerExecutor().execute(() -> listener.finished(this));
+			}
+		}
+	}
+
+	// write a checkpoint; a failure is reported but does not stop the run
+	private void writeCheckpoint(long chunksDone) {
+		lastCheckpoint = System.nanoTime();
+		if (chunksDone == chunksCheckpointed) {
+			return;
+		}
+		try {
+			new Checkpoint(grid, getSeed(), mode, sampler, firstChunk, numPoints, chunksDone, runCounts)
+					.write(checkpointPath);
+			chunksCheckpointed = chunksDone;
+		} catch (IOException e) {
+			System.err.println("Could not write the Monte Carlo checkpoint " + checkpointPath + ": " + e.getMessage());
+		}
+	}
+
+	// queue a progress notification if none is queued and enough time has passed
+	private void maybeNotifyProgress() {
+		long now = System.nanoTime();
+		if ((listener == null) || (now - lastProgress < PROGRESS_INTERVAL * 1000000L)) {
+			return;
+		}
+		lastProgress = now;
+		if (progressPending.compareAndSet(false, true)) {
+			scheduler.getListenerExecutor().execute(() -> {
+				progressPending.set(false);
+				listener.progress(this);
+			});
+		}
+	}
+
+	/**
+	 * Cancel the job. Nothing more is added to the shared points once this
+	 * returns; the worker stops within a few thousand points.
+	 */
+	public void cancel() {
+		scheduler.cancel(this);
+	}
+
+	// set the flag; called by the scheduler while it holds its lock
+	void setCancelled() {
+		cancelled = true;
+	}
+
+	/**
+	 * Check whether the job was cancelled
+	 *
+	 * @return <code>true</code> if cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Check whether the worker has stopped, for any reason
+	 *
+	 * @return <code>true</code> if the job is over
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Get the failure of the worker, if any
+	 *
+	 * @return the failure, or <code>null</code>
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * Get the number of points added so far
+	 *
+	 * @return the number of points added
+	 */
+	public long getPointsDone() {
+		return pointsDone;
+	}
+
+	/**
+	 * Get the number of points requested
+	 *
+	 * @return the number of points
+	 */
+	public long getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Get the fraction of the points added so far
+	 *
+	 * @return the fraction, from 0 to 1
+	 */
+	public double getFraction() {
+		return (numPoints > 0) ? (double) pointsDone / numPoints : 1;
+	}
+
+	/**
+	 * Get the master seed of the run
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return streams.getMasterSeed();
+	}
+
+	/**
+	 * Get the checkpoint file
+	 *
+	 * @return the file, or <code>null</code> if the job writes no checkpoints
+	 */
+	public Path getCheckpointPath() {
+		return checkpointPath;
+	}
+
+	/**
+	 * Get the grid snapshot the job classifies against
+	 *
+	 * @return the grid snapshot
+	 */
+	public ChimeraGrid getGrid() {
+		return grid;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MonteCarloJob [%d of %d points, seed %d%s]", pointsDone, numPoints, getSeed(),
+				cancelled ? ", cancelled" : (done ? ", done" : ""));
+	}
+}
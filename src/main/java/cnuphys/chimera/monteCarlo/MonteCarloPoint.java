@@ -1,50 +1,136 @@
 package cnuphys.chimera.monteCarlo;
 
-import java.awt.Color;
 import java.util.Random;
 
-import cnuphys.chimera.frame.Chimera;
 import cnuphys.chimera.grid.ChimeraGrid;
 import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.Grid1D;
+import cnuphys.chimera.grid.SphericalGrid;
 import cnuphys.chimera.util.Point3D;
 import cnuphys.chimera.util.ThetaPhi;
 
 
 public class MonteCarloPoint {
 
-	private static Color[] mapColors = {
-            new Color(70, 130, 180),  // Ocean Blue
-            new Color(34, 139, 34),   // Earth Green
-            new Color(240, 230, 140), // Desert Yellow
-            new Color(169, 169, 169), // Mountain Gray
-            new Color(95, 158, 160),  // Dark Cyan
-            new Color(220, 20, 60)    // Urban Red
-        };
-
 	public ThetaPhi thetaPhi;
 	public Fiveplet fiveplet;
+	public int body;
+
+	/**
+	 * Create a point uniformly distributed over the surfaces of all the spherical
+	 * components of a grid.
+	 *
+	 * @param grid   the grid
+	 * @param random the random number generator
+	 */
+	public MonteCarloPoint(ChimeraGrid grid, Random random) {
+		this(grid, random, UniformDirectionSampler.INSTANCE);
+	}
 
-	private static Random random = new Random();
+	/**
+	 * Create a point on the surfaces of the spherical components of a grid, with
+	 * the body picked in proportion to its area and the direction drawn from a
+	 * sampling distribution.
+	 *
+	 * @param grid    the grid
+	 * @param random  the random number generator
+	 * @param sampler the distribution of directions
+	 */
+	public MonteCarloPoint(ChimeraGrid grid, Random random, IDirectionSampler sampler) {
 
-	public MonteCarloPoint() {
+		if (grid.getNumSphericalGrids() > 1) {
+			body = grid.pickBody(random.nextDouble());
+		}
 
 		thetaPhi = new ThetaPhi();
-		ThetaPhi.setRandomThetaPhi(random, thetaPhi);
-		Point3D.Double cartesian = thetaPhi.toCartesian();
+		sampler.sample(random, thetaPhi);
 
-		ChimeraGrid grid = Chimera.getInstance().getChimeraGrid();
+		fiveplet = grid.getFiveplet(body, thetaPhi);
+	}
 
-		int sIndices[] = new int[2];
-		int cIndices[] = new int[3];
-		grid.getSphericalGrid().getIndices(thetaPhi, sIndices);
-		grid.getCartesianGrid().getIndices(cartesian, cIndices);
+	/**
+	 * Create a point in a given direction on a spherical component
+	 *
+	 * @param grid     the grid
+	 * @param body     the index of the spherical component
+	 * @param thetaPhi the (global) direction from the center
+	 */
+	public MonteCarloPoint(ChimeraGrid grid, int body, ThetaPhi thetaPhi) {
+		this.body = body;
+		this.thetaPhi = thetaPhi;
+		fiveplet = grid.getFiveplet(body, thetaPhi);
+	}
 
-		fiveplet = new Fiveplet(cIndices[0], cIndices[1], cIndices[2], sIndices[0], sIndices[1]);
+	/**
+	 * Create a point that was already classified, e.g. one read back from a
+	 * {@link PointStore}
+	 *
+	 * @param thetaPhi the (global) direction from the center
+	 * @param body     the index of the spherical component
+	 * @param fiveplet the patch, or <code>null</code> if the point is hidden
+	 */
+	public MonteCarloPoint(ThetaPhi thetaPhi, int body, Fiveplet fiveplet) {
+		this.thetaPhi = thetaPhi;
+		this.body = body;
+		this.fiveplet = fiveplet;
+	}
 
-    }
+	/**
+	 * Create the antithetic partner of this point: its reflection through the
+	 * center of the spherical cell it is in, in the local cos(theta) and phi of
+	 * the sphere. The reflection maps the uniform distribution on the cell onto
+	 * itself, so the pair is unbiased, and it sends a point near one side of a
+	 * cell to the other side, so the two land in different patches of a cell
+	 * cut by a Cartesian face more often than independent points would. Both
+	 * points of a pair are in the same cell, which adds noise to the number of
+	 * points per cell, so pairs pay off with the control variate estimator
+	 * (which removes that noise), not with the plain one.
+	 *
+	 * @param grid the grid
+	 * @return the partner
+	 */
+	public MonteCarloPoint antithetic(ChimeraGrid grid) {
+		ThetaPhi partner = new ThetaPhi(thetaPhi.getTheta(), thetaPhi.getPhi());
+		antithetic(grid.getSphericalGrid(body), partner, new Point3D.Double(), new double[2]);
+		return new MonteCarloPoint(grid, body, partner);
+	}
 
 	/**
-	 * Gets the Cartesian coordinates of the Monte Carlo point.
+	 * Replace a direction by that of its antithetic partner (see
+	 * {@link #antithetic(ChimeraGrid)}) in place, for classifying many points
+	 * without creating objects. A direction outside the angular grid is left
+	 * as it is.
+	 *
+	 * @param sgrid    the spherical component
+	 * @param thetaPhi the (global) direction, replaced by that of the partner
+	 * @param dir      work space for the Cartesian direction
+	 * @param local    work space for the two local angles
+	 */
+	public static void antithetic(SphericalGrid sgrid, ThetaPhi thetaPhi, Point3D.Double dir, double[] local) {
+		thetaPhi.toCartesian(dir);
+		sgrid.toLocalAngles(dir.x, dir.y, dir.z, local);
+
+		Grid1D thetaGrid = sgrid.getThetaGrid();
+		Grid1D phiGrid = sgrid.getPhiGrid();
+		int nt = thetaGrid.getIndex(local[0]);
+		int np = phiGrid.getIndex(local[1]);
+		if (nt < 0 || np < 0) {
+			return;
+		}
+
+		double cos1 = Math.cos(thetaGrid.getValue(nt));
+		double cos2 = Math.cos(thetaGrid.getValue(nt + 1));
+		double cosTheta = cos1 + cos2 - Math.cos(local[0]);
+		double theta = Math.acos(Math.max(-1, Math.min(1, cosTheta)));
+		double phi = phiGrid.getValue(np) + phiGrid.getValue(np + 1) - local[1];
+
+		sgrid.localToGlobal(theta, phi, dir);
+		thetaPhi.setTheta(Math.acos(Math.max(-1, Math.min(1, dir.z))));
+		thetaPhi.setPhi(Math.atan2(dir.y, dir.x));
+	}
+
+	/**
+	 * Gets the Cartesian coordinates of the Monte Carlo point on the unit sphere.
 	 *
 	 * @return The Cartesian coordinates
 	 * @see Point3D
@@ -53,23 +139,6 @@ public class MonteCarloPoint {
         return thetaPhi.toCartesian();
     }
 
-	public int getColorIndex() {
-		if (fiveplet.nx < 0 || fiveplet.ny < 0 || fiveplet.nz < 0 || fiveplet.ntheta < 0 || fiveplet.nphi < 0) {
-			return -1;
-		}
-		int sum = fiveplet.nx + fiveplet.ny + fiveplet.nz + 2*fiveplet.ntheta + 2*fiveplet.nphi;
-		return sum % mapColors.length;
-	}
-
-	public Color getColor() {
-		int index = getColorIndex();
-		if (index < 0) {
-			return Color.BLACK;
-		}
-       return mapColors[index];
-	}
-
-
 	@Override
 	public String toString() {
 		return String.format("MonteCarloPoint: %s %s", thetaPhi, fiveplet);
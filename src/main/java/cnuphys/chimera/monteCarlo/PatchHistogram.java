@@ -0,0 +1,306 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * The patch histogram of some {@link RandomStreams} chunks of a reproducible
+ * Monte Carlo run, as written by one shard of a sharded run. Shards of the same
+ * run (same grid, seed and settings) with disjoint chunk ranges are merged by
+ * adding their counts; the merge of shards covering every chunk is the
+ * histogram of the whole run, identical to a single process run.
+ * <p>
+ * The file is big-endian binary, in this order:
+ * <ul>
+ * <li>the magic number "CHIMHST1" and the format version (int)
+ * <li>the grid fingerprint, see {@link GridIO#fingerprint(ChimeraGrid)}
+ * <li>the master seed, the variance reduction mode and sampler name (UTF),
+ * and the number of points of the whole run
+ * <li>the number of chunk ranges (int) and each range as first chunk and one
+ * past the last chunk, in ascending order
+ * <li>the grid definition, see {@link GridIO}
+ * <li>the counts, see {@link LongCountMap#write(java.io.DataOutput)}
+ * </ul>
+ */
+public class PatchHistogram {
+
+	// file header
+	private static final long MAGIC = 0x4348494d48535431L; // "CHIMHST1"
+	private static final int VERSION = 1;
+
+	// the run
+	private final ChimeraGrid grid;
+	private final long fingerprint;
+	private final long seed;
+	private final EVarianceReduction mode;
+	private final String samplerName;
+	private final long numPoints;
+
+	// the chunks counted, as sorted disjoint [from, to) pairs
+	private final long[] ranges;
+
+	// the counts
+	private final LongCountMap counts;
+
+	/**
+	 * Create the histogram of one chunk range
+	 *
+	 * @param grid        the grid of the run
+	 * @param seed        the master seed
+	 * @param mode        the variance reduction mode
+	 * @param samplerName the name of the direction sampler
+	 * @param numPoints   the number of points of the whole run
+	 * @param fromChunk   the first chunk counted
+	 * @param toChunk     one past the last chunk counted
+	 * @param counts      the counts; not copied
+	 * @throws IOException if the grid has no fingerprint, i.e. cannot be written
+	 */
+	public PatchHistogram(ChimeraGrid grid, long seed, EVarianceReduction mode, String samplerName, long numPoints,
+			long fromChunk, long toChunk, LongCountMap counts) throws IOException {
+		this(grid, GridIO.fingerprint(grid), seed, mode, samplerName, numPoints,
+				(fromChunk < toChunk) ? new long[] { fromChunk, toChunk } : new long[0], counts);
+	}
+
+	private PatchHistogram(ChimeraGrid grid, long fingerprint, long seed, EVarianceReduction mode,
+			String samplerName, long numPoints, long[] ranges, LongCountMap counts) {
+		this.grid = grid;
+		this.fingerprint = fingerprint;
+		this.seed = seed;
+		this.mode = mode;
+		this.samplerName = samplerName;
+		this.numPoints = numPoints;
+		this.ranges = ranges;
+		this.counts = counts;
+	}
+
+	/**
+	 * Merge shard histograms of the same run
+	 *
+	 * @param shards the histograms, at least one
+	 * @return the histogram of all their chunks
+	 * @throws IllegalArgumentException if the shards belong to different runs
+	 *                                  or overlap
+	 */
+	public static PatchHistogram merge(List<PatchHistogram> shards) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to merge.");
+		}
+		PatchHistogram first = shards.get(0);
+		List<long[]> all = new ArrayList<>();
+		int expectedSize = 0;
+		for (PatchHistogram shard : shards) {
+			if (shard.fingerprint != first.fingerprint) {
+				throw new IllegalArgumentException(String.format("Grid fingerprints differ: %016x and %016x",
+						first.fingerprint, shard.fingerprint));
+			}
+			if ((shard.seed != first.seed) || (shard.mode != first.mode)
+					|| !shard.samplerName.equals(first.samplerName) || (shard.numPoints != first.numPoints)) {
+				throw new IllegalArgumentException("Shards of different runs: " + first + " and " + shard);
+			}
+			for (int i = 0; i < shard.ranges.length; i += 2) {
+				all.add(new long[] { shard.ranges[i], shard.ranges[i + 1] });
+			}
+			expectedSize = Math.max(expectedSize, shard.counts.size());
+		}
+
+		// sort the ranges, refuse overlaps and join neighbors
+		all.sort((a, b) -> Long.compare(a[0], b[0]));
+		long[] ranges = new long[2 * all.size()];
+		int n = 0;
+		for (long[] range : all) {
+			if ((n > 0) && (range[0] < ranges[n - 1])) {
+				throw new IllegalArgumentException("Shards overlap at chunk " + range[0]
+						+ "; the same points would be counted twice.");
+			}
+			if ((n > 0) && (range[0] == ranges[n - 1])) {
+				ranges[n - 1] = range[1];
+			} else {
+				ranges[n++] = range[0];
+				ranges[n++] = range[1];
+			}
+		}
+
+		LongCountMap counts = new LongCountMap(expectedSize);
+		for (PatchHistogram shard : shards) {
+			counts.addAll(shard.counts);
+		}
+		return new PatchHistogram(first.grid, first.fingerprint, first.seed, first.mode, first.samplerName,
+				first.numPoints, Arrays.copyOf(ranges, n), counts);
+	}
+
+	/**
+	 * Write the histogram
+	 *
+	 * @param path the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fingerprint);
+			out.writeLong(seed);
+			out.writeUTF(mode.name());
+			out.writeUTF(samplerName);
+			out.writeLong(numPoints);
+			out.writeInt(ranges.length / 2);
+			for (long chunk : ranges) {
+				out.writeLong(chunk);
+			}
+			GridIO.write(out, grid);
+			counts.write(out);
+		}
+	}
+
+	/**
+	 * Read a histogram
+	 *
+	 * @param path the file
+	 * @return the histogram
+	 * @throws IOException if the file cannot be read or is not a histogram
+	 */
+	public static PatchHistogram read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readLong() != MAGIC) {
+				throw new IOException("Not a patch histogram: " + path);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported patch histogram version " + version + " in " + path);
+			}
+			long fingerprint = in.readLong();
+			long seed = in.readLong();
+			EVarianceReduction mode;
+			try {
+				mode = EVarianceReduction.valueOf(in.readUTF());
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Unknown variance reduction mode in " + path, e);
+			}
+			String samplerName = in.readUTF();
+			long numPoints = in.readLong();
+			int numRanges = in.readInt();
+			if (numRanges < 0) {
+				throw new IOException("Bad number of chunk ranges " + numRanges + " in " + path);
+			}
+			long[] ranges = new long[2 * numRanges];
+			for (int i = 0; i < ranges.length; i++) {
+				ranges[i] = in.readLong();
+			}
+			ChimeraGrid grid = GridIO.read(in);
+			if (GridIO.fingerprint(grid) != fingerprint) {
+				throw new IOException("The grid does not match its fingerprint in " + path);
+			}
+			LongCountMap counts = LongCountMap.read(in);
+			return new PatchHistogram(grid, fingerprint, seed, mode, samplerName, numPoints, ranges, counts);
+		}
+	}
+
+	/**
+	 * Get the grid of the run
+	 *
+	 * @return the grid
+	 */
+	public ChimeraGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Get the fingerprint of the grid of the run
+	 *
+	 * @return the fingerprint
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Get the master seed of the run
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Get the variance reduction mode of the run
+	 *
+	 * @return the mode
+	 */
+	public EVarianceReduction getMode() {
+		return mode;
+	}
+
+	/**
+	 * Get the name of the direction sampler of the run
+	 *
+	 * @return the sampler name
+	 */
+	public String getSamplerName() {
+		return samplerName;
+	}
+
+	/**
+	 * Get the number of points of the whole run
+	 *
+	 * @return the number of points
+	 */
+	public long getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Get the number of points in the chunks counted here
+	 *
+	 * @return the number of points
+	 */
+	public long getPointsCounted() {
+		long points = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			long from = Math.min(numPoints, ranges[i] * RandomStreams.CHUNK_SIZE);
+			long to = Math.min(numPoints, ranges[i + 1] * RandomStreams.CHUNK_SIZE);
+			points += to - from;
+		}
+		return points;
+	}
+
+	/**
+	 * Check whether every chunk of the run is counted
+	 *
+	 * @return <code>true</code> if this is the histogram of the whole run
+	 */
+	public boolean isComplete() {
+		return (ranges.length == 2) && (ranges[0] == 0) && (ranges[1] >= RandomStreams.numChunks(numPoints));
+	}
+
+	/**
+	 * Get the counts. Do not modify.
+	 *
+	 * @return the number of points in each patch, without the hidden points
+	 */
+	public LongCountMap getCounts() {
+		return counts;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder chunks = new StringBuilder();
+		for (int i = 0; i < ranges.length; i += 2) {
+			chunks.append((i == 0) ? "" : ", ").append(ranges[i]).append('-').append(ranges[i + 1]);
+		}
+		return String.format("PatchHistogram [grid %016x, seed %d, %s, %s, chunks %s, %d of %d points, %d patches]",
+				fingerprint, seed, mode.getName(), samplerName, chunks, getPointsCounted(), numPoints, counts.size());
+	}
+}
@@ -0,0 +1,439 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.Point3D;
+import cnuphys.chimera.util.StripedLongCountMap;
+
+/**
+ * Streaming statistics of the sample positions in each patch: the count, the
+ * centroid and the second central moments, kept in primitive arrays keyed by
+ * packed {@link PatchKey}s. Samples are added with Welford's online update, so
+ * no per-point data is kept, and two accumulators (e.g. from different threads
+ * or runs) are merged with the pairwise formula of Chan et al., which gives the
+ * same moments as one pass over all the samples up to rounding. Not thread
+ * safe; use one accumulator per thread and merge.
+ */
+public class PatchStatistics {
+
+	/** Receives the entries of the accumulator */
+	public interface EntryConsumer {
+		void accept(long key, long count, double[] mean, double[] m2);
+	}
+
+	// marks an empty slot
+	private static final long EMPTY = PatchKey.NONE;
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	// the co-moment components, in the order of the m2 arrays
+	private static final int XX = 0, XY = 1, XZ = 2, YY = 3, YZ = 4, ZZ = 5;
+
+	private long[] _keys;
+	private long[] _counts;
+
+	// 3 per slot: the mean x, y and z
+	private double[] _mean;
+
+	// 6 per slot: the sums of products of deviations, xx xy xz yy yz zz
+	private double[] _m2;
+
+	private int _size;
+	private int _threshold;
+
+	/**
+	 * Create an accumulator with a default initial capacity
+	 */
+	public PatchStatistics() {
+		this(1024);
+	}
+
+	/**
+	 * Create an accumulator
+	 *
+	 * @param expectedSize the expected number of patches
+	 */
+	public PatchStatistics(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	// allocate empty tables
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_counts = new long[capacity];
+		_mean = new double[3 * capacity];
+		_m2 = new double[6 * capacity];
+		_threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	// mix the bits of a key (the murmur3 finalizer)
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	// the slot of a key, or the empty slot where it would go
+	private int find(long key) {
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key || k == EMPTY) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	// the slot of a key, inserting it if needed
+	private int slotFor(long key) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("PatchKey.NONE cannot be accumulated.");
+		}
+		int slot = find(key);
+		if (_keys[slot] == EMPTY) {
+			if (_size + 1 > _threshold) {
+				rehash(2 * _keys.length);
+				slot = find(key);
+			}
+			_keys[slot] = key;
+			_size++;
+		}
+		return slot;
+	}
+
+	/**
+	 * Add a sample
+	 *
+	 * @param key the packed patch key
+	 * @param x   the x coordinate of the sample
+	 * @param y   the y coordinate of the sample
+	 * @param z   the z coordinate of the sample
+	 */
+	public void add(long key, double x, double y, double z) {
+		int slot = slotFor(key);
+		long n = ++_counts[slot];
+		int i3 = 3 * slot;
+		int i6 = 6 * slot;
+
+		double dx = x - _mean[i3];
+		double dy = y - _mean[i3 + 1];
+		double dz = z - _mean[i3 + 2];
+		_mean[i3] += dx / n;
+		_mean[i3 + 1] += dy / n;
+		_mean[i3 + 2] += dz / n;
+
+		// deviation from the new mean
+		double ex = x - _mean[i3];
+		double ey = y - _mean[i3 + 1];
+		double ez = z - _mean[i3 + 2];
+		_m2[i6 + XX] += dx * ex;
+		_m2[i6 + XY] += dx * ey;
+		_m2[i6 + XZ] += dx * ez;
+		_m2[i6 + YY] += dy * ey;
+		_m2[i6 + YZ] += dy * ez;
+		_m2[i6 + ZZ] += dz * ez;
+	}
+
+	/**
+	 * Add a Monte Carlo point, at its global position on the surface of its
+	 * spherical component. Points hidden inside another component are skipped.
+	 *
+	 * @param grid  the grid the point was generated on
+	 * @param point the point
+	 */
+	public void add(ChimeraGrid grid, MonteCarloPoint point) {
+		if (point.fiveplet == null) {
+			return;
+		}
+		Point3D.Double p = new Point3D.Double();
+		grid.getSphericalGrid(point.body).toGlobal(point.thetaPhi, p);
+		add(PatchKey.pack(point.fiveplet), p.x, p.y, p.z);
+	}
+
+	/**
+	 * Merge another accumulator into this one
+	 *
+	 * @param other the other accumulator, which is not changed
+	 */
+	public void merge(PatchStatistics other) {
+		other.forEach(this::merge);
+	}
+
+	// merge the statistics of one patch
+	private void merge(long key, long nb, double[] meanB, double[] m2B) {
+		if (nb == 0) {
+			return;
+		}
+		int slot = slotFor(key);
+		long na = _counts[slot];
+		long n = na + nb;
+		int i3 = 3 * slot;
+		int i6 = 6 * slot;
+
+		double dx = meanB[0] - _mean[i3];
+		double dy = meanB[1] - _mean[i3 + 1];
+		double dz = meanB[2] - _mean[i3 + 2];
+		double f = (double) nb / n;
+		double g = (double) na * nb / n;
+
+		_mean[i3] += dx * f;
+		_mean[i3 + 1] += dy * f;
+		_mean[i3 + 2] += dz * f;
+
+		_m2[i6 + XX] += m2B[XX] + dx * dx * g;
+		_m2[i6 + XY] += m2B[XY] + dx * dy * g;
+		_m2[i6 + XZ] += m2B[XZ] + dx * dz * g;
+		_m2[i6 + YY] += m2B[YY] + dy * dy * g;
+		_m2[i6 + YZ] += m2B[YZ] + dy * dz * g;
+		_m2[i6 + ZZ] += m2B[ZZ] + dz * dz * g;
+		_counts[slot] = n;
+	}
+
+	// grow the tables
+	private void rehash(int capacity) {
+		long[] oldKeys = _keys;
+		long[] oldCounts = _counts;
+		double[] oldMean = _mean;
+		double[] oldM2 = _m2;
+		allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = find(oldKeys[i]);
+				_keys[slot] = oldKeys[i];
+				_counts[slot] = oldCounts[i];
+				System.arraycopy(oldMean, 3 * i, _mean, 3 * slot, 3);
+				System.arraycopy(oldM2, 6 * i, _m2, 6 * slot, 6);
+			}
+		}
+	}
+
+	/**
+	 * Visit every patch. The arrays passed to the consumer are reused between
+	 * calls.
+	 *
+	 * @param consumer receives the key, count, mean (x, y, z) and co-moment sums
+	 *                 (xx, xy, xz, yy, yz, zz) of each patch
+	 */
+	public void forEach(EntryConsumer consumer) {
+		double[] mean = new double[3];
+		double[] m2 = new double[6];
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				System.arraycopy(_mean, 3 * i, mean, 0, 3);
+				System.arraycopy(_m2, 6 * i, m2, 0, 6);
+				consumer.accept(_keys[i], _counts[i], mean, m2);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of samples in a patch
+	 *
+	 * @param key the packed patch key
+	 * @return the count, 0 if the patch has no samples
+	 */
+	public long getCount(long key) {
+		if (key == EMPTY) {
+			return 0;
+		}
+		int slot = find(key);
+		return (_keys[slot] == EMPTY) ? 0 : _counts[slot];
+	}
+
+	/**
+	 * Get the centroid of the samples in a patch
+	 *
+	 * @param key      the packed patch key
+	 * @param centroid will hold the x, y and z of the centroid
+	 * @return <code>false</code> if the patch has no samples
+	 */
+	public boolean getCentroid(long key, double[] centroid) {
+		if (key == EMPTY) {
+			return false;
+		}
+		int slot = find(key);
+		if (_keys[slot] == EMPTY) {
+			return false;
+		}
+		System.arraycopy(_mean, 3 * slot, centroid, 0, 3);
+		return true;
+	}
+
+	/**
+	 * Get the (population) covariance of the samples in a patch
+	 *
+	 * @param key        the packed patch key
+	 * @param covariance will hold xx, xy, xz, yy, yz and zz
+	 * @return <code>false</code> if the patch has no samples
+	 */
+	public boolean getCovariance(long key, double[] covariance) {
+		if (key == EMPTY) {
+			return false;
+		}
+		int slot = find(key);
+		if (_keys[slot] == EMPTY) {
+			return false;
+		}
+		long n = _counts[slot];
+		for (int i = 0; i < 6; i++) {
+			covariance[i] = _m2[6 * slot + i] / n;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the spread of the samples in a patch, the root mean square distance
+	 * from the centroid
+	 *
+	 * @param key the packed patch key
+	 * @return the spread, or NaN if the patch has no samples
+	 */
+	public double getSpread(long key) {
+		double[] cov = new double[6];
+		if (!getCovariance(key, cov)) {
+			return Double.NaN;
+		}
+		return Math.sqrt(Math.max(0, cov[XX] + cov[YY] + cov[ZZ]));
+	}
+
+	/**
+	 * Get the counts as a patch histogram
+	 *
+	 * @return the count of each patch
+	 */
+	public LongCountMap toCounts() {
+		LongCountMap counts = new LongCountMap(_size);
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				counts.add(_keys[i], _counts[i]);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Get the number of patches
+	 *
+	 * @return the number of patches
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear() {
+		Arrays.fill(_keys, EMPTY);
+		Arrays.fill(_counts, 0);
+		Arrays.fill(_mean, 0);
+		Arrays.fill(_m2, 0);
+		_size = 0;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, new SphericalGrid(49, 33, 1, 0.3, 0.2));
+		List<MonteCarloPoint> points = MonteCarlo.generate(grid, 2000000, EVarianceReduction.NONE, new Random(1));
+
+		// one pass
+		long start = System.nanoTime();
+		PatchStatistics all = new PatchStatistics();
+		for (MonteCarloPoint point : points) {
+			all.add(grid, point);
+		}
+		double time = (System.nanoTime() - start) / 1.0e9;
+
+		// four partial accumulators, merged
+		int numParts = 4;
+		PatchStatistics merged = new PatchStatistics();
+		for (int part = 0; part < numParts; part++) {
+			PatchStatistics partial = new PatchStatistics();
+			for (int i = part; i < points.size(); i += numParts) {
+				partial.add(grid, points.get(i));
+			}
+			merged.merge(partial);
+		}
+
+		// compare, and check the mean against a direct two pass sum for one patch
+		double[] worst = new double[2];
+		double[] c1 = new double[3], c2 = new double[3], v1 = new double[6], v2 = new double[6];
+		all.forEach((key, count, mean, m2) -> {
+			merged.getCentroid(key, c2);
+			merged.getCovariance(key, v2);
+			all.getCovariance(key, v1);
+			if (merged.getCount(key) != count) {
+				worst[0] = Double.POSITIVE_INFINITY;
+			}
+			for (int i = 0; i < 3; i++) {
+				worst[0] = Math.max(worst[0], Math.abs(mean[i] - c2[i]));
+			}
+			for (int i = 0; i < 6; i++) {
+				worst[1] = Math.max(worst[1], Math.abs(v1[i] - v2[i]));
+			}
+		});
+
+		// the patch of the first visible point
+		long key = PatchKey.NONE;
+		for (MonteCarloPoint point : points) {
+			if (point.fiveplet != null) {
+				key = PatchKey.pack(point.fiveplet);
+				break;
+			}
+		}
+		double sx = 0;
+		long n = 0;
+		Point3D.Double p = new Point3D.Double();
+		for (MonteCarloPoint point : points) {
+			if (point.fiveplet != null && PatchKey.pack(point.fiveplet) == key) {
+				grid.getSphericalGrid().toGlobal(point.thetaPhi, p);
+				sx += p.x;
+				n++;
+			}
+		}
+		all.getCentroid(key, c1);
+
+		System.out.printf("%d patches, %.1f M samples/s%n", all.size(), points.size() / time / 1.0e6);
+		System.out.printf("merged vs one pass: max centroid diff %.2e, max covariance diff %.2e%n", worst[0],
+				worst[1]);
+		System.out.printf("patch %s: %d samples, centroid x %.12f (direct %.12f), spread %.5f%n",
+				PatchKey.toString(key), n, c1[0], sx / n, all.getSpread(key));
+
+		// filled from a scheduled run through its sample publisher
+		StripedLongCountMap patchCounts = new StripedLongCountMap();
+		JobScheduler scheduler = new JobScheduler(new ArrayList<>(), PointStore.inMemory(), patchCounts);
+		StatisticsSubscriber subscriber = new StatisticsSubscriber(grid);
+		scheduler.getSamplePublisher().subscribe(subscriber);
+		MonteCarloJob job = scheduler.submit(grid, points.size(), true, EVarianceReduction.NONE,
+				UniformDirectionSampler.INSTANCE, 1, null);
+		while (!job.isDone()) {
+			Thread.sleep(5);
+		}
+		scheduler.getSamplePublisher().close();
+		subscriber.awaitCompletion();
+		PatchStatistics fromRun = subscriber.getStatistics();
+		LongCountMap runCounts = patchCounts.snapshot();
+		boolean same = fromRun.size() == runCounts.size();
+		for (long k : runCounts.sortedKeys()) {
+			same &= fromRun.getCount(k) == runCounts.get(k);
+		}
+		System.out.printf("from a scheduled run: %d patches, counts match the run's histogram: %b%n",
+				fromRun.size(), same);
+	}
+}
@@ -0,0 +1,644 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.DirectionCodec;
+import cnuphys.chimera.util.ExternalLongCounter;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * Off-heap storage for Monte Carlo points with long indices, so a run is not
+ * limited to 2^31 points or by the Java heap. Points are fixed size records
+ * (direction, packed patch key, body) in chunks of direct or memory-mapped
+ * buffers, none larger than 2^30 bytes, so the garbage collector never scans
+ * them. A file-backed store can be closed and reopened later.
+ * <p>
+ * The direction is stored as double angles or, to fit two or nearly three
+ * times as many points, quantized (see {@link EPointEncoding}). The compact
+ * records have no body field; the body of a hidden point is kept in a
+ * {@link PatchKey#hidden(int)} key instead.
+ * <p>
+ * One thread appends; any number of threads may read points with indices
+ * below {@link #size()}.
+ */
+public class PointStore implements AutoCloseable {
+
+	/** The size of one point record in bytes with double angles */
+	public static final int RECORD_BYTES = 32;
+
+	// record layouts: double angles, fixed point angles, octahedral vector
+	private static final int THETA = 0;
+	private static final int PHI = 8;
+	private static final int KEY = 16;
+	private static final int BODY = 24;
+	private static final int FIXED_THETA = 0;
+	private static final int FIXED_PHI = 4;
+	private static final int FIXED_KEY = 8;
+	private static final int OCT_DIRECTION = 0;
+	private static final int OCT_KEY = 4;
+
+	// file header: magic, version, record size, chunk bits, encoding, point count,
+	// master seed and whether it is set
+	private static final long MAGIC = 0x4348494d50545331L; // "CHIMPTS1"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 64;
+	private static final int ENCODING_OFFSET = 20;
+	private static final int COUNT_OFFSET = 24;
+	private static final int SEED_OFFSET = 32;
+	private static final int HAS_SEED_OFFSET = 40;
+
+	/** The default number of points per chunk, as a power of two (32 MiB chunks) */
+	public static final int DEFAULT_CHUNK_BITS = 20;
+
+	// the direction encoding, the record size and where the key is
+	private final EPointEncoding encoding;
+	private final int recordBytes;
+	private final int keyOffset;
+
+	// points per chunk, as a power of two
+	private final int chunkBits;
+	private final long chunkMask;
+	private final long chunkBytes;
+
+	// the chunks; replaced, never modified, when a chunk is added
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+	// the number of points
+	private volatile long size;
+
+	// the master seed of the run that made the points, if known
+	private long seed;
+	private boolean hasSeed;
+
+	// the backing file, or null for direct memory
+	private final Path path;
+	private final FileChannel channel;
+
+	// set on close
+	private boolean closed;
+
+	// create a store
+	private PointStore(EPointEncoding encoding, int chunkBits, Path path, FileChannel channel) {
+		this.encoding = encoding;
+		this.recordBytes = encoding.getRecordBytes();
+		this.keyOffset = (encoding == EPointEncoding.DOUBLE) ? KEY
+				: ((encoding == EPointEncoding.FIXED32) ? FIXED_KEY : OCT_KEY);
+		if (chunkBits < 4 || (1L << chunkBits) * recordBytes > (1 << 30)) {
+			throw new IllegalArgumentException("chunkBits must be from 4 to 25, not " + chunkBits);
+		}
+		this.chunkBits = chunkBits;
+		this.chunkMask = (1L << chunkBits) - 1;
+		this.chunkBytes = (1L << chunkBits) * recordBytes;
+		this.path = path;
+		this.channel = channel;
+	}
+
+	/**
+	 * Create a store in direct (off-heap) memory
+	 *
+	 * @return the store
+	 */
+	public static PointStore inMemory() {
+		return new PointStore(EPointEncoding.DOUBLE, DEFAULT_CHUNK_BITS, null, null);
+	}
+
+	/**
+	 * Create a store in direct (off-heap) memory
+	 *
+	 * @param encoding the direction encoding
+	 * @return the store
+	 */
+	public static PointStore inMemory(EPointEncoding encoding) {
+		return new PointStore(encoding, DEFAULT_CHUNK_BITS, null, null);
+	}
+
+	/**
+	 * Create a store in direct (off-heap) memory
+	 *
+	 * @param chunkBits the number of points per chunk, as a power of two
+	 * @return the store
+	 */
+	public static PointStore inMemory(int chunkBits) {
+		return new PointStore(EPointEncoding.DOUBLE, chunkBits, null, null);
+	}
+
+	/**
+	 * Create a store backed by a memory-mapped file, replacing any existing file
+	 *
+	 * @param path the file
+	 * @return the store
+	 * @throws IOException if the file cannot be created
+	 */
+	public static PointStore create(Path path) throws IOException {
+		return create(path, EPointEncoding.DOUBLE);
+	}
+
+	/**
+	 * Create a store backed by a memory-mapped file, replacing any existing file
+	 *
+	 * @param path     the file
+	 * @param encoding the direction encoding
+	 * @return the store
+	 * @throws IOException if the file cannot be created
+	 */
+	public static PointStore create(Path path, EPointEncoding encoding) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		PointStore store = new PointStore(encoding, DEFAULT_CHUNK_BITS, path, channel);
+		store.writeHeader();
+		return store;
+	}
+
+	/**
+	 * Reopen a store written by {@link #create(Path, EPointEncoding)}, in the
+	 * encoding it was written with. More points may be appended.
+	 *
+	 * @param path the file
+	 * @return the store
+	 * @throws IOException if the file cannot be read or is not a point store
+	 */
+	public static PointStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_BYTES || header.getLong(0) != MAGIC) {
+			channel.close();
+			throw new IOException("Not a point store: " + path);
+		}
+		// version 1 files have double angles and no encoding field
+		int version = header.getInt(8);
+		int code = (version == 1) ? EPointEncoding.DOUBLE.ordinal() : header.getInt(ENCODING_OFFSET);
+		if (version < 1 || version > VERSION || code < 0 || code >= EPointEncoding.values().length
+				|| header.getInt(12) != EPointEncoding.values()[code].getRecordBytes()) {
+			channel.close();
+			throw new IOException("Unsupported point store version or record size in " + path);
+		}
+
+		PointStore store = new PointStore(EPointEncoding.values()[code], header.getInt(16), path, channel);
+		long count = header.getLong(COUNT_OFFSET);
+		long numChunks = (count + store.chunkMask) >>> store.chunkBits;
+		ByteBuffer[] chunks = new ByteBuffer[(int) numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			chunks[c] = store.mapChunk(c);
+		}
+		store.chunks = chunks;
+		store.size = count;
+		store.seed = header.getLong(SEED_OFFSET);
+		store.hasSeed = header.getInt(HAS_SEED_OFFSET) != 0;
+		return store;
+	}
+
+	// write the header with the current count
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(12, recordBytes);
+		header.putInt(16, chunkBits);
+		header.putInt(ENCODING_OFFSET, encoding.ordinal());
+		header.putLong(COUNT_OFFSET, size);
+		header.putLong(SEED_OFFSET, seed);
+		header.putInt(HAS_SEED_OFFSET, hasSeed ? 1 : 0);
+		channel.write(header, 0);
+	}
+
+	// map one chunk of the file, growing the file if needed
+	private ByteBuffer mapChunk(int c) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + c * chunkBytes,
+				chunkBytes);
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// add a chunk
+	private void grow() {
+		ByteBuffer[] old = chunks;
+		ByteBuffer chunk;
+		if (channel == null) {
+			chunk = ByteBuffer.allocateDirect((int) chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			try {
+				chunk = mapChunk(old.length);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not map chunk " + old.length + " of " + path, e);
+			}
+		}
+		ByteBuffer[] grown = new ByteBuffer[old.length + 1];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		grown[old.length] = chunk;
+		chunks = grown;
+	}
+
+	/**
+	 * Append a point
+	 *
+	 * @param theta the (global) polar angle
+	 * @param phi   the (global) azimuthal angle
+	 * @param body  the index of the spherical component
+	 * @param key   the packed patch key, or {@link PatchKey#NONE} if the point is
+	 *              hidden
+	 * @return the index of the point
+	 */
+	public long append(double theta, double phi, int body, long key) {
+		if (closed) {
+			throw new IllegalStateException("The point store is closed.");
+		}
+		long index = size;
+		int c = (int) (index >>> chunkBits);
+		if (c >= chunks.length) {
+			grow();
+		}
+		ByteBuffer chunk = chunks[c];
+		int offset = offset(index);
+		switch (encoding) {
+		case DOUBLE:
+			chunk.putDouble(offset + THETA, theta);
+			chunk.putDouble(offset + PHI, phi);
+			chunk.putLong(offset + KEY, key);
+			chunk.putInt(offset + BODY, body);
+			break;
+		case FIXED32:
+			chunk.putInt(offset + FIXED_THETA, DirectionCodec.encodeTheta(theta));
+			chunk.putInt(offset + FIXED_PHI, DirectionCodec.encodePhi(phi));
+			chunk.putLong(offset + FIXED_KEY, PatchKey.isHidden(key) ? PatchKey.hidden(body) : key);
+			break;
+		case OCTAHEDRAL:
+			chunk.putInt(offset + OCT_DIRECTION, DirectionCodec.encodeOctahedral(theta, phi));
+			chunk.putLong(offset + OCT_KEY, PatchKey.isHidden(key) ? PatchKey.hidden(body) : key);
+			break;
+		}
+		size = index + 1;
+		return index;
+	}
+
+	/**
+	 * Append a Monte Carlo point
+	 *
+	 * @param point the point
+	 * @return the index of the point
+	 */
+	public long append(MonteCarloPoint point) {
+		long key = (point.fiveplet == null) ? PatchKey.NONE : PatchKey.pack(point.fiveplet);
+		return append(point.thetaPhi.getTheta(), point.thetaPhi.getPhi(), point.body, key);
+	}
+
+	// the chunk holding a point
+	private ByteBuffer chunk(long index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Point " + index + " of " + size);
+		}
+		return chunks[(int) (index >>> chunkBits)];
+	}
+
+	// the offset of a point in its chunk
+	private int offset(long index) {
+		return (int) ((index & chunkMask) * recordBytes);
+	}
+
+	/**
+	 * Get the polar angle of a point
+	 *
+	 * @param index the index of the point
+	 * @return the (global) polar angle
+	 */
+	public double getTheta(long index) {
+		ByteBuffer chunk = chunk(index);
+		int offset = offset(index);
+		switch (encoding) {
+		case FIXED32:
+			return DirectionCodec.decodeTheta(chunk.getInt(offset + FIXED_THETA));
+		case OCTAHEDRAL:
+			double[] u = new double[3];
+			DirectionCodec.decodeOctahedral(chunk.getInt(offset + OCT_DIRECTION), u);
+			return Math.acos(Math.max(-1, Math.min(1, u[2])));
+		default:
+			return chunk.getDouble(offset + THETA);
+		}
+	}
+
+	/**
+	 * Get the azimuthal angle of a point
+	 *
+	 * @param index the index of the point
+	 * @return the (global) azimuthal angle
+	 */
+	public double getPhi(long index) {
+		ByteBuffer chunk = chunk(index);
+		int offset = offset(index);
+		switch (encoding) {
+		case FIXED32:
+			return DirectionCodec.decodePhi(chunk.getInt(offset + FIXED_PHI));
+		case OCTAHEDRAL:
+			double[] u = new double[3];
+			DirectionCodec.decodeOctahedral(chunk.getInt(offset + OCT_DIRECTION), u);
+			return Math.atan2(u[1], u[0]);
+		default:
+			return chunk.getDouble(offset + PHI);
+		}
+	}
+
+	/**
+	 * Get the (global) direction of a point as a unit vector. For the octahedral
+	 * encoding this needs no trig, so it is the fast way to read points for
+	 * drawing.
+	 *
+	 * @param index the index of the point
+	 * @param u     on return the unit vector
+	 */
+	public void getDirection(long index, double[] u) {
+		if (encoding == EPointEncoding.OCTAHEDRAL) {
+			DirectionCodec.decodeOctahedral(chunk(index).getInt(offset(index) + OCT_DIRECTION), u);
+			return;
+		}
+		double theta = getTheta(index);
+		double phi = getPhi(index);
+		double sinTheta = Math.sin(theta);
+		u[0] = sinTheta * Math.cos(phi);
+		u[1] = sinTheta * Math.sin(phi);
+		u[2] = Math.cos(theta);
+	}
+
+	/**
+	 * Get the packed patch key of a point
+	 *
+	 * @param index the index of the point
+	 * @return the key, or {@link PatchKey#NONE} if the point is hidden
+	 */
+	public long getKey(long index) {
+		long key = chunk(index).getLong(offset(index) + keyOffset);
+		return PatchKey.isHidden(key) ? PatchKey.NONE : key;
+	}
+
+	/**
+	 * Get the spherical component of a point
+	 *
+	 * @param index the index of the point
+	 * @return the body index
+	 */
+	public int getBody(long index) {
+		if (encoding == EPointEncoding.DOUBLE) {
+			return chunk(index).getInt(offset(index) + BODY);
+		}
+		return PatchKey.nbody(chunk(index).getLong(offset(index) + keyOffset));
+	}
+
+	/**
+	 * Record the master seed of the run that generates the points. It is saved
+	 * in the file header by {@link #flush()}.
+	 *
+	 * @param seed the master seed
+	 * @see RandomStreams
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		hasSeed = true;
+	}
+
+	/**
+	 * Get the recorded master seed
+	 *
+	 * @return the seed, or <code>null</code> if none was recorded
+	 */
+	public Long getSeed() {
+		return hasSeed ? seed : null;
+	}
+
+	/**
+	 * Get the direction encoding
+	 *
+	 * @return the encoding
+	 */
+	public EPointEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Get a point as a (heap) Monte Carlo point
+	 *
+	 * @param index the index of the point
+	 * @return the point
+	 */
+	public MonteCarloPoint getPoint(long index) {
+		long key = getKey(index);
+		return new MonteCarloPoint(new ThetaPhi(getTheta(index), getPhi(index)), getBody(index),
+				(key == PatchKey.NONE) ? null : PatchKey.toFiveplet(key));
+	}
+
+	/**
+	 * Get the number of points
+	 *
+	 * @return the number of points
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of points the store holds before it adds a chunk
+	 *
+	 * @return the capacity
+	 */
+	public long getCapacity() {
+		return (long) chunks.length << chunkBits;
+	}
+
+	/**
+	 * Count the points in each patch
+	 *
+	 * @return the patch histogram, without the hidden points
+	 */
+	public LongCountMap countPatches() {
+		LongCountMap counts = new LongCountMap();
+		long n = size;
+		ByteBuffer[] snapshot = chunks;
+		for (long i = 0; i < n; i++) {
+			long key = snapshot[(int) (i >>> chunkBits)].getLong(offset(i) + keyOffset);
+			if (!PatchKey.isHidden(key)) {
+				counts.increment(key);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Count the points in each patch with a counter that spills sorted runs to
+	 * disk, for grids so fine that the histogram does not fit in memory
+	 *
+	 * @param counter the counter, which gets the key of every visible point
+	 */
+	public void countPatches(ExternalLongCounter counter) {
+		long n = size;
+		ByteBuffer[] snapshot = chunks;
+		for (long i = 0; i < n; i++) {
+			long key = snapshot[(int) (i >>> chunkBits)].getLong(offset(i) + keyOffset);
+			if (!PatchKey.isHidden(key)) {
+				counter.increment(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove all points and the recorded seed. An in-memory store keeps its
+	 * first chunk for the next run and releases the others; readers still
+	 * holding them keep them until they are done. For a file-backed store the
+	 * file keeps its size until it is closed.
+	 */
+	public void clear() {
+		size = 0;
+		hasSeed = false;
+		if ((channel == null) && (chunks.length > 1)) {
+			chunks = Arrays.copyOf(chunks, 1);
+		}
+	}
+
+	/**
+	 * Write the point count to the file and force the mapped data to disk. Does
+	 * nothing for an in-memory store.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void flush() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		for (ByteBuffer chunk : chunks) {
+			((MappedByteBuffer) chunk).force();
+		}
+		writeHeader();
+		channel.force(true);
+	}
+
+	/**
+	 * Get the backing file
+	 *
+	 * @return the file, or <code>null</code> for an in-memory store
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Close the store. A file-backed store is flushed and trimmed to its points;
+	 * the memory of an in-memory store is released when it is no longer
+	 * referenced.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (channel != null) {
+			flush();
+			chunks = new ByteBuffer[0];
+			channel.truncate(HEADER_BYTES + size * recordBytes);
+			channel.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path file = Files.createTempFile("chimera", ".pts");
+		long numPoints = 5000000;
+
+		List<Long> keys = new ArrayList<>();
+		long start = System.nanoTime();
+		try (PointStore store = create(file)) {
+			for (long i = 0; i < numPoints; i++) {
+				double theta = Math.PI * ((i * 0.6180339887) % 1.0);
+				double phi = -Math.PI + 2 * Math.PI * ((i * 0.7548776662) % 1.0);
+				long key = (i % 1000 == 0) ? PatchKey.NONE : PatchKey.pack((int) (i % 97), 1, 2, 0, 3, (int) (i % 31), 0);
+				store.append(theta, phi, 0, key);
+				if (i % 1000003 == 0) {
+					keys.add(key);
+				}
+			}
+		}
+		double writeTime = (System.nanoTime() - start) / 1.0e9;
+
+		start = System.nanoTime();
+		try (PointStore store = open(file)) {
+			LongCountMap counts = store.countPatches();
+			double readTime = (System.nanoTime() - start) / 1.0e9;
+			boolean same = true;
+			for (int k = 0; k < keys.size(); k++) {
+				same &= store.getKey(k * 1000003L) == keys.get(k);
+			}
+			System.out.printf("wrote %d points (%d MB) in %.2f s, reopened and counted in %.2f s%n", numPoints,
+					Files.size(file) >> 20, writeTime, readTime);
+			System.out.printf("size after reopen %d, %d patches with %d points, spot checks match: %b%n", store.size(),
+					counts.size(), counts.getTotal(), same);
+			System.out.println("point 12345: " + store.getPoint(12345));
+		}
+		Files.delete(file);
+
+		// the compact encodings against the double angles, on real points
+		ChimeraGrid grid = new ChimeraGrid(new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0),
+				new SphericalGrid(97, 65, 1, 0.3, 0.2));
+		List<MonteCarloPoint> points = MonteCarlo.generate(grid, 1000000, EVarianceReduction.NONE, new Random(1));
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		int[] cell = new int[2];
+		int[] decodedCell = new int[2];
+		double[] u = new double[3];
+		double[] v = new double[3];
+		// clearing releases the memory of all but the first chunk
+		try (PointStore store = inMemory(16)) {
+			for (MonteCarloPoint point : points) {
+				store.append(point);
+			}
+			long capacity = store.getCapacity();
+			store.clear();
+			System.out.printf("in-memory capacity %d points, %d after clear%n", capacity, store.getCapacity());
+		}
+
+		for (EPointEncoding encoding : EPointEncoding.values()) {
+			try (PointStore store = inMemory(encoding)) {
+				for (MonteCarloPoint point : points) {
+					store.append(point);
+				}
+				double maxError = 0;
+				int moved = 0;
+				for (int i = 0; i < points.size(); i++) {
+					ThetaPhi tp = points.get(i).thetaPhi;
+					double sinTheta = Math.sin(tp.getTheta());
+					u[0] = sinTheta * Math.cos(tp.getPhi());
+					u[1] = sinTheta * Math.sin(tp.getPhi());
+					u[2] = Math.cos(tp.getTheta());
+					store.getDirection(i, v);
+					double dot = Math.min(1, u[0] * v[0] + u[1] * v[1] + u[2] * v[2]);
+					double cx = u[1] * v[2] - u[2] * v[1];
+					double cy = u[2] * v[0] - u[0] * v[2];
+					double cz = u[0] * v[1] - u[1] * v[0];
+					maxError = Math.max(maxError, Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), dot));
+
+					// would the decoded direction land in another spherical cell?
+					sgrid.getIndices(tp, cell);
+					sgrid.getIndices(new ThetaPhi(store.getTheta(i), store.getPhi(i)), decodedCell);
+					if (cell[0] != decodedCell[0] || cell[1] != decodedCell[1]) {
+						moved++;
+					}
+				}
+				LongCountMap counts = store.countPatches();
+				System.out.printf("%-30s %2d bytes/point, max error %.2e rad, %d of %d re-binned to another cell, %d patches%n",
+						encoding.getName(), encoding.getRecordBytes(), maxError, moved, points.size(), counts.size());
+			}
+		}
+	}
+}
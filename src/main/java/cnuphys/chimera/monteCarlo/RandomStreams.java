@@ -0,0 +1,184 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Reproducible random number streams for the Monte Carlo engine. A run is cut
+ * into chunks of {@link #CHUNK_SIZE} points, and chunk c draws from its own
+ * {@link SplittableRandom} seeded from the master seed and c alone. Which
+ * thread handles a chunk, and when, does not change its numbers, so a run
+ * gives bit-identical results for any number of threads and can be repeated
+ * from its master seed.
+ * <p>
+ * The chunk seeds are the SplitMix64 sequence of the master seed, the same
+ * mixing SplittableRandom uses for its own splits, so the streams are
+ * statistically independent.
+ */
+public class RandomStreams {
+
+	/** The number of points drawn from one stream. Even, so antithetic pairs never straddle two streams. */
+	public static final int CHUNK_SIZE = 1 << 16;
+
+	// the SplitMix64 increment
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	// the master seed
+	private final long masterSeed;
+
+	/**
+	 * Create the streams for a master seed
+	 *
+	 * @param masterSeed the master seed
+	 */
+	public RandomStreams(long masterSeed) {
+		this.masterSeed = masterSeed;
+	}
+
+	/**
+	 * Create a fresh master seed, for runs where the user did not give one
+	 *
+	 * @return a seed
+	 */
+	public static long newSeed() {
+		return mix64(System.nanoTime() ^ Double.doubleToLongBits(Math.random()));
+	}
+
+	/**
+	 * Get the master seed
+	 *
+	 * @return the master seed
+	 */
+	public long getMasterSeed() {
+		return masterSeed;
+	}
+
+	/**
+	 * Get the stream of a chunk. Each call returns a new generator at the start
+	 * of the stream.
+	 *
+	 * @param chunk the chunk index
+	 * @return the generator for the chunk
+	 */
+	public Random stream(long chunk) {
+		return new SplitRandom(new SplittableRandom(mix64(masterSeed + (chunk + 1) * GOLDEN_GAMMA)));
+	}
+
+	/**
+	 * Get the number of chunks needed for a number of points
+	 *
+	 * @param numPoints the number of points
+	 * @return the number of chunks
+	 */
+	public static long numChunks(long numPoints) {
+		return (numPoints + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	// the SplitMix64 finalizer
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public String toString() {
+		return "RandomStreams [seed = " + masterSeed + "]";
+	}
+
+	// check that two histograms have the same keys and counts
+	private static boolean same(LongCountMap a, LongCountMap b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (long key : a.sortedKeys()) {
+			if (a.get(key) != b.get(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, new SphericalGrid(49, 33, 1, 0.3, 0.2));
+		long numPoints = 1000000;
+		long seed = 20240601L;
+
+		LongCountMap reference = null;
+		for (int numThreads : new int[] { 1, 2, 4, 8 }) {
+			long start = System.nanoTime();
+			LongCountMap counts = MonteCarlo.countPatches(grid, numPoints, EVarianceReduction.BOTH,
+					UniformDirectionSampler.INSTANCE, new RandomStreams(seed), numThreads);
+			double time = (System.nanoTime() - start) / 1.0e9;
+			if (reference == null) {
+				reference = counts;
+			}
+			System.out.printf("seed %d, %d threads: %d patches, %d points, %.2f s, identical to 1 thread: %b%n", seed,
+					numThreads, counts.size(), counts.getTotal(), time, same(counts, reference));
+		}
+
+		LongCountMap other = MonteCarlo.countPatches(grid, numPoints, EVarianceReduction.BOTH,
+				UniformDirectionSampler.INSTANCE, new RandomStreams(seed + 1), 4);
+		System.out.printf("seed %d: identical to seed %d: %b%n", seed + 1, seed, same(other, reference));
+	}
+
+	/**
+	 * A java.util.Random view of a SplittableRandom, so the streams can be used
+	 * wherever the engine takes a Random. Not thread safe; each chunk has its
+	 * own.
+	 */
+	@SuppressWarnings("serial")
+	private static class SplitRandom extends Random {
+
+		// the source; null while the superclass constructor runs
+		private final SplittableRandom source;
+
+		private SplitRandom(SplittableRandom source) {
+			this.source = source;
+		}
+
+		@Override
+		public synchronized void setSeed(long seed) {
+			// the seed is fixed by the source; called once by the Random constructor
+			if (source != null) {
+				throw new UnsupportedOperationException("A random stream cannot be reseeded.");
+			}
+		}
+
+		@Override
+		protected int next(int bits) {
+			return source.nextInt() >>> (32 - bits);
+		}
+
+		@Override
+		public int nextInt() {
+			return source.nextInt();
+		}
+
+		@Override
+		public int nextInt(int bound) {
+			return source.nextInt(bound);
+		}
+
+		@Override
+		public long nextLong() {
+			return source.nextLong();
+		}
+
+		@Override
+		public double nextDouble() {
+			return source.nextDouble();
+		}
+
+		@Override
+		public boolean nextBoolean() {
+			return source.nextBoolean();
+		}
+	}
+}
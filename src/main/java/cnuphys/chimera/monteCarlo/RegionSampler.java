@@ -0,0 +1,239 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.Grid1D;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphereBVH;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.grid.SphericalRegion;
+import cnuphys.chimera.grid.Symmetry;
+import cnuphys.chimera.remap.PatchAreas;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.Point3D;
+
+/**
+ * Refines the patch areas in a {@link SphericalRegion} by drawing extra samples
+ * only inside it. The cost is proportional to the solid angle of the region,
+ * not of the sphere.
+ * <p>
+ * Samples of the whole sphere that land in the region are uniform in the
+ * region, just like the extra samples, so the two are pooled there: a patch in
+ * the region gets (global count + region count) / (global samples in region +
+ * region samples) of the region area. Patches outside the region keep their
+ * global estimate.
+ */
+public class RegionSampler {
+
+	// Private constructor to prevent instantiation
+	private RegionSampler() {
+	}
+
+	/**
+	 * Sample uniformly in a region. Samples that are hidden inside another
+	 * spherical component or are outside the Cartesian grid are drawn but not
+	 * counted, as for the whole sphere.
+	 *
+	 * @param grid      the grid
+	 * @param region    the region
+	 * @param numPoints the number of points to draw
+	 * @param random    the random number generator
+	 * @return the number of points in each patch
+	 */
+	public static LongCountMap sample(ChimeraGrid grid, SphericalRegion region, long numPoints, Random random) {
+		int body = region.getBody();
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphereBVH bvh = (grid.getNumSphericalGrids() > 1) ? grid.getBVH() : null;
+		PatchKey.checkLimits(grid);
+
+		Grid1D thetaGrid = region.getThetaGrid();
+		Grid1D phiGrid = region.getPhiGrid();
+		int numPhiCells = region.getNumPhiCells();
+		double radius = sgrid.getRadius();
+
+		int[] cIndices = new int[3];
+		int[] stack = new int[SphereBVH.STACK_SIZE];
+		Point3D.Double dir = new Point3D.Double();
+		LongCountMap counts = new LongCountMap();
+
+		for (long i = 0; i < numPoints; i++) {
+			int cell = region.pickCell(random.nextDouble());
+			int nt = cell / numPhiCells;
+			int np = cell % numPhiCells;
+
+			// uniform in the cell: cos theta and phi are uniform
+			double cos1 = Math.cos(thetaGrid.getValue(nt));
+			double cos2 = Math.cos(thetaGrid.getValue(nt + 1));
+			double theta = Math.acos(cos1 + random.nextDouble() * (cos2 - cos1));
+			double p1 = phiGrid.getValue(np);
+			double phi = p1 + random.nextDouble() * (phiGrid.getValue(np + 1) - p1);
+
+			sgrid.localToGlobal(theta, phi, dir);
+			double x = sgrid.getXCenter() + radius * dir.x;
+			double y = sgrid.getYCenter() + radius * dir.y;
+			double z = sgrid.getZCenter() + radius * dir.z;
+
+			if (!cgrid.locate(x, y, z, cIndices)) {
+				continue;
+			}
+			if ((bvh != null) && (bvh.findContaining(x, y, z, body, stack) >= 0)) {
+				continue;
+			}
+			counts.increment(PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], 0, nt, np, body));
+		}
+		return counts;
+	}
+
+	/**
+	 * Merge region samples into the counts of samples of all the surfaces
+	 *
+	 * @param globalCounts         the counts of the samples of all the surfaces
+	 * @param globalPoints         the number of samples of all the surfaces
+	 * @param globalPointsInRegion the number of those samples that landed in the
+	 *                             region, counted or not
+	 * @param sampledArea          the area the global samples were drawn from
+	 * @param region               the region
+	 * @param regionCounts         the counts from
+	 *                             {@link #sample(ChimeraGrid, SphericalRegion, long, Random)}
+	 * @param regionPoints         the number of region samples
+	 * @return the patch areas
+	 */
+	public static PatchAreas merge(LongCountMap globalCounts, long globalPoints, long globalPointsInRegion,
+			double sampledArea, SphericalRegion region, LongCountMap regionCounts, long regionPoints) {
+		HashMap<Fiveplet, Double> areas = new HashMap<>();
+		double globalAreaPerPoint = (globalPoints > 0) ? sampledArea / globalPoints : 0;
+		long pooled = globalPointsInRegion + regionPoints;
+		double regionAreaPerPoint = (pooled > 0) ? region.getArea() / pooled : 0;
+
+		globalCounts.forEach((key, count) -> {
+			Fiveplet patch = PatchKey.toFiveplet(key);
+			if (!region.contains(patch)) {
+				areas.put(patch, count * globalAreaPerPoint);
+			}
+		});
+
+		LongCountMap inRegion = new LongCountMap();
+		globalCounts.forEach((key, count) -> {
+			if (region.contains(PatchKey.toFiveplet(key))) {
+				inRegion.add(key, count);
+			}
+		});
+		inRegion.addAll(regionCounts);
+		inRegion.forEach((key, count) -> areas.put(PatchKey.toFiveplet(key), count * regionAreaPerPoint));
+
+		return new PatchAreas(areas);
+	}
+
+	/**
+	 * Count the global samples that fall in a region, assuming every sample was
+	 * counted in some patch (a single spherical component inside the Cartesian
+	 * grid)
+	 *
+	 * @param globalCounts the counts of the global samples
+	 * @param region       the region
+	 * @return the number of samples in the region
+	 */
+	public static long countInRegion(LongCountMap globalCounts, SphericalRegion region) {
+		long[] sum = new long[1];
+		globalCounts.forEach((key, count) -> {
+			if (region.contains(PatchKey.toFiveplet(key))) {
+				sum[0] += count;
+			}
+		});
+		return sum[0];
+	}
+
+	/**
+	 * Refine the patch areas of a set of Monte Carlo points, which were drawn
+	 * uniformly over the surfaces of all the spherical components
+	 *
+	 * @param grid      the grid
+	 * @param points    the Monte Carlo points
+	 * @param region    the region to refine
+	 * @param numPoints the number of extra points to draw in the region
+	 * @param random    the random number generator
+	 * @return the patch areas
+	 */
+	public static PatchAreas refine(ChimeraGrid grid, List<MonteCarloPoint> points, SphericalRegion region,
+			long numPoints, Random random) {
+		SphericalGrid sgrid = grid.getSphericalGrid(region.getBody());
+		int[] sIndices = new int[2];
+		long inRegion = 0;
+		LongCountMap globalCounts = new LongCountMap();
+
+		for (MonteCarloPoint point : points) {
+			if (point.body == region.getBody()) {
+				sgrid.getIndices(point.thetaPhi, sIndices);
+				if (region.contains(sIndices[0], sIndices[1])) {
+					inRegion++;
+				}
+			}
+			if (point.fiveplet != null) {
+				globalCounts.increment(PatchKey.pack(point.fiveplet));
+			}
+		}
+
+		double sampledArea = 0;
+		for (int i = 0; i < grid.getNumSphericalGrids(); i++) {
+			sampledArea += grid.getSphericalGrid(i).getArea();
+		}
+
+		LongCountMap regionCounts = sample(grid, region, numPoints, random);
+		return merge(globalCounts, points.size(), inRegion, sampledArea, region, regionCounts, numPoints);
+	}
+
+	// root mean square difference over the patches of the reference in the region
+	private static double rmsError(PatchAreas areas, PatchAreas reference, SphericalRegion region) {
+		double sum = 0;
+		int n = 0;
+		for (Map.Entry<Fiveplet, Double> entry : reference.getAreas().entrySet()) {
+			if (region.contains(entry.getKey())) {
+				double diff = areas.getArea(entry.getKey()) - entry.getValue();
+				sum += diff * diff;
+				n++;
+			}
+		}
+		return Math.sqrt(sum / n);
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sgrid = new SphericalGrid(49, 33, 1, 0.3, 0.2);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, sgrid);
+		Symmetry none = new Symmetry(grid, 0);
+
+		// a 20 by 30 degree window
+		SphericalRegion region = SphericalRegion.fromWindow(grid, 0, Math.toRadians(60), Math.toRadians(80),
+				Math.toRadians(10), Math.toRadians(40));
+		double fraction = region.getSolidAngle() / (4 * Math.PI);
+		System.out.printf("%s, %.2f%% of the sphere%n", region, 100 * fraction);
+
+		long numPoints = 1000000;
+		PatchAreas reference = PatchAreas.fromKeyCounts(sample(grid, region, 20 * numPoints, new Random(1)),
+				20 * numPoints, region.getArea());
+
+		LongCountMap globalCounts = SymmetricSampler.sample(grid, none, numPoints, new Random(2));
+		long inRegion = countInRegion(globalCounts, region);
+		PatchAreas global = PatchAreas.fromKeyCounts(globalCounts, numPoints, sgrid.getArea());
+
+		long regionPoints = numPoints / 10;
+		long start = System.nanoTime();
+		LongCountMap regionCounts = sample(grid, region, regionPoints, new Random(3));
+		double time = (System.nanoTime() - start) / 1.0e9;
+		PatchAreas refined = merge(globalCounts, numPoints, inRegion, sgrid.getArea(), region, regionCounts,
+				regionPoints);
+
+		System.out.printf("global only: %d points, %d in region, rms error in region %.3e%n", numPoints, inRegion,
+				rmsError(global, reference, region));
+		System.out.printf("refined:     +%d region points (%.3f s), rms error in region %.3e%n", regionPoints, time,
+				rmsError(refined, reference, region));
+		System.out.printf("total area:  %.6f (sphere %.6f)%n", refined.getTotalArea(), sgrid.getArea());
+	}
+}
@@ -0,0 +1,168 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.List;
+
+import cnuphys.chimera.grid.PatchKey;
+
+/**
+ * A batch of classified Monte Carlo samples in primitive arrays, as published
+ * by a {@link SamplePublisher}. A batch is shared by all the subscribers and
+ * must not be modified; the array getters return the arrays themselves, for
+ * fast loops.
+ */
+public class SampleBatch {
+
+	// the samples
+	private final double[] theta;
+	private final double[] phi;
+	private final int[] body;
+	private final long[] keys;
+	private final int size;
+
+	// the index of the first sample in the run's point store
+	private final long firstIndex;
+
+	// the master seed of the run
+	private final long seed;
+
+	// true for the last batch of a run
+	private final boolean last;
+
+	/**
+	 * Create a batch
+	 *
+	 * @param theta      the (global) polar angles
+	 * @param phi        the (global) azimuthal angles
+	 * @param body       the spherical components
+	 * @param keys       the packed patch keys, {@link PatchKey#NONE} for hidden
+	 *                   samples
+	 * @param size       the number of samples, at most the array lengths
+	 * @param firstIndex the index of the first sample in the point store
+	 * @param seed       the master seed of the run
+	 * @param last       true if this is the last batch of the run
+	 */
+	public SampleBatch(double[] theta, double[] phi, int[] body, long[] keys, int size, long firstIndex, long seed,
+			boolean last) {
+		this.theta = theta;
+		this.phi = phi;
+		this.body = body;
+		this.keys = keys;
+		this.size = size;
+		this.firstIndex = firstIndex;
+		this.seed = seed;
+		this.last = last;
+	}
+
+	/**
+	 * Create a batch from Monte Carlo points
+	 *
+	 * @param points     the points
+	 * @param firstIndex the index of the first point in the point store
+	 * @param seed       the master seed of the run
+	 * @param last       true if this is the last batch of the run
+	 * @return the batch
+	 */
+	public static SampleBatch of(List<MonteCarloPoint> points, long firstIndex, long seed, boolean last) {
+		int n = points.size();
+		double[] theta = new double[n];
+		double[] phi = new double[n];
+		int[] body = new int[n];
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			MonteCarloPoint point = points.get(i);
+			theta[i] = point.thetaPhi.getTheta();
+			phi[i] = point.thetaPhi.getPhi();
+			body[i] = point.body;
+			keys[i] = (point.fiveplet == null) ? PatchKey.NONE : PatchKey.pack(point.fiveplet);
+		}
+		return new SampleBatch(theta, phi, body, keys, n, firstIndex, seed, last);
+	}
+
+	/**
+	 * Create an empty batch that ends a run, e.g. a cancelled one
+	 *
+	 * @param firstIndex the index the next sample would have had
+	 * @param seed       the master seed of the run
+	 * @return the batch
+	 */
+	public static SampleBatch end(long firstIndex, long seed) {
+		return new SampleBatch(new double[0], new double[0], new int[0], new long[0], 0, firstIndex, seed, true);
+	}
+
+	/**
+	 * Get the number of samples
+	 *
+	 * @return the number of samples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the (global) polar angles. Do not modify.
+	 *
+	 * @return the polar angles
+	 */
+	public double[] getTheta() {
+		return theta;
+	}
+
+	/**
+	 * Get the (global) azimuthal angles. Do not modify.
+	 *
+	 * @return the azimuthal angles
+	 */
+	public double[] getPhi() {
+		return phi;
+	}
+
+	/**
+	 * Get the spherical components. Do not modify.
+	 *
+	 * @return the body indices
+	 */
+	public int[] getBody() {
+		return body;
+	}
+
+	/**
+	 * Get the packed patch keys. Do not modify.
+	 *
+	 * @return the keys, {@link PatchKey#NONE} for hidden samples
+	 */
+	public long[] getKeys() {
+		return keys;
+	}
+
+	/**
+	 * Get the index of the first sample in the point store of the run
+	 *
+	 * @return the index
+	 */
+	public long getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * Get the master seed of the run
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Check whether this is the last batch of a run
+	 *
+	 * @return <code>true</code> for the last batch
+	 */
+	public boolean isLast() {
+		return last;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SampleBatch [%d samples from %d%s]", size, firstIndex, last ? ", last" : "");
+	}
+}
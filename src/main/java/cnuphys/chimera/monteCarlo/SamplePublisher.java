@@ -0,0 +1,109 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.StripedLongCountMap;
+
+/**
+ * Publishes the Monte Carlo samples of the engine, a {@link SampleBatch} per
+ * {@link RandomStreams} chunk, to any number of subscribers. Each subscriber
+ * runs on its own thread, concurrently with the sampling and with the other
+ * subscribers, and has a buffer of at most {@link #getMaxBufferCapacity()}
+ * batches. When a subscriber's buffer is full the producer waits, so a slow
+ * consumer (e.g. one writing to disk) throttles the run rather than memory
+ * growing without limit.
+ */
+public class SamplePublisher extends SubmissionPublisher<SampleBatch> {
+
+	/** The default number of batches buffered per subscriber */
+	public static final int DEFAULT_BUFFER = 8;
+
+	/**
+	 * Create a publisher with the default buffer
+	 */
+	public SamplePublisher() {
+		this(DEFAULT_BUFFER);
+	}
+
+	/**
+	 * Create a publisher
+	 *
+	 * @param bufferCapacity the most batches buffered per subscriber, rounded up
+	 *                       to a power of two
+	 */
+	public SamplePublisher(int bufferCapacity) {
+		super(createExecutor(), bufferCapacity);
+	}
+
+	// a daemon thread per active subscriber
+	private static ExecutorService createExecutor() {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "sample-subscriber-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChimeraGrid grid = new ChimeraGrid(new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0),
+				new SphericalGrid(49, 33, 1, 0.3, 0.2));
+		long numPoints = 2000000;
+
+		for (long delay : new long[] { 0, 250 }) {
+			JobScheduler scheduler = new JobScheduler(new ArrayList<>(), PointStore.inMemory(),
+					new StripedLongCountMap());
+			SamplePublisher publisher = scheduler.getSamplePublisher();
+
+			// a histogram and a compact file writer, optionally a slow one
+			HistogramSubscriber histogram = new HistogramSubscriber();
+			Path file = Files.createTempFile("chimera", ".pts");
+			PointStore disk = PointStore.create(file, EPointEncoding.OCTAHEDRAL);
+			AtomicInteger maxLag = new AtomicInteger();
+			StoreSubscriber writer = new StoreSubscriber(disk) {
+				@Override
+				protected void accept(SampleBatch batch) {
+					maxLag.accumulateAndGet(publisher.estimateMaximumLag(), Math::max);
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					super.accept(batch);
+				}
+			};
+			publisher.subscribe(histogram);
+			publisher.subscribe(writer);
+
+			long start = System.nanoTime();
+			MonteCarloJob job = scheduler.submit(grid, numPoints, true, EVarianceReduction.NONE,
+					UniformDirectionSampler.INSTANCE, 7, null);
+			while (!job.isDone()) {
+				Thread.sleep(5);
+			}
+			double runTime = (System.nanoTime() - start) / 1.0e9;
+			publisher.close();
+			histogram.awaitCompletion();
+			writer.awaitCompletion();
+			double totalTime = (System.nanoTime() - start) / 1.0e9;
+
+			LongCountMap counts = histogram.getCounts();
+			System.out.printf(
+					"subscriber delay %3d ms/batch: run %.2f s, all done %.2f s, max lag %d batches (buffer %d), %d written, histogram total %d (%d patches)%n",
+					delay, runTime, totalTime, maxLag.get(), publisher.getMaxBufferCapacity(), disk.size(),
+					counts.getTotal(), counts.size());
+			disk.close();
+			Files.delete(file);
+		}
+	}
+}
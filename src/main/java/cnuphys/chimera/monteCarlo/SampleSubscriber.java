@@ -0,0 +1,82 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * A base for the subscribers of a {@link SamplePublisher}. It asks for one
+ * batch at a time, so a subscriber that falls behind fills its bounded buffer
+ * in the publisher and then holds up the producer, instead of letting the
+ * batches pile up in memory.
+ */
+public abstract class SampleSubscriber implements Flow.Subscriber<SampleBatch> {
+
+	// the subscription, set on subscribe
+	private volatile Flow.Subscription subscription;
+
+	// released when the stream ends
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Handle a batch. Called on one publisher thread at a time, in order.
+	 *
+	 * @param batch the batch; do not modify it
+	 */
+	protected abstract void accept(SampleBatch batch);
+
+	/**
+	 * Called once when the publisher is closed. Does nothing by default.
+	 */
+	protected void completed() {
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(SampleBatch batch) {
+		try {
+			accept(batch);
+		} finally {
+			subscription.request(1);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		throwable.printStackTrace();
+		done.countDown();
+	}
+
+	@Override
+	public void onComplete() {
+		try {
+			completed();
+		} finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Stop receiving batches
+	 */
+	public void cancel() {
+		Flow.Subscription s = subscription;
+		if (s != null) {
+			s.cancel();
+		}
+		done.countDown();
+	}
+
+	/**
+	 * Wait until the publisher is closed and every batch has been handled
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		done.await();
+	}
+}
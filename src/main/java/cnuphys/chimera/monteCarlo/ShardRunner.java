@@ -0,0 +1,238 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Runs a Monte Carlo run as shards in separate processes, on one machine or on
+ * several, with no shared service. Shard i of k counts the i-th of k disjoint
+ * ranges of the {@link RandomStreams} chunks of the run against the same grid
+ * and seed, and writes its {@link PatchHistogram}; merging the shard files
+ * gives exactly the histogram of the whole run. Commands:
+ *
+ * <pre>
+ * shard --points N --shards K --index I --seed S --out FILE [--grid FILE] [--mode MODE] [--threads T]
+ * merge --out FILE SHARD...
+ * info FILE...
+ * scale --points N [--processes 1,2,4] [--seed S] [--grid FILE]
+ * </pre>
+ *
+ * The grid file is written by {@link GridIO#write(Path, ChimeraGrid)}; without
+ * one the default grid is used. Directions are uniform. The scale command
+ * runs the same run as 1, 2, 4... local shard processes, checks that every
+ * merge is identical and reports the speedup.
+ */
+public class ShardRunner {
+
+	// Private constructor to prevent instantiation
+	private ShardRunner() {
+	}
+
+	/**
+	 * Count one shard of a run
+	 *
+	 * @param grid       the grid
+	 * @param numPoints  the number of points of the whole run
+	 * @param mode       the variance reduction mode
+	 * @param seed       the master seed
+	 * @param numShards  the number of shards of the run
+	 * @param index      the shard, from 0 to numShards - 1
+	 * @param numThreads the number of threads of this process
+	 * @return the histogram of the shard
+	 * @throws IOException          if the grid cannot be fingerprinted
+	 * @throws InterruptedException if interrupted while counting
+	 */
+	public static PatchHistogram runShard(ChimeraGrid grid, long numPoints, EVarianceReduction mode, long seed,
+			int numShards, int index, int numThreads) throws IOException, InterruptedException {
+		if ((index < 0) || (index >= numShards)) {
+			throw new IllegalArgumentException("Bad shard " + index + " of " + numShards);
+		}
+		long numChunks = RandomStreams.numChunks(numPoints);
+		long fromChunk = numChunks * index / numShards;
+		long toChunk = numChunks * (index + 1) / numShards;
+		IDirectionSampler sampler = UniformDirectionSampler.INSTANCE;
+		LongCountMap counts = MonteCarlo.countPatches(grid, numPoints, mode, sampler, new RandomStreams(seed),
+				fromChunk, toChunk, numThreads);
+		return new PatchHistogram(grid, seed, mode, sampler.getName(), numPoints, fromChunk, toChunk, counts);
+	}
+
+	/**
+	 * Merge shard files
+	 *
+	 * @param shards the shard files
+	 * @return the merged histogram
+	 * @throws IOException if a file cannot be read
+	 */
+	public static PatchHistogram mergeFiles(List<Path> shards) throws IOException {
+		List<PatchHistogram> histograms = new ArrayList<>();
+		for (Path shard : shards) {
+			histograms.add(PatchHistogram.read(shard));
+		}
+		return PatchHistogram.merge(histograms);
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			usage();
+		}
+		try {
+			Map<String, String> options = new HashMap<>();
+			List<String> files = new ArrayList<>();
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].startsWith("--")) {
+					if (i + 1 >= args.length) {
+						usage();
+					}
+					options.put(args[i].substring(2), args[++i]);
+				} else {
+					files.add(args[i]);
+				}
+			}
+
+			switch (args[0]) {
+			case "shard":
+				shard(options);
+				break;
+			case "merge":
+				merge(required(options, "out"), files);
+				break;
+			case "info":
+				for (String file : files) {
+					System.out.println(file + ": " + PatchHistogram.read(Path.of(file)));
+				}
+				break;
+			case "scale":
+				scale(options);
+				break;
+			default:
+				usage();
+			}
+		} catch (IOException | IllegalArgumentException | InterruptedException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// the shard command
+	private static void shard(Map<String, String> options) throws IOException, InterruptedException {
+		ChimeraGrid grid = options.containsKey("grid") ? GridIO.read(Path.of(options.get("grid")))
+				: ChimeraGrid.createDefault();
+		long numPoints = Long.parseLong(required(options, "points"));
+		int numShards = Integer.parseInt(required(options, "shards"));
+		int index = Integer.parseInt(required(options, "index"));
+		long seed = Long.parseLong(required(options, "seed"));
+		EVarianceReduction mode = EVarianceReduction.valueOf(options.getOrDefault("mode", "NONE"));
+		int numThreads = Integer.parseInt(
+				options.getOrDefault("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+		long start = System.nanoTime();
+		PatchHistogram histogram = runShard(grid, numPoints, mode, seed, numShards, index, numThreads);
+		histogram.write(Path.of(required(options, "out")));
+		System.out.printf("shard %d of %d: %s in %.2f s%n", index, numShards, histogram,
+				(System.nanoTime() - start) / 1.0e9);
+	}
+
+	// the merge command
+	private static void merge(String out, List<String> files) throws IOException {
+		if (files.isEmpty()) {
+			usage();
+		}
+		List<Path> shards = new ArrayList<>();
+		for (String file : files) {
+			shards.add(Path.of(file));
+		}
+		PatchHistogram merged = mergeFiles(shards);
+		merged.write(Path.of(out));
+		System.out.println("merged " + files.size() + " shards: " + merged
+				+ (merged.isComplete() ? "" : " (incomplete)"));
+	}
+
+	// the scale command: the same run as more and more local processes
+	private static void scale(Map<String, String> options) throws IOException, InterruptedException {
+		long numPoints = Long.parseLong(required(options, "points"));
+		String seed = options.getOrDefault("seed", "1");
+		String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		String classPath = System.getProperty("java.class.path");
+		Path dir = Files.createTempDirectory("chimera-shards");
+
+		LongCountMap reference = null;
+		double baseTime = 0;
+		for (String p : options.getOrDefault("processes", "1,2,4").split(",")) {
+			int numShards = Integer.parseInt(p.trim());
+			List<Process> processes = new ArrayList<>();
+			List<Path> shards = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < numShards; i++) {
+				Path out = dir.resolve("shard-" + numShards + "-" + i + ".hst");
+				shards.add(out);
+				List<String> command = new ArrayList<>(List.of(java, "-Djava.awt.headless=true", "-cp", classPath,
+						ShardRunner.class.getName(), "shard", "--points", Long.toString(numPoints), "--shards",
+						Integer.toString(numShards), "--index", Integer.toString(i), "--seed", seed, "--threads",
+						"1", "--out", out.toString()));
+				if (options.containsKey("grid")) {
+					command.add("--grid");
+					command.add(options.get("grid"));
+				}
+				processes.add(new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+						.redirectError(ProcessBuilder.Redirect.INHERIT).start());
+			}
+			for (Process process : processes) {
+				if (process.waitFor() != 0) {
+					throw new IOException("A shard process failed.");
+				}
+			}
+			PatchHistogram merged = mergeFiles(shards);
+			double time = (System.nanoTime() - start) / 1.0e9;
+
+			LongCountMap counts = merged.getCounts();
+			boolean same = true;
+			if (reference == null) {
+				reference = counts;
+				baseTime = time;
+			} else {
+				same = reference.size() == counts.size();
+				for (long key : reference.sortedKeys()) {
+					same &= reference.get(key) == counts.get(key);
+				}
+			}
+			System.out.printf("%2d processes: %.2f s, speedup %.2f, %d points, %d patches, complete %b, same as first: %b%n",
+					numShards, time, baseTime / time, merged.getPointsCounted(), counts.size(), merged.isComplete(),
+					same);
+			for (Path shard : shards) {
+				Files.delete(shard);
+			}
+		}
+		Files.delete(dir);
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processors available");
+	}
+
+	// an option that must be given
+	private static String required(Map<String, String> options, String name) {
+		String value = options.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing --" + name);
+		}
+		return value;
+	}
+
+	private static void usage() {
+		String name = ShardRunner.class.getName();
+		System.err.println("Usage:");
+		System.err.println("  " + name
+				+ " shard --points N --shards K --index I --seed S --out FILE [--grid FILE] [--mode MODE] [--threads T]");
+		System.err.println("  " + name + " merge --out FILE SHARD...");
+		System.err.println("  " + name + " info FILE...");
+		System.err.println("  " + name + " scale --points N [--processes 1,2,4] [--seed S] [--grid FILE]");
+		System.err.println("MODE is one of NONE, CONTROL_VARIATE, BOTH");
+		System.exit(2);
+	}
+}
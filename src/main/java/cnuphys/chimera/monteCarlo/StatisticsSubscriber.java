@@ -0,0 +1,57 @@
+package cnuphys.chimera.monteCarlo;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+
+/**
+ * Accumulates the {@link PatchStatistics} (count, centroid and spread of the
+ * sample positions in each patch) of the published samples while the run
+ * goes on. Hidden samples are skipped.
+ */
+public class StatisticsSubscriber extends SampleSubscriber {
+
+	// the grid the runs classify against, for the sample positions
+	private final ChimeraGrid grid;
+
+	// the statistics, guarded by this
+	private final PatchStatistics statistics = new PatchStatistics();
+
+	/**
+	 * Create a subscriber
+	 *
+	 * @param grid the grid of the runs it will receive; a snapshot is kept, so
+	 *             later edits do not move the samples
+	 */
+	public StatisticsSubscriber(ChimeraGrid grid) {
+		this.grid = grid.snapshot();
+	}
+
+	@Override
+	protected synchronized void accept(SampleBatch batch) {
+		double[] theta = batch.getTheta();
+		double[] phi = batch.getPhi();
+		int[] body = batch.getBody();
+		long[] keys = batch.getKeys();
+		for (int i = 0; i < batch.size(); i++) {
+			if (keys[i] != PatchKey.NONE) {
+				SphericalGrid sgrid = grid.getSphericalGrid(body[i]);
+				double r = sgrid.getRadius();
+				double sinTheta = Math.sin(theta[i]);
+				statistics.add(keys[i], sgrid.getXCenter() + r * sinTheta * Math.cos(phi[i]),
+						sgrid.getYCenter() + r * sinTheta * Math.sin(phi[i]), sgrid.getZCenter() + r * Math.cos(theta[i]));
+			}
+		}
+	}
+
+	/**
+	 * Get a copy of the statistics so far
+	 *
+	 * @return the statistics of each patch
+	 */
+	public synchronized PatchStatistics getStatistics() {
+		PatchStatistics copy = new PatchStatistics(statistics.size());
+		copy.merge(statistics);
+		return copy;
+	}
+}
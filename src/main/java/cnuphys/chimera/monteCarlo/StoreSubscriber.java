@@ -0,0 +1,43 @@
+package cnuphys.chimera.monteCarlo;
+
+/**
+ * Appends the published samples to a {@link PointStore}, e.g. a file-backed
+ * one in a compact encoding, while the run goes on.
+ */
+public class StoreSubscriber extends SampleSubscriber {
+
+	// where the samples go
+	private final PointStore store;
+
+	/**
+	 * Create a subscriber
+	 *
+	 * @param store the store to append to; the caller closes it
+	 */
+	public StoreSubscriber(PointStore store) {
+		this.store = store;
+	}
+
+	@Override
+	protected void accept(SampleBatch batch) {
+		double[] theta = batch.getTheta();
+		double[] phi = batch.getPhi();
+		int[] body = batch.getBody();
+		long[] keys = batch.getKeys();
+		if ((store.size() == 0) && (batch.size() > 0)) {
+			store.setSeed(batch.getSeed());
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			store.append(theta[i], phi[i], body[i], keys[i]);
+		}
+	}
+
+	/**
+	 * Get the store
+	 *
+	 * @return the store
+	 */
+	public PointStore getStore() {
+		return store;
+	}
+}
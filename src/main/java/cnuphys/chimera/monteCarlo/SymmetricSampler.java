@@ -0,0 +1,157 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Map;
+import java.util.Random;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.grid.Symmetry;
+import cnuphys.chimera.remap.PatchAreas;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Estimates the surface patch areas of the primary spherical component by
+ * sampling only the fundamental domain of the grid's {@link Symmetry} and
+ * unfolding the counts onto the full patch table. For the default grid (a
+ * sphere at the center of a symmetric Cartesian grid, no rotation) the group
+ * has order 8, so one octant is sampled and each sample stands for eight.
+ */
+public class SymmetricSampler {
+
+	// Private constructor to prevent instantiation
+	private SymmetricSampler() {
+	}
+
+	/**
+	 * Sample the fundamental domain and unfold the counts
+	 *
+	 * @param grid      the grid
+	 * @param symmetry  the symmetry group, e.g. from
+	 *                  {@link Symmetry#detect(ChimeraGrid)}
+	 * @param numPoints the number of points to draw in the fundamental domain
+	 * @param random    the random number generator
+	 * @return the counts for the whole sphere, totaling numPoints times the order
+	 *         of the group (less any points outside the Cartesian grid)
+	 */
+	public static LongCountMap sample(ChimeraGrid grid, Symmetry symmetry, long numPoints, Random random) {
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		PatchKey.checkLimits(grid);
+
+		double radius = sgrid.getRadius();
+		double xc = sgrid.getXCenter();
+		double yc = sgrid.getYCenter();
+		double zc = sgrid.getZCenter();
+
+		double[] dir = new double[3];
+		int[] sIndices = new int[3];
+		int[] cIndices = new int[3];
+		LongCountMap counts = new LongCountMap();
+
+		for (long i = 0; i < numPoints; i++) {
+			double cosTheta = 2 * random.nextDouble() - 1;
+			double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+			double phi = 2 * Math.PI * random.nextDouble();
+			dir[0] = sinTheta * Math.cos(phi);
+			dir[1] = sinTheta * Math.sin(phi);
+			dir[2] = cosTheta;
+			symmetry.fold(dir);
+
+			double x = xc + radius * dir[0];
+			double y = yc + radius * dir[1];
+			double z = zc + radius * dir[2];
+			if (!cgrid.locate(x, y, z, cIndices)) {
+				continue;
+			}
+			sgrid.getIndices(x, y, z, sIndices);
+			counts.increment(PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], 0, sIndices[1], sIndices[2], 0));
+		}
+		return symmetry.unfold(counts);
+	}
+
+	/**
+	 * Estimate the patch areas, detecting the symmetry of the grid
+	 *
+	 * @param grid      the grid
+	 * @param numPoints the number of points to draw in the fundamental domain
+	 * @param random    the random number generator
+	 * @return the patch areas
+	 */
+	public static PatchAreas patchAreas(ChimeraGrid grid, long numPoints, Random random) {
+		Symmetry symmetry = Symmetry.detect(grid);
+		LongCountMap counts = sample(grid, symmetry, numPoints, random);
+		return PatchAreas.fromKeyCounts(counts, numPoints * symmetry.getOrder(), grid.getSphericalGrid().getArea());
+	}
+
+	// root mean square difference over the patches of the reference
+	private static double rmsError(PatchAreas areas, PatchAreas reference) {
+		double sum = 0;
+		for (Map.Entry<Fiveplet, Double> entry : reference.getAreas().entrySet()) {
+			double diff = areas.getArea(entry.getKey()) - entry.getValue();
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum / reference.size());
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sgrid = new SphericalGrid(49, 33, 1, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, sgrid);
+
+		Symmetry symmetry = Symmetry.detect(grid);
+		System.out.println(symmetry);
+
+		// the mirror image of a point must land in the mirror image patch
+		Random random = new Random(7);
+		Symmetry trivial = new Symmetry(grid, 0);
+		int[] cIndices = new int[3];
+		int[] sIndices = new int[3];
+		int mismatches = 0;
+		for (int i = 0; i < 100000; i++) {
+			double[] p = { 2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1 };
+			int element = random.nextInt(8) & symmetry.getGenerators();
+			long key = key(grid, p[0], p[1], p[2], cIndices, sIndices);
+			double mx = ((element & Symmetry.MIRROR_X) != 0) ? -p[0] : p[0];
+			double my = ((element & Symmetry.MIRROR_Y) != 0) ? -p[1] : p[1];
+			double mz = ((element & Symmetry.MIRROR_Z) != 0) ? -p[2] : p[2];
+			if (symmetry.apply(key, element) != key(grid, mx, my, mz, cIndices, sIndices)) {
+				mismatches++;
+			}
+		}
+		System.out.println("mirror image mismatches: " + mismatches);
+
+		long numPoints = 8000000;
+		int order = symmetry.getOrder();
+		PatchAreas reference = PatchAreas.fromKeyCounts(sample(grid, symmetry, 8 * numPoints, new Random(1)),
+				8 * numPoints * order, sgrid.getArea());
+
+		long start = System.nanoTime();
+		PatchAreas full = PatchAreas.fromKeyCounts(sample(grid, trivial, numPoints, new Random(2)), numPoints,
+				sgrid.getArea());
+		double fullTime = (System.nanoTime() - start) / 1.0e9;
+
+		start = System.nanoTime();
+		PatchAreas folded = patchAreas(grid, numPoints / order, new Random(3));
+		double foldedTime = (System.nanoTime() - start) / 1.0e9;
+
+		System.out.printf("full sphere, %d points: %.3f s, %d patches, rms error %.3e%n", numPoints, fullTime,
+				full.size(), rmsError(full, reference));
+		System.out.printf("fundamental, %d points: %.3f s, %d patches, rms error %.3e, total area %.12f%n",
+				numPoints / order, foldedTime, folded.size(), rmsError(folded, reference), folded.getTotalArea());
+	}
+
+	// the packed key of the patch containing a point (relative to the center)
+	private static long key(ChimeraGrid grid, double dx, double dy, double dz, int[] cIndices, int[] sIndices) {
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		double r = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		double x = sgrid.getXCenter() + dx / r;
+		double y = sgrid.getYCenter() + dy / r;
+		double z = sgrid.getZCenter() + dz / r;
+		grid.getCartesianGrid().getIndices(x, y, z, cIndices);
+		sgrid.getIndices(x, y, z, sIndices);
+		return PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], 0, sIndices[1], sIndices[2], 0);
+	}
+}
@@ -0,0 +1,187 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+
+import cnuphys.chimera.util.AliasTable;
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * Directions drawn from a tabulated distribution on a (theta, phi) grid of
+ * bins, such as a binned detector acceptance. A bin is chosen in constant time
+ * with an {@link AliasTable}, then the direction is uniform in solid angle
+ * within the bin (cos theta and phi uniform), so there are no rejection loops.
+ * A draw costs two uniform random numbers, the same as a uniform direction.
+ * Bins are uniform in theta over [0, &pi;] and in phi over [-&pi;, &pi;].
+ */
+public class TabulatedDirectionSampler implements IDirectionSampler {
+
+	// the bin table
+	private final AliasTable table;
+
+	// the number of bins
+	private final int numThetaBins;
+	private final int numPhiBins;
+
+	// cos theta at the low edge of each theta bin and its change across the bin
+	private final double[] cosLow;
+	private final double[] cosDelta;
+
+	// the phi bin width
+	private final double phiDel;
+
+	// for display
+	private final String name;
+
+	// the hash of the binning and the table
+	private final long fingerprint;
+
+	/**
+	 * Create a sampler from bin weights
+	 *
+	 * @param name         a name for the distribution
+	 * @param numThetaBins the number of theta bins
+	 * @param numPhiBins   the number of phi bins
+	 * @param weights      the relative probability of each bin, indexed by
+	 *                     thetaBin * numPhiBins + phiBin
+	 */
+	public TabulatedDirectionSampler(String name, int numThetaBins, int numPhiBins, double[] weights) {
+		if (numThetaBins < 1 || numPhiBins < 1) {
+			throw new IllegalArgumentException("There must be at least one bin in each direction.");
+		}
+		if (weights.length != numThetaBins * numPhiBins) {
+			throw new IllegalArgumentException(
+					"Expected " + (numThetaBins * numPhiBins) + " weights, got " + weights.length);
+		}
+		this.name = name;
+		this.numThetaBins = numThetaBins;
+		this.numPhiBins = numPhiBins;
+		table = new AliasTable(weights);
+		fingerprint = 31 * (31L * numThetaBins + numPhiBins) + table.fingerprint();
+
+		double thetaDel = Math.PI / numThetaBins;
+		phiDel = 2 * Math.PI / numPhiBins;
+		cosLow = new double[numThetaBins];
+		cosDelta = new double[numThetaBins];
+		for (int i = 0; i < numThetaBins; i++) {
+			cosLow[i] = Math.cos(i * thetaDel);
+			cosDelta[i] = Math.cos((i + 1) * thetaDel) - cosLow[i];
+		}
+	}
+
+	/**
+	 * Create a sampler by tabulating a density per unit solid angle. The weight
+	 * of a bin is the density at its center times its solid angle; within a bin
+	 * the density is treated as constant.
+	 *
+	 * @param name         a name for the distribution
+	 * @param numThetaBins the number of theta bins
+	 * @param numPhiBins   the number of phi bins
+	 * @param density      the nonnegative density as a function of theta and phi
+	 * @return the sampler
+	 */
+	public static TabulatedDirectionSampler fromDensity(String name, int numThetaBins, int numPhiBins,
+			DoubleBinaryOperator density) {
+		double thetaDel = Math.PI / numThetaBins;
+		double phiDel = 2 * Math.PI / numPhiBins;
+		double[] weights = new double[numThetaBins * numPhiBins];
+		for (int i = 0; i < numThetaBins; i++) {
+			double theta = (i + 0.5) * thetaDel;
+			double solidAngle = (Math.cos(i * thetaDel) - Math.cos((i + 1) * thetaDel)) * phiDel;
+			for (int j = 0; j < numPhiBins; j++) {
+				double phi = -Math.PI + (j + 0.5) * phiDel;
+				weights[i * numPhiBins + j] = density.applyAsDouble(theta, phi) * solidAngle;
+			}
+		}
+		return new TabulatedDirectionSampler(name, numThetaBins, numPhiBins, weights);
+	}
+
+	/**
+	 * Create a sampler with density proportional to cos theta on the upper
+	 * hemisphere and zero below
+	 *
+	 * @param numThetaBins the number of theta bins
+	 * @param numPhiBins   the number of phi bins
+	 * @return the sampler
+	 */
+	public static TabulatedDirectionSampler cosTheta(int numThetaBins, int numPhiBins) {
+		return fromDensity("cos theta", numThetaBins, numPhiBins, (theta, phi) -> Math.max(0, Math.cos(theta)));
+	}
+
+	@Override
+	public void sample(Random random, ThetaPhi thetaPhi) {
+		// the bits of the alias draw left over give the position in cos theta
+		double u = random.nextDouble();
+		int bin = table.sample(u);
+		double fraction = table.getFraction(u, bin);
+		int i = bin / numPhiBins;
+		int j = bin - i * numPhiBins;
+
+		double cosTheta = cosLow[i] + fraction * cosDelta[i];
+		thetaPhi.setTheta(Math.acos(Math.max(-1, Math.min(1, cosTheta))));
+		thetaPhi.setPhi(-Math.PI + (j + random.nextDouble()) * phiDel);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Get the probability of a bin
+	 *
+	 * @param thetaBin the theta bin
+	 * @param phiBin   the phi bin
+	 * @return the probability
+	 */
+	public double getProbability(int thetaBin, int phiBin) {
+		return table.getProbability(thetaBin * numPhiBins + phiBin);
+	}
+
+	public static void main(String[] args) {
+		int numThetaBins = 180;
+		int numPhiBins = 360;
+		TabulatedDirectionSampler sampler = cosTheta(numThetaBins, numPhiBins);
+
+		int numSamples = 10000000;
+		Random random = new Random(1);
+		ThetaPhi thetaPhi = new ThetaPhi();
+		long[] thetaCounts = new long[numThetaBins];
+		double sumCos = 0;
+
+		long start = System.nanoTime();
+		for (int n = 0; n < numSamples; n++) {
+			sampler.sample(random, thetaPhi);
+			double theta = thetaPhi.getTheta();
+			sumCos += Math.cos(theta);
+			thetaCounts[Math.min(numThetaBins - 1, (int) (theta / Math.PI * numThetaBins))]++;
+		}
+		double time = (System.nanoTime() - start) / 1.0e9;
+
+		// chi square of the theta marginal against the table
+		double chi2 = 0;
+		int dof = 0;
+		for (int i = 0; i < numThetaBins; i++) {
+			double p = 0;
+			for (int j = 0; j < numPhiBins; j++) {
+				p += sampler.getProbability(i, j);
+			}
+			if (p > 0) {
+				double expected = p * numSamples;
+				chi2 += (thetaCounts[i] - expected) * (thetaCounts[i] - expected) / expected;
+				dof++;
+			} else if (thetaCounts[i] != 0) {
+				System.out.println("samples in an empty bin: " + i);
+			}
+		}
+
+		System.out.printf("%s: %.1f M samples/s%n", sampler.getName(), numSamples / time / 1.0e6);
+		System.out.printf("mean cos theta %.5f (exact 2/3 = %.5f)%n", sumCos / numSamples, 2.0 / 3.0);
+		System.out.printf("theta marginal chi square %.1f for %d bins%n", chi2, dof);
+	}
+}
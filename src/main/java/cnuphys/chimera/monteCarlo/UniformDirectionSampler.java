@@ -0,0 +1,33 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Random;
+
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * Directions uniform on the sphere, the default of the Monte Carlo engine
+ */
+public class UniformDirectionSampler implements IDirectionSampler {
+
+	/** The shared instance */
+	public static final UniformDirectionSampler INSTANCE = new UniformDirectionSampler();
+
+	// Private constructor, use INSTANCE
+	private UniformDirectionSampler() {
+	}
+
+	@Override
+	public void sample(Random random, ThetaPhi thetaPhi) {
+		ThetaPhi.setRandomThetaPhi(random, thetaPhi);
+	}
+
+	@Override
+	public boolean isUniform() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return "Uniform";
+	}
+}
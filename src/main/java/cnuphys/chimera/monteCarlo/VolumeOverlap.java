@@ -0,0 +1,311 @@
+package cnuphys.chimera.monteCarlo;
+
+import java.util.Random;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Grid1D;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphereBVH;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.LongCountMap;
+import cnuphys.chimera.util.LongDoubleMap;
+import cnuphys.chimera.util.Point3D;
+
+/**
+ * Estimates the volume overlaps between the cells of a spherical shell grid
+ * (one with a radial grid) and the Cartesian cells. The overlaps are keyed by
+ * the packed six index {@link PatchKey}. Parts of the shell that are hidden
+ * inside another spherical component, or that lie outside the Cartesian grid,
+ * are not counted.
+ */
+public class VolumeOverlap {
+
+	/** The default most times a sub-cell straddling a Cartesian face is split */
+	public static final int DEFAULT_MAX_REFINEMENT = 3;
+
+	// Private constructor to prevent instantiation
+	private VolumeOverlap() {
+	}
+
+	/**
+	 * Count Monte Carlo points distributed uniformly in the volume of the shell
+	 *
+	 * @param grid      the grid
+	 * @param body      the index of the spherical component, which must be a shell
+	 * @param numPoints the number of points
+	 * @param random    the random number generator
+	 * @return the number of points in each overlap
+	 */
+	public static LongCountMap sample(ChimeraGrid grid, int body, long numPoints, Random random) {
+		SphericalGrid sgrid = shell(grid, body);
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphereBVH bvh = (grid.getNumSphericalGrids() > 1) ? grid.getBVH() : null;
+		PatchKey.checkLimits(grid);
+
+		double r0 = sgrid.getRadialGrid().getVmin();
+		double r1 = sgrid.getRadialGrid().getVmax();
+		double r03 = r0 * r0 * r0;
+		double dr3 = r1 * r1 * r1 - r03;
+
+		double xc = sgrid.getXCenter();
+		double yc = sgrid.getYCenter();
+		double zc = sgrid.getZCenter();
+
+		int[] sIndices = new int[3];
+		int[] cIndices = new int[3];
+		int[] stack = new int[SphereBVH.STACK_SIZE];
+		LongCountMap counts = new LongCountMap();
+
+		for (long i = 0; i < numPoints; i++) {
+			// uniform in volume: r^3 is uniform, direction is uniform
+			double r = Math.cbrt(r03 + random.nextDouble() * dr3);
+			double cosTheta = 2 * random.nextDouble() - 1;
+			double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+			double phi = 2 * Math.PI * random.nextDouble();
+
+			double x = xc + r * sinTheta * Math.cos(phi);
+			double y = yc + r * sinTheta * Math.sin(phi);
+			double z = zc + r * cosTheta;
+
+			if (!cgrid.locate(x, y, z, cIndices)) {
+				continue;
+			}
+			if ((bvh != null) && (bvh.findContaining(x, y, z, body, stack) >= 0)) {
+				continue;
+			}
+
+			sgrid.getIndices(x, y, z, sIndices);
+			if (sIndices[0] < 0) {
+				continue;
+			}
+
+			counts.increment(PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], sIndices[0], sIndices[1],
+					sIndices[2], body));
+		}
+		return counts;
+	}
+
+	/**
+	 * Convert Monte Carlo counts into volumes
+	 *
+	 * @param grid      the grid
+	 * @param body      the index of the spherical component
+	 * @param counts    the counts from {@link #sample}
+	 * @param numPoints the number of points that were sampled
+	 * @return the volume of each overlap
+	 */
+	public static LongDoubleMap toVolumes(ChimeraGrid grid, int body, LongCountMap counts, long numPoints) {
+		double volumePerPoint = shell(grid, body).getShellVolume() / numPoints;
+		LongDoubleMap volumes = new LongDoubleMap(counts.size());
+		counts.forEach((key, count) -> volumes.add(key, count * volumePerPoint));
+		return volumes;
+	}
+
+	/**
+	 * Compute the overlaps deterministically, refining sub-cells that straddle a
+	 * Cartesian face up to {@link #DEFAULT_MAX_REFINEMENT} times
+	 *
+	 * @param grid         the grid
+	 * @param body         the index of the spherical component, which must be a
+	 *                     shell
+	 * @param subdivisions the number of subdivisions of each cell in each
+	 *                     direction
+	 * @return the volume of each overlap
+	 * @see #quadrature(ChimeraGrid, int, int, int)
+	 */
+	public static LongDoubleMap quadrature(ChimeraGrid grid, int body, int subdivisions) {
+		return quadrature(grid, body, subdivisions, DEFAULT_MAX_REFINEMENT);
+	}
+
+	/**
+	 * Compute the overlaps deterministically. Each shell cell is split into
+	 * subdivisions^3 sub-cells in (r, theta, phi). A sub-cell whose corners and
+	 * center are all in the same Cartesian cell (and all visible) lies in that
+	 * cell, and its exact volume, (r2^3 - r1^3)/3 (cos theta1 - cos theta2)(phi2
+	 * - phi1), goes to it. A sub-cell that straddles a Cartesian face, the edge
+	 * of the Cartesian grid or the surface of another spherical component is
+	 * split in two in each direction and the halves are tried again, so the
+	 * sub-cells are clipped at the faces to within the size of the finest
+	 * sub-cells. Only after maxRefinement splits is a straddling sub-cell given
+	 * to the Cartesian cell containing its center.
+	 *
+	 * @param grid          the grid
+	 * @param body          the index of the spherical component, which must be
+	 *                      a shell
+	 * @param subdivisions  the number of subdivisions of each cell in each
+	 *                      direction
+	 * @param maxRefinement the most times a straddling sub-cell is split; 0
+	 *                      gives every sub-cell to the cell at its center
+	 * @return the volume of each overlap
+	 */
+	public static LongDoubleMap quadrature(ChimeraGrid grid, int body, int subdivisions, int maxRefinement) {
+		SphericalGrid sgrid = shell(grid, body);
+		PatchKey.checkLimits(grid);
+		Refiner refiner = new Refiner(grid, sgrid, body, maxRefinement);
+
+		Grid1D rGrid = sgrid.getRadialGrid();
+		Grid1D thetaGrid = sgrid.getThetaGrid();
+		Grid1D phiGrid = sgrid.getPhiGrid();
+
+		for (int nr = 0; nr < rGrid.getNum() - 1; nr++) {
+			double ra = rGrid.getValue(nr);
+			double dr = (rGrid.getValue(nr + 1) - ra) / subdivisions;
+
+			for (int nt = 0; nt < thetaGrid.getNum() - 1; nt++) {
+				double ta = thetaGrid.getValue(nt);
+				double dt = (thetaGrid.getValue(nt + 1) - ta) / subdivisions;
+
+				for (int np = 0; np < phiGrid.getNum() - 1; np++) {
+					double pa = phiGrid.getValue(np);
+					double dp = (phiGrid.getValue(np + 1) - pa) / subdivisions;
+					long cellKey = PatchKey.pack(0, 0, 0, nr, nt, np, body);
+
+					for (int i = 0; i < subdivisions; i++) {
+						double r1 = ra + i * dr;
+						for (int j = 0; j < subdivisions; j++) {
+							double t1 = ta + j * dt;
+							for (int k = 0; k < subdivisions; k++) {
+								double p1 = pa + k * dp;
+								refiner.add(cellKey, r1, r1 + dr, t1, t1 + dt, p1, p1 + dp, 0);
+							}
+						}
+					}
+				}
+			}
+		}
+		return refiner.volumes;
+	}
+
+	// splits the sub-cells of one shell that straddle a Cartesian face, and
+	// holds the work space of the lookups
+	private static class Refiner {
+
+		private final CartesianGrid cgrid;
+		private final SphericalGrid sgrid;
+		private final SphereBVH bvh;
+		private final int body;
+		private final int maxRefinement;
+
+		private final int[] cIndices = new int[3];
+		private final int[] stack = new int[SphereBVH.STACK_SIZE];
+		private final Point3D.Double dir = new Point3D.Double();
+		private final LongDoubleMap volumes = new LongDoubleMap();
+
+		Refiner(ChimeraGrid grid, SphericalGrid sgrid, int body, int maxRefinement) {
+			cgrid = grid.getCartesianGrid();
+			bvh = (grid.getNumSphericalGrids() > 1) ? grid.getBVH() : null;
+			this.sgrid = sgrid;
+			this.body = body;
+			this.maxRefinement = maxRefinement;
+		}
+
+		// the Cartesian indices of a local point, packed as in a patch key, or
+		// PatchKey.NONE if the point is outside the grid or hidden
+		private long cell(double r, double theta, double phi) {
+			sgrid.localToGlobal(theta, phi, dir);
+			double x = sgrid.getXCenter() + r * dir.x;
+			double y = sgrid.getYCenter() + r * dir.y;
+			double z = sgrid.getZCenter() + r * dir.z;
+
+			if (!cgrid.locate(x, y, z, cIndices)) {
+				return PatchKey.NONE;
+			}
+			if ((bvh != null) && (bvh.findContaining(x, y, z, body, stack) >= 0)) {
+				return PatchKey.NONE;
+			}
+			return PatchKey.pack(cIndices[0], cIndices[1], cIndices[2], 0, 0, 0, 0);
+		}
+
+		// add the volume of a sub-cell of the shell cell, splitting it if it
+		// straddles a face
+		private void add(long cellKey, double r1, double r2, double t1, double t2, double p1, double p2,
+				int refinement) {
+			double rm = 0.5 * (r1 + r2);
+			double tm = 0.5 * (t1 + t2);
+			double pm = 0.5 * (p1 + p2);
+			long center = cell(rm, tm, pm);
+
+			boolean inside = true;
+			for (int c = 0; inside && (c < 8); c++) {
+				inside = cell(((c & 1) == 0) ? r1 : r2, ((c & 2) == 0) ? t1 : t2, ((c & 4) == 0) ? p1 : p2) == center;
+			}
+
+			if (!inside && (refinement < maxRefinement)) {
+				for (int c = 0; c < 8; c++) {
+					add(cellKey, ((c & 1) == 0) ? r1 : rm, ((c & 1) == 0) ? rm : r2, ((c & 2) == 0) ? t1 : tm,
+							((c & 2) == 0) ? tm : t2, ((c & 4) == 0) ? p1 : pm, ((c & 4) == 0) ? pm : p2,
+							refinement + 1);
+				}
+				return;
+			}
+
+			if (center != PatchKey.NONE) {
+				double volume = (r2 * r2 * r2 - r1 * r1 * r1) / 3 * (Math.cos(t1) - Math.cos(t2)) * (p2 - p1);
+				volumes.add(cellKey | center, volume);
+			}
+		}
+	}
+
+	// get a spherical component that must be a shell
+	private static SphericalGrid shell(ChimeraGrid grid, int body) {
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		if (!sgrid.isShell()) {
+			throw new IllegalArgumentException("Spherical component " + body + " has no radial grid.");
+		}
+		return sgrid;
+	}
+
+	// compare the quadrature overlaps one by one with a Monte Carlo reference
+	private static void compare(String label, LongDoubleMap quad, LongCountMap reference, double volumePerPoint,
+			double volume, double seconds) {
+		LongDoubleMap all = new LongDoubleMap(reference.size());
+		reference.forEach((key, count) -> all.add(key, 0));
+		quad.forEach((key, v) -> all.add(key, 0));
+
+		double[] error = new double[1];
+		int[] outliers = new int[1];
+		all.forEach((key, zero) -> {
+			long count = reference.get(key);
+			double diff = Math.abs(quad.get(key) - count * volumePerPoint);
+			error[0] += diff;
+			// the statistical error of the reference, at least that of one point
+			if (diff > 4 * volumePerPoint * Math.sqrt(Math.max(1, count))) {
+				outliers[0]++;
+			}
+		});
+		System.out.printf("%-22s %.6f in %6d overlaps, relative L1 error %.5f, %5d overlaps off by > 4 sigma (%.2f s)%n",
+				label, quad.getTotal(), quad.size(), error[0] / volume, outliers[0], seconds);
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sgrid = new SphericalGrid(49, 33, 1, 0.3, 0.2);
+		sgrid.setRadialGrid(new Grid1D(1, 2, 9, 1.2));
+		ChimeraGrid grid = new ChimeraGrid(cgrid, sgrid);
+		double volume = sgrid.getShellVolume();
+
+		// a high count Monte Carlo reference for the overlaps one by one
+		long numPoints = (args.length > 0) ? Long.parseLong(args[0]) : 100000000L;
+		long start = System.nanoTime();
+		LongCountMap counts = sample(grid, 0, numPoints, new Random(12345));
+		double mcTime = (System.nanoTime() - start) / 1.0e9;
+		double volumePerPoint = volume / numPoints;
+
+		// the error the reference itself contributes, the floor of the comparison
+		double[] noise = new double[1];
+		counts.forEach((key, count) -> noise[0] += Math.sqrt(2 * count / Math.PI) * volumePerPoint);
+
+		System.out.printf("shell volume:          %.6f%n", volume);
+		System.out.printf("Monte Carlo reference: %.6f in %6d overlaps, relative L1 noise %.5f (%.2f s, %.1f M points/s)%n",
+				toVolumes(grid, 0, counts, numPoints).getTotal(), counts.size(), noise[0] / volume, mcTime,
+				numPoints / mcTime / 1.0e6);
+
+		for (int refinement = 0; refinement <= DEFAULT_MAX_REFINEMENT; refinement++) {
+			start = System.nanoTime();
+			LongDoubleMap quad = quadrature(grid, 0, 3, refinement);
+			double quadTime = (System.nanoTime() - start) / 1.0e9;
+			compare("quadrature, " + refinement + " splits", quad, counts, volumePerPoint, volume, quadTime);
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package cnuphys.chimera.motion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.remap.PatchAreas;
+
+/**
+ * Time stepping of the primary sphere through the Cartesian grid along a
+ * trajectory of {@link Pose}s, with incremental updates of the patch areas.
+ * <p>
+ * Each spherical cell carries a fixed set of stratified sample directions in
+ * the local frame of the sphere, computed once. The patch areas of a cell are
+ * its exact area split in proportion to the samples that land in each
+ * Cartesian cell. When a sample is classified, its distance to the nearest
+ * face of its Cartesian cell is kept as its slack, and the smallest slack of a
+ * cell's samples is the cell's slack. The largest possible sample displacement
+ * between two poses is bounded by the offset change plus
+ * radius * (|d alpha| + |d beta|). A cell is skipped while its displacement
+ * since it was last visited is below its slack; in a visited cell only the
+ * samples whose own slack is used up are classified again. Only cells whose
+ * patches actually changed are replaced. Other spherical components and
+ * curvilinear grids are not considered.
+ */
+public class MovingBody {
+
+	/** Notified after each step of a trajectory */
+	public interface StepListener {
+		/**
+		 * A step has been computed
+		 *
+		 * @param step         the step index
+		 * @param pose         the pose at this step
+		 * @param changedCells the number of spherical cells whose patches changed
+		 */
+		void stepDone(int step, Pose pose, int changedCells);
+	}
+
+	// working copies of the grids; offsets and angles are set from each pose
+	private final CartesianGrid cgrid;
+	private final SphericalGrid sgrid;
+
+	private final double radius;
+	private final double xc, yc, zc;
+
+	private final int numThetaCells;
+	private final int numPhiCells;
+	private final int numCells;
+	private final int samplesPerCell;
+
+	// cached local sample directions, samplesPerCell per cell
+	private final double[] ux, uy, uz;
+
+	// per cell: the pose when last visited and the slack at that pose
+	private final double[] refX, refY, refZ, refAlpha, refBeta;
+	private final double[] slack;
+
+	// per sample: the packed patch key (PatchKey.NONE if outside) and the slack
+	private final long[] sampleKey;
+	private final double[] sampleSlack;
+
+	// exact area of each spherical cell
+	private final double[] cellArea;
+
+	// current patches of each cell: sorted packed keys and sample counts
+	private final long[][] cellKeys;
+	private final int[][] cellCounts;
+
+	// local to global rotation, row major
+	private final double[] rot = new double[9];
+
+	private Pose currentPose;
+
+	// statistics of the last step
+	private int lastChangedCells;
+	private int lastVisitedCells;
+	private int lastClassifiedSamples;
+
+	/**
+	 * Set up a moving body on a grid. The grid itself is not modified.
+	 *
+	 * @param grid           the grid, whose primary spherical component moves
+	 * @param samplesPerSide each spherical cell gets samplesPerSide^2 stratified
+	 *                       samples
+	 */
+	public MovingBody(ChimeraGrid grid, int samplesPerSide) {
+		if (samplesPerSide < 1) {
+			throw new IllegalArgumentException("samplesPerSide must be at least 1.");
+		}
+		PatchKey.checkLimits(grid);
+
+		cgrid = new CartesianGrid(grid.getCartesianGrid());
+		sgrid = new SphericalGrid(grid.getSphericalGrid());
+		radius = sgrid.getRadius();
+		xc = sgrid.getXCenter();
+		yc = sgrid.getYCenter();
+		zc = sgrid.getZCenter();
+
+		numThetaCells = sgrid.getNumTheta() - 1;
+		numPhiCells = sgrid.getNumPhi() - 1;
+		numCells = numThetaCells * numPhiCells;
+		samplesPerCell = samplesPerSide * samplesPerSide;
+
+		ux = new double[numCells * samplesPerCell];
+		uy = new double[numCells * samplesPerCell];
+		uz = new double[numCells * samplesPerCell];
+		refX = new double[numCells];
+		refY = new double[numCells];
+		refZ = new double[numCells];
+		refAlpha = new double[numCells];
+		refBeta = new double[numCells];
+		slack = new double[numCells];
+		sampleKey = new long[numCells * samplesPerCell];
+		sampleSlack = new double[numCells * samplesPerCell];
+		cellArea = new double[numCells];
+		cellKeys = new long[numCells][];
+		cellCounts = new int[numCells][];
+
+		IntStream.range(0, numCells).parallel().forEach(cell -> initCell(cell, samplesPerSide));
+	}
+
+	// cache the sample directions of a cell
+	private void initCell(int cell, int samplesPerSide) {
+		int nt = cell / numPhiCells;
+		int np = cell % numPhiCells;
+		double t1 = sgrid.getThetaGrid().getValue(nt);
+		double t2 = sgrid.getThetaGrid().getValue(nt + 1);
+		double p1 = sgrid.getPhiGrid().getValue(np);
+		double p2 = sgrid.getPhiGrid().getValue(np + 1);
+
+		cellArea[cell] = radius * radius * (Math.cos(t1) - Math.cos(t2)) * (p2 - p1);
+
+		// stratified in cos(theta) and phi, so the samples are equal area
+		double c1 = Math.cos(t1);
+		double c2 = Math.cos(t2);
+		int base = cell * samplesPerCell;
+		for (int i = 0; i < samplesPerSide; i++) {
+			double cosTheta = c1 + (i + 0.5) * (c2 - c1) / samplesPerSide;
+			double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+			for (int j = 0; j < samplesPerSide; j++) {
+				double phi = p1 + (j + 0.5) * (p2 - p1) / samplesPerSide;
+				int s = base + i * samplesPerSide + j;
+				ux[s] = sinTheta * Math.cos(phi);
+				uy[s] = sinTheta * Math.sin(phi);
+				uz[s] = cosTheta;
+			}
+		}
+	}
+
+	/**
+	 * Advance to a new pose, updating only the cells whose patches changed
+	 *
+	 * @param pose the new pose
+	 * @return the number of spherical cells whose patches changed
+	 */
+	public int step(Pose pose) {
+		return step(pose, false);
+	}
+
+	/**
+	 * Advance to a new pose
+	 *
+	 * @param pose the new pose
+	 * @param full if <code>true</code>, classify every sample as a from-scratch
+	 *             computation would
+	 * @return the number of spherical cells whose patches changed
+	 */
+	public int step(Pose pose, boolean full) {
+		cgrid.setXOffset(pose.xo);
+		cgrid.setYOffset(pose.yo);
+		cgrid.setZOffset(pose.zo);
+		if (pose.rotationDiffers(currentPose)) {
+			setRotation(pose.alpha, pose.beta);
+		}
+		currentPose = pose;
+
+		AtomicInteger visited = new AtomicInteger();
+		AtomicInteger classified = new AtomicInteger();
+		lastChangedCells = IntStream.range(0, numCells).parallel()
+				.map(cell -> updateCell(cell, full, visited, classified) ? 1 : 0).sum();
+		lastVisitedCells = visited.get();
+		lastClassifiedSamples = classified.get();
+		return lastChangedCells;
+	}
+
+	/**
+	 * Run a whole trajectory
+	 *
+	 * @param trajectory the poses
+	 * @param listener   optional, notified after each step
+	 */
+	public void run(List<Pose> trajectory, StepListener listener) {
+		for (int i = 0; i < trajectory.size(); i++) {
+			Pose pose = trajectory.get(i);
+			int changed = step(pose);
+			if (listener != null) {
+				listener.stepDone(i, pose, changed);
+			}
+		}
+	}
+
+	// local to global rotation matrix, the inverse of the SphericalGrid rotation
+	private void setRotation(double alpha, double beta) {
+		double sina = Math.sin(alpha), cosa = Math.cos(alpha);
+		double sinb = Math.sin(beta), cosb = Math.cos(beta);
+		rot[0] = cosb;
+		rot[1] = sinb;
+		rot[2] = 0;
+		rot[3] = -cosa * sinb;
+		rot[4] = cosa * cosb;
+		rot[5] = -sina;
+		rot[6] = -sina * sinb;
+		rot[7] = sina * cosb;
+		rot[8] = cosa;
+	}
+
+	// recompute the patches of a cell if it may have changed; returns true if they changed
+	private boolean updateCell(int cell, boolean full, AtomicInteger visited, AtomicInteger classified) {
+		Pose pose = currentPose;
+		boolean fresh = full || (cellKeys[cell] == null);
+
+		double disp = 0;
+		if (!fresh) {
+			double turn = radius * (Math.abs(pose.alpha - refAlpha[cell]) + Math.abs(pose.beta - refBeta[cell]));
+			double move = Math.max(Math.abs(pose.xo - refX[cell]),
+					Math.max(Math.abs(pose.yo - refY[cell]), Math.abs(pose.zo - refZ[cell])));
+			disp = move + turn;
+			if (disp < slack[cell]) {
+				return false;
+			}
+		}
+
+		visited.incrementAndGet();
+		int nt = cell / numPhiCells;
+		int np = cell % numPhiCells;
+		int[] indices = new int[3];
+
+		double xmin = cgrid.getXMin() + pose.xo;
+		double ymin = cgrid.getYMin() + pose.yo;
+		double zmin = cgrid.getZMin() + pose.zo;
+		double dx = cgrid.getXDel();
+		double dy = cgrid.getYDel();
+		double dz = cgrid.getZDel();
+
+		boolean keyChanged = fresh;
+		int numClassified = 0;
+		double minSlack = Double.POSITIVE_INFINITY;
+		int base = cell * samplesPerCell;
+		for (int s = base; s < base + samplesPerCell; s++) {
+			// a sample that cannot have moved far enough keeps its cell, with less slack
+			if (!fresh && (disp < sampleSlack[s])) {
+				sampleSlack[s] -= disp;
+				minSlack = Math.min(minSlack, sampleSlack[s]);
+				continue;
+			}
+
+			numClassified++;
+			double x = xc + radius * (rot[0] * ux[s] + rot[1] * uy[s] + rot[2] * uz[s]);
+			double y = yc + radius * (rot[3] * ux[s] + rot[4] * uy[s] + rot[5] * uz[s]);
+			double z = zc + radius * (rot[6] * ux[s] + rot[7] * uy[s] + rot[8] * uz[s]);
+
+			long key = PatchKey.NONE;
+			double sSlack = 0; // outside the grid: always reclassify
+			if (cgrid.locate(x, y, z, indices)) {
+				key = PatchKey.pack(indices[0], indices[1], indices[2], 0, nt, np, 0);
+				sSlack = Math.min(faceDistance(x - xmin, dx, indices[0]),
+						Math.min(faceDistance(y - ymin, dy, indices[1]), faceDistance(z - zmin, dz, indices[2])));
+			}
+
+			if (key != sampleKey[s]) {
+				sampleKey[s] = key;
+				keyChanged = true;
+			}
+			sampleSlack[s] = sSlack;
+			minSlack = Math.min(minSlack, sSlack);
+		}
+
+		classified.addAndGet(numClassified);
+
+		refX[cell] = pose.xo;
+		refY[cell] = pose.yo;
+		refZ[cell] = pose.zo;
+		refAlpha[cell] = pose.alpha;
+		refBeta[cell] = pose.beta;
+		slack[cell] = minSlack;
+
+		if (!keyChanged) {
+			return false;
+		}
+
+		// run length encode the sorted keys of the samples inside the grid
+		long[] sorted = new long[samplesPerCell];
+		int n = 0;
+		for (int s = base; s < base + samplesPerCell; s++) {
+			if (sampleKey[s] != PatchKey.NONE) {
+				sorted[n++] = sampleKey[s];
+			}
+		}
+		Arrays.sort(sorted, 0, n);
+
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				distinct++;
+			}
+		}
+		long[] keys = new long[distinct];
+		int[] counts = new int[distinct];
+		int d = -1;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				keys[++d] = sorted[i];
+			}
+			counts[d]++;
+		}
+
+		if (Arrays.equals(keys, cellKeys[cell]) && Arrays.equals(counts, cellCounts[cell])) {
+			return false;
+		}
+		cellKeys[cell] = keys;
+		cellCounts[cell] = counts;
+		return true;
+	}
+
+	// distance from a coordinate (relative to the grid minimum) to the nearest face of its cell
+	private static double faceDistance(double q, double del, int index) {
+		double below = q - index * del;
+		return Math.max(0, Math.min(below, del - below));
+	}
+
+	/**
+	 * Get the current patch areas
+	 *
+	 * @return the patch areas
+	 */
+	public PatchAreas getPatchAreas() {
+		HashMap<Fiveplet, Double> areas = new HashMap<>();
+		for (int cell = 0; cell < numCells; cell++) {
+			long[] keys = cellKeys[cell];
+			if (keys == null) {
+				continue;
+			}
+			double areaPerSample = cellArea[cell] / samplesPerCell;
+			for (int i = 0; i < keys.length; i++) {
+				areas.put(PatchKey.toFiveplet(keys[i]), cellCounts[cell][i] * areaPerSample);
+			}
+		}
+		return new PatchAreas(areas);
+	}
+
+	/**
+	 * Get the current number of patches
+	 *
+	 * @return the number of patches
+	 */
+	public int getNumPatches() {
+		int count = 0;
+		for (long[] keys : cellKeys) {
+			if (keys != null) {
+				count += keys.length;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the current pose
+	 *
+	 * @return the current pose, <code>null</code> before the first step
+	 */
+	public Pose getPose() {
+		return currentPose;
+	}
+
+	/**
+	 * Get the number of spherical cells whose patches changed in the last step
+	 *
+	 * @return the number of changed cells
+	 */
+	public int getLastChangedCells() {
+		return lastChangedCells;
+	}
+
+	/**
+	 * Get the number of spherical cells that were visited (not skipped) in the
+	 * last step
+	 *
+	 * @return the number of visited cells
+	 */
+	public int getLastVisitedCells() {
+		return lastVisitedCells;
+	}
+
+	/**
+	 * Get the number of samples that were classified in the last step
+	 *
+	 * @return the number of classified samples
+	 */
+	public int getLastClassifiedSamples() {
+		return lastClassifiedSamples;
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sgrid = new SphericalGrid(49, 33, 1, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, sgrid);
+
+		// a slow drift with a slow tumble
+		List<Pose> trajectory = new ArrayList<>();
+		int numSteps = 1000;
+		for (int i = 0; i < numSteps; i++) {
+			double t = i / (double) numSteps;
+			trajectory.add(new Pose(0.5 * t, 0.3 * t, -0.2 * t, 0.2 * t, 0.1 * t));
+		}
+
+		MovingBody incremental = new MovingBody(grid, 8);
+		long start = System.nanoTime();
+		long[] changed = new long[2];
+		incremental.run(trajectory, (step, pose, changedCells) -> {
+			changed[0] += changedCells;
+			changed[1] += incremental.getLastClassifiedSamples();
+		});
+		double incTime = (System.nanoTime() - start) / 1.0e9;
+
+		MovingBody full = new MovingBody(grid, 8);
+		start = System.nanoTime();
+		for (Pose pose : trajectory) {
+			full.step(pose, true);
+		}
+		double fullTime = (System.nanoTime() - start) / 1.0e9;
+
+		double incTotal = incremental.getPatchAreas().getTotalArea();
+		double fullTotal = full.getPatchAreas().getTotalArea();
+		System.out.printf("incremental: %.2f s, %.0f of %d samples classified and %.1f of %d cells changed per step, total area %.12f%n",
+				incTime, changed[1] / (double) numSteps, incremental.ux.length, changed[0] / (double) numSteps,
+				incremental.numCells, incTotal);
+		System.out.printf("full:        %.2f s, total area %.12f, %d patches in both: %b%n", fullTime, fullTotal,
+				full.getNumPatches(), full.getPatchAreas().getAreas().equals(incremental.getPatchAreas().getAreas()));
+	}
+}
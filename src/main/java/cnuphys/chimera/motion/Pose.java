@@ -0,0 +1,76 @@
+package cnuphys.chimera.motion;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.SphericalGrid;
+
+/**
+ * One step of a trajectory: the offsets of the Cartesian grid and the
+ * orientation of the primary spherical grid. Moving the Cartesian grid by
+ * (xo, yo, zo) is the same as moving the sphere by the opposite amount.
+ */
+public class Pose {
+
+	public final double xo, yo, zo; // Cartesian grid offsets
+	public final double alpha;      // Rotation about the x-axis in radians
+	public final double beta;       // Rotation about the new z-axis in radians
+
+	/**
+	 * Create a pose
+	 *
+	 * @param xo    the Cartesian x offset
+	 * @param yo    the Cartesian y offset
+	 * @param zo    the Cartesian z offset
+	 * @param alpha rotation about the x-axis in radians
+	 * @param beta  rotation about the new z-axis in radians
+	 */
+	public Pose(double xo, double yo, double zo, double alpha, double beta) {
+		this.xo = xo;
+		this.yo = yo;
+		this.zo = zo;
+		this.alpha = alpha;
+		this.beta = beta;
+	}
+
+	/**
+	 * Get the current pose of a grid
+	 *
+	 * @param grid the grid
+	 * @return the pose
+	 */
+	public static Pose of(ChimeraGrid grid) {
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		return new Pose(cgrid.getXOffset(), cgrid.getYOffset(), cgrid.getZOffset(), sgrid.getAlpha(), sgrid.getBeta());
+	}
+
+	/**
+	 * Set this pose on a grid
+	 *
+	 * @param grid the grid
+	 */
+	public void apply(ChimeraGrid grid) {
+		CartesianGrid cgrid = grid.getCartesianGrid();
+		SphericalGrid sgrid = grid.getSphericalGrid();
+		cgrid.setXOffset(xo);
+		cgrid.setYOffset(yo);
+		cgrid.setZOffset(zo);
+		sgrid.setAlpha(alpha);
+		sgrid.setBeta(beta);
+	}
+
+	/**
+	 * Check whether the orientation differs from another pose
+	 *
+	 * @param other the other pose
+	 * @return <code>true</code> if alpha or beta differ
+	 */
+	public boolean rotationDiffers(Pose other) {
+		return (other == null) || (alpha != other.alpha) || (beta != other.beta);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Pose[offsets=(%.4f, %.4f, %.4f), alpha=%.4f, beta=%.4f]", xo, yo, zo, alpha, beta);
+	}
+}
@@ -0,0 +1,343 @@
+package cnuphys.chimera.remap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import cnuphys.chimera.grid.CartesianGrid;
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.util.Point3D;
+import cnuphys.chimera.util.ThetaPhi;
+
+/**
+ * First order conservative remapping of surface quantities between the cells of
+ * the {@link SphericalGrid} and the Cartesian cells cut by the sphere. The
+ * {@link Fiveplet} patches are the supermesh: each patch lies in exactly one
+ * cell of each grid, so the value remapped into a target cell is the area
+ * weighted average of the source cells over the patches it contains.
+ * <p>
+ * Values are cell averages (densities per unit area). The cell areas used are
+ * the sums of the patch areas, so the integral of a field over the sphere is
+ * preserved to round-off in both directions.
+ * <p>
+ * Spherical cells are indexed by <code>ntheta * (numPhi - 1) + nphi</code>.
+ * Cartesian cells are indexed densely over the cut cells only, in the order
+ * given by {@link #getCartesianCell(int, int[])}.
+ */
+public class ConservativeRemap {
+
+	// number of cells (not points) in each direction
+	private final int _numThetaCells;
+	private final int _numPhiCells;
+	private final int _numYCells;
+	private final int _numZCells;
+
+	// sorted packed keys of the cut Cartesian cells
+	private final long[] _cartCells;
+
+	// the weights with one row per Cartesian cell and one per spherical cell
+	private final Rows _cartRows;
+	private final Rows _sphRows;
+
+	/**
+	 * Build the remap weights for the primary spherical component
+	 *
+	 * @param grid       the grid the patches were computed on
+	 * @param patchAreas the patch areas
+	 */
+	public ConservativeRemap(ChimeraGrid grid, PatchAreas patchAreas) {
+		this(grid, patchAreas, 0);
+	}
+
+	/**
+	 * Build the remap weights for one spherical component
+	 *
+	 * @param grid       the grid the patches were computed on
+	 * @param patchAreas the patch areas
+	 * @param body       the index of the spherical component
+	 */
+	public ConservativeRemap(ChimeraGrid grid, PatchAreas patchAreas, int body) {
+		SphericalGrid sgrid = grid.getSphericalGrid(body);
+		CartesianGrid cgrid = grid.getCartesianGrid();
+
+		_numThetaCells = sgrid.getNumTheta() - 1;
+		_numPhiCells = sgrid.getNumPhi() - 1;
+		_numYCells = cgrid.getNumY() - 1;
+		_numZCells = cgrid.getNumZ() - 1;
+
+		Map<Fiveplet, Double> areaMap = patchAreas.getAreas();
+		Fiveplet[] patches = areaMap.keySet().parallelStream().filter(p -> p.nbody == body).toArray(Fiveplet[]::new);
+		int n = patches.length;
+
+		double[] area = new double[n];
+		int[] sph = new int[n];
+		long[] cartKey = new long[n];
+
+		IntStream.range(0, n).parallel().forEach(i -> {
+			Fiveplet p = patches[i];
+			area[i] = areaMap.get(p);
+			sph[i] = getSphericalIndex(p.ntheta, p.nphi);
+			cartKey[i] = packCartesian(p.nx, p.ny, p.nz);
+		});
+
+		_cartCells = uniqueSorted(cartKey);
+
+		int[] cart = new int[n];
+		IntStream.range(0, n).parallel().forEach(i -> cart[i] = Arrays.binarySearch(_cartCells, cartKey[i]));
+
+		_cartRows = new Rows(_cartCells.length, cart, sph, area);
+		_sphRows = new Rows(_numThetaCells * _numPhiCells, sph, cart, area);
+	}
+
+	/**
+	 * Remap cell averages from the spherical cells to the cut Cartesian cells
+	 *
+	 * @param sphValues one value per spherical cell
+	 * @return one value per cut Cartesian cell
+	 */
+	public double[] sphericalToCartesian(double[] sphValues) {
+		if (sphValues.length != getNumSphericalCells()) {
+			throw new IllegalArgumentException("Expected " + getNumSphericalCells() + " spherical values, got " + sphValues.length);
+		}
+		return _cartRows.apply(sphValues);
+	}
+
+	/**
+	 * Remap cell averages from the cut Cartesian cells to the spherical cells
+	 *
+	 * @param cartValues one value per cut Cartesian cell
+	 * @return one value per spherical cell
+	 */
+	public double[] cartesianToSpherical(double[] cartValues) {
+		if (cartValues.length != getNumCartesianCells()) {
+			throw new IllegalArgumentException("Expected " + getNumCartesianCells() + " Cartesian values, got " + cartValues.length);
+		}
+		return _sphRows.apply(cartValues);
+	}
+
+	/**
+	 * Get the integral of a field given on the spherical cells
+	 *
+	 * @param sphValues one value per spherical cell
+	 * @return the integral over the sphere
+	 */
+	public double sphericalIntegral(double[] sphValues) {
+		return _sphRows.integral(sphValues);
+	}
+
+	/**
+	 * Get the integral of a field given on the cut Cartesian cells
+	 *
+	 * @param cartValues one value per cut Cartesian cell
+	 * @return the integral over the sphere
+	 */
+	public double cartesianIntegral(double[] cartValues) {
+		return _cartRows.integral(cartValues);
+	}
+
+	/**
+	 * Get the number of spherical cells
+	 *
+	 * @return the number of spherical cells
+	 */
+	public int getNumSphericalCells() {
+		return _sphRows.area.length;
+	}
+
+	/**
+	 * Get the number of Cartesian cells cut by the sphere
+	 *
+	 * @return the number of cut Cartesian cells
+	 */
+	public int getNumCartesianCells() {
+		return _cartCells.length;
+	}
+
+	/**
+	 * Get the area of a spherical cell, as the sum of its patch areas
+	 *
+	 * @param index the spherical cell index
+	 * @return the area
+	 */
+	public double getSphericalArea(int index) {
+		return _sphRows.area[index];
+	}
+
+	/**
+	 * Get the area of the sphere inside a cut Cartesian cell, as the sum of its
+	 * patch areas
+	 *
+	 * @param index the cut Cartesian cell index
+	 * @return the area
+	 */
+	public double getCartesianArea(int index) {
+		return _cartRows.area[index];
+	}
+
+	/**
+	 * Get the spherical cell index
+	 *
+	 * @param ntheta the index on the theta grid
+	 * @param nphi   the index on the phi grid
+	 * @return the spherical cell index
+	 */
+	public int getSphericalIndex(int ntheta, int nphi) {
+		return ntheta * _numPhiCells + nphi;
+	}
+
+	/**
+	 * Get the cut Cartesian cell index
+	 *
+	 * @param nx index on the x grid
+	 * @param ny index on the y grid
+	 * @param nz index on the z grid
+	 * @return the cut cell index, or -1 if the sphere does not cut that cell
+	 */
+	public int getCartesianIndex(int nx, int ny, int nz) {
+		int index = Arrays.binarySearch(_cartCells, packCartesian(nx, ny, nz));
+		return (index < 0) ? -1 : index;
+	}
+
+	/**
+	 * Get the grid indices of a cut Cartesian cell
+	 *
+	 * @param index   the cut cell index
+	 * @param indices will hold the x, y and z indices
+	 */
+	public void getCartesianCell(int index, int[] indices) {
+		long key = _cartCells[index];
+		indices[2] = (int) (key % _numZCells);
+		key /= _numZCells;
+		indices[1] = (int) (key % _numYCells);
+		indices[0] = (int) (key / _numYCells);
+	}
+
+	// pack Cartesian cell indices into a single key
+	private long packCartesian(int nx, int ny, int nz) {
+		return ((long) nx * _numYCells + ny) * _numZCells + nz;
+	}
+
+	// sorted distinct values
+	private static long[] uniqueSorted(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.parallelSort(sorted);
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+		return Arrays.copyOf(sorted, count);
+	}
+
+	/**
+	 * Sparse weights with one row per target cell (compressed row storage). The
+	 * entries of a row are the patches in that target cell.
+	 */
+	private static class Rows {
+		final int[] start;
+		final int[] col;
+		final double[] weight;
+		final double[] area;
+
+		Rows(int numRows, int[] row, int[] col, double[] patchArea) {
+			int n = row.length;
+
+			// sort the patches by row, keeping the patch index in the low bits
+			long[] order = new long[n];
+			IntStream.range(0, n).parallel().forEach(i -> order[i] = ((long) row[i] << 32) | i);
+			Arrays.parallelSort(order);
+
+			start = new int[numRows + 1];
+			for (int r : row) {
+				start[r + 1]++;
+			}
+			for (int r = 0; r < numRows; r++) {
+				start[r + 1] += start[r];
+			}
+
+			this.col = new int[n];
+			weight = new double[n];
+			IntStream.range(0, n).parallel().forEach(k -> {
+				int i = (int) order[k];
+				this.col[k] = col[i];
+				weight[k] = patchArea[i];
+			});
+
+			area = new double[numRows];
+			IntStream.range(0, numRows).parallel().forEach(r -> {
+				double sum = 0;
+				for (int k = start[r]; k < start[r + 1]; k++) {
+					sum += weight[k];
+				}
+				area[r] = sum;
+			});
+		}
+
+		// area weighted average of the source over each row
+		double[] apply(double[] source) {
+			double[] target = new double[area.length];
+			IntStream.range(0, area.length).parallel().forEach(r -> {
+				if (area[r] > 0) {
+					double sum = 0;
+					for (int k = start[r]; k < start[r + 1]; k++) {
+						sum += weight[k] * source[col[k]];
+					}
+					target[r] = sum / area[r];
+				}
+			});
+			return target;
+		}
+
+		// integral of a field given on the rows
+		double integral(double[] values) {
+			double sum = 0;
+			for (int r = 0; r < area.length; r++) {
+				sum += area[r] * values[r];
+			}
+			return sum;
+		}
+	}
+
+	public static void main(String[] args) {
+		CartesianGrid cgrid = new CartesianGrid(-10, 10, 103, -10, 10, 163, -10, 10, 103, 0, 0, 0);
+		SphericalGrid sgrid = new SphericalGrid(49, 33, 1, 0, 0);
+		ChimeraGrid grid = new ChimeraGrid(cgrid, sgrid);
+
+		// estimate the patch areas
+		int numPoints = 1000000;
+		Random random = new Random(12345);
+		ThetaPhi tp = new ThetaPhi();
+		Point3D.Double cartesian = new Point3D.Double();
+		int[] sIndices = new int[2];
+		int[] cIndices = new int[3];
+		HashMap<Fiveplet, Integer> counts = new HashMap<>();
+		for (int i = 0; i < numPoints; i++) {
+			ThetaPhi.setRandomThetaPhi(random, tp);
+			tp.toCartesian(cartesian);
+			sgrid.getIndices(tp, sIndices);
+			cgrid.getIndices(cartesian, cIndices);
+			counts.merge(new Fiveplet(cIndices[0], cIndices[1], cIndices[2], sIndices[0], sIndices[1]), 1, Integer::sum);
+		}
+
+		long start = System.nanoTime();
+		ConservativeRemap remap = new ConservativeRemap(grid, PatchAreas.fromCounts(counts, numPoints, SphericalGrid.R));
+		System.out.printf("built weights for %d spherical and %d Cartesian cells in %.1f ms%n",
+				remap.getNumSphericalCells(), remap.getNumCartesianCells(), (System.nanoTime() - start) / 1.0e6);
+
+		double[] q = new double[remap.getNumSphericalCells()];
+		for (int i = 0; i < q.length; i++) {
+			q[i] = 2 + Math.sin(0.37 * i);
+		}
+
+		double[] qc = remap.sphericalToCartesian(q);
+		double[] qs = remap.cartesianToSpherical(qc);
+		System.out.printf("spherical integral:  %.15f%n", remap.sphericalIntegral(q));
+		System.out.printf("Cartesian integral:  %.15f%n", remap.cartesianIntegral(qc));
+		System.out.printf("round trip integral: %.15f%n", remap.sphericalIntegral(qs));
+	}
+}
@@ -0,0 +1,198 @@
+package cnuphys.chimera.remap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.Fiveplet;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.monteCarlo.MonteCarloPoint;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * Estimated areas of the {@link Fiveplet} patches, i.e. the pieces of the
+ * sphere cut out by one spherical cell and one Cartesian cell. Together the
+ * patches form the supermesh of the two surface grids.
+ */
+public class PatchAreas {
+
+	// area of each patch
+	private final Map<Fiveplet, Double> _areas;
+
+	/**
+	 * Create a patch area table from explicit areas
+	 *
+	 * @param areas the area of each patch
+	 */
+	public PatchAreas(Map<Fiveplet, Double> areas) {
+		_areas = areas;
+	}
+
+	/**
+	 * Estimate the patch areas from Monte Carlo points uniformly distributed on
+	 * the sphere. The area of a patch is the fraction of points that landed in it
+	 * times the area of the sphere. Only use this for a single spherical
+	 * component; with several, use {@link #fromSampledArea(Map, long, double)}
+	 * with the total area of all the components.
+	 *
+	 * @param points the Monte Carlo points
+	 * @param radius the radius of the sphere
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromMonteCarlo(List<MonteCarloPoint> points, double radius) {
+		HashMap<Fiveplet, Integer> counts = new HashMap<>();
+		for (MonteCarloPoint point : points) {
+			if (point.fiveplet != null) {
+				counts.merge(point.fiveplet, 1, Integer::sum);
+			}
+		}
+		return fromCounts(counts, points.size(), radius);
+	}
+
+	/**
+	 * Estimate the patch areas from Monte Carlo points using the exact area of
+	 * each spherical cell as a control variate. The points that landed in a
+	 * spherical cell are uniform in it, so the fraction of them in a patch times
+	 * the exact cell area estimates the patch area; the noise in the number of
+	 * points per cell no longer enters, and the patch areas of every fully
+	 * visible cell add up to its area exactly. Works with any number of
+	 * spherical components.
+	 *
+	 * @param grid   the grid the points were generated on
+	 * @param points the Monte Carlo points
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromControlVariate(ChimeraGrid grid, List<MonteCarloPoint> points) {
+		int[][] cellCounts = new int[grid.getNumSphericalGrids()][];
+		for (int body = 0; body < cellCounts.length; body++) {
+			SphericalGrid sgrid = grid.getSphericalGrid(body);
+			cellCounts[body] = new int[(sgrid.getNumTheta() - 1) * (sgrid.getNumPhi() - 1)];
+		}
+
+		HashMap<Fiveplet, Integer> counts = new HashMap<>();
+		int[] sIndices = new int[2];
+		for (MonteCarloPoint point : points) {
+			SphericalGrid sgrid = grid.getSphericalGrid(point.body);
+			sgrid.getIndices(point.thetaPhi, sIndices);
+			if (sIndices[0] >= 0 && sIndices[1] >= 0) {
+				cellCounts[point.body][sIndices[0] * (sgrid.getNumPhi() - 1) + sIndices[1]]++;
+			}
+			if (point.fiveplet != null) {
+				counts.merge(point.fiveplet, 1, Integer::sum);
+			}
+		}
+
+		HashMap<Fiveplet, Double> areas = new HashMap<>();
+		for (Map.Entry<Fiveplet, Integer> entry : counts.entrySet()) {
+			Fiveplet patch = entry.getKey();
+			SphericalGrid sgrid = grid.getSphericalGrid(patch.nbody);
+			int inCell = cellCounts[patch.nbody][patch.ntheta * (sgrid.getNumPhi() - 1) + patch.nphi];
+			areas.put(patch, sgrid.getCellArea(patch.ntheta, patch.nphi) * entry.getValue() / inCell);
+		}
+		return new PatchAreas(areas);
+	}
+
+	/**
+	 * Estimate the patch areas from patch counts
+	 *
+	 * @param counts    the number of samples that landed in each patch
+	 * @param numPoints the total number of samples
+	 * @param radius    the radius of the sphere
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromCounts(Map<Fiveplet, Integer> counts, long numPoints, double radius) {
+		return fromSampledArea(counts, numPoints, 4 * Math.PI * radius * radius);
+	}
+
+	/**
+	 * Estimate the patch areas from patch counts when the samples were drawn
+	 * uniformly from a total area, such as the surfaces of several spherical
+	 * components.
+	 *
+	 * @param counts      the number of samples that landed in each patch
+	 * @param numPoints   the total number of samples
+	 * @param sampledArea the total area the samples were drawn from
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromSampledArea(Map<Fiveplet, Integer> counts, long numPoints, double sampledArea) {
+		HashMap<Fiveplet, Double> areas = new HashMap<>();
+		if (numPoints > 0) {
+			double areaPerPoint = sampledArea / numPoints;
+			for (Map.Entry<Fiveplet, Integer> entry : counts.entrySet()) {
+				areas.put(entry.getKey(), entry.getValue() * areaPerPoint);
+			}
+		}
+		return new PatchAreas(areas);
+	}
+
+	/**
+	 * Estimate the patch areas from counts keyed by packed {@link PatchKey}s
+	 *
+	 * @param counts      the number of samples that landed in each patch
+	 * @param numPoints   the total number of samples
+	 * @param sampledArea the total area the samples were drawn from
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromKeyCounts(LongCountMap counts, long numPoints, double sampledArea) {
+		HashMap<Fiveplet, Double> areas = new HashMap<>();
+		if (numPoints > 0) {
+			double areaPerPoint = sampledArea / numPoints;
+			counts.forEach((key, count) -> areas.put(PatchKey.toFiveplet(key), count * areaPerPoint));
+		}
+		return new PatchAreas(areas);
+	}
+
+	/**
+	 * Estimate the patch areas of a unit sphere from Monte Carlo points
+	 *
+	 * @param points the Monte Carlo points
+	 * @return the patch areas
+	 */
+	public static PatchAreas fromMonteCarlo(List<MonteCarloPoint> points) {
+		return fromMonteCarlo(points, SphericalGrid.R);
+	}
+
+	/**
+	 * Get the area map
+	 *
+	 * @return the area of each patch
+	 */
+	public Map<Fiveplet, Double> getAreas() {
+		return _areas;
+	}
+
+	/**
+	 * Get the area of a patch
+	 *
+	 * @param patch the patch
+	 * @return the area, 0 if the patch is not in the table
+	 */
+	public double getArea(Fiveplet patch) {
+		Double area = _areas.get(patch);
+		return (area == null) ? 0 : area;
+	}
+
+	/**
+	 * Get the number of patches
+	 *
+	 * @return the number of patches
+	 */
+	public int size() {
+		return _areas.size();
+	}
+
+	/**
+	 * Get the total area of all the patches
+	 *
+	 * @return the total area
+	 */
+	public double getTotalArea() {
+		double sum = 0;
+		for (double area : _areas.values()) {
+			sum += area;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,270 @@
+package cnuphys.chimera.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.monteCarlo.EVarianceReduction;
+import cnuphys.chimera.monteCarlo.MonteCarlo;
+import cnuphys.chimera.monteCarlo.PatchHistogram;
+import cnuphys.chimera.monteCarlo.RandomStreams;
+import cnuphys.chimera.monteCarlo.UniformDirectionSampler;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * A connection to a {@link ClassificationServer}. Points are sent in batches
+ * and the keys and areas come back in primitive arrays. A client is for one
+ * thread at a time; open one per thread.
+ */
+public class ClassificationClient implements AutoCloseable {
+
+	// I/O buffer
+	private static final int IO_BUFFER = 1 << 16;
+
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	// reused request and response space
+	private byte[] request = new byte[0];
+	private byte[] response = new byte[0];
+
+	/**
+	 * Connect to a server
+	 *
+	 * @param address the TCP or Unix domain socket address of the server
+	 * @throws IOException if the server cannot be reached
+	 */
+	public ClassificationClient(SocketAddress address) throws IOException {
+		channel = SocketChannel.open(address);
+		if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), IO_BUFFER));
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), IO_BUFFER));
+	}
+
+	/**
+	 * Classify global directions
+	 *
+	 * @param n      the number of points, at most
+	 *               {@link ClassificationServer#MAX_BATCH}
+	 * @param bodies the body of each point
+	 * @param theta  the global polar angle of each point
+	 * @param phi    the global azimuthal angle of each point
+	 * @param keys   will hold the patch keys; hidden points get
+	 *               {@link PatchKey#hidden(int)}
+	 * @param areas  will hold the patch areas, 0 for hidden points
+	 * @throws IOException if the server fails or refuses the request
+	 */
+	public void classify(int n, int[] bodies, double[] theta, double[] phi, long[] keys, double[] areas)
+			throws IOException {
+		ByteBuffer buffer = requestBuffer(n * ClassificationServer.THETA_PHI_BYTES);
+		for (int i = 0; i < n; i++) {
+			buffer.putInt(bodies[i]).putDouble(theta[i]).putDouble(phi[i]);
+		}
+		exchange(ClassificationServer.OP_THETA_PHI, n, buffer.position(), keys, areas);
+	}
+
+	/**
+	 * Classify points by their direction from the center of their body
+	 *
+	 * @param n      the number of points, at most
+	 *               {@link ClassificationServer#MAX_BATCH}
+	 * @param bodies the body of each point
+	 * @param x      the x coordinate of each point
+	 * @param y      the y coordinate of each point
+	 * @param z      the z coordinate of each point
+	 * @param keys   will hold the patch keys; hidden points get
+	 *               {@link PatchKey#hidden(int)}
+	 * @param areas  will hold the patch areas, 0 for hidden points
+	 * @throws IOException if the server fails or refuses the request
+	 */
+	public void classify(int n, int[] bodies, double[] x, double[] y, double[] z, long[] keys, double[] areas)
+			throws IOException {
+		ByteBuffer buffer = requestBuffer(n * ClassificationServer.XYZ_BYTES);
+		for (int i = 0; i < n; i++) {
+			buffer.putInt(bodies[i]).putDouble(x[i]).putDouble(y[i]).putDouble(z[i]);
+		}
+		exchange(ClassificationServer.OP_XYZ, n, buffer.position(), keys, areas);
+	}
+
+	/**
+	 * Get the counters of the server
+	 *
+	 * @return the counters, see {@link ServiceStats#toArray()} and
+	 *         {@link ServiceStats#describe(long[])}
+	 * @throws IOException if the server fails
+	 */
+	public long[] getStats() throws IOException {
+		out.writeInt(ClassificationServer.OP_STATS);
+		out.writeInt(0);
+		out.flush();
+		int n = readCount();
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	// the reused request buffer, cleared
+	private ByteBuffer requestBuffer(int bytes) {
+		if (request.length < bytes) {
+			request = new byte[bytes];
+		}
+		return ByteBuffer.wrap(request, 0, bytes);
+	}
+
+	// send a request and read the answer
+	private void exchange(int op, int n, int bytes, long[] keys, double[] areas) throws IOException {
+		out.writeInt(op);
+		out.writeInt(n);
+		out.write(request, 0, bytes);
+		out.flush();
+
+		int count = readCount();
+		if (count != n) {
+			throw new IOException("Expected " + n + " results, got " + count);
+		}
+		int resultBytes = n * ClassificationServer.RESULT_BYTES;
+		if (response.length < resultBytes) {
+			response = new byte[resultBytes];
+		}
+		in.readFully(response, 0, resultBytes);
+		ByteBuffer buffer = ByteBuffer.wrap(response, 0, resultBytes);
+		for (int i = 0; i < n; i++) {
+			keys[i] = buffer.getLong();
+			areas[i] = buffer.getDouble();
+		}
+	}
+
+	// read a result count, or the server's refusal
+	private int readCount() throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("The server refused the request: " + in.readUTF());
+		}
+		return count;
+	}
+
+	/**
+	 * Close the connection
+	 *
+	 * @throws IOException if it cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		ChimeraGrid grid = ChimeraGrid.createDefault();
+		long numPoints = 2000000;
+		LongCountMap counts = MonteCarlo.countPatches(grid, numPoints, EVarianceReduction.NONE,
+				UniformDirectionSampler.INSTANCE, new RandomStreams(1), 1);
+		PatchHistogram histogram = new PatchHistogram(grid, 1, EVarianceReduction.NONE,
+				UniformDirectionSampler.INSTANCE.getName(), numPoints, 0, RandomStreams.numChunks(numPoints), counts);
+
+		// sample points, whose answers must agree with the in-process lookup
+		int n = 10000;
+		int[] bodies = new int[n];
+		double[] theta = new double[n];
+		double[] phi = new double[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		SplittableRandom random = new SplittableRandom(5);
+		for (int i = 0; i < n; i++) {
+			theta[i] = Math.acos(1 - 2 * random.nextDouble());
+			phi[i] = Math.PI * (2 * random.nextDouble() - 1);
+			double r = 0.5 + random.nextDouble();
+			x[i] = r * Math.sin(theta[i]) * Math.cos(phi[i]);
+			y[i] = r * Math.sin(theta[i]) * Math.sin(phi[i]);
+			z[i] = r * Math.cos(theta[i]);
+		}
+		Path socket = Files.createTempDirectory("chimera").resolve("classify.sock");
+		try (ClassificationServer server = new ClassificationServer(grid, histogram)) {
+			SocketAddress tcp = server.startTcp(0);
+			System.out.println("serving on " + tcp);
+
+			long[] keys = new long[n];
+			long[] xyzKeys = new long[n];
+			double[] areas = new double[n];
+			int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+			try (ClassificationClient client = new ClassificationClient(tcp)) {
+				client.classify(n, bodies, theta, phi, keys, areas);
+				client.classify(n, bodies, x, y, z, xyzKeys, areas);
+			}
+			int mismatches = 0;
+			int xyzMismatches = 0;
+			for (int i = 0; i < n; i++) {
+				long expected = grid.getPatchKey(0, theta[i], phi[i], work);
+				mismatches += (keys[i] == expected) ? 0 : 1;
+				xyzMismatches += (xyzKeys[i] == expected) ? 0 : 1;
+			}
+			System.out.printf("%d points: %d key mismatches by direction, %d by position%n", n,
+					mismatches, xyzMismatches);
+
+			// many concurrent clients, over TCP and then over a Unix domain socket
+			runClients(tcp, 32, 64, 2048, theta, phi);
+			try (ClassificationClient client = new ClassificationClient(tcp)) {
+				System.out.println("  " + ServiceStats.describe(client.getStats()));
+			}
+		}
+		try (ClassificationServer server = new ClassificationServer(grid, histogram)) {
+			runClients(server.startUnix(socket), 32, 64, 2048, theta, phi);
+			System.out.println("  " + server.getStats());
+		}
+		Files.deleteIfExists(socket.getParent());
+	}
+
+	// clients that each send a number of batches, all at once
+	private static void runClients(SocketAddress address, int numClients, int numBatches, int batchSize,
+			double[] theta, double[] phi) throws Exception {
+		AtomicLong hidden = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int c = 0; c < numClients; c++) {
+			Thread thread = new Thread(() -> {
+				int[] bodies = new int[batchSize];
+				long[] keys = new long[batchSize];
+				double[] areas = new double[batchSize];
+				try (ClassificationClient client = new ClassificationClient(address)) {
+					for (int b = 0; b < numBatches; b++) {
+						client.classify(batchSize, bodies, theta, phi, keys, areas);
+						for (int i = 0; i < batchSize; i++) {
+							hidden.addAndGet(PatchKey.isHidden(keys[i]) ? 1 : 0);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1.0e9;
+		long records = (long) numClients * numBatches * batchSize;
+		System.out.printf("%s: %d clients x %d batches of %d: %.0f records/s, %d hidden%n", address, numClients,
+				numBatches, batchSize, records / seconds, hidden.get());
+	}
+}
@@ -0,0 +1,378 @@
+package cnuphys.chimera.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cnuphys.chimera.grid.ChimeraGrid;
+import cnuphys.chimera.grid.GridIO;
+import cnuphys.chimera.grid.PatchKey;
+import cnuphys.chimera.grid.SphericalGrid;
+import cnuphys.chimera.monteCarlo.EVarianceReduction;
+import cnuphys.chimera.monteCarlo.MonteCarlo;
+import cnuphys.chimera.monteCarlo.PatchHistogram;
+import cnuphys.chimera.monteCarlo.RandomStreams;
+import cnuphys.chimera.monteCarlo.UniformDirectionSampler;
+import cnuphys.chimera.util.LongCountMap;
+
+/**
+ * A local server that classifies surface points into patches for other
+ * programs, over TCP on the loopback interface or over a Unix domain socket.
+ * It holds a snapshot of a grid and a table of estimated patch areas (from a
+ * {@link PatchHistogram}), and answers batches of points with their
+ * {@link PatchKey} and patch area.
+ * <p>
+ * The protocol is big-endian binary. A request is an int operation, an int
+ * number of records n and the records:
+ * <ul>
+ * <li>{@link #OP_THETA_PHI}: n times int body, double theta, double phi (the
+ * global direction from the center of the body)
+ * <li>{@link #OP_XYZ}: n times int body, double x, double y, double z (a point
+ * seen from the center of the body; its direction is classified)
+ * <li>{@link #OP_STATS}: no records
+ * </ul>
+ * A classification is answered with n and n times long key, double area; a
+ * hidden point gets {@link PatchKey#hidden(int)} and area 0. Statistics are
+ * answered with {@link ServiceStats#NUM_VALUES} longs. A bad request is answered
+ * with -1 and a UTF message, and the connection is closed.
+ * <p>
+ * Each connection is served by its own thread from a cached pool (the JDK has
+ * no virtual threads before 21), and the grid is never modified, so
+ * connections share it without locks.
+ */
+public class ClassificationServer implements AutoCloseable {
+
+	/** Classify global directions */
+	public static final int OP_THETA_PHI = 1;
+
+	/** Classify points relative to body centers */
+	public static final int OP_XYZ = 2;
+
+	/** Get the statistics */
+	public static final int OP_STATS = 3;
+
+	/** The most records in one request */
+	public static final int MAX_BATCH = 1 << 20;
+
+	/** The default TCP port */
+	public static final int DEFAULT_PORT = 7465;
+
+	// the bytes of a record
+	static final int THETA_PHI_BYTES = 4 + 2 * 8;
+	static final int XYZ_BYTES = 4 + 3 * 8;
+	static final int RESULT_BYTES = 8 + 8;
+
+	// the I/O buffer of a connection
+	private static final int IO_BUFFER = 1 << 16;
+
+	// what is served
+	private final ChimeraGrid grid;
+	private final LongCountMap counts;
+	private final double areaPerPoint;
+
+	// the counters
+	private final ServiceStats stats = new ServiceStats();
+
+	// the connections
+	private final ExecutorService executor;
+	private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+	private ServerSocketChannel serverChannel;
+	private Path socketFile;
+
+	/**
+	 * Create a server
+	 *
+	 * @param grid      the grid, which is snapshotted
+	 * @param histogram the patch histogram the areas are estimated from; it
+	 *                  must belong to the same grid
+	 * @throws IllegalArgumentException if the histogram is of another grid, or
+	 *                                  the grid is too large for patch keys
+	 */
+	public ClassificationServer(ChimeraGrid grid, PatchHistogram histogram) {
+		if (!GridIO.sameDefinition(grid, histogram.getGrid())) {
+			throw new IllegalArgumentException("The patch histogram belongs to another grid.");
+		}
+		PatchKey.checkLimits(grid);
+		this.grid = grid.snapshot();
+		if (this.grid.getNumSphericalGrids() > 1) {
+			this.grid.getBVH(); // build it before the connections share it
+		}
+		counts = histogram.getCounts();
+		double sampledArea = 0;
+		for (int body = 0; body < grid.getNumSphericalGrids(); body++) {
+			sampledArea += grid.getSphericalGrid(body).getArea();
+		}
+		long numPoints = histogram.getPointsCounted();
+		areaPerPoint = (numPoints > 0) ? sampledArea / numPoints : 0;
+
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "classification-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Start serving on a TCP port of the loopback interface
+	 *
+	 * @param port the port, 0 for any free port
+	 * @return the address served
+	 * @throws IOException if the port cannot be bound
+	 */
+	public SocketAddress startTcp(int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		return start(channel);
+	}
+
+	/**
+	 * Start serving on a Unix domain socket
+	 *
+	 * @param path the socket file, which must not exist; it is deleted on close
+	 * @return the address served
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public SocketAddress startUnix(Path path) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.bind(UnixDomainSocketAddress.of(path));
+		socketFile = path;
+		return start(channel);
+	}
+
+	// start accepting connections
+	private synchronized SocketAddress start(ServerSocketChannel channel) throws IOException {
+		if (serverChannel != null) {
+			channel.close();
+			throw new IllegalStateException("The server is already started.");
+		}
+		serverChannel = channel;
+		Thread acceptor = new Thread(this::accept, "classification-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return channel.getLocalAddress();
+	}
+
+	// the accept loop
+	private void accept() {
+		while (serverChannel.isOpen()) {
+			try {
+				SocketChannel connection = serverChannel.accept();
+				if (connection.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+					connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				}
+				open.add(connection);
+				executor.execute(() -> serve(connection));
+			} catch (AsynchronousCloseException e) {
+				return;
+			} catch (IOException e) {
+				System.err.println("Classification server: " + e.getMessage());
+			}
+		}
+	}
+
+	// serve one connection until the client closes it
+	private void serve(SocketChannel connection) {
+		stats.connectionOpened();
+		int[] work = new int[ChimeraGrid.PATCH_KEY_WORK];
+		byte[] request = new byte[0];
+		byte[] response = new byte[0];
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(connection), IO_BUFFER));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(connection), IO_BUFFER))) {
+			while (true) {
+				int op;
+				try {
+					op = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				int n = in.readInt();
+				int recordBytes = (op == OP_THETA_PHI) ? THETA_PHI_BYTES : (op == OP_XYZ) ? XYZ_BYTES : 0;
+				if ((op != OP_STATS) && (recordBytes == 0)) {
+					refuse(out, "Unknown operation " + op);
+					return;
+				}
+				if ((n < 0) || (n > MAX_BATCH)) {
+					refuse(out, "Bad batch size " + n + "; the most is " + MAX_BATCH);
+					return;
+				}
+
+				if (op == OP_STATS) {
+					out.writeInt(ServiceStats.NUM_VALUES);
+					for (long value : stats.toArray()) {
+						out.writeLong(value);
+					}
+					out.flush();
+					continue;
+				}
+
+				if (request.length < n * recordBytes) {
+					request = new byte[n * recordBytes];
+				}
+				if (response.length < n * RESULT_BYTES) {
+					response = new byte[n * RESULT_BYTES];
+				}
+				in.readFully(request, 0, n * recordBytes);
+				long start = System.nanoTime();
+				String problem = classify(op, n, ByteBuffer.wrap(request), ByteBuffer.wrap(response), work);
+				if (problem != null) {
+					refuse(out, problem);
+					return;
+				}
+				out.writeInt(n);
+				out.write(response, 0, n * RESULT_BYTES);
+				out.flush();
+				stats.batchDone(n, System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			open.remove(connection);
+			stats.connectionClosed();
+		}
+	}
+
+	// classify a batch; returns a problem, or null
+	private String classify(int op, int n, ByteBuffer request, ByteBuffer response, int[] work) {
+		int numBodies = grid.getNumSphericalGrids();
+		for (int i = 0; i < n; i++) {
+			int body = request.getInt();
+			if ((body < 0) || (body >= numBodies)) {
+				return "Bad body " + body + " in record " + i + "; the grid has " + numBodies;
+			}
+			long key;
+			if (op == OP_THETA_PHI) {
+				key = grid.getPatchKey(body, request.getDouble(), request.getDouble(), work);
+			} else {
+				SphericalGrid sgrid = grid.getSphericalGrid(body);
+				double dx = request.getDouble() - sgrid.getXCenter();
+				double dy = request.getDouble() - sgrid.getYCenter();
+				double dz = request.getDouble() - sgrid.getZCenter();
+				key = grid.getPatchKey(body, dx, dy, dz, work);
+			}
+			response.putLong(key);
+			response.putDouble(PatchKey.isHidden(key) ? 0 : counts.get(key) * areaPerPoint);
+		}
+		return null;
+	}
+
+	// answer a bad request
+	private void refuse(DataOutputStream out, String problem) throws IOException {
+		stats.error();
+		out.writeInt(-1);
+		out.writeUTF(problem);
+		out.flush();
+	}
+
+	/**
+	 * Get the counters
+	 *
+	 * @return the counters
+	 */
+	public ServiceStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Stop serving and close every connection
+	 *
+	 * @throws IOException if the socket cannot be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (serverChannel != null) {
+			serverChannel.close();
+		}
+		for (SocketChannel connection : open) {
+			connection.close();
+		}
+		executor.shutdownNow();
+		if (socketFile != null) {
+			Files.deleteIfExists(socketFile);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String gridFile = null;
+		String histogramFile = null;
+		long numPoints = 4000000;
+		int port = DEFAULT_PORT;
+		String unix = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--grid":
+				gridFile = args[i + 1];
+				break;
+			case "--histogram":
+				histogramFile = args[i + 1];
+				break;
+			case "--points":
+				numPoints = Long.parseLong(args[i + 1]);
+				break;
+			case "--port":
+				port = Integer.parseInt(args[i + 1]);
+				break;
+			case "--unix":
+				unix = args[i + 1];
+				break;
+			default:
+				System.err.println("Usage: " + ClassificationServer.class.getName()
+						+ " [--grid FILE] [--histogram FILE | --points N] [--port P | --unix PATH]");
+				System.exit(2);
+			}
+		}
+
+		// the areas come from a histogram file, or from a run at startup
+		PatchHistogram histogram;
+		ChimeraGrid grid;
+		if (histogramFile != null) {
+			histogram = PatchHistogram.read(Path.of(histogramFile));
+			grid = (gridFile == null) ? histogram.getGrid() : GridIO.read(Path.of(gridFile));
+		} else {
+			grid = (gridFile == null) ? ChimeraGrid.createDefault() : GridIO.read(Path.of(gridFile));
+			long seed = 1;
+			LongCountMap counts = MonteCarlo.countPatches(grid, numPoints, EVarianceReduction.NONE,
+					UniformDirectionSampler.INSTANCE, new RandomStreams(seed), Runtime.getRuntime().availableProcessors());
+			histogram = new PatchHistogram(grid, seed, EVarianceReduction.NONE,
+					UniformDirectionSampler.INSTANCE.getName(), numPoints, 0, RandomStreams.numChunks(numPoints), counts);
+		}
+
+		ClassificationServer server = new ClassificationServer(grid, histogram);
+		SocketAddress address = (unix != null) ? server.startUnix(Path.of(unix)) : server.startTcp(port);
+		System.out.println("Serving " + histogram.getCounts().size() + " patches on " + address);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// exiting anyway
+			}
+		}));
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println(server.getStats());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package cnuphys.chimera.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency counters of a {@link ClassificationServer}, updated
+ * by every connection without locks. Latencies go into power of two buckets,
+ * so percentiles are upper bounds within a factor of two.
+ */
+public class ServiceStats {
+
+	/** The number of values in {@link #toArray()} */
+	public static final int NUM_VALUES = 8;
+
+	// connections
+	private final LongAdder connections = new LongAdder();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	// requests
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	// latency of a batch, from the request read to the response written
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+	// the time the counters started
+	private final long startNanos = System.nanoTime();
+
+	// a connection was opened
+	void connectionOpened() {
+		connections.increment();
+		activeConnections.incrementAndGet();
+	}
+
+	// a connection was closed
+	void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	// a request was answered
+	void batchDone(int numRecords, long nanos) {
+		batches.increment();
+		records.add(numRecords);
+		totalNanos.add(nanos);
+		maxNanos.accumulateAndGet(nanos, Math::max);
+		buckets.incrementAndGet(Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+	}
+
+	// a request was refused
+	void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Get a latency percentile
+	 *
+	 * @param fraction the fraction of the batches, e.g. 0.99
+	 * @return an upper bound of the latency of that fraction of the batches, in
+	 *         nanoseconds, or 0 if there were none
+	 */
+	public long getLatencyPercentile(double fraction) {
+		long total = 0;
+		for (int b = 0; b < buckets.length(); b++) {
+			total += buckets.get(b);
+		}
+		long target = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int b = 0; b < buckets.length(); b++) {
+			seen += buckets.get(b);
+			if ((seen >= target) && (seen > 0)) {
+				return (b >= Long.SIZE - 2) ? Long.MAX_VALUE : 2L << b;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the counters as numbers, as sent to clients: connections, active
+	 * connections, batches, records, errors, total latency, maximum latency and
+	 * 99th percentile latency (in nanoseconds)
+	 *
+	 * @return the counters
+	 */
+	public long[] toArray() {
+		return new long[] { connections.sum(), activeConnections.get(), batches.sum(), records.sum(), errors.sum(),
+				totalNanos.sum(), maxNanos.get(), getLatencyPercentile(0.99) };
+	}
+
+	/**
+	 * Describe counters received from a server
+	 *
+	 * @param values the counters, see {@link #toArray()}
+	 * @return the description
+	 */
+	public static String describe(long[] values) {
+		double meanMicros = (values[2] > 0) ? values[5] / 1000.0 / values[2] : 0;
+		return String.format(
+				"%d connections (%d active), %d batches, %d records, %d errors, mean %.1f us, p99 < %.1f us, max %.1f us",
+				values[0], values[1], values[2], values[3], values[4], meanMicros, values[7] / 1000.0,
+				values[6] / 1000.0);
+	}
+
+	@Override
+	public String toString() {
+		double seconds = (System.nanoTime() - startNanos) / 1.0e9;
+		return describe(toArray()) + String.format(", %.0f records/s since start", records.sum() / seconds);
+	}
+}
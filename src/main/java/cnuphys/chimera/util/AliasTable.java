@@ -0,0 +1,199 @@
+package cnuphys.chimera.util;
+
+import java.util.Random;
+
+/**
+ * Walker's alias method (in Vose's numerically stable form) for drawing from
+ * a discrete distribution in constant time. Building the table is O(n); each
+ * draw uses one uniform random number and no loops: the integer part picks a
+ * column, the fraction decides between the column and its alias.
+ */
+public class AliasTable {
+
+	// the probability of keeping each column rather than taking its alias
+	private final double[] prob;
+
+	// the alias of each column
+	private final int[] alias;
+
+	// the normalized probabilities, for reference
+	private final double[] p;
+
+	/**
+	 * Build the table
+	 *
+	 * @param weights the nonnegative relative weights, not all zero
+	 */
+	public AliasTable(double[] weights) {
+		int n = weights.length;
+		if (n == 0) {
+			throw new IllegalArgumentException("weights must not be empty.");
+		}
+
+		double sum = 0;
+		for (double w : weights) {
+			if (!(w >= 0) || Double.isInfinite(w)) {
+				throw new IllegalArgumentException("weights must be finite and nonnegative: " + w);
+			}
+			sum += w;
+		}
+		if (sum <= 0) {
+			throw new IllegalArgumentException("weights must not all be zero.");
+		}
+
+		prob = new double[n];
+		alias = new int[n];
+		p = new double[n];
+
+		// scaled so the average column is 1; split into small and large stacks
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			p[i] = weights[i] / sum;
+			scaled[i] = p[i] * n;
+			if (scaled[i] < 1) {
+				small[numSmall++] = i;
+			} else {
+				large[numLarge++] = i;
+			}
+		}
+
+		// fill each small column up to 1 from a large one
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if (scaled[l] < 1) {
+				small[numSmall++] = l;
+			} else {
+				large[numLarge++] = l;
+			}
+		}
+
+		// what is left is full up to rounding
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			prob[l] = 1;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			prob[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * Draw an index
+	 *
+	 * @param random the random number generator
+	 * @return an index with probability proportional to its weight
+	 */
+	public int sample(Random random) {
+		return sample(random.nextDouble());
+	}
+
+	/**
+	 * Draw an index from a given uniform number
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @return an index with probability proportional to its weight
+	 */
+	public int sample(double u) {
+		double x = u * prob.length;
+		int column = (int) x;
+		if (column >= prob.length) {
+			column = prob.length - 1;
+		}
+		return (x - column < prob[column]) ? column : alias[column];
+	}
+
+	/**
+	 * Draw an index from a given uniform number, and recover a second uniform
+	 * number from the bits of u that the choice did not use. Within the chosen
+	 * column the position of u is uniform, so it can be rescaled to [0, 1) and
+	 * used, e.g., for the position within a bin, saving a random draw.
+	 *
+	 * @param u        a uniform random number in [0, 1)
+	 * @param fraction will hold a uniform random number in [0, 1) independent of
+	 *                 the index
+	 * @return an index with probability proportional to its weight
+	 */
+	public int sample(double u, double[] fraction) {
+		double x = u * prob.length;
+		int column = (int) x;
+		if (column >= prob.length) {
+			column = prob.length - 1;
+		}
+		double f = x - column;
+		double keep = prob[column];
+		if (f < keep) {
+			fraction[0] = Math.min(f / keep, Math.nextDown(1.0));
+			return column;
+		}
+		fraction[0] = Math.min((f - keep) / (1 - keep), Math.nextDown(1.0));
+		return alias[column];
+	}
+
+	/**
+	 * Recover the second uniform number of {@link #sample(double, double[])}
+	 * for an index already drawn with {@link #sample(double)}, so a draw needs
+	 * no array for the fraction
+	 *
+	 * @param u     the uniform random number the index was drawn with
+	 * @param index the index drawn from u
+	 * @return a uniform random number in [0, 1) independent of the index
+	 */
+	public double getFraction(double u, int index) {
+		double x = u * prob.length;
+		int column = (int) x;
+		if (column >= prob.length) {
+			column = prob.length - 1;
+		}
+		double f = x - column;
+		double keep = prob[column];
+		if ((index == column) && (f < keep)) {
+			return Math.min(f / keep, Math.nextDown(1.0));
+		}
+		return Math.min((f - keep) / (1 - keep), Math.nextDown(1.0));
+	}
+
+	/**
+	 * Get a hash of the table. Tables with the same fingerprint draw the same
+	 * outcomes from the same uniform numbers, barring a hash collision.
+	 *
+	 * @return the hash of the columns and their aliases
+	 */
+	public long fingerprint() {
+		long hash = prob.length;
+		for (int i = 0; i < prob.length; i++) {
+			hash = (Long.rotateLeft(hash, 17) ^ Double.doubleToLongBits(prob[i])) * 0x9e3779b97f4a7c15L;
+			hash = (Long.rotateLeft(hash, 17) ^ alias[i]) * 0x9e3779b97f4a7c15L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the number of outcomes
+	 *
+	 * @return the number of outcomes
+	 */
+	public int size() {
+		return prob.length;
+	}
+
+	/**
+	 * Get the normalized probability of an outcome
+	 *
+	 * @param index the outcome
+	 * @return its probability
+	 */
+	public double getProbability(int index) {
+		return p[index];
+	}
+}
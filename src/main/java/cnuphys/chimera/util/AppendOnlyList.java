@@ -0,0 +1,178 @@
+package cnuphys.chimera.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A list that can only grow (or be cleared), for data that is read while it
+ * is being written, e.g. Monte Carlo points drawn by a view during a run.
+ * Elements live in fixed size chunks that never move, and the size is
+ * published with a volatile write after the elements are stored, so a reader
+ * that sees size n sees the first n elements completely. Readers take no
+ * locks and never block the writer.
+ * <p>
+ * Iterators work on the prefix that existed when they were created, so they
+ * never throw ConcurrentModificationException; appends made meanwhile are not
+ * seen, and a clear made meanwhile does not affect them. Writers are
+ * serialized with each other.
+ *
+ * @param <E> the element type
+ */
+public class AppendOnlyList<E> extends AbstractList<E> implements RandomAccess {
+
+	// elements per chunk, as a power of two
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The chunks and the size, replaced as a whole by clear. Within one
+	 * generation chunks are only added and the size only grows.
+	 */
+	private static final class Generation {
+		volatile Object[][] chunks = new Object[0][];
+		volatile int size;
+	}
+
+	// the current generation
+	private volatile Generation gen = new Generation();
+
+	@Override
+	public int size() {
+		return gen.size;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		Generation g = gen;
+		if (index < 0 || index >= g.size) {
+			throw new IndexOutOfBoundsException("Index " + index + " of " + g.size);
+		}
+		return (E) g.chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+	}
+
+	@Override
+	public synchronized boolean add(E element) {
+		Generation g = gen;
+		int n = g.size;
+		if (n == Integer.MAX_VALUE) {
+			throw new IllegalStateException("The list is full.");
+		}
+		int c = n >>> CHUNK_BITS;
+		if (c == g.chunks.length) {
+			grow(g);
+		}
+		g.chunks[c][n & CHUNK_MASK] = element;
+		g.size = n + 1;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean addAll(Collection<? extends E> elements) {
+		Generation g = gen;
+		int n = g.size;
+		if ((long) n + elements.size() > Integer.MAX_VALUE) {
+			throw new IllegalStateException("The list is full.");
+		}
+		for (E element : elements) {
+			int c = n >>> CHUNK_BITS;
+			if (c == g.chunks.length) {
+				grow(g);
+			}
+			g.chunks[c][n & CHUNK_MASK] = element;
+			n++;
+		}
+		// publish the whole batch at once
+		g.size = n;
+		return !elements.isEmpty();
+	}
+
+	// add a chunk; the old chunks are shared, not copied
+	private static void grow(Generation g) {
+		Object[][] old = g.chunks;
+		Object[][] grown = new Object[old.length + 1][];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		grown[old.length] = new Object[CHUNK_SIZE];
+		g.chunks = grown;
+	}
+
+	/**
+	 * Remove all elements. Readers that are iterating keep their view of the
+	 * old elements; the memory is released when they are done.
+	 */
+	@Override
+	public synchronized void clear() {
+		gen = new Generation();
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		Generation g = gen;
+		int n = g.size;
+		Object[][] chunks = g.chunks;
+		return new Iterator<E>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < n;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public E next() {
+				if (next >= n) {
+					throw new NoSuchElementException();
+				}
+				E element = (E) chunks[next >>> CHUNK_BITS][next & CHUNK_MASK];
+				next++;
+				return element;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		AppendOnlyList<Integer> list = new AppendOnlyList<>();
+		int numElements = 5000000;
+
+		// the writer appends in batches, the reader keeps iterating and checking
+		Thread writer = new Thread(() -> {
+			ArrayList<Integer> batch = new ArrayList<>();
+			for (int i = 0; i < numElements; i++) {
+				batch.add(i);
+				if (batch.size() == 1000) {
+					list.addAll(batch);
+					batch.clear();
+				}
+			}
+			list.addAll(batch);
+		});
+
+		long start = System.nanoTime();
+		writer.start();
+		int passes = 0;
+		long checked = 0;
+		boolean ok = true;
+		while (writer.isAlive() || passes == 0) {
+			int expected = 0;
+			for (Integer value : list) {
+				ok &= (value != null) && (value == expected);
+				expected++;
+			}
+			checked += expected;
+			passes++;
+		}
+		writer.join();
+		double time = (System.nanoTime() - start) / 1.0e9;
+		System.out.printf("%d elements, %d reader passes over %d elements during the writes, all consistent: %b, %.2f s%n",
+				list.size(), passes, checked, ok, time);
+
+		list.clear();
+		System.out.println("size after clear: " + list.size());
+	}
+}
@@ -0,0 +1,206 @@
+package cnuphys.chimera.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Parses numbers straight from ASCII bytes, e.g. the fields of a memory-mapped
+ * text file, without making strings. A decimal with at most 15 significant
+ * digits and a power of ten within 10^&plusmn;22 is one exact multiply or
+ * divide of two exact doubles, so it rounds exactly as
+ * {@link Double#parseDouble(String)} would; anything else (more digits,
+ * larger exponents, NaN, Infinity) falls back to it.
+ */
+public class DecimalParser {
+
+	// the exactly representable powers of ten
+	private static final double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = 10 * POW10[i - 1];
+		}
+	}
+
+	// the most significant digits of the fast path
+	private static final int MAX_DIGITS = 15;
+
+	// Private constructor to prevent instantiation
+	private DecimalParser() {
+	}
+
+	/**
+	 * Parse a double
+	 *
+	 * @param buffer the bytes, read with absolute gets
+	 * @param from   the index of the first byte
+	 * @param to     one past the index of the last byte
+	 * @return the number; leading and trailing blanks are ignored
+	 * @throws NumberFormatException if the bytes are not a number
+	 */
+	public static double parseDouble(ByteBuffer buffer, int from, int to) {
+		while ((from < to) && isBlank(buffer.get(from))) {
+			from++;
+		}
+		while ((to > from) && isBlank(buffer.get(to - 1))) {
+			to--;
+		}
+
+		int i = from;
+		boolean negative = false;
+		if ((i < to) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0; // significant digits, from the first nonzero one
+		int exponent = 0;
+		boolean anyDigit = false;
+		boolean point = false;
+		for (; i < to; i++) {
+			byte b = buffer.get(i);
+			if ((b >= '0') && (b <= '9')) {
+				anyDigit = true;
+				if ((digits > 0) || (b != '0')) {
+					if (++digits > MAX_DIGITS) {
+						return slowParse(buffer, from, to);
+					}
+					mantissa = 10 * mantissa + (b - '0');
+				}
+				if (point) {
+					exponent--;
+				}
+			} else if ((b == '.') && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigit) {
+			return slowParse(buffer, from, to);
+		}
+
+		if ((i < to) && ((buffer.get(i) == 'e') || (buffer.get(i) == 'E'))) {
+			i++;
+			boolean negativeExponent = false;
+			if ((i < to) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+				negativeExponent = buffer.get(i) == '-';
+				i++;
+			}
+			if (i == to) {
+				return slowParse(buffer, from, to);
+			}
+			int e = 0;
+			for (; i < to; i++) {
+				byte b = buffer.get(i);
+				if ((b < '0') || (b > '9') || (e > 100000)) {
+					return slowParse(buffer, from, to);
+				}
+				e = 10 * e + (b - '0');
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != to) {
+			return slowParse(buffer, from, to);
+		}
+
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if ((exponent >= 0) && (exponent < POW10.length)) {
+			value = mantissa * POW10[exponent];
+		} else if ((exponent < 0) && (-exponent < POW10.length)) {
+			value = mantissa / POW10[-exponent];
+		} else {
+			return slowParse(buffer, from, to);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse an int
+	 *
+	 * @param buffer the bytes, read with absolute gets
+	 * @param from   the index of the first byte
+	 * @param to     one past the index of the last byte
+	 * @return the number; leading and trailing blanks are ignored
+	 * @throws NumberFormatException if the bytes are not an int
+	 */
+	public static int parseInt(ByteBuffer buffer, int from, int to) {
+		while ((from < to) && isBlank(buffer.get(from))) {
+			from++;
+		}
+		while ((to > from) && isBlank(buffer.get(to - 1))) {
+			to--;
+		}
+		int i = from;
+		boolean negative = false;
+		if ((i < to) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		if ((i == to) || (to - i > 10)) {
+			return Integer.parseInt(toString(buffer, from, to));
+		}
+		long value = 0;
+		for (; i < to; i++) {
+			byte b = buffer.get(i);
+			if ((b < '0') || (b > '9')) {
+				throw new NumberFormatException("Not an int: \"" + toString(buffer, from, to) + "\"");
+			}
+			value = 10 * value + (b - '0');
+		}
+		value = negative ? -value : value;
+		if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+			throw new NumberFormatException("Not an int: \"" + toString(buffer, from, to) + "\"");
+		}
+		return (int) value;
+	}
+
+	// the general case
+	private static double slowParse(ByteBuffer buffer, int from, int to) {
+		return Double.parseDouble(toString(buffer, from, to));
+	}
+
+	// the bytes as a string
+	private static String toString(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		buffer.get(from, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	// spaces and tabs around a field
+	private static boolean isBlank(byte b) {
+		return (b == ' ') || (b == '\t');
+	}
+
+	public static void main(String[] args) {
+		String[] samples = { "0", "-0", "1", "3.141592653589793", "2.718281828", "1e10", "-1.5E-7", ".5", "5.",
+				"  42.125 ", "1.7976931348623157e308", "4.9e-324", "0.000000000000000000000000001234", "NaN",
+				"-Infinity", "123456789012345678901234567890", "0.1", "+7.25e+2" };
+		for (String sample : samples) {
+			ByteBuffer buffer = ByteBuffer.wrap(sample.getBytes(StandardCharsets.ISO_8859_1));
+			double value = parseDouble(buffer, 0, buffer.limit());
+			System.out.printf("%-35s %-25s %s%n", "\"" + sample + "\"", value,
+					(Double.compare(value, Double.parseDouble(sample)) == 0) ? "ok" : "WRONG");
+		}
+
+		// random values as a text file would have them
+		SplittableRandom random = new SplittableRandom(3);
+		int wrong = 0;
+		int n = 2000000;
+		for (int k = 0; k < n; k++) {
+			double v = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(-12, 12));
+			String s = (k % 3 == 0) ? Double.toString(v)
+					: (k % 3 == 1) ? String.format("%.9f", v) : String.format("%.6e", v);
+			ByteBuffer buffer = ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+			if (Double.compare(parseDouble(buffer, 0, buffer.limit()), Double.parseDouble(s)) != 0) {
+				wrong++;
+			}
+		}
+		System.out.println(n + " random numbers, " + wrong + " parsed differently than Double.parseDouble");
+	}
+}
@@ -0,0 +1,198 @@
+package cnuphys.chimera.util;
+
+import java.util.Random;
+
+/**
+ * Quantized encodings of directions, for storing many Monte Carlo points in
+ * less memory.
+ * <ul>
+ * <li><b>Fixed point</b>: theta and phi each as an unsigned 32 bit fraction of
+ * their range. The worst case angular error is under 1.0e-9 rad.</li>
+ * <li><b>Octahedral</b>: the unit vector projected onto the octahedron
+ * |x| + |y| + |z| = 1, the lower half folded over the upper, and the two
+ * remaining coordinates stored as signed 16 bit values in one int. The encoder
+ * picks the best of the four neighbouring lattice points; the worst case
+ * angular error measured over 5 million directions is 4.3e-5 rad, under
+ * {@link #OCTAHEDRAL_MAX_ERROR}. Decoding to a unit vector needs no trig.</li>
+ * </ul>
+ */
+public class DirectionCodec {
+
+	/** A bound on the angular error of the fixed point encoding, in radians */
+	public static final double FIXED_MAX_ERROR = 1.0e-9;
+
+	/** A bound on the angular error of the octahedral encoding, in radians */
+	public static final double OCTAHEDRAL_MAX_ERROR = 5.0e-5;
+
+	// the fixed point steps
+	private static final double THETA_STEP = Math.PI / 4294967295.0;
+	private static final double PHI_STEP = 2 * Math.PI / 4294967295.0;
+
+	// the octahedral lattice
+	private static final double OCT_SCALE = 32767.0;
+
+	// Private constructor to prevent instantiation
+	private DirectionCodec() {
+	}
+
+	/**
+	 * Encode a polar angle as a 32 bit fixed point value
+	 *
+	 * @param theta the polar angle, in [0, pi]
+	 * @return the encoded angle, to be read as unsigned
+	 */
+	public static int encodeTheta(double theta) {
+		return (int) Math.round(Math.max(0, Math.min(Math.PI, theta)) / THETA_STEP);
+	}
+
+	/**
+	 * Decode a polar angle
+	 *
+	 * @param bits the value from {@link #encodeTheta(double)}
+	 * @return the polar angle
+	 */
+	public static double decodeTheta(int bits) {
+		return (bits & 0xffffffffL) * THETA_STEP;
+	}
+
+	/**
+	 * Encode an azimuthal angle as a 32 bit fixed point value
+	 *
+	 * @param phi the azimuthal angle, any value
+	 * @return the encoded angle, to be read as unsigned
+	 */
+	public static int encodePhi(double phi) {
+		return (int) Math.round((MathUtil.normalizeAngle(phi) + Math.PI) / PHI_STEP);
+	}
+
+	/**
+	 * Decode an azimuthal angle
+	 *
+	 * @param bits the value from {@link #encodePhi(double)}
+	 * @return the azimuthal angle, in [-pi, pi]
+	 */
+	public static double decodePhi(int bits) {
+		return (bits & 0xffffffffL) * PHI_STEP - Math.PI;
+	}
+
+	/**
+	 * Encode a direction given by its angles octahedrally
+	 *
+	 * @param theta the polar angle
+	 * @param phi   the azimuthal angle
+	 * @return the encoded direction
+	 */
+	public static int encodeOctahedral(double theta, double phi) {
+		double sinTheta = Math.sin(theta);
+		return encodeOctahedral(sinTheta * Math.cos(phi), sinTheta * Math.sin(phi), Math.cos(theta));
+	}
+
+	/**
+	 * Encode a unit vector octahedrally
+	 *
+	 * @param ux the x component
+	 * @param uy the y component
+	 * @param uz the z component
+	 * @return the encoded direction
+	 */
+	public static int encodeOctahedral(double ux, double uy, double uz) {
+		double l1 = Math.abs(ux) + Math.abs(uy) + Math.abs(uz);
+		double px = ux / l1;
+		double py = uy / l1;
+		if (uz < 0) {
+			double fx = (1 - Math.abs(py)) * sign(px);
+			py = (1 - Math.abs(px)) * sign(py);
+			px = fx;
+		}
+
+		// try the four surrounding lattice points, keep the closest
+		double x0 = Math.floor(px * OCT_SCALE);
+		double y0 = Math.floor(py * OCT_SCALE);
+		int best = 0;
+		double bestDot = Double.NEGATIVE_INFINITY;
+		double[] v = new double[3];
+		for (int i = 0; i < 4; i++) {
+			int qx = (int) Math.max(-OCT_SCALE, Math.min(OCT_SCALE, x0 + (i & 1)));
+			int qy = (int) Math.max(-OCT_SCALE, Math.min(OCT_SCALE, y0 + (i >> 1)));
+			int code = (qx << 16) | (qy & 0xffff);
+			decodeOctahedral(code, v);
+			double dot = v[0] * ux + v[1] * uy + v[2] * uz;
+			if (dot > bestDot) {
+				bestDot = dot;
+				best = code;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Decode an octahedrally encoded direction to a unit vector
+	 *
+	 * @param code the value from {@link #encodeOctahedral(double, double, double)}
+	 * @param u    on return the unit vector
+	 */
+	public static void decodeOctahedral(int code, double[] u) {
+		double px = (code >> 16) / OCT_SCALE;
+		double py = ((short) code) / OCT_SCALE;
+		double pz = 1 - Math.abs(px) - Math.abs(py);
+		if (pz < 0) {
+			double fx = (1 - Math.abs(py)) * sign(px);
+			py = (1 - Math.abs(px)) * sign(py);
+			px = fx;
+		}
+		double norm = 1 / Math.sqrt(px * px + py * py + pz * pz);
+		u[0] = px * norm;
+		u[1] = py * norm;
+		u[2] = pz * norm;
+	}
+
+	// the sign, with zero counted as positive
+	private static double sign(double v) {
+		return (v < 0) ? -1 : 1;
+	}
+
+	// the angle between two unit vectors, accurate for small angles
+	private static double angle(double[] a, double[] b) {
+		double cx = a[1] * b[2] - a[2] * b[1];
+		double cy = a[2] * b[0] - a[0] * b[2];
+		double cz = a[0] * b[1] - a[1] * b[0];
+		double cross = Math.sqrt(cx * cx + cy * cy + cz * cz);
+		return Math.atan2(cross, a[0] * b[0] + a[1] * b[1] + a[2] * b[2]);
+	}
+
+	public static void main(String[] args) {
+		int n = 5000000;
+		Random random = new Random(1);
+		double[] u = new double[3];
+		double[] v = new double[3];
+		double fixedMax = 0;
+		double octMax = 0;
+		double octSum = 0;
+
+		for (int i = 0; i < n; i++) {
+			double cosTheta = 2 * random.nextDouble() - 1;
+			double theta = Math.acos(cosTheta);
+			double phi = 2 * Math.PI * random.nextDouble();
+			double sinTheta = Math.sin(theta);
+			u[0] = sinTheta * Math.cos(phi);
+			u[1] = sinTheta * Math.sin(phi);
+			u[2] = cosTheta;
+
+			double t = decodeTheta(encodeTheta(theta));
+			double p = decodePhi(encodePhi(phi));
+			v[0] = Math.sin(t) * Math.cos(p);
+			v[1] = Math.sin(t) * Math.sin(p);
+			v[2] = Math.cos(t);
+			fixedMax = Math.max(fixedMax, angle(u, v));
+
+			decodeOctahedral(encodeOctahedral(u[0], u[1], u[2]), v);
+			double err = angle(u, v);
+			octMax = Math.max(octMax, err);
+			octSum += err;
+		}
+
+		System.out.printf("fixed point:  max error %.3e rad (bound %.1e)%n", fixedMax, FIXED_MAX_ERROR);
+		System.out.printf("octahedral:   max error %.3e rad, mean %.3e rad (bound %.1e)%n", octMax, octSum / n,
+				OCTAHEDRAL_MAX_ERROR);
+	}
+}
@@ -0,0 +1,377 @@
+package cnuphys.chimera.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Counts long keys, e.g. packed patch keys, when there are too many distinct
+ * keys for a {@link LongCountMap} to hold in memory. Keys are collected in a
+ * buffer; a full buffer is sorted with the parallel {@link LongRadixSort},
+ * equal keys are collapsed into counts and the sorted run is written to a
+ * temporary file. The runs are then merged k at a time, so the counts come out
+ * in ascending key order and all disk access is sequential. Memory use is the
+ * buffer, the sort scratch space and a read buffer per merged run, however
+ * many distinct keys there are.
+ * <p>
+ * Not thread safe. Close the counter to delete its run files.
+ */
+public class ExternalLongCounter implements AutoCloseable {
+
+	/** The default number of keys buffered before a run is written */
+	public static final int DEFAULT_RUN_SIZE = 1 << 22;
+
+	/** The most runs merged at once */
+	public static final int MAX_FAN_IN = 64;
+
+	// the I/O buffer per run file
+	private static final int IO_BUFFER = 1 << 16;
+
+	// where the runs go
+	private final Path directory;
+
+	// the keys not yet written
+	private final long[] buffer;
+	private final long[] scratch;
+	private int buffered;
+
+	// the written runs, in order, and their numbers of entries
+	private final List<Path> runs = new ArrayList<>();
+	private final List<Long> runEntries = new ArrayList<>();
+
+	// the number of keys added
+	private long total;
+
+	// set once the counts have been merged
+	private boolean finished;
+
+	/**
+	 * Create a counter with the default run size that writes its runs to the
+	 * temporary directory
+	 *
+	 * @throws IOException if the temporary directory cannot be used
+	 */
+	public ExternalLongCounter() throws IOException {
+		this(null, DEFAULT_RUN_SIZE);
+	}
+
+	/**
+	 * Create a counter
+	 *
+	 * @param directory where to write the runs, <code>null</code> for the
+	 *                  temporary directory
+	 * @param runSize   the number of keys buffered before a run is written; the
+	 *                  counter uses 16 bytes of heap per key
+	 * @throws IOException if the directory cannot be used
+	 */
+	public ExternalLongCounter(Path directory, int runSize) throws IOException {
+		if (runSize < 1) {
+			throw new IllegalArgumentException("Bad run size: " + runSize);
+		}
+		this.directory = Files.createTempDirectory((directory == null)
+				? Path.of(System.getProperty("java.io.tmpdir")) : directory, "chimera-runs");
+		buffer = new long[runSize];
+		scratch = new long[runSize];
+	}
+
+	/**
+	 * Count a key
+	 *
+	 * @param key the key
+	 * @throws UncheckedIOException if a run cannot be written
+	 */
+	public void increment(long key) {
+		if (finished) {
+			throw new IllegalStateException("The counts have already been merged.");
+		}
+		if (buffered == buffer.length) {
+			spill();
+		}
+		buffer[buffered++] = key;
+		total++;
+	}
+
+	/**
+	 * Get the number of keys counted
+	 *
+	 * @return the number of keys
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get the number of runs written so far
+	 *
+	 * @return the number of runs
+	 */
+	public int getNumRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Merge the runs and visit every distinct key with its count, in ascending
+	 * key order. No keys can be added afterwards. The counts can be visited more
+	 * than once; after the first visit they are read from a single file.
+	 *
+	 * @param consumer receives each key and its count
+	 * @throws IOException if the runs cannot be read or written
+	 */
+	public void forEach(LongCountMap.EntryConsumer consumer) throws IOException {
+		if (!finished) {
+			if (buffered > 0 || runs.isEmpty()) {
+				writeRun();
+			}
+			// merge passes until one merge of the rest is enough
+			while (runs.size() > MAX_FAN_IN) {
+				mergePass();
+			}
+			if (runs.size() > 1) {
+				RunWriter writer = new RunWriter(newRunFile());
+				try (writer) {
+					merge(new ArrayList<>(runs), new ArrayList<>(runEntries), writer);
+				}
+				deleteRuns();
+				runs.add(writer.path);
+				runEntries.add(writer.entries);
+			}
+			finished = true;
+		}
+		try (DataInputStream in = open(runs.get(0))) {
+			for (long i = runEntries.get(0); i > 0; i--) {
+				consumer.accept(in.readLong(), in.readLong());
+			}
+		}
+	}
+
+	/**
+	 * Get the number of distinct keys
+	 *
+	 * @return the number of distinct keys
+	 * @throws IOException if the runs cannot be merged
+	 */
+	public long size() throws IOException {
+		if (!finished) {
+			forEach((key, count) -> {
+			});
+		}
+		return runEntries.get(0);
+	}
+
+	/**
+	 * Collect the counts in memory, if they fit
+	 *
+	 * @return the counts
+	 * @throws IOException if the runs cannot be merged
+	 */
+	public LongCountMap toCountMap() throws IOException {
+		long n = size();
+		if (n > Integer.MAX_VALUE / 2) {
+			throw new IllegalStateException("Too many distinct keys for memory: " + n);
+		}
+		LongCountMap counts = new LongCountMap((int) n);
+		forEach(counts::add);
+		return counts;
+	}
+
+	/**
+	 * Delete the run files
+	 *
+	 * @throws IOException if they cannot be deleted
+	 */
+	@Override
+	public void close() throws IOException {
+		deleteRuns();
+		Files.deleteIfExists(directory);
+	}
+
+	// write the buffer as a run, without checked exceptions for increment
+	private void spill() {
+		try {
+			writeRun();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// sort the buffer and write it as a run of distinct keys and counts
+	private void writeRun() throws IOException {
+		LongRadixSort.sort(buffer, buffered, scratch);
+		RunWriter writer = new RunWriter(newRunFile());
+		try (writer) {
+			int i = 0;
+			while (i < buffered) {
+				long key = buffer[i];
+				int j = i + 1;
+				while (j < buffered && buffer[j] == key) {
+					j++;
+				}
+				writer.write(key, j - i);
+				i = j;
+			}
+		}
+		runs.add(writer.path);
+		runEntries.add(writer.entries);
+		buffered = 0;
+	}
+
+	// merge the runs in groups of MAX_FAN_IN
+	private void mergePass() throws IOException {
+		List<Path> merged = new ArrayList<>();
+		List<Long> mergedEntries = new ArrayList<>();
+		for (int start = 0; start < runs.size(); start += MAX_FAN_IN) {
+			int end = Math.min(runs.size(), start + MAX_FAN_IN);
+			RunWriter writer = new RunWriter(newRunFile());
+			try (writer) {
+				merge(runs.subList(start, end), runEntries.subList(start, end), writer);
+			}
+			merged.add(writer.path);
+			mergedEntries.add(writer.entries);
+		}
+		deleteRuns();
+		runs.addAll(merged);
+		runEntries.addAll(mergedEntries);
+	}
+
+	// k-way merge of sorted runs, adding the counts of equal keys
+	private static void merge(List<Path> paths, List<Long> entries, RunWriter writer) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(paths.size(),
+				(a, b) -> Long.compare(a.key, b.key));
+		List<RunReader> readers = new ArrayList<>();
+		try {
+			for (int r = 0; r < paths.size(); r++) {
+				RunReader reader = new RunReader(paths.get(r), entries.get(r));
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				long key = reader.key;
+				long count = reader.count;
+				if (reader.next()) {
+					queue.add(reader);
+				}
+				while (!queue.isEmpty() && queue.peek().key == key) {
+					reader = queue.poll();
+					count += reader.count;
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+				writer.write(key, count);
+			}
+		} finally {
+			for (RunReader reader : readers) {
+				reader.in.close();
+			}
+		}
+	}
+
+	// a fresh run file
+	private Path newRunFile() throws IOException {
+		return Files.createTempFile(directory, "run", ".bin");
+	}
+
+	// delete the current runs
+	private void deleteRuns() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+		runEntries.clear();
+	}
+
+	private static DataInputStream open(Path path) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), IO_BUFFER));
+	}
+
+	// writes a run: key and count pairs in ascending key order
+	private static final class RunWriter implements AutoCloseable {
+		final Path path;
+		final DataOutputStream out;
+		long entries;
+
+		RunWriter(Path path) throws IOException {
+			this.path = path;
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), IO_BUFFER));
+		}
+
+		void write(long key, long count) throws IOException {
+			out.writeLong(key);
+			out.writeLong(count);
+			entries++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	// reads a run one entry at a time
+	private static final class RunReader {
+		final DataInputStream in;
+		long remaining;
+		long key;
+		long count;
+
+		RunReader(Path path, long entries) throws IOException {
+			in = open(path);
+			remaining = entries;
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			key = in.readLong();
+			count = in.readLong();
+			remaining--;
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int numKeys = 30000000;
+		int numDistinct = 5000000;
+		SplittableRandom random = new SplittableRandom(3);
+		LongCountMap expected = new LongCountMap(numDistinct);
+
+		// a small run size, so there are more runs than one merge takes
+		long start = System.nanoTime();
+		try (ExternalLongCounter counter = new ExternalLongCounter(null, 1 << 18)) {
+			for (int i = 0; i < numKeys; i++) {
+				long key = (random.nextInt(numDistinct) * 0x9E3779B97F4A7C15L) >>> 7;
+				counter.increment(key);
+				expected.increment(key);
+			}
+			int numRuns = counter.getNumRuns();
+			LongCountMap counts = counter.toCountMap();
+			double time = (System.nanoTime() - start) / 1.0e9;
+
+			boolean same = counts.size() == expected.size();
+			for (long key : expected.sortedKeys()) {
+				same &= counts.get(key) == expected.get(key);
+			}
+			long[] previous = { Long.MIN_VALUE };
+			boolean[] sorted = { true };
+			counter.forEach((key, count) -> {
+				sorted[0] &= key >= previous[0];
+				previous[0] = key;
+			});
+			System.out.printf("%d keys, %d runs, %d distinct, total %d, same as in memory: %b, ascending: %b, %.2f s%n",
+					numKeys, numRuns, counter.size(), counts.getTotal(), same, sorted[0], time);
+		}
+	}
+}
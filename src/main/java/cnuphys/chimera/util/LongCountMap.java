@@ -0,0 +1,271 @@
+package cnuphys.chimera.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A map from long keys to long counts, using open addressing with linear
+ * probing in primitive arrays. It avoids the boxing and per-entry objects of a
+ * HashMap, which matters when counting many millions of samples. Not thread
+ * safe.
+ */
+public class LongCountMap {
+
+	/** Receives the entries of the map */
+	public interface EntryConsumer {
+		void accept(long key, long count);
+	}
+
+	// marks an empty slot; that key is counted separately
+	private static final long EMPTY = -1L;
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] _keys;
+	private long[] _counts;
+	private int _size;
+	private int _threshold;
+
+	// count for the key that equals EMPTY
+	private long _emptyKeyCount;
+
+	/**
+	 * Create a map with a default initial capacity
+	 */
+	public LongCountMap() {
+		this(1024);
+	}
+
+	/**
+	 * Create a map
+	 *
+	 * @param expectedSize the expected number of distinct keys
+	 */
+	public LongCountMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	// allocate empty tables
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_counts = new long[capacity];
+		_threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	// mix the bits of a key (the murmur3 finalizer)
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Increment the count for a key by one
+	 *
+	 * @param key the key
+	 */
+	public void increment(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Add to the count for a key
+	 *
+	 * @param key   the key
+	 * @param count the amount to add
+	 */
+	public void add(long key, long count) {
+		if (key == EMPTY) {
+			if (_emptyKeyCount == 0) {
+				_size++;
+			}
+			_emptyKeyCount += count;
+			return;
+		}
+
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key) {
+				_counts[slot] += count;
+				return;
+			}
+			if (k == EMPTY) {
+				_keys[slot] = key;
+				_counts[slot] = count;
+				if (++_size > _threshold) {
+					rehash(2 * _keys.length);
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Get the count for a key
+	 *
+	 * @param key the key
+	 * @return the count, 0 if the key is not present
+	 */
+	public long get(long key) {
+		if (key == EMPTY) {
+			return _emptyKeyCount;
+		}
+
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key) {
+				return _counts[slot];
+			}
+			if (k == EMPTY) {
+				return 0;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	// grow the tables
+	private void rehash(int capacity) {
+		long[] oldKeys = _keys;
+		long[] oldCounts = _counts;
+		allocate(capacity);
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != EMPTY) {
+				int slot = hash(key) & mask;
+				while (_keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				_keys[slot] = key;
+				_counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	/**
+	 * Add all the counts of another map to this one
+	 *
+	 * @param other the other map
+	 */
+	public void addAll(LongCountMap other) {
+		other.forEach(this::add);
+	}
+
+	/**
+	 * Visit every entry
+	 *
+	 * @param consumer receives each key and its count
+	 */
+	public void forEach(EntryConsumer consumer) {
+		if (_emptyKeyCount != 0) {
+			consumer.accept(EMPTY, _emptyKeyCount);
+		}
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				consumer.accept(_keys[i], _counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Write the entries, in ascending key order
+	 *
+	 * @param out where to write
+	 * @throws IOException if the entries cannot be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		long[] keys = sortedKeys();
+		out.writeInt(keys.length);
+		for (long key : keys) {
+			out.writeLong(key);
+			out.writeLong(get(key));
+		}
+	}
+
+	/**
+	 * Read entries written by {@link #write(DataOutput)}
+	 *
+	 * @param in where to read
+	 * @return the map
+	 * @throws IOException if the entries cannot be read
+	 */
+	public static LongCountMap read(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			throw new IOException("Bad entry count " + n);
+		}
+		LongCountMap map = new LongCountMap(n);
+		for (int i = 0; i < n; i++) {
+			long key = in.readLong();
+			map.add(key, in.readLong());
+		}
+		return map;
+	}
+
+	/**
+	 * Get the keys in ascending order
+	 *
+	 * @return the sorted keys
+	 */
+	public long[] sortedKeys() {
+		long[] keys = new long[_size];
+		int n = 0;
+		if (_emptyKeyCount != 0) {
+			keys[n++] = EMPTY;
+		}
+		for (long key : _keys) {
+			if (key != EMPTY) {
+				keys[n++] = key;
+			}
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Get the number of distinct keys
+	 *
+	 * @return the number of distinct keys
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Get the sum of all the counts
+	 *
+	 * @return the total count
+	 */
+	public long getTotal() {
+		long total = _emptyKeyCount;
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				total += _counts[i];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear() {
+		Arrays.fill(_keys, EMPTY);
+		Arrays.fill(_counts, 0);
+		_size = 0;
+		_emptyKeyCount = 0;
+	}
+}
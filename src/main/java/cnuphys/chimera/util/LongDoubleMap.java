@@ -0,0 +1,231 @@
+package cnuphys.chimera.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to double sums, using open addressing with linear
+ * probing in primitive arrays, like {@link LongCountMap} but for accumulating
+ * real values such as volumes or areas. Not thread safe.
+ */
+public class LongDoubleMap {
+
+	/** Receives the entries of the map */
+	public interface EntryConsumer {
+		void accept(long key, double value);
+	}
+
+	// marks an empty slot; that key is stored separately
+	private static final long EMPTY = -1L;
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] _keys;
+	private double[] _values;
+	private int _size;
+	private int _threshold;
+
+	// the value for the key that equals EMPTY
+	private boolean _hasEmptyKey;
+	private double _emptyKeyValue;
+
+	/**
+	 * Create a map with a default initial capacity
+	 */
+	public LongDoubleMap() {
+		this(1024);
+	}
+
+	/**
+	 * Create a map
+	 *
+	 * @param expectedSize the expected number of distinct keys
+	 */
+	public LongDoubleMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	// allocate empty tables
+	private void allocate(int capacity) {
+		_keys = new long[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_values = new double[capacity];
+		_threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	// mix the bits of a key (the murmur3 finalizer)
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Add to the value for a key; a missing key starts at 0
+	 *
+	 * @param key   the key
+	 * @param value the amount to add
+	 */
+	public void add(long key, double value) {
+		if (key == EMPTY) {
+			if (!_hasEmptyKey) {
+				_hasEmptyKey = true;
+				_size++;
+			}
+			_emptyKeyValue += value;
+			return;
+		}
+
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key) {
+				_values[slot] += value;
+				return;
+			}
+			if (k == EMPTY) {
+				_keys[slot] = key;
+				_values[slot] = value;
+				if (++_size > _threshold) {
+					rehash(2 * _keys.length);
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Get the value for a key
+	 *
+	 * @param key the key
+	 * @return the value, 0 if the key is not present
+	 */
+	public double get(long key) {
+		if (key == EMPTY) {
+			return _emptyKeyValue;
+		}
+
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key) {
+				return _values[slot];
+			}
+			if (k == EMPTY) {
+				return 0;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Check whether a key is present
+	 *
+	 * @param key the key
+	 * @return <code>true</code> if a value was added for the key
+	 */
+	public boolean containsKey(long key) {
+		if (key == EMPTY) {
+			return _hasEmptyKey;
+		}
+
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = _keys[slot];
+			if (k == key) {
+				return true;
+			}
+			if (k == EMPTY) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	// grow the tables
+	private void rehash(int capacity) {
+		long[] oldKeys = _keys;
+		double[] oldValues = _values;
+		allocate(capacity);
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != EMPTY) {
+				int slot = hash(key) & mask;
+				while (_keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				_keys[slot] = key;
+				_values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Visit every entry
+	 *
+	 * @param consumer receives each key and its value
+	 */
+	public void forEach(EntryConsumer consumer) {
+		if (_hasEmptyKey) {
+			consumer.accept(EMPTY, _emptyKeyValue);
+		}
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				consumer.accept(_keys[i], _values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Get the keys in ascending order
+	 *
+	 * @return the sorted keys
+	 */
+	public long[] sortedKeys() {
+		long[] keys = new long[_size];
+		int n = 0;
+		if (_hasEmptyKey) {
+			keys[n++] = EMPTY;
+		}
+		for (long key : _keys) {
+			if (key != EMPTY) {
+				keys[n++] = key;
+			}
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Get the number of distinct keys
+	 *
+	 * @return the number of distinct keys
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Get the sum of all the values
+	 *
+	 * @return the total
+	 */
+	public double getTotal() {
+		double total = _emptyKeyValue;
+		for (int i = 0; i < _keys.length; i++) {
+			if (_keys[i] != EMPTY) {
+				total += _values[i];
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,156 @@
+package cnuphys.chimera.util;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * A parallel least significant digit radix sort of long keys, in ascending
+ * signed order (the order of {@link Arrays#sort(long[])}). Each pass sorts on
+ * one byte: the array is cut into one segment per thread, every thread
+ * histograms its segment, and then every thread scatters its segment to its
+ * own precomputed offsets, so the passes are stable and need no locks. Bytes
+ * that are the same in every key, e.g. the unused high fields of packed patch
+ * keys, are skipped.
+ */
+public class LongRadixSort {
+
+	// bits per digit
+	private static final int DIGIT_BITS = 8;
+	private static final int RADIX = 1 << DIGIT_BITS;
+
+	// fewer keys than this per thread are sorted by fewer threads
+	private static final int MIN_PER_THREAD = 1 << 16;
+
+	// Private constructor to prevent instantiation
+	private LongRadixSort() {
+	}
+
+	/**
+	 * Sort the first n keys of an array, using all available processors
+	 *
+	 * @param keys    the keys
+	 * @param n       the number of keys to sort
+	 * @param scratch work space of at least n elements
+	 */
+	public static void sort(long[] keys, int n, long[] scratch) {
+		sort(keys, n, scratch, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Sort the first n keys of an array
+	 *
+	 * @param keys       the keys
+	 * @param n          the number of keys to sort
+	 * @param scratch    work space of at least n elements
+	 * @param numThreads the most threads to use
+	 */
+	public static void sort(long[] keys, int n, long[] scratch, int numThreads) {
+		if (scratch.length < n) {
+			throw new IllegalArgumentException("The scratch array is too small: " + scratch.length + " < " + n);
+		}
+		if (n < 2) {
+			return;
+		}
+		int numSegments = Math.max(1, Math.min(numThreads, n / MIN_PER_THREAD));
+		int[] bounds = new int[numSegments + 1];
+		for (int s = 0; s <= numSegments; s++) {
+			bounds[s] = (int) ((long) n * s / numSegments);
+		}
+
+		// the bits that differ between any two keys
+		long first = keys[0];
+		long varying = IntStream.range(0, numSegments).parallel().mapToLong(s -> {
+			long bits = 0;
+			for (int i = bounds[s]; i < bounds[s + 1]; i++) {
+				bits |= keys[i] ^ first;
+			}
+			return bits;
+		}).reduce(0, (a, b) -> a | b);
+
+		long[] src = keys;
+		long[] dst = scratch;
+		int[][] offsets = new int[numSegments][RADIX];
+		for (int shift = 0; shift < Long.SIZE; shift += DIGIT_BITS) {
+			if (((varying >>> shift) & (RADIX - 1)) == 0) {
+				continue;
+			}
+			final long[] from = src;
+			final long[] to = dst;
+			final int sh = shift;
+
+			// histogram each segment
+			IntStream.range(0, numSegments).parallel().forEach(s -> {
+				int[] count = offsets[s];
+				Arrays.fill(count, 0);
+				for (int i = bounds[s]; i < bounds[s + 1]; i++) {
+					count[digit(from[i], sh)]++;
+				}
+			});
+
+			// where each segment's keys of each digit go
+			int position = 0;
+			for (int d = 0; d < RADIX; d++) {
+				for (int s = 0; s < numSegments; s++) {
+					int count = offsets[s][d];
+					offsets[s][d] = position;
+					position += count;
+				}
+			}
+
+			// scatter
+			IntStream.range(0, numSegments).parallel().forEach(s -> {
+				int[] next = offsets[s];
+				for (int i = bounds[s]; i < bounds[s + 1]; i++) {
+					long key = from[i];
+					to[next[digit(key, sh)]++] = key;
+				}
+			});
+
+			src = to;
+			dst = from;
+		}
+
+		if (src != keys) {
+			System.arraycopy(src, 0, keys, 0, n);
+		}
+	}
+
+	// a digit of a key, with the sign bit flipped so the order is signed
+	private static int digit(long key, int shift) {
+		return (int) (((key ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1));
+	}
+
+	public static void main(String[] args) {
+		int n = 20000000;
+		SplittableRandom random = new SplittableRandom(17);
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = random.nextLong();
+		}
+		long[] expected = keys.clone();
+		long[] scratch = new long[n];
+
+		long start = System.nanoTime();
+		Arrays.sort(expected);
+		double sortTime = (System.nanoTime() - start) / 1.0e9;
+
+		start = System.nanoTime();
+		sort(keys, n, scratch);
+		double radixTime = (System.nanoTime() - start) / 1.0e9;
+		System.out.printf("%d random keys: Arrays.sort %.2f s, radix sort %.2f s, same order: %b%n", n, sortTime,
+				radixTime, Arrays.equals(keys, expected));
+
+		// keys that vary in only a few bytes, like packed patch keys, skip passes
+		for (int i = 0; i < n; i++) {
+			keys[i] = random.nextLong() & 0x000000ffff00ffffL;
+		}
+		expected = keys.clone();
+		Arrays.sort(expected);
+		start = System.nanoTime();
+		sort(keys, n, scratch);
+		radixTime = (System.nanoTime() - start) / 1.0e9;
+		System.out.printf("%d keys varying in 4 bytes: radix sort %.2f s, same order: %b%n", n, radixTime,
+				Arrays.equals(keys, expected));
+	}
+}
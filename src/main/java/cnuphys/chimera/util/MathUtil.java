@@ -12,6 +12,11 @@ public class MathUtil {
      * @return the normalized angle in the range [-π, π]
      */
     public static double normalizeAngle(double angle) {
+        // Most angles are already in range; skip the (slow) floating modulo
+        if (angle >= -Math.PI && angle <= Math.PI) {
+            return angle;
+        }
+
         // Use modulo to wrap the angle within [-π, π]
         angle = angle % (2 * Math.PI);
 
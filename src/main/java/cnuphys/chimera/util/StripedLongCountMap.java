@@ -0,0 +1,295 @@
+package cnuphys.chimera.util;
+
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe map from long keys to long counts for many concurrent
+ * producers. The keys are split over independent stripes by hash, each a
+ * {@link LongCountMap} with its own lock, so threads counting different keys
+ * rarely touch the same lock. Producers that count many samples should count
+ * into a private LongCountMap and {@link #addAll(LongCountMap)} it now and
+ * then, which takes each stripe lock once per batch.
+ * <p>
+ * {@link #snapshot()} and {@link #size()} hold all the stripe locks at once, so
+ * readers see a state that existed at one instant, never a half applied batch.
+ */
+public class StripedLongCountMap {
+
+	// the stripes and their locks
+	private final LongCountMap[] _stripes;
+	private final ReentrantLock[] _locks;
+
+	// the number of high hash bits that select the stripe
+	private final int _stripeBits;
+
+	/**
+	 * Create a map with a stripe count suited to the number of processors
+	 */
+	public StripedLongCountMap() {
+		this(Math.max(64, 4 * Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Create a map
+	 *
+	 * @param numStripes the minimum number of stripes, rounded up to a power of
+	 *                   two
+	 */
+	public StripedLongCountMap(int numStripes) {
+		int n = Integer.highestOneBit(Math.max(1, numStripes) - 1) << 1;
+		n = Math.max(1, Math.min(n, 1 << 16));
+		_stripeBits = Integer.numberOfTrailingZeros(n);
+		_stripes = new LongCountMap[n];
+		_locks = new ReentrantLock[n];
+		for (int i = 0; i < n; i++) {
+			_stripes[i] = new LongCountMap(256);
+			_locks[i] = new ReentrantLock();
+		}
+	}
+
+	// pick the stripe from the high bits of a mix of the key, so the low bits
+	// used for the slots inside the stripe stay well distributed
+	private int stripe(long key) {
+		if (_stripeBits == 0) {
+			return 0;
+		}
+		key ^= key >>> 31;
+		key *= 0x9e3779b97f4a7c15L;
+		key ^= key >>> 29;
+		return (int) (key >>> (64 - _stripeBits));
+	}
+
+	/**
+	 * Increment the count for a key by one
+	 *
+	 * @param key the key
+	 */
+	public void increment(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Add to the count for a key
+	 *
+	 * @param key   the key
+	 * @param count the amount to add
+	 */
+	public void add(long key, long count) {
+		int s = stripe(key);
+		ReentrantLock lock = _locks[s];
+		lock.lock();
+		try {
+			_stripes[s].add(key, count);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a batch of counts, taking each touched stripe lock once. The locks are
+	 * held together, so a snapshot sees either none or all of the batch.
+	 *
+	 * @param batch the counts to add
+	 */
+	public void addAll(LongCountMap batch) {
+		// split the batch by stripe first, outside any lock
+		int n = _stripes.length;
+		LongCountMap[] parts = new LongCountMap[n];
+		batch.forEach((key, count) -> {
+			int s = stripe(key);
+			if (parts[s] == null) {
+				parts[s] = new LongCountMap(Math.max(16, batch.size() / n));
+			}
+			parts[s].add(key, count);
+		});
+
+		// hold the locks of all the touched stripes at once, taken in index order
+		int locked = 0;
+		try {
+			for (int s = 0; s < n; s++) {
+				if (parts[s] != null) {
+					_locks[s].lock();
+					locked = s + 1;
+				}
+			}
+			for (int s = 0; s < n; s++) {
+				if (parts[s] != null) {
+					_stripes[s].addAll(parts[s]);
+				}
+			}
+		} finally {
+			for (int s = locked - 1; s >= 0; s--) {
+				if (parts[s] != null) {
+					_locks[s].unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the count for a key
+	 *
+	 * @param key the key
+	 * @return the count, 0 if the key is not present
+	 */
+	public long get(long key) {
+		int s = stripe(key);
+		ReentrantLock lock = _locks[s];
+		lock.lock();
+		try {
+			return _stripes[s].get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get a consistent copy of all the counts
+	 *
+	 * @return the copy
+	 */
+	public LongCountMap snapshot() {
+		lockAll();
+		try {
+			int size = 0;
+			for (LongCountMap stripe : _stripes) {
+				size += stripe.size();
+			}
+			LongCountMap copy = new LongCountMap(size);
+			for (LongCountMap stripe : _stripes) {
+				copy.addAll(stripe);
+			}
+			return copy;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Get the number of distinct keys, consistently across the stripes
+	 *
+	 * @return the number of distinct keys
+	 */
+	public int size() {
+		lockAll();
+		try {
+			int size = 0;
+			for (LongCountMap stripe : _stripes) {
+				size += stripe.size();
+			}
+			return size;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Get the sum of all the counts, consistently across the stripes
+	 *
+	 * @return the total count
+	 */
+	public long getTotal() {
+		lockAll();
+		try {
+			long total = 0;
+			for (LongCountMap stripe : _stripes) {
+				total += stripe.getTotal();
+			}
+			return total;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear() {
+		lockAll();
+		try {
+			for (LongCountMap stripe : _stripes) {
+				stripe.clear();
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Get the number of stripes
+	 *
+	 * @return the number of stripes
+	 */
+	public int getNumStripes() {
+		return _stripes.length;
+	}
+
+	// always in index order, so two threads locking everything cannot deadlock
+	private void lockAll() {
+		for (ReentrantLock lock : _locks) {
+			lock.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i = _locks.length - 1; i >= 0; i--) {
+			_locks[i].unlock();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int numThreads = 32;
+		int perThread = 500000;
+		int numKeys = 50000;
+		StripedLongCountMap map = new StripedLongCountMap();
+
+		// half the producers increment one at a time, half in batches of 10000
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(id);
+				LongCountMap batch = new LongCountMap();
+				for (int i = 0; i < perThread; i++) {
+					long key = random.nextInt(numKeys);
+					if (id % 2 == 0) {
+						map.increment(key);
+					} else {
+						batch.increment(key);
+						if ((i + 1) % 10000 == 0) {
+							map.addAll(batch);
+							batch.clear();
+						}
+					}
+				}
+				map.addAll(batch);
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		// a reader taking snapshots while the producers run
+		int snapshots = 0;
+		boolean running = true;
+		while (running) {
+			map.snapshot();
+			snapshots++;
+			running = false;
+			for (Thread thread : threads) {
+				running |= thread.isAlive();
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double time = (System.nanoTime() - start) / 1.0e9;
+
+		System.out.printf("%d stripes, %d threads: %d keys, total %d (expected %d), %.1f M counts/s, %d snapshots%n",
+				map.getNumStripes(), numThreads, map.size(), map.getTotal(), (long) numThreads * perThread,
+				numThreads * (double) perThread / time / 1.0e6, snapshots);
+	}
+}